@@ -0,0 +1,190 @@
+package dsh.messages;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Preset dictionary for the {@link PayloadCodec}.
+ *
+ * Deflate finds repetitions within the last 32KB it has seen.  A small payload has hardly any repetitions of its own,
+ * but shares most of its structure (field names, enum values, common prefixes) with the other payloads of a stream.
+ * Priming the compressor with a dictionary holding those common parts lets every payload refer to them.
+ *
+ * A dictionary is identified by a number, which is carried in every compressed envelope: the consumer needs
+ * a dictionary with the same id and content.  Never change the content of a dictionary id that has been used.
+ */
+public final class CompressionDictionary {
+    /**
+     * Deflate only looks back 32KB: a larger dictionary is of no use.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    // length of the substrings counted while training (packed in a long)
+    private static final int GRAM = 8;
+    // length of the segments picked while training
+    private static final int SEGMENT = 32;
+
+    private final int id;
+    private final byte[] bytes;
+
+    /**
+     * @param id dictionary id, positive
+     * @param bytes dictionary content, at most {@value #MAX_SIZE} bytes; the most common content should come last
+     * @exception IllegalArgumentException when the id is not positive, or the content is empty or too large
+     */
+    public CompressionDictionary(int id, byte[] bytes) {
+        if(id <= 0) throw new IllegalArgumentException("dictionary id should be positive");
+        if(bytes.length == 0 || bytes.length > MAX_SIZE) throw new IllegalArgumentException("dictionary should hold 1 to " + MAX_SIZE + " bytes");
+        this.id = id;
+        this.bytes = bytes.clone();
+    }
+
+    /** @return the dictionary id */
+    public int id() { return id; }
+
+    /** @return the dictionary content (not a copy: do not modify) */
+    byte[] bytes() { return bytes; }
+
+    /** @return the size of the dictionary in bytes */
+    public int size() { return bytes.length; }
+
+    /**
+     * Load a dictionary from a file (the raw content, as written by {@link #write(Path)}).
+     *
+     * @param id dictionary id
+     * @param file dictionary file
+     * @return the dictionary
+     * @throws IOException when the file can not be read
+     */
+    public static CompressionDictionary load(int id, Path file) throws IOException {
+        return new CompressionDictionary(id, Files.readAllBytes(file));
+    }
+
+    /**
+     * Write the raw dictionary content to a file.
+     *
+     * @param file dictionary file
+     * @throws IOException when the file can not be written
+     */
+    public void write(Path file) throws IOException {
+        Files.write(file, bytes);
+    }
+
+    /**
+     * Train a dictionary on a sample of payloads.
+     *
+     * The samples are divided in epochs, one per dictionary segment.  In every epoch the 32-byte window covering the most
+     * common 8-byte sequences (counted as the number of samples they occur in) is picked as a segment, after which its
+     * sequences no longer count.  The segments are packed into the dictionary best scoring last, so they are at the
+     * shortest distance from the compressed data.
+     *
+     * @param id dictionary id
+     * @param samples sample payloads, representative for the stream
+     * @param maxSize maximum dictionary size, at most {@value #MAX_SIZE}
+     * @return the trained dictionary
+     * @exception IllegalArgumentException when the samples do not share any content
+     */
+    public static CompressionDictionary train(int id, Collection<byte[]> samples, int maxSize) {
+        if(maxSize <= 0 || maxSize > MAX_SIZE) throw new IllegalArgumentException("dictionary size should be 1 to " + MAX_SIZE);
+
+        // number of samples every 8-byte sequence occurs in; sequences in too few samples do not count
+        Map<Long, int[]> gramCounts = new HashMap<>();
+        Set<Long> seen = new HashSet<>();
+        List<byte[]> usable = new ArrayList<>();
+        for(byte[] sample: samples) {
+            if(sample.length < GRAM) continue;
+            usable.add(sample);
+            seen.clear();
+            for(int i = 0; i + GRAM <= sample.length; i++) {
+                long gram = gramAt(sample, i);
+                if(seen.add(gram)) gramCounts.computeIfAbsent(gram, k -> new int[1])[0]++;
+            }
+        }
+        int minCount = Math.max(2, usable.size() / 100);
+        gramCounts.values().removeIf(count -> count[0] < minCount);
+
+        List<byte[]> segments = new ArrayList<>();
+        List<Long> scores = new ArrayList<>();
+        int size = 0;
+        int epochs = Math.max(1, Math.min(usable.size(), maxSize / SEGMENT));
+        boolean added = true;
+        while(added && size < maxSize) {
+            added = false;
+            for(int epoch = 0; epoch < epochs && size < maxSize; epoch++) {
+                // best window over the samples of this epoch
+                byte[] best = null;
+                int bestFrom = 0;
+                long bestScore = 0;
+                for(int s = epoch; s < usable.size(); s += epochs) {
+                    byte[] sample = usable.get(s);
+                    for(int from = 0; from + GRAM <= sample.length; from++) {
+                        long score = windowScore(gramCounts, sample, from);
+                        if(score > bestScore) { bestScore = score; best = sample; bestFrom = from; }
+                    }
+                }
+                if(best == null) continue;
+
+                byte[] segment = trim(gramCounts, best, bestFrom);
+                if(size + segment.length > maxSize) segment = Arrays.copyOf(segment, maxSize - size);
+                for(int i = 0; i + GRAM <= segment.length; i++) gramCounts.remove(gramAt(segment, i));
+                segments.add(segment);
+                scores.add(bestScore);
+                size += segment.length;
+                added = true;
+            }
+        }
+        if(segments.isEmpty()) throw new IllegalArgumentException("samples do not share enough content to train a dictionary");
+
+        // best segments last
+        Integer[] order = new Integer[segments.size()];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(scores::get));
+        byte[] dictionary = new byte[size];
+        int pos = 0;
+        for(int i: order) {
+            byte[] segment = segments.get(i);
+            System.arraycopy(segment, 0, dictionary, pos, segment.length);
+            pos += segment.length;
+        }
+        return new CompressionDictionary(id, dictionary);
+    }
+
+    // sum of the counts of the distinct sequences in the window at the given position
+    private static long windowScore(Map<Long, int[]> gramCounts, byte[] sample, int from) {
+        long score = 0;
+        int last = Math.min(from + SEGMENT, sample.length) - GRAM;
+        Set<Long> counted = null;
+        for(int i = from; i <= last; i++) {
+            long gram = gramAt(sample, i);
+            int[] count = gramCounts.get(gram);
+            if(count == null) continue;
+            if(counted == null) counted = new HashSet<>();
+            if(counted.add(gram)) score += count[0];
+        }
+        return score;
+    }
+
+    // the window at the given position, without leading and trailing bytes that are not part of a counted sequence
+    private static byte[] trim(Map<Long, int[]> gramCounts, byte[] sample, int from) {
+        int last = Math.min(from + SEGMENT, sample.length) - GRAM;
+        int first = -1;
+        int end = from;
+        for(int i = from; i <= last; i++) {
+            if(! gramCounts.containsKey(gramAt(sample, i))) continue;
+            if(first < 0) first = i;
+            end = i + GRAM;
+        }
+        return Arrays.copyOfRange(sample, first, end);
+    }
+
+    private static long gramAt(byte[] bytes, int pos) {
+        long gram = 0;
+        for(int i = 0; i < GRAM; i++) gram = (gram << 8) | (bytes[pos + i] & 0xFF);
+        return gram;
+    }
+
+    @Override
+    public String toString() { return "CompressionDictionary(" + id + ", " + bytes.length + " bytes)"; }
+}
@@ -0,0 +1,359 @@
+package dsh.messages;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Reusable, mutable view on a serialized {@link Envelope.DataEnvelope}.
+ *
+ * {@link #wrap(byte[])} scans the wire format once: the payload is exposed as a range of the wrapped buffer,
+ * and the tracing entries are only located, not decoded.  {@link #tracing(String)} looks up a single entry
+ * without building the map, {@link #tracing()} decodes the whole map on first use.  The setters change single
+ * fields, and {@link #writeTo(byte[], int)} writes the envelope back, copying the untouched fields from the wrapped buffer.
+ *
+ * The encoding is compatible with the generated classes: for the same content the flyweight writes the same bytes,
+ * and unknown fields (such as the tenant-specific batch, chunk and compression fields) are kept and written back
+ * as they were.  Unlike the generated classes, the flyweight does not check that strings are valid UTF-8.
+ *
+ * The flyweight refers to the wrapped buffer, which must not be modified while in use (so do not write to it either).
+ * A flyweight is not thread safe.
+ *
+ * <pre>{@code
+ *   DataFlyweight value = new DataFlyweight();
+ *   for(ConsumerRecord<byte[], byte[]> record: records) {
+ *     value.wrap(record.value());
+ *     if(value.hasPayload()) handle(value.payloadBuffer(), value.payloadOffset(), value.payloadLength());
+ *   }
+ * }</pre>
+ */
+public final class DataFlyweight {
+    private static final int PAYLOAD_FIELD = Envelope.DataEnvelope.PAYLOAD_FIELD_NUMBER;
+    private static final int TRACING_FIELD = Envelope.DataEnvelope.TRACING_FIELD_NUMBER;
+    private static final int ENTRY_KEY_FIELD = 1;
+    private static final int ENTRY_VALUE_FIELD = 2;
+
+    private static final int LENGTH_DELIMITED = KeyExtractor.WIRETYPE_LENGTH_DELIMITED;
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] buffer;
+    private boolean hasPayload;
+    private byte[] payloadBuffer = EMPTY;
+    private int payloadOffset;
+    private int payloadLength;
+    // tracing entries as found in the wrapped buffer (the entry messages), until the tracing gets modified
+    private final Wire.Ranges entries = new Wire.Ranges();
+    private Map<String, String> tracing;
+    private boolean tracingModified;
+    private final Wire.Ranges unknown = new Wire.Ranges();
+    private final Utf8Sequence scratch = new Utf8Sequence();
+    private final Utf8Sequence view = new Utf8Sequence();
+
+    /**
+     * Wrap a serialized DataEnvelope.
+     *
+     * @param bytes serialized DataEnvelope
+     * @return this flyweight
+     * @exception Serdes.SerializationException when the data is malformed (the flyweight is cleared)
+     */
+    public DataFlyweight wrap(byte[] bytes) { return wrap(bytes, 0, bytes.length); }
+
+    /**
+     * Wrap a serialized DataEnvelope in a buffer.
+     *
+     * @param bytes  buffer containing the serialized DataEnvelope
+     * @param offset start of the serialized DataEnvelope in the buffer
+     * @param length length of the serialized DataEnvelope
+     * @return this flyweight
+     * @exception Serdes.SerializationException when the data is malformed (the flyweight is cleared)
+     */
+    public DataFlyweight wrap(byte[] bytes, int offset, int length) {
+        if(offset < 0 || length < 0 || length > bytes.length - offset) throw new IndexOutOfBoundsException("range " + offset + "+" + length + " outside buffer");
+        clear();
+        buffer = bytes;
+        try {
+            read(bytes, offset, offset + length);
+        }
+        catch (IllegalArgumentException e) {
+            clear();
+            throw new Serdes.SerializationException(e);
+        }
+        return this;
+    }
+
+    private void read(byte[] bytes, int pos, int to) {
+        while(pos < to) {
+            int start = pos;
+            int tag = Wire.readTag(bytes, pos, to);
+            pos = KeyExtractor.varintEnd(bytes, pos, to);
+            if(tag == Wire.tag(PAYLOAD_FIELD, LENGTH_DELIMITED)) {
+                payloadLength = Wire.readLength(bytes, pos, to);
+                payloadOffset = KeyExtractor.varintEnd(bytes, pos, to);
+                payloadBuffer = bytes;
+                hasPayload = true;
+                pos = payloadOffset + payloadLength;
+            }
+            else if(tag == Wire.tag(TRACING_FIELD, LENGTH_DELIMITED)) {
+                int len = Wire.readLength(bytes, pos, to);
+                pos = KeyExtractor.varintEnd(bytes, pos, to);
+                checkEntry(bytes, pos, pos + len);
+                entries.add(pos, len);
+                pos += len;
+            }
+            else {
+                pos = Wire.skipField(bytes, pos, to, tag, 0);
+                unknown.add(start, pos - start);
+            }
+        }
+    }
+
+    // entries are decoded lazily, but malformed ones are rejected up front
+    private static void checkEntry(byte[] bytes, int pos, int to) {
+        while(pos < to) {
+            int tag = Wire.readTag(bytes, pos, to);
+            pos = Wire.skipField(bytes, KeyExtractor.varintEnd(bytes, pos, to), to, tag, 0);
+        }
+    }
+
+    /**
+     * Clear all fields, and release the wrapped buffer.
+     *
+     * @return this flyweight
+     */
+    public DataFlyweight clear() {
+        buffer = null;
+        clearPayload();
+        entries.clear();
+        tracing = null;
+        tracingModified = false;
+        unknown.clear();
+        return this;
+    }
+
+    // -- payload
+
+    /** @return {@code true} when the payload is set (it is not set for a delete) */
+    public boolean hasPayload() { return hasPayload; }
+
+    /** @return the buffer holding the payload (do not modify) */
+    public byte[] payloadBuffer() { return payloadBuffer; }
+
+    /** @return the start of the payload in the {@link #payloadBuffer()} */
+    public int payloadOffset() { return payloadOffset; }
+
+    /** @return the length of the payload */
+    public int payloadLength() { return payloadLength; }
+
+    /** @return a copy of the payload (empty when not set) */
+    public byte[] payloadCopy() {
+        byte[] payload = new byte[payloadLength];
+        System.arraycopy(payloadBuffer, payloadOffset, payload, 0, payloadLength);
+        return payload;
+    }
+
+    /**
+     * @param payload the payload (not copied: do not modify while in use)
+     * @return this flyweight
+     */
+    public DataFlyweight setPayload(byte[] payload) { return setPayload(payload, 0, payload.length); }
+
+    /**
+     * @param bytes  buffer holding the payload (not copied: do not modify while in use)
+     * @param offset start of the payload in the buffer
+     * @param length length of the payload
+     * @return this flyweight
+     */
+    public DataFlyweight setPayload(byte[] bytes, int offset, int length) {
+        if(offset < 0 || length < 0 || length > bytes.length - offset) throw new IndexOutOfBoundsException("range " + offset + "+" + length + " outside buffer");
+        payloadBuffer = bytes;
+        payloadOffset = offset;
+        payloadLength = length;
+        hasPayload = true;
+        return this;
+    }
+
+    /**
+     * Remove the payload, making the envelope a delete.
+     *
+     * @return this flyweight
+     */
+    public DataFlyweight clearPayload() {
+        hasPayload = false;
+        payloadBuffer = EMPTY;
+        payloadOffset = payloadLength = 0;
+        return this;
+    }
+
+    // -- tracing
+
+    /**
+     * Look up a single tracing entry, without decoding the others.
+     *
+     * @param key the tracing key
+     * @return the value, or {@code null} when there is no such entry
+     */
+    public String tracing(String key) {
+        if(tracing != null) return tracing.get(key);
+        int entry = lastEntry(key);
+        return entry < 0 ? null : entryString(entries.offset(entry), entries.offset(entry) + entries.length(entry), ENTRY_VALUE_FIELD);
+    }
+
+    /**
+     * Look up a single tracing entry without copying it: the value is a view on the wrapped buffer.
+     *
+     * @param key the tracing key
+     * @return the value, valid until the next lookup or wrap, or {@code null} when there is no such entry
+     */
+    public Utf8Sequence tracingView(String key) {
+        if(tracing != null) {
+            String value = tracing.get(key);
+            return value == null ? null : view.set(value);
+        }
+        int entry = lastEntry(key);
+        if(entry < 0) return null;
+        long range = KeyExtractor.fieldRange(buffer, entries.offset(entry), entries.offset(entry) + entries.length(entry), ENTRY_VALUE_FIELD);
+        return range == KeyExtractor.NOT_FOUND ? view.clear() : view.wrap(buffer, KeyExtractor.offset(range), KeyExtractor.length(range));
+    }
+
+    // index of the last entry with the key (the last occurrence wins), -1 when there is none
+    private int lastEntry(String key) {
+        for(int i = entries.count() - 1; i >= 0; i--) {
+            int from = entries.offset(i);
+            long keyRange = KeyExtractor.fieldRange(buffer, from, from + entries.length(i), ENTRY_KEY_FIELD);
+            boolean matches = keyRange == KeyExtractor.NOT_FOUND
+                    ? key.isEmpty()
+                    : scratch.wrap(buffer, KeyExtractor.offset(keyRange), KeyExtractor.length(keyRange)).contentEquals(key);
+            if(matches) return i;
+        }
+        return -1;
+    }
+
+    /** @return the tracing entries (read-only), decoded on first use */
+    public Map<String, String> tracing() {
+        if(tracing == null) {
+            tracing = new LinkedHashMap<>();
+            for(int i = 0; i < entries.count(); i++) {
+                int from = entries.offset(i);
+                int to = from + entries.length(i);
+                tracing.put(entryString(from, to, ENTRY_KEY_FIELD), entryString(from, to, ENTRY_VALUE_FIELD));
+            }
+        }
+        return Collections.unmodifiableMap(tracing);
+    }
+
+    private String entryString(int from, int to, int field) {
+        long range = KeyExtractor.fieldRange(buffer, from, to, field);
+        return range == KeyExtractor.NOT_FOUND ? "" : new String(buffer, KeyExtractor.offset(range), KeyExtractor.length(range), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Add or replace a tracing entry (decodes the tracing map).
+     *
+     * @param key the tracing key
+     * @param value the value
+     * @return this flyweight
+     */
+    public DataFlyweight putTracing(String key, String value) {
+        tracing();
+        tracing.put(Objects.requireNonNull(key), Objects.requireNonNull(value));
+        tracingModified = true;
+        return this;
+    }
+
+    /**
+     * Remove all tracing entries.
+     *
+     * @return this flyweight
+     */
+    public DataFlyweight clearTracing() {
+        entries.clear();
+        tracing = null;
+        tracingModified = false;
+        return this;
+    }
+
+    // -- writing
+
+    private static int entrySize(String key, String value) {
+        // map entries always hold both key and value, like the generated classes write them
+        return Wire.lengthDelimitedSize(ENTRY_KEY_FIELD, Wire.utf8Length(key)) + Wire.lengthDelimitedSize(ENTRY_VALUE_FIELD, Wire.utf8Length(value));
+    }
+
+    /** @return the size of the serialized envelope */
+    public int encodedSize() {
+        int size = unknown.bytes();
+        if(hasPayload) size += Wire.lengthDelimitedSize(PAYLOAD_FIELD, payloadLength);
+        if(tracingModified) {
+            for(Map.Entry<String, String> entry: tracing.entrySet()) size += Wire.lengthDelimitedSize(TRACING_FIELD, entrySize(entry.getKey(), entry.getValue()));
+        }
+        else {
+            for(int i = 0; i < entries.count(); i++) size += Wire.lengthDelimitedSize(TRACING_FIELD, entries.length(i));
+        }
+        return size;
+    }
+
+    /**
+     * Serialize the envelope into a buffer (not the wrapped one).
+     *
+     * @param dest the buffer, with room for {@link #encodedSize()} bytes at the offset
+     * @param offset where to write the envelope
+     * @return the end of the envelope in the buffer
+     */
+    public int writeTo(byte[] dest, int offset) {
+        int pos = offset;
+        if(hasPayload) {
+            pos = Wire.writeLengthDelimitedHeader(dest, pos, PAYLOAD_FIELD, payloadLength);
+            System.arraycopy(payloadBuffer, payloadOffset, dest, pos, payloadLength);
+            pos += payloadLength;
+        }
+        if(tracingModified) {
+            for(Map.Entry<String, String> entry: tracing.entrySet()) {
+                String key = entry.getKey();
+                String value = entry.getValue();
+                pos = Wire.writeLengthDelimitedHeader(dest, pos, TRACING_FIELD, entrySize(key, value));
+                pos = Wire.writeLengthDelimitedHeader(dest, pos, ENTRY_KEY_FIELD, Wire.utf8Length(key));
+                pos = Wire.writeUtf8(key, dest, pos);
+                pos = Wire.writeLengthDelimitedHeader(dest, pos, ENTRY_VALUE_FIELD, Wire.utf8Length(value));
+                pos = Wire.writeUtf8(value, dest, pos);
+            }
+        }
+        else {
+            for(int i = 0; i < entries.count(); i++) {
+                int length = entries.length(i);
+                pos = Wire.writeLengthDelimitedHeader(dest, pos, TRACING_FIELD, length);
+                System.arraycopy(buffer, entries.offset(i), dest, pos, length);
+                pos += length;
+            }
+        }
+        return unknown.writeTo(buffer, dest, pos);
+    }
+
+    /** @return the serialized envelope */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[encodedSize()];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * @return the envelope as generated class
+     * @exception Serdes.SerializationException when a string is not valid UTF-8
+     */
+    public Envelope.DataEnvelope toEnvelope() {
+        try {
+            return Envelope.DataEnvelope.parseFrom(toByteArray());
+        }
+        catch (InvalidProtocolBufferException e) {
+            throw new Serdes.SerializationException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DataFlyweight(payload=" + (hasPayload ? payloadLength + " bytes" : "none") + ", tracing=" + (tracingModified ? tracing.size() : entries.count()) + " entries)";
+    }
+}
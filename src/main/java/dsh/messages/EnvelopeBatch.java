@@ -0,0 +1,195 @@
+package dsh.messages;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnknownFieldSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Codec packing many small envelopes into the {@link Envelope.DataEnvelope} of a single Kafka record.
+ *
+ * A batch is a DataEnvelope without payload, carrying its entries in the tenant-reserved field {@value #BATCH_FIELD}
+ * (repeated, length delimited).  Every entry is a small message with
+ * <ul>
+ *   <li>field 1 -- the serialized {@code KeyEnvelope} of the entry, left out when it equals the key of the batch record</li>
+ *   <li>field 2 -- the serialized {@code DataEnvelope} of the entry</li>
+ * </ul>
+ * Because it stays a valid DataEnvelope (the entries are unknown fields to the generated code), batches pass through
+ * any envelope deserializer, and are unpacked by {@link #forEach(Envelope.KeyEnvelope, Envelope.DataEnvelope, BiConsumer)}
+ * (e.g. from {@link dsh.sdk.kafka.consumers.EnvelopeBatchInterceptor}) or, on the raw bytes,
+ * by {@link #forEach(byte[], byte[], BiConsumer)}.
+ *
+ * Consumers that are not aware of batches see a DataEnvelope without payload: only use batching on streams
+ * whose consumers unpack them.
+ */
+public class EnvelopeBatch {
+    private EnvelopeBatch() { throw new AssertionError(); }
+
+    /**
+     * The DataEnvelope field holding the batch entries (in the tenant-specific 500-1000 range).
+     */
+    public static final int BATCH_FIELD = 500;
+
+    private static final int ENTRY_KEY_FIELD = 1;
+    private static final int ENTRY_VALUE_FIELD = 2;
+
+    /**
+     * The number of bytes an entry adds to a batch.
+     *
+     * @param recordKey the serialized key of the batch record
+     * @param key the serialized KeyEnvelope of the entry
+     * @param value the serialized DataEnvelope of the entry
+     * @return encoded size of the entry
+     */
+    public static int entrySize(byte[] recordKey, byte[] key, byte[] value) {
+        int size = entryContentSize(recordKey, key, value);
+        return CodedOutputStream.computeTagSize(BATCH_FIELD) + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    private static int entryContentSize(byte[] recordKey, byte[] key, byte[] value) {
+        int size = CodedOutputStream.computeByteArraySize(ENTRY_VALUE_FIELD, value);
+        if(! Arrays.equals(recordKey, key)) size += CodedOutputStream.computeByteArraySize(ENTRY_KEY_FIELD, key);
+        return size;
+    }
+
+    /**
+     * Pack a number of envelopes into a serialized (batch) DataEnvelope.
+     *
+     * @param recordKey the serialized key of the batch record
+     * @param keys the serialized KeyEnvelopes of the entries
+     * @param values the serialized DataEnvelopes of the entries (no tombstones: {@code null} is not allowed)
+     * @return the serialized batch
+     * @exception IllegalArgumentException when the number of keys and values differ, or a value is {@code null}
+     */
+    public static byte[] encode(byte[] recordKey, List<byte[]> keys, List<byte[]> values) {
+        if(keys.size() != values.size()) throw new IllegalArgumentException("number of keys and values differ");
+
+        int size = 0;
+        for(int i = 0; i < keys.size(); i++) {
+            if(values.get(i) == null) throw new IllegalArgumentException("tombstones can not be batched");
+            size += entrySize(recordKey, keys.get(i), values.get(i));
+        }
+
+        byte[] batch = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(batch);
+        try {
+            for(int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                byte[] value = values.get(i);
+                out.writeTag(BATCH_FIELD, KeyExtractor.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(entryContentSize(recordKey, key, value));
+                if(! Arrays.equals(recordKey, key)) out.writeByteArray(ENTRY_KEY_FIELD, key);
+                out.writeByteArray(ENTRY_VALUE_FIELD, value);
+            }
+            out.checkNoSpaceLeft();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("batch size miscalculated", e);
+        }
+        return batch;
+    }
+
+    /**
+     * Check whether a DataEnvelope is a batch.
+     *
+     * @param value the DataEnvelope (or {@code null})
+     * @return {@code true} when the envelope carries batch entries
+     */
+    public static boolean isBatch(Envelope.DataEnvelope value) {
+        return value != null && ! value.hasPayload() && value.getUnknownFields().hasField(BATCH_FIELD);
+    }
+
+    /**
+     * Check whether a serialized DataEnvelope is a batch, without parsing it.
+     *
+     * @param value the serialized DataEnvelope (or {@code null})
+     * @return {@code true} when the envelope carries batch entries
+     */
+    public static boolean isBatch(byte[] value) {
+        return value != null && KeyExtractor.fieldRange(value, 0, value.length, BATCH_FIELD) != KeyExtractor.NOT_FOUND;
+    }
+
+    /**
+     * Unpack the entries of a batch.
+     *
+     * @param recordKey the key of the batch record
+     * @param batch the batch envelope
+     * @param entries called with the key and value of every entry, in order
+     * @return the number of entries
+     * @exception Serdes.SerializationException when an entry can not be parsed
+     */
+    public static int forEach(Envelope.KeyEnvelope recordKey, Envelope.DataEnvelope batch, BiConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> entries) {
+        UnknownFieldSet.Field field = batch.getUnknownFields().getField(BATCH_FIELD);
+        if(field == null) return 0;
+        try {
+            for(ByteString entry: field.getLengthDelimitedList()) {
+                UnknownFieldSet fields = UnknownFieldSet.parseFrom(entry);
+                UnknownFieldSet.Field key = fields.getField(ENTRY_KEY_FIELD);
+                UnknownFieldSet.Field value = fields.getField(ENTRY_VALUE_FIELD);
+                entries.accept(
+                        key.getLengthDelimitedList().isEmpty() ? recordKey : Envelope.KeyEnvelope.parseFrom(last(key.getLengthDelimitedList())),
+                        Envelope.DataEnvelope.parseFrom(value.getLengthDelimitedList().isEmpty() ? ByteString.EMPTY : last(value.getLengthDelimitedList()))
+                );
+            }
+            return field.getLengthDelimitedList().size();
+        }
+        catch (InvalidProtocolBufferException e) {
+            throw new Serdes.SerializationException(e);
+        }
+    }
+
+    private static ByteString last(List<ByteString> values) { return values.get(values.size() - 1); }
+
+    /**
+     * Unpack the entries of a serialized batch.
+     *
+     * @param recordKey the serialized key of the batch record
+     * @param batch the serialized batch envelope
+     * @param entries called with the serialized key and value of every entry, in order
+     * @return the number of entries
+     * @exception Serdes.SerializationException when the batch is malformed
+     */
+    public static int forEach(byte[] recordKey, byte[] batch, BiConsumer<byte[], byte[]> entries) {
+        int count = 0;
+        int pos = 0;
+        final int to = batch.length;
+        try {
+            while(pos < to) {
+                long tag = KeyExtractor.readVarint(batch, pos, to);
+                pos = KeyExtractor.varintEnd(batch, pos, to);
+                int wireType = (int) (tag & 0x7);
+                if((int) (tag >>> 3) != BATCH_FIELD || wireType != KeyExtractor.WIRETYPE_LENGTH_DELIMITED) {
+                    pos = KeyExtractor.skipField(batch, pos, to, wireType);
+                    continue;
+                }
+
+                int len = (int) KeyExtractor.readVarint(batch, pos, to);
+                pos = KeyExtractor.varintEnd(batch, pos, to);
+                if(len < 0 || pos + len > to) throw new IllegalArgumentException("truncated batch entry");
+
+                long key = KeyExtractor.fieldRange(batch, pos, pos + len, ENTRY_KEY_FIELD);
+                long value = KeyExtractor.fieldRange(batch, pos, pos + len, ENTRY_VALUE_FIELD);
+                entries.accept(
+                        key == KeyExtractor.NOT_FOUND ? recordKey : copy(batch, key),
+                        value == KeyExtractor.NOT_FOUND ? new byte[0] : copy(batch, value)
+                );
+                count++;
+                pos += len;
+            }
+            return count;
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new Serdes.SerializationException(e);
+        }
+    }
+
+    private static byte[] copy(byte[] bytes, long range) {
+        int offset = KeyExtractor.offset(range);
+        return Arrays.copyOfRange(bytes, offset, offset + KeyExtractor.length(range));
+    }
+}
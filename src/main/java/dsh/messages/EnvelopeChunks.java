@@ -0,0 +1,175 @@
+package dsh.messages;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnknownFieldSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Codec splitting a serialized {@link Envelope.DataEnvelope} that is too large for a single Kafka record into ordered chunks.
+ *
+ * Every chunk is a DataEnvelope of its own, without payload, carrying two tenant-reserved fields:
+ * <ul>
+ *   <li>{@value #CHUNK_HEADER_FIELD} -- the chunk header: id of the chunk set (field 1), index of the chunk (field 2)
+ *       and number of chunks in the set (field 3)</li>
+ *   <li>{@value #CHUNK_DATA_FIELD} -- the next slice of the serialized original envelope</li>
+ * </ul>
+ * Concatenating the data of all chunks of a set, in index order, gives back the serialized original envelope,
+ * tracing and all.  Reassembly is done by {@link dsh.sdk.kafka.consumers.ChunkAssembler}.
+ */
+public class EnvelopeChunks {
+    private EnvelopeChunks() { throw new AssertionError(); }
+
+    /**
+     * The DataEnvelope field holding the chunk header (in the tenant-specific 500-1000 range).
+     */
+    public static final int CHUNK_HEADER_FIELD = 501;
+
+    /**
+     * The DataEnvelope field holding the chunk data (in the tenant-specific 500-1000 range).
+     */
+    public static final int CHUNK_DATA_FIELD = 502;
+
+    private static final int HEADER_ID_FIELD = 1;
+    private static final int HEADER_INDEX_FIELD = 2;
+    private static final int HEADER_COUNT_FIELD = 3;
+
+    // protobuf framing of a chunk on top of its data: two tags, header, and the data length prefix
+    private static final int MAX_CHUNK_OVERHEAD = 64;
+
+    /**
+     * A single chunk of a chunk set.
+     */
+    public static final class Chunk {
+        private final ByteString id;
+        private final int index;
+        private final int count;
+        private final ByteString data;
+
+        private Chunk(ByteString id, int index, int count, ByteString data) {
+            this.id = id;
+            this.index = index;
+            this.count = count;
+            this.data = data;
+        }
+
+        /** @return the id shared by all chunks of the set */
+        public ByteString id() { return id; }
+
+        /** @return the position of this chunk in the set, starting at 0 */
+        public int index() { return index; }
+
+        /** @return the number of chunks in the set */
+        public int count() { return count; }
+
+        /** @return the slice of the serialized original envelope */
+        public ByteString data() { return data; }
+    }
+
+    /**
+     * Split a serialized DataEnvelope into chunks.
+     *
+     * @param id id of the chunk set, unique per producer (e.g. the bytes of a random UUID)
+     * @param value the serialized DataEnvelope
+     * @param maxChunkBytes maximum size of a serialized chunk
+     * @return the serialized chunk envelopes, in order
+     * @exception IllegalArgumentException when the chunk size is too small to carry any data
+     */
+    public static List<byte[]> split(byte[] id, byte[] value, int maxChunkBytes) {
+        Objects.requireNonNull(value, "tombstones can not be chunked");
+        int dataPerChunk = maxChunkBytes - MAX_CHUNK_OVERHEAD - id.length;
+        if(dataPerChunk <= 0) throw new IllegalArgumentException("chunk size too small: " + maxChunkBytes);
+
+        int count = Math.max(1, (value.length + dataPerChunk - 1) / dataPerChunk);
+        List<byte[]> chunks = new ArrayList<>(count);
+        for(int index = 0; index < count; index++) {
+            int from = index * dataPerChunk;
+            int length = Math.min(dataPerChunk, value.length - from);
+            chunks.add(encode(id, index, count, value, from, length));
+        }
+        return chunks;
+    }
+
+    private static byte[] encode(byte[] id, int index, int count, byte[] value, int from, int length) {
+        int headerSize = CodedOutputStream.computeByteArraySize(HEADER_ID_FIELD, id)
+                + CodedOutputStream.computeUInt32Size(HEADER_INDEX_FIELD, index)
+                + CodedOutputStream.computeUInt32Size(HEADER_COUNT_FIELD, count);
+        int size = CodedOutputStream.computeTagSize(CHUNK_HEADER_FIELD) + CodedOutputStream.computeUInt32SizeNoTag(headerSize) + headerSize
+                + CodedOutputStream.computeTagSize(CHUNK_DATA_FIELD) + CodedOutputStream.computeUInt32SizeNoTag(length) + length;
+
+        byte[] chunk = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(chunk);
+        try {
+            out.writeTag(CHUNK_HEADER_FIELD, KeyExtractor.WIRETYPE_LENGTH_DELIMITED);
+            out.writeUInt32NoTag(headerSize);
+            out.writeByteArray(HEADER_ID_FIELD, id);
+            out.writeUInt32(HEADER_INDEX_FIELD, index);
+            out.writeUInt32(HEADER_COUNT_FIELD, count);
+            out.writeByteArray(CHUNK_DATA_FIELD, value, from, length);
+            out.checkNoSpaceLeft();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("chunk size miscalculated", e);
+        }
+        return chunk;
+    }
+
+    /**
+     * Check whether a DataEnvelope is a chunk.
+     *
+     * @param value the DataEnvelope (or {@code null})
+     * @return {@code true} when the envelope is a chunk of a larger envelope
+     */
+    public static boolean isChunk(Envelope.DataEnvelope value) {
+        return value != null && ! value.hasPayload() && value.getUnknownFields().hasField(CHUNK_HEADER_FIELD);
+    }
+
+    /**
+     * Check whether a serialized DataEnvelope is a chunk, without parsing it.
+     *
+     * @param value the serialized DataEnvelope (or {@code null})
+     * @return {@code true} when the envelope is a chunk of a larger envelope
+     */
+    public static boolean isChunk(byte[] value) {
+        return value != null && KeyExtractor.fieldRange(value, 0, value.length, CHUNK_HEADER_FIELD) != KeyExtractor.NOT_FOUND;
+    }
+
+    /**
+     * Read the chunk header and data from a chunk envelope.
+     *
+     * @param value the chunk envelope
+     * @return the chunk
+     * @exception Serdes.SerializationException when the envelope is not a valid chunk
+     */
+    public static Chunk chunkOf(Envelope.DataEnvelope value) {
+        UnknownFieldSet fields = value.getUnknownFields();
+        List<ByteString> headers = fields.hasField(CHUNK_HEADER_FIELD) ? fields.getField(CHUNK_HEADER_FIELD).getLengthDelimitedList() : null;
+        List<ByteString> data = fields.hasField(CHUNK_DATA_FIELD) ? fields.getField(CHUNK_DATA_FIELD).getLengthDelimitedList() : null;
+        if(headers == null || headers.isEmpty() || data == null || data.isEmpty()) throw new Serdes.SerializationException(new IllegalArgumentException("not a chunk"));
+
+        ByteString id = ByteString.EMPTY;
+        int index = -1;
+        int count = -1;
+        try {
+            CodedInputStream in = headers.get(headers.size() - 1).newCodedInput();
+            for(int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                switch(tag >>> 3) {
+                    case HEADER_ID_FIELD: id = in.readBytes(); break;
+                    case HEADER_INDEX_FIELD: index = in.readUInt32(); break;
+                    case HEADER_COUNT_FIELD: count = in.readUInt32(); break;
+                    default: in.skipField(tag);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new Serdes.SerializationException(e);
+        }
+        if(count <= 0 || index < 0 || index >= count) throw new Serdes.SerializationException(new IllegalArgumentException("invalid chunk header: " + index + "/" + count));
+        return new Chunk(id, index, count, data.get(data.size() - 1));
+    }
+}
@@ -0,0 +1,206 @@
+package dsh.messages;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lightweight access to the key string inside a serialized {@link Envelope.KeyEnvelope}.
+ *
+ * Instead of parsing the full envelope (header, identity, ...) into objects, the protobuf wire format is scanned
+ * for the {@code key} field only, and its position in the given buffer is returned.  This makes it possible to
+ * inspect (filter, partition, ...) records on their key without any allocation.
+ *
+ * <pre>{@code
+ *   long range = KeyExtractor.keyRange(record.key());
+ *   if(range != KeyExtractor.NOT_FOUND) {
+ *     int offset = KeyExtractor.offset(range);
+ *     int length = KeyExtractor.length(range);
+ *     . . .
+ *   }
+ * }</pre>
+ */
+public class KeyExtractor {
+    private KeyExtractor() { throw new AssertionError(); }
+
+    /**
+     * Returned when the serialized data does not contain a key, or could not be scanned.
+     */
+    public static final long NOT_FOUND = -1L;
+
+    // internal result of scanField: the message could not be scanned
+    static final long MALFORMED = -2L;
+
+    private static final int KEY_FIELD = Envelope.KeyEnvelope.KEY_FIELD_NUMBER;
+    private static final int HEADER_FIELD = Envelope.KeyEnvelope.HEADER_FIELD_NUMBER;
+    private static final int RETAINED_FIELD = Envelope.KeyHeader.RETAINED_FIELD_NUMBER;
+
+    static final int WIRETYPE_VARINT = 0;
+    static final int WIRETYPE_FIXED64 = 1;
+    static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    static final int WIRETYPE_FIXED32 = 5;
+
+    /**
+     * Find the position of the key string in a serialized KeyEnvelope.
+     *
+     * @param bytes serialized KeyEnvelope
+     * @return the offset and length of the UTF-8 encoded key packed in a single {@code long}
+     *         (use {@link #offset(long)} and {@link #length(long)} to unpack),
+     *         or {@link #NOT_FOUND} when there is no key or the data is malformed.
+     */
+    public static long keyRange(byte[] bytes) {
+        if(bytes == null) return NOT_FOUND;
+        return keyRange(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Find the position of the key string in a serialized KeyEnvelope.
+     *
+     * @param bytes  buffer containing the serialized KeyEnvelope
+     * @param from   start of the serialized KeyEnvelope in the buffer
+     * @param to     end (exclusive) of the serialized KeyEnvelope in the buffer
+     * @return the offset and length of the UTF-8 encoded key packed in a single {@code long},
+     *         or {@link #NOT_FOUND} when there is no key or the data is malformed.
+     */
+    public static long keyRange(byte[] bytes, int from, int to) { return fieldRange(bytes, from, to, KEY_FIELD); }
+
+    /**
+     * Check the retained flag in the header of a serialized KeyEnvelope.
+     *
+     * @param bytes serialized KeyEnvelope
+     * @return the value of {@code header.retained}, {@code false} when not set or the data is malformed
+     */
+    public static boolean retained(byte[] bytes) {
+        if(bytes == null) return false;
+        long header = fieldRange(bytes, 0, bytes.length, HEADER_FIELD);
+        if(header == NOT_FOUND) return false;
+
+        int pos = offset(header);
+        int to = pos + length(header);
+        boolean retained = false;
+        try {
+            while(pos < to) {
+                long tag = readVarint(bytes, pos, to);
+                pos = varintEnd(bytes, pos, to);
+                int wireType = (int) (tag & 0x7);
+                if((int) (tag >>> 3) == RETAINED_FIELD && wireType == WIRETYPE_VARINT) {
+                    retained = readVarint(bytes, pos, to) != 0;
+                    pos = varintEnd(bytes, pos, to);
+                }
+                else pos = skipField(bytes, pos, to, wireType);
+            }
+            return retained;
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Find the (last) occurrence of a length delimited field in a serialized protobuf message.
+     *
+     * @param bytes  buffer containing the serialized message
+     * @param from   start of the message in the buffer
+     * @param to     end (exclusive) of the message in the buffer
+     * @param field  field number
+     * @return packed offset and length of the field contents, or {@link #NOT_FOUND}
+     */
+    static long fieldRange(byte[] bytes, int from, int to, int field) {
+        long range = scanField(bytes, from, to, field);
+        return range == MALFORMED ? NOT_FOUND : range;
+    }
+
+    /**
+     * Like {@link #fieldRange(byte[], int, int, int)}, but tells a missing field apart from malformed data.
+     *
+     * @return packed offset and length of the field contents, {@link #NOT_FOUND} when the message has no such field,
+     *         or {@link #MALFORMED} when the message could not be scanned
+     */
+    static long scanField(byte[] bytes, int from, int to, int field) {
+        long found = NOT_FOUND;
+        int pos = from;
+        try {
+            while(pos < to) {
+                long tag = readVarint(bytes, pos, to);
+                pos = varintEnd(bytes, pos, to);
+                int wireType = (int) (tag & 0x7);
+
+                if((int) (tag >>> 3) == field && wireType == WIRETYPE_LENGTH_DELIMITED) {
+                    int len = (int) readVarint(bytes, pos, to);
+                    pos = varintEnd(bytes, pos, to);
+                    if(len < 0 || len > to - pos) return MALFORMED;
+                    found = pack(pos, len);     // proto3: last occurrence wins
+                    pos += len;
+                }
+                else {
+                    pos = skipField(bytes, pos, to, wireType);
+                }
+            }
+            return found;
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return MALFORMED;
+        }
+    }
+
+    /**
+     * Extract the key string from a serialized KeyEnvelope.
+     *
+     * @param bytes serialized KeyEnvelope
+     * @return the key, or {@code null} when no key could be found
+     */
+    public static String key(byte[] bytes) {
+        long range = keyRange(bytes);
+        return range == NOT_FOUND ? null : new String(bytes, offset(range), length(range), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param range packed range as returned by {@link #keyRange(byte[])}
+     * @return offset of the key in the buffer
+     */
+    public static int offset(long range) { return (int) (range >>> 32); }
+
+    /**
+     * @param range packed range as returned by {@link #keyRange(byte[])}
+     * @return length (in bytes) of the key
+     */
+    public static int length(long range) { return (int) range; }
+
+    static long pack(int offset, int length) { return ((long) offset << 32) | (length & 0xFFFFFFFFL); }
+
+    // -- minimal protobuf wire format scanning
+
+    static long readVarint(byte[] bytes, int pos, int to) {
+        long result = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            if(pos >= to) throw new IllegalArgumentException("truncated varint");
+            byte b = bytes[pos++];
+            result |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return result;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    static int varintEnd(byte[] bytes, int pos, int to) {
+        while(pos < to && (bytes[pos] & 0x80) != 0) pos++;
+        if(pos >= to) throw new IllegalArgumentException("truncated varint");
+        return pos + 1;
+    }
+
+    static int skipField(byte[] bytes, int pos, int to, int wireType) {
+        switch (wireType) {
+            case WIRETYPE_VARINT:           return varintEnd(bytes, pos, to);
+            case WIRETYPE_FIXED64:          return checked(pos + 8, to);
+            case WIRETYPE_FIXED32:          return checked(pos + 4, to);
+            case WIRETYPE_LENGTH_DELIMITED: {
+                int len = (int) readVarint(bytes, pos, to);
+                if(len < 0) throw new IllegalArgumentException("negative length");
+                return checked(varintEnd(bytes, pos, to) + len, to);
+            }
+            default: throw new IllegalArgumentException("unsupported wire type " + wireType);
+        }
+    }
+
+    private static int checked(int pos, int to) {
+        if(pos > to || pos < 0) throw new IllegalArgumentException("truncated field");
+        return pos;
+    }
+}
@@ -0,0 +1,389 @@
+package dsh.messages;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Reusable, mutable view on a serialized {@link Envelope.KeyEnvelope}.
+ *
+ * {@link #wrap(byte[])} scans the wire format once and remembers where the fields are: the strings are exposed as
+ * {@link Utf8Sequence}s over the buffer, nothing is copied or decoded until asked for.  One flyweight can be reused
+ * for every record, so reading keys does not allocate.  The setters change single fields, and {@link #writeTo(byte[], int)}
+ * writes the envelope back, copying the untouched fields from the wrapped buffer.
+ *
+ * The encoding is compatible with the generated classes: for the same content the flyweight writes the same bytes,
+ * and unknown fields (on every level) are kept and written back as they were.  Unlike the generated classes,
+ * the flyweight does not check that strings are valid UTF-8.
+ *
+ * The flyweight refers to the wrapped buffer, which must not be modified while in use (so do not write to it either).
+ * A flyweight is not thread safe.
+ *
+ * <pre>{@code
+ *   KeyFlyweight key = new KeyFlyweight();
+ *   for(ConsumerRecord<byte[], byte[]> record: records) {
+ *     key.wrap(record.key());
+ *     if(key.retained() && key.tenant().contentEquals("tenant")) {
+ *       . . .
+ *     }
+ *   }
+ * }</pre>
+ */
+public final class KeyFlyweight {
+    /** {@link #publisherCase()} when no publisher is set */
+    public static final int PUBLISHER_NOT_SET = 0;
+    /** {@link #publisherCase()} for a free form publisher */
+    public static final int FREE_FORM = Envelope.Identity.FREE_FORM_FIELD_NUMBER;
+    /** {@link #publisherCase()} for a user publisher */
+    public static final int USER = Envelope.Identity.USER_FIELD_NUMBER;
+    /** {@link #publisherCase()} for a client publisher */
+    public static final int CLIENT = Envelope.Identity.CLIENT_FIELD_NUMBER;
+    /** {@link #publisherCase()} for an application publisher */
+    public static final int APPLICATION = Envelope.Identity.APPLICATION_FIELD_NUMBER;
+
+    private static final int HEADER_FIELD = Envelope.KeyEnvelope.HEADER_FIELD_NUMBER;
+    private static final int KEY_FIELD = Envelope.KeyEnvelope.KEY_FIELD_NUMBER;
+    private static final int IDENTIFIER_FIELD = Envelope.KeyHeader.IDENTIFIER_FIELD_NUMBER;
+    private static final int RETAINED_FIELD = Envelope.KeyHeader.RETAINED_FIELD_NUMBER;
+    private static final int QOS_FIELD = Envelope.KeyHeader.QOS_FIELD_NUMBER;
+    private static final int TENANT_FIELD = Envelope.Identity.TENANT_FIELD_NUMBER;
+
+    private static final int LENGTH_DELIMITED = KeyExtractor.WIRETYPE_LENGTH_DELIMITED;
+    private static final int VARINT = KeyExtractor.WIRETYPE_VARINT;
+
+    private byte[] buffer;
+    private final Utf8Sequence key = new Utf8Sequence();
+    private final Utf8Sequence tenant = new Utf8Sequence();
+    private final Utf8Sequence publisher = new Utf8Sequence();
+    private int publisherCase;
+    private boolean hasHeader;
+    private boolean hasIdentity;
+    private boolean retained;
+    private int qos;
+    // unknown fields per message level, written back verbatim
+    private final Wire.Ranges unknown = new Wire.Ranges();
+    private final Wire.Ranges headerUnknown = new Wire.Ranges();
+    private final Wire.Ranges identityUnknown = new Wire.Ranges();
+
+    /**
+     * Wrap a serialized KeyEnvelope.
+     *
+     * @param bytes serialized KeyEnvelope
+     * @return this flyweight
+     * @exception Serdes.SerializationException when the data is malformed (the flyweight is cleared)
+     */
+    public KeyFlyweight wrap(byte[] bytes) { return wrap(bytes, 0, bytes.length); }
+
+    /**
+     * Wrap a serialized KeyEnvelope in a buffer.
+     *
+     * @param bytes  buffer containing the serialized KeyEnvelope
+     * @param offset start of the serialized KeyEnvelope in the buffer
+     * @param length length of the serialized KeyEnvelope
+     * @return this flyweight
+     * @exception Serdes.SerializationException when the data is malformed (the flyweight is cleared)
+     */
+    public KeyFlyweight wrap(byte[] bytes, int offset, int length) {
+        if(offset < 0 || length < 0 || length > bytes.length - offset) throw new IndexOutOfBoundsException("range " + offset + "+" + length + " outside buffer");
+        clear();
+        buffer = bytes;
+        try {
+            readKey(bytes, offset, offset + length);
+        }
+        catch (IllegalArgumentException e) {
+            clear();
+            throw new Serdes.SerializationException(e);
+        }
+        return this;
+    }
+
+    private void readKey(byte[] bytes, int pos, int to) {
+        while(pos < to) {
+            int start = pos;
+            int tag = Wire.readTag(bytes, pos, to);
+            pos = KeyExtractor.varintEnd(bytes, pos, to);
+            if(tag == Wire.tag(HEADER_FIELD, LENGTH_DELIMITED)) {
+                int len = Wire.readLength(bytes, pos, to);
+                pos = KeyExtractor.varintEnd(bytes, pos, to);
+                readHeader(bytes, pos, pos + len);      // repeated occurrences are merged
+                pos += len;
+            }
+            else if(tag == Wire.tag(KEY_FIELD, LENGTH_DELIMITED)) {
+                int len = Wire.readLength(bytes, pos, to);
+                pos = KeyExtractor.varintEnd(bytes, pos, to);
+                key.wrap(bytes, pos, len);
+                pos += len;
+            }
+            else {
+                pos = Wire.skipField(bytes, pos, to, tag, 0);
+                unknown.add(start, pos - start);
+            }
+        }
+    }
+
+    private void readHeader(byte[] bytes, int pos, int to) {
+        hasHeader = true;
+        while(pos < to) {
+            int start = pos;
+            int tag = Wire.readTag(bytes, pos, to);
+            pos = KeyExtractor.varintEnd(bytes, pos, to);
+            if(tag == Wire.tag(IDENTIFIER_FIELD, LENGTH_DELIMITED)) {
+                int len = Wire.readLength(bytes, pos, to);
+                pos = KeyExtractor.varintEnd(bytes, pos, to);
+                readIdentity(bytes, pos, pos + len);
+                pos += len;
+            }
+            else if(tag == Wire.tag(RETAINED_FIELD, VARINT)) {
+                retained = KeyExtractor.readVarint(bytes, pos, to) != 0;
+                pos = KeyExtractor.varintEnd(bytes, pos, to);
+            }
+            else if(tag == Wire.tag(QOS_FIELD, VARINT)) {
+                qos = (int) KeyExtractor.readVarint(bytes, pos, to);     // open enum: unknown values are kept
+                pos = KeyExtractor.varintEnd(bytes, pos, to);
+            }
+            else {
+                pos = Wire.skipField(bytes, pos, to, tag, 0);
+                headerUnknown.add(start, pos - start);
+            }
+        }
+    }
+
+    private void readIdentity(byte[] bytes, int pos, int to) {
+        hasIdentity = true;
+        while(pos < to) {
+            int start = pos;
+            int tag = Wire.readTag(bytes, pos, to);
+            pos = KeyExtractor.varintEnd(bytes, pos, to);
+            int field = tag >>> 3;
+            if((tag & 0x7) == LENGTH_DELIMITED && field >= TENANT_FIELD && field <= APPLICATION) {
+                int len = Wire.readLength(bytes, pos, to);
+                pos = KeyExtractor.varintEnd(bytes, pos, to);
+                if(field == TENANT_FIELD) tenant.wrap(bytes, pos, len);
+                else {
+                    publisher.wrap(bytes, pos, len);
+                    publisherCase = field;
+                }
+                pos += len;
+            }
+            else {
+                pos = Wire.skipField(bytes, pos, to, tag, 0);
+                identityUnknown.add(start, pos - start);
+            }
+        }
+    }
+
+    /**
+     * Clear all fields, and release the wrapped buffer.
+     *
+     * @return this flyweight
+     */
+    public KeyFlyweight clear() {
+        buffer = null;
+        key.clear();
+        clearHeader();
+        unknown.clear();
+        return this;
+    }
+
+    // -- access
+
+    /** @return the key (empty when not set), valid until the next wrap */
+    public Utf8Sequence key() { return key; }
+
+    /** @return {@code true} when the envelope has a header */
+    public boolean hasHeader() { return hasHeader; }
+
+    /** @return {@code true} when the header has an identifier */
+    public boolean hasIdentity() { return hasIdentity; }
+
+    /** @return the tenant of the identifier (empty when not set), valid until the next wrap */
+    public Utf8Sequence tenant() { return tenant; }
+
+    /** @return which publisher is set: {@link #FREE_FORM}, {@link #USER}, {@link #CLIENT}, {@link #APPLICATION} or {@link #PUBLISHER_NOT_SET} */
+    public int publisherCase() { return publisherCase; }
+
+    /** @return the publisher of the identifier (empty when not set), valid until the next wrap */
+    public Utf8Sequence publisher() { return publisher; }
+
+    /** @return the retained flag of the header */
+    public boolean retained() { return retained; }
+
+    /** @return the numeric QoS of the header (see {@link Envelope.QoS#forNumber(int)}) */
+    public int qos() { return qos; }
+
+    // -- modification
+
+    /**
+     * @param key the key ({@code null} or empty to clear)
+     * @return this flyweight
+     */
+    public KeyFlyweight setKey(CharSequence key) { this.key.set(key); return this; }
+
+    /**
+     * Set the tenant of the identifier (adds a header and identifier when there are none).
+     *
+     * @param tenant the tenant ({@code null} or empty to clear)
+     * @return this flyweight
+     */
+    public KeyFlyweight setTenant(CharSequence tenant) {
+        this.tenant.set(tenant);
+        hasHeader = hasIdentity = true;
+        return this;
+    }
+
+    /**
+     * Set the publisher of the identifier (adds a header and identifier when there are none).
+     *
+     * @param publisherCase {@link #FREE_FORM}, {@link #USER}, {@link #CLIENT}, {@link #APPLICATION},
+     *                      or {@link #PUBLISHER_NOT_SET} to clear the publisher
+     * @param publisher the publisher
+     * @return this flyweight
+     * @exception IllegalArgumentException on an invalid publisher case
+     */
+    public KeyFlyweight setPublisher(int publisherCase, CharSequence publisher) {
+        if(publisherCase != PUBLISHER_NOT_SET && (publisherCase < FREE_FORM || publisherCase > APPLICATION)) throw new IllegalArgumentException("invalid publisher case " + publisherCase);
+        this.publisherCase = publisherCase;
+        if(publisherCase == PUBLISHER_NOT_SET) this.publisher.clear();
+        else this.publisher.set(publisher);
+        hasHeader = hasIdentity = true;
+        return this;
+    }
+
+    /**
+     * Set the retained flag (adds a header when there is none).
+     *
+     * @param retained the retained flag
+     * @return this flyweight
+     */
+    public KeyFlyweight setRetained(boolean retained) {
+        this.retained = retained;
+        hasHeader = true;
+        return this;
+    }
+
+    /**
+     * Set the QoS (adds a header when there is none).
+     *
+     * @param qos the QoS
+     * @return this flyweight
+     */
+    public KeyFlyweight setQos(Envelope.QoS qos) { return setQos(qos.getNumber()); }
+
+    /**
+     * Set the numeric QoS (adds a header when there is none).
+     *
+     * @param qos the QoS number
+     * @return this flyweight
+     */
+    public KeyFlyweight setQos(int qos) {
+        this.qos = qos;
+        hasHeader = true;
+        return this;
+    }
+
+    /**
+     * Remove the header, with its identifier.
+     *
+     * @return this flyweight
+     */
+    public KeyFlyweight clearHeader() {
+        hasHeader = hasIdentity = retained = false;
+        qos = 0;
+        tenant.clear();
+        publisher.clear();
+        publisherCase = PUBLISHER_NOT_SET;
+        headerUnknown.clear();
+        identityUnknown.clear();
+        return this;
+    }
+
+    // -- writing
+
+    private int identitySize() {
+        int size = identityUnknown.bytes();
+        if(! tenant.isEmpty()) size += Wire.lengthDelimitedSize(TENANT_FIELD, tenant.encodedLength());
+        // a oneof member is written when set, even when empty
+        if(publisherCase != PUBLISHER_NOT_SET) size += Wire.lengthDelimitedSize(publisherCase, publisher.encodedLength());
+        return size;
+    }
+
+    private int headerSize(int identitySize) {
+        int size = headerUnknown.bytes();
+        if(hasIdentity) size += Wire.lengthDelimitedSize(IDENTIFIER_FIELD, identitySize);
+        if(retained) size += 2;
+        if(qos != 0) size += 1 + Wire.varintSize(qos);     // negative values sign extend to 10 bytes, like the generated classes
+        return size;
+    }
+
+    /** @return the size of the serialized envelope */
+    public int encodedSize() {
+        int size = unknown.bytes();
+        if(hasHeader) size += Wire.lengthDelimitedSize(HEADER_FIELD, headerSize(identitySize()));
+        if(! key.isEmpty()) size += Wire.lengthDelimitedSize(KEY_FIELD, key.encodedLength());
+        return size;
+    }
+
+    /**
+     * Serialize the envelope into a buffer (not the wrapped one).
+     *
+     * @param dest the buffer, with room for {@link #encodedSize()} bytes at the offset
+     * @param offset where to write the envelope
+     * @return the end of the envelope in the buffer
+     */
+    public int writeTo(byte[] dest, int offset) {
+        int pos = offset;
+        if(hasHeader) {
+            int identitySize = identitySize();
+            pos = Wire.writeLengthDelimitedHeader(dest, pos, HEADER_FIELD, headerSize(identitySize));
+            if(hasIdentity) {
+                pos = Wire.writeLengthDelimitedHeader(dest, pos, IDENTIFIER_FIELD, identitySize);
+                if(! tenant.isEmpty()) {
+                    pos = Wire.writeLengthDelimitedHeader(dest, pos, TENANT_FIELD, tenant.encodedLength());
+                    pos = tenant.writeTo(dest, pos);
+                }
+                if(publisherCase != PUBLISHER_NOT_SET) {
+                    pos = Wire.writeLengthDelimitedHeader(dest, pos, publisherCase, publisher.encodedLength());
+                    pos = publisher.writeTo(dest, pos);
+                }
+                pos = identityUnknown.writeTo(buffer, dest, pos);
+            }
+            if(retained) {
+                dest[pos++] = (byte) Wire.tag(RETAINED_FIELD, VARINT);
+                dest[pos++] = 1;
+            }
+            if(qos != 0) {
+                dest[pos++] = (byte) Wire.tag(QOS_FIELD, VARINT);
+                pos = Wire.writeVarint(dest, pos, qos);
+            }
+            pos = headerUnknown.writeTo(buffer, dest, pos);
+        }
+        if(! key.isEmpty()) {
+            pos = Wire.writeLengthDelimitedHeader(dest, pos, KEY_FIELD, key.encodedLength());
+            pos = key.writeTo(dest, pos);
+        }
+        return unknown.writeTo(buffer, dest, pos);
+    }
+
+    /** @return the serialized envelope */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[encodedSize()];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * @return the envelope as generated class
+     * @exception Serdes.SerializationException when a string is not valid UTF-8
+     */
+    public Envelope.KeyEnvelope toEnvelope() {
+        try {
+            return Envelope.KeyEnvelope.parseFrom(toByteArray());
+        }
+        catch (InvalidProtocolBufferException e) {
+            throw new Serdes.SerializationException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KeyFlyweight(key=" + key + ", tenant=" + tenant + ", publisher=" + publisher + ", retained=" + retained + ", qos=" + qos + ")";
+    }
+}
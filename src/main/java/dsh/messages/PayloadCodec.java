@@ -0,0 +1,267 @@
+package dsh.messages;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnknownFieldSet;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-record compression of the {@code DataEnvelope} payload, with preset dictionaries per topic.
+ *
+ * Kafka compresses record batches, which does little for small payloads when the batches are short (low linger).
+ * This codec deflates every payload on its own, primed with a {@link CompressionDictionary} trained on the stream.
+ * A compressed envelope carries the compressed bytes as its payload, and the tenant-reserved field
+ * {@value #COMPRESSION_FIELD} holding the dictionary id (field 1, 0 for none) and the uncompressed size (field 2).
+ * The tracing and any other fields are left as they are.  Payloads that do not get smaller are left uncompressed.
+ *
+ * The {@link dsh.sdk.kafka.serdes.DataEnvelopeSerializer} compresses with the codec given under {@link #CONFIG_KEY}
+ * in the producer configuration; the {@link dsh.sdk.kafka.serdes.DataEnvelopeDeserializer} always decompresses,
+ * with the dictionaries of the codec in its configuration.
+ *
+ * Deflaters and inflaters are pooled per thread.  All functions are thread safe.
+ *
+ * <pre>{@code
+ *   CompressionDictionary dictionary = CompressionDictionary.load(1, Paths.get("weather.dict"));
+ *   PayloadCodec codec = new PayloadCodec.Builder()
+ *                              .addDictionary(dictionary)
+ *                              .compressTopic("stream.weather.tenant", dictionary.id())
+ *                              .build();
+ *
+ *   Properties overrides = new Properties();
+ *   overrides.put(PayloadCodec.CONFIG_KEY, codec);
+ *   KafkaProducer<KeyEnvelope, DataEnvelope> producer = clientFactory.createStreamProducer(overrides);
+ * }</pre>
+ */
+public class PayloadCodec {
+    /**
+     * Configuration key for a codec instance in the producer or consumer properties.
+     */
+    public static final String CONFIG_KEY = "__payloadcodec";
+
+    /**
+     * The DataEnvelope field marking a compressed payload (in the tenant-specific 500-1000 range).
+     */
+    public static final int COMPRESSION_FIELD = 503;
+
+    /**
+     * A codec without dictionaries, that does not compress but can decompress payloads compressed without dictionary.
+     */
+    public static final PayloadCodec NONE = new Builder().build();
+
+    /**
+     * The codec given under {@link #CONFIG_KEY} in a client configuration.
+     *
+     * @param configs producer or consumer configuration (or {@code null})
+     * @return the configured codec, or {@link #NONE} when there is none
+     */
+    public static PayloadCodec of(Map<?, ?> configs) {
+        Object codec = configs == null ? null : configs.get(CONFIG_KEY);
+        return codec instanceof PayloadCodec ? (PayloadCodec) codec : NONE;
+    }
+
+    private static final int HEADER_DICTIONARY_FIELD = 1;
+    private static final int HEADER_SIZE_FIELD = 2;
+
+    /**
+     * Builder class to construct the codec
+     */
+    public static class Builder {
+        private final Map<Integer, CompressionDictionary> dictionaries = new HashMap<>();
+        private final Map<String, Integer> topics = new HashMap<>();
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        private int minPayloadSize = 32;
+        private int maxPayloadSize = 64 * 1024 * 1024;
+
+        /**
+         * @param dictionary dictionary to compress or decompress with
+         * @return this builder
+         */
+        public Builder addDictionary(CompressionDictionary dictionary) { dictionaries.put(dictionary.id(), dictionary); return this; }
+
+        /**
+         * @param topic topic to compress the payloads of
+         * @param dictionaryId dictionary to compress with (0 for none)
+         * @return this builder
+         */
+        public Builder compressTopic(String topic, int dictionaryId) { topics.put(Objects.requireNonNull(topic), dictionaryId); return this; }
+
+        /**
+         * @param level deflate level, 1 (fastest) to 9 (smallest) (default 6)
+         * @return this builder
+         */
+        public Builder setLevel(int level) { this.level = level; return this; }
+
+        /**
+         * @param bytes smaller payloads are not compressed (default 32)
+         * @return this builder
+         */
+        public Builder setMinPayloadSize(int bytes) { this.minPayloadSize = bytes; return this; }
+
+        /**
+         * @param bytes larger uncompressed sizes are rejected when decompressing, against decompression bombs (default 64MB)
+         * @return this builder
+         */
+        public Builder setMaxPayloadSize(int bytes) { this.maxPayloadSize = bytes; return this; }
+
+        /**
+         * @return the codec
+         * @exception IllegalArgumentException when a topic refers to an unknown dictionary, or the level is invalid
+         */
+        public PayloadCodec build() {
+            topics.forEach((topic, id) -> {
+                if(id != 0 && ! dictionaries.containsKey(id)) throw new IllegalArgumentException("unknown dictionary " + id + " for topic " + topic);
+            });
+            if(level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) throw new IllegalArgumentException("invalid level " + level);
+            return new PayloadCodec(this);
+        }
+    }
+
+    private final Map<Integer, CompressionDictionary> dictionaries;
+    private final Map<String, Integer> topics;
+    private final int minPayloadSize;
+    private final int maxPayloadSize;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    private PayloadCodec(Builder builder) {
+        this.dictionaries = new HashMap<>(builder.dictionaries);
+        this.topics = new HashMap<>(builder.topics);
+        this.minPayloadSize = builder.minPayloadSize;
+        this.maxPayloadSize = builder.maxPayloadSize;
+        int level = builder.level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    /**
+     * @param topic the topic
+     * @return {@code true} when payloads for the topic get compressed
+     */
+    public boolean compresses(String topic) { return topics.containsKey(topic); }
+
+    /**
+     * Compress the payload of an envelope for a topic.
+     *
+     * @param topic the topic the envelope gets published to
+     * @param value the envelope (or {@code null})
+     * @return the envelope with compressed payload, or the envelope itself when the topic is not compressed,
+     *         the payload is small or does not get smaller
+     */
+    public Envelope.DataEnvelope compress(String topic, Envelope.DataEnvelope value) {
+        Integer dictionaryId = topics.get(topic);
+        if(dictionaryId == null || value == null || ! value.hasPayload() || isCompressed(value)) return value;
+        ByteString payload = value.getPayload();
+        if(payload.size() < minPayloadSize) return value;
+
+        CompressionDictionary dictionary = dictionaryId == 0 ? null : dictionaries.get(dictionaryId);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if(dictionary != null) deflater.setDictionary(dictionary.bytes());
+        deflater.setInput(payload.toByteArray());
+        deflater.finish();
+
+        byte[] buffer = buffers.get();
+        int length = 0;
+        while(! deflater.finished()) {
+            if(length == buffer.length) {
+                if(length >= payload.size()) return value;      // no gain
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffers.set(buffer);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        if(length >= payload.size()) return value;
+
+        UnknownFieldSet fields = UnknownFieldSet.newBuilder(value.getUnknownFields())
+                .addField(COMPRESSION_FIELD, UnknownFieldSet.Field.newBuilder().addLengthDelimited(header(dictionaryId, payload.size())).build())
+                .build();
+        return value.toBuilder()
+                .setPayload(ByteString.copyFrom(buffer, 0, length))
+                .setUnknownFields(fields)
+                .build();
+    }
+
+    private static ByteString header(int dictionaryId, int size) {
+        ByteString.Output out = ByteString.newOutput(12);
+        CodedOutputStream coded = CodedOutputStream.newInstance(out);
+        try {
+            coded.writeUInt32(HEADER_DICTIONARY_FIELD, dictionaryId);
+            coded.writeUInt32(HEADER_SIZE_FIELD, size);
+            coded.flush();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteString();
+    }
+
+    /**
+     * @param value the envelope (or {@code null})
+     * @return {@code true} when the payload of the envelope is compressed
+     */
+    public static boolean isCompressed(Envelope.DataEnvelope value) {
+        return value != null && value.getUnknownFields().hasField(COMPRESSION_FIELD);
+    }
+
+    /**
+     * Decompress the payload of an envelope.
+     *
+     * @param value the envelope (or {@code null})
+     * @return the envelope with the original payload, or the envelope itself when it is not compressed
+     * @exception Serdes.SerializationException when the dictionary is unknown, or the payload is corrupt
+     */
+    public Envelope.DataEnvelope decompress(Envelope.DataEnvelope value) {
+        if(! isCompressed(value)) return value;
+
+        int dictionaryId = 0;
+        int size = -1;
+        try {
+            List<ByteString> headers = value.getUnknownFields().getField(COMPRESSION_FIELD).getLengthDelimitedList();
+            CodedInputStream in = headers.get(headers.size() - 1).newCodedInput();
+            for(int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                switch(tag >>> 3) {
+                    case HEADER_DICTIONARY_FIELD: dictionaryId = in.readUInt32(); break;
+                    case HEADER_SIZE_FIELD: size = in.readUInt32(); break;
+                    default: in.skipField(tag);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new Serdes.SerializationException(e);
+        }
+        if(size < 0 || size > maxPayloadSize) throw new Serdes.SerializationException(new IllegalArgumentException("invalid payload size " + size));
+        CompressionDictionary dictionary = dictionaries.get(dictionaryId);
+        if(dictionaryId != 0 && dictionary == null) throw new Serdes.SerializationException(new IllegalArgumentException("unknown compression dictionary " + dictionaryId));
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        if(dictionary != null) inflater.setDictionary(dictionary.bytes());
+        inflater.setInput(value.getPayload().toByteArray());
+        // raw inflate needs an extra byte of input past the end of the data to finish, the payload has none: inflating exactly size bytes is enough
+        byte[] payload = new byte[size];
+        try {
+            int length = 0;
+            while(length < size) {
+                int n = inflater.inflate(payload, length, size - length);
+                if(n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                length += n;
+            }
+            if(length != size) throw new DataFormatException("payload size " + length + ", expected " + size);
+        }
+        catch (DataFormatException e) {
+            throw new Serdes.SerializationException(e);
+        }
+
+        return value.toBuilder()
+                .setPayload(UnsafeByteOperations.unsafeWrap(payload))
+                .setUnknownFields(UnknownFieldSet.newBuilder(value.getUnknownFields()).clearField(COMPRESSION_FIELD).build())
+                .build();
+    }
+}
@@ -0,0 +1,179 @@
+package dsh.messages;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnknownFieldSet;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access to the tracing of a {@code DataEnvelope} whose tracing entries may be deferred.
+ *
+ * Most consumers never look at the tracing, but parsing a DataEnvelope decodes the whole tracing map.
+ * {@link #parseDeferred(byte[])} parses an envelope but leaves the tracing entries encoded: they are kept as
+ * unknown fields under the tracing field number, as slices of the record bytes.  Such an envelope serializes
+ * to the same bytes, but its {@code getTracingMap()} is empty: read the tracing through {@link #get(Envelope.DataEnvelope, String)}
+ * or {@link #map(Envelope.DataEnvelope)}, or decode it into the map with {@link #decoded(Envelope.DataEnvelope)}.
+ * These functions work on every envelope, deferred or not.
+ *
+ * The {@link dsh.sdk.kafka.serdes.DataEnvelopeDeserializer} defers the tracing when {@link #LAZY_CONFIG} is set.
+ * On the producer side, a {@link TracingBlock} holds tracing entries encoded once, for use on many envelopes.
+ *
+ * <pre>{@code
+ *   Properties overrides = new Properties();
+ *   overrides.put(Tracing.LAZY_CONFIG, "true");
+ *   KafkaConsumer<KeyEnvelope, DataEnvelope> consumer = clientFactory.createStreamConsumer(overrides);
+ *   . . .
+ *   String span = Tracing.get(record.value(), "span");
+ * }</pre>
+ */
+public class Tracing {
+    private Tracing() { throw new AssertionError(); }
+
+    /**
+     * Deserializer configuration: {@code true} to defer decoding the tracing entries to first access (default {@code false}).
+     */
+    public static final String LAZY_CONFIG = "dsh.tracing.lazy";
+
+    static final int TRACING_FIELD = Envelope.DataEnvelope.TRACING_FIELD_NUMBER;
+    static final int ENTRY_KEY_FIELD = 1;
+    static final int ENTRY_VALUE_FIELD = 2;
+
+    private static final int PAYLOAD_TAG = Wire.tag(Envelope.DataEnvelope.PAYLOAD_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int TRACING_TAG = Wire.tag(TRACING_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    /**
+     * Parse a serialized DataEnvelope, without decoding the tracing entries.
+     *
+     * The payload and the deferred entries refer to the given bytes (they are not copied): do not modify them afterwards.
+     * Malformed tracing entries are only detected on access, and invalid UTF-8 is not rejected (it decodes to replacement characters).
+     *
+     * @param bytes serialized DataEnvelope (or {@code null})
+     * @return the envelope with deferred tracing, or {@code null}
+     * @exception Serdes.SerializationException when the data is malformed
+     */
+    public static Envelope.DataEnvelope parseDeferred(byte[] bytes) {
+        if(bytes == null) return null;
+        CodedInputStream in = CodedInputStream.newInstance(bytes);
+        in.enableAliasing(true);
+        Envelope.DataEnvelope.Builder value = Envelope.DataEnvelope.newBuilder();
+        UnknownFieldSet.Builder unknown = UnknownFieldSet.newBuilder();
+        UnknownFieldSet.Field.Builder entries = UnknownFieldSet.Field.newBuilder();
+        try {
+            for(int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                if(tag == PAYLOAD_TAG) value.setPayload(in.readBytes());
+                else if(tag == TRACING_TAG) entries.addLengthDelimited(in.readBytes());
+                else if(! unknown.mergeFieldFrom(tag, in)) throw new InvalidProtocolBufferException("unexpected end group tag");
+            }
+        }
+        catch (IOException e) {
+            throw new Serdes.SerializationException(e);
+        }
+        UnknownFieldSet.Field deferred = entries.build();
+        if(! deferred.getLengthDelimitedList().isEmpty()) unknown.mergeField(TRACING_FIELD, deferred);
+        return value.setUnknownFields(unknown.build()).build();
+    }
+
+    /**
+     * @param value the envelope
+     * @return {@code true} when the envelope has deferred tracing entries
+     */
+    public static boolean hasDeferred(Envelope.DataEnvelope value) {
+        return ! deferredEntries(value.getUnknownFields()).isEmpty();
+    }
+
+    static List<ByteString> deferredEntries(UnknownFieldSet fields) {
+        return fields.hasField(TRACING_FIELD) ? fields.getField(TRACING_FIELD).getLengthDelimitedList() : Collections.<ByteString>emptyList();
+    }
+
+    /**
+     * Look up a tracing entry, decoding only the keys of the deferred entries.
+     *
+     * @param value the envelope
+     * @param key the tracing key
+     * @return the value, or {@code null} when there is no such entry
+     * @exception Serdes.SerializationException when a deferred entry is malformed
+     */
+    public static String get(Envelope.DataEnvelope value, String key) {
+        List<ByteString> entries = deferredEntries(value.getUnknownFields());
+        if(! entries.isEmpty()) {
+            ByteString utf8 = ByteString.copyFromUtf8(key);
+            // deferred entries are serialized after the map, so they win; the last occurrence wins
+            for(int i = entries.size() - 1; i >= 0; i--) {
+                ByteString[] entry = entry(entries.get(i));
+                if(entry[0].equals(utf8)) return entry[1].toStringUtf8();
+            }
+        }
+        return value.getTracingMap().get(key);
+    }
+
+    /**
+     * @param value the envelope
+     * @return all tracing entries (read-only), deferred ones included
+     * @exception Serdes.SerializationException when a deferred entry is malformed
+     */
+    public static Map<String, String> map(Envelope.DataEnvelope value) {
+        List<ByteString> entries = deferredEntries(value.getUnknownFields());
+        if(entries.isEmpty()) return value.getTracingMap();
+        Map<String, String> tracing = new LinkedHashMap<>(value.getTracingMap());
+        for(ByteString bytes: entries) {
+            ByteString[] entry = entry(bytes);
+            tracing.put(entry[0].toStringUtf8(), entry[1].toStringUtf8());
+        }
+        return Collections.unmodifiableMap(tracing);
+    }
+
+    /**
+     * Decode deferred tracing entries into the tracing map.
+     *
+     * @param value the envelope
+     * @return the envelope with all tracing in its tracing map (the envelope itself when nothing is deferred)
+     * @exception Serdes.SerializationException when a deferred entry is malformed
+     */
+    public static Envelope.DataEnvelope decoded(Envelope.DataEnvelope value) {
+        if(! hasDeferred(value)) return value;
+        return value.toBuilder()
+                .putAllTracing(map(value))
+                .setUnknownFields(withoutDeferred(value.getUnknownFields()))
+                .build();
+    }
+
+    // the fields without the deferred tracing entries (other wire types under the tracing field number are kept)
+    static UnknownFieldSet withoutDeferred(UnknownFieldSet fields) {
+        if(! fields.hasField(TRACING_FIELD)) return fields;
+        UnknownFieldSet.Field field = fields.getField(TRACING_FIELD);
+        UnknownFieldSet.Builder builder = UnknownFieldSet.newBuilder(fields).clearField(TRACING_FIELD);
+        UnknownFieldSet.Field.Builder kept = UnknownFieldSet.Field.newBuilder();
+        field.getVarintList().forEach(kept::addVarint);
+        field.getFixed32List().forEach(kept::addFixed32);
+        field.getFixed64List().forEach(kept::addFixed64);
+        field.getGroupList().forEach(kept::addGroup);
+        UnknownFieldSet.Field other = kept.build();
+        if(! other.equals(UnknownFieldSet.Field.getDefaultInstance())) builder.addField(TRACING_FIELD, other);
+        return builder.build();
+    }
+
+    // key and value of a serialized map entry (empty when absent, the last occurrence wins)
+    private static ByteString[] entry(ByteString bytes) {
+        ByteString[] entry = { ByteString.EMPTY, ByteString.EMPTY };
+        try {
+            CodedInputStream in = bytes.newCodedInput();
+            in.enableAliasing(true);
+            for(int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                if(WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED && (field == ENTRY_KEY_FIELD || field == ENTRY_VALUE_FIELD)) entry[field - 1] = in.readBytes();
+                else if(! in.skipField(tag)) throw new InvalidProtocolBufferException("unexpected end group tag");
+            }
+        }
+        catch (IOException e) {
+            throw new Serdes.SerializationException(e);
+        }
+        return entry;
+    }
+}
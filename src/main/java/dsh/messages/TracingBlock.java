@@ -0,0 +1,93 @@
+package dsh.messages;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnknownFieldSet;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracing entries encoded once, to set on many {@code DataEnvelope}s.
+ *
+ * Serializing the tracing map of an envelope builds and encodes a map entry for every tracing entry, for every
+ * record.  When the same span context is propagated on many records, a block encodes the entries once; setting it
+ * on an envelope puts the encoded entries in the envelope (as deferred tracing entries, see {@link Tracing}),
+ * and serializing copies them.  The serialized envelope is identical to one with the entries in its tracing map.
+ *
+ * A block is immutable and thread safe.
+ *
+ * <pre>{@code
+ *   TracingBlock tracing = TracingBlock.of(Collections.singletonMap("traceparent", span.traceparent()));
+ *   for(Reading reading: readings) {
+ *     producer.send(new ProducerRecord<>(topic, key(reading), tracing.applyTo(DataEnvelope.newBuilder().setPayload(payload(reading))).build()));
+ *   }
+ * }</pre>
+ */
+public final class TracingBlock {
+    private final Map<String, String> entries;
+    private final UnknownFieldSet.Field field;
+    private final UnknownFieldSet fields;
+
+    private TracingBlock(Map<String, String> entries) {
+        this.entries = Collections.unmodifiableMap(new LinkedHashMap<>(entries));
+        UnknownFieldSet.Field.Builder field = UnknownFieldSet.Field.newBuilder();
+        this.entries.forEach((key, value) -> field.addLengthDelimited(entry(key, value)));
+        this.field = field.build();
+        this.fields = UnknownFieldSet.newBuilder().addField(Tracing.TRACING_FIELD, this.field).build();
+    }
+
+    /**
+     * @param entries the tracing entries, in the order to serialize them
+     * @return the encoded block
+     */
+    public static TracingBlock of(Map<String, String> entries) { return new TracingBlock(entries); }
+
+    // a map entry as the generated classes write it: key and value, also when empty
+    private static ByteString entry(String key, String value) {
+        int size = CodedOutputStream.computeStringSize(Tracing.ENTRY_KEY_FIELD, key) + CodedOutputStream.computeStringSize(Tracing.ENTRY_VALUE_FIELD, value);
+        byte[] bytes = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            out.writeString(Tracing.ENTRY_KEY_FIELD, key);
+            out.writeString(Tracing.ENTRY_VALUE_FIELD, value);
+            out.checkNoSpaceLeft();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteString.copyFrom(bytes);
+    }
+
+    /** @return the tracing entries (read-only) */
+    public Map<String, String> entries() { return entries; }
+
+    /** @return the number of bytes the block adds to a serialized envelope */
+    public int encodedSize() { return fields.getSerializedSize(); }
+
+    /**
+     * Set the block as the tracing of an envelope, replacing its tracing map and deferred entries.
+     *
+     * @param builder the envelope builder
+     * @return the builder
+     */
+    public Envelope.DataEnvelope.Builder applyTo(Envelope.DataEnvelope.Builder builder) {
+        builder.clearTracing();
+        UnknownFieldSet unknown = builder.getUnknownFields();
+        if(unknown.asMap().isEmpty()) return builder.setUnknownFields(fields);     // no other fields: share the prebuilt set
+        return builder.setUnknownFields(UnknownFieldSet.newBuilder(Tracing.withoutDeferred(unknown)).mergeField(Tracing.TRACING_FIELD, field).build());
+    }
+
+    /**
+     * Set the block as the tracing of an envelope, replacing its tracing map and deferred entries.
+     *
+     * @param value the envelope
+     * @return the envelope with the block as tracing
+     */
+    public Envelope.DataEnvelope applyTo(Envelope.DataEnvelope value) { return applyTo(value.toBuilder()).build(); }
+
+    @Override
+    public String toString() { return "TracingBlock(" + entries + ")"; }
+}
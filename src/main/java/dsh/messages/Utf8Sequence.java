@@ -0,0 +1,156 @@
+package dsh.messages;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable {@link CharSequence} over a UTF-8 encoded string field, used by the envelope flyweights.
+ *
+ * Wrapping a field does not copy or decode anything.  ASCII content -- the common case for keys and identities --
+ * is read straight from the buffer; other content is decoded once, on first access, into a char buffer that is
+ * reused for the next wrap.  Alternatively the sequence can hold any other {@code CharSequence} (e.g. a {@code String}).
+ *
+ * The sequence is only valid as long as the wrapped buffer is not modified, and until the next wrap.
+ * Call {@link #toString()} to get a copy that outlives it.
+ */
+public final class Utf8Sequence implements CharSequence {
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private CharSequence chars;         // set when holding another char sequence instead of UTF-8 bytes
+    private int ascii = -1;             // -1 unknown, 0 no, 1 yes
+    private char[] decoded = new char[0];
+    private int decodedLength = -1;     // -1 when not decoded yet
+
+    /**
+     * Wrap a UTF-8 encoded range of a buffer.
+     *
+     * @param bytes the buffer
+     * @param offset start of the range
+     * @param length length of the range
+     * @return this sequence
+     */
+    public Utf8Sequence wrap(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.chars = null;
+        this.ascii = -1;
+        this.decodedLength = -1;
+        return this;
+    }
+
+    /**
+     * Hold another char sequence.
+     *
+     * @param chars the content ({@code null} for empty)
+     * @return this sequence
+     */
+    public Utf8Sequence set(CharSequence chars) {
+        this.bytes = null;
+        this.chars = chars == null ? "" : chars;
+        this.decodedLength = -1;
+        return this;
+    }
+
+    /**
+     * Make the sequence empty.
+     *
+     * @return this sequence
+     */
+    public Utf8Sequence clear() { return set(""); }
+
+    private boolean isAscii() {
+        if(ascii < 0) {
+            ascii = 1;
+            for(int i = offset, end = offset + length; i < end; i++) if(bytes[i] < 0) { ascii = 0; break; }
+        }
+        return ascii == 1;
+    }
+
+    private void decode() {
+        if(decodedLength >= 0) return;
+        if(decoded.length < length) decoded = new char[Math.max(length, 2 * decoded.length)];
+        // malformed UTF-8 decodes to replacement characters: the flyweights do not validate strings (the generated classes do)
+        String s = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        s.getChars(0, s.length(), decoded, 0);
+        decodedLength = s.length();
+    }
+
+    @Override
+    public int length() {
+        if(bytes == null) return chars == null ? 0 : chars.length();
+        if(isAscii()) return length;
+        decode();
+        return decodedLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(bytes == null) {
+            if(chars == null) throw new IndexOutOfBoundsException("index " + index);
+            return chars.charAt(index);
+        }
+        if(isAscii()) {
+            if(index < 0 || index >= length) throw new IndexOutOfBoundsException("index " + index);
+            return (char) bytes[offset + index];
+        }
+        decode();
+        if(index < 0 || index >= decodedLength) throw new IndexOutOfBoundsException("index " + index);
+        return decoded[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) { return toString().substring(start, end); }
+
+    /**
+     * @return {@code true} when the sequence is empty
+     */
+    public boolean isEmpty() { return bytes == null ? chars == null || chars.length() == 0 : length == 0; }
+
+    /**
+     * Compare the content with another char sequence.
+     *
+     * @param other the other sequence
+     * @return {@code true} when both hold the same characters
+     */
+    public boolean contentEquals(CharSequence other) {
+        int n = length();
+        if(other == null || other.length() != n) return false;
+        for(int i = 0; i < n; i++) if(charAt(i) != other.charAt(i)) return false;
+        return true;
+    }
+
+    /**
+     * Compare the content with UTF-8 encoded bytes, without decoding.
+     *
+     * @param utf8 UTF-8 encoded bytes
+     * @return {@code true} when the encoded content equals the given bytes
+     */
+    public boolean contentEquals(byte[] utf8) {
+        if(bytes == null) return contentEquals(new String(utf8, StandardCharsets.UTF_8));
+        if(utf8.length != length) return false;
+        for(int i = 0; i < length; i++) if(bytes[offset + i] != utf8[i]) return false;
+        return true;
+    }
+
+    // -- encoding
+
+    int encodedLength() {
+        if(bytes != null) return length;
+        return Wire.utf8Length(chars == null ? "" : chars);
+    }
+
+    int writeTo(byte[] dest, int pos) {
+        if(bytes != null) {
+            System.arraycopy(bytes, offset, dest, pos, length);
+            return pos + length;
+        }
+        return Wire.writeUtf8(chars == null ? "" : chars, dest, pos);
+    }
+
+    @Override
+    public String toString() {
+        if(bytes == null) return chars == null ? "" : chars.toString();
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,65 @@
+package dsh.messages;
+
+/**
+ * Lightweight access to the payload inside a serialized {@link Envelope.DataEnvelope}.
+ *
+ * Same approach as {@link KeyExtractor}: the protobuf wire format is scanned for the {@code payload} field only,
+ * without parsing the envelope (and its tracing map) into objects.
+ *
+ * A DataEnvelope without payload ({@code KIND_NOT_SET}) is a delete (tombstone) for its key;
+ * data that can not be scanned is malformed, and neither a value nor a delete.
+ */
+public class ValueExtractor {
+    private ValueExtractor() { throw new AssertionError(); }
+
+    private static final int PAYLOAD_FIELD = Envelope.DataEnvelope.PAYLOAD_FIELD_NUMBER;
+
+    /** Returned by {@link #scanPayload(byte[])} when the data is malformed. */
+    public static final long MALFORMED = KeyExtractor.MALFORMED;
+
+    /**
+     * Find the position of the payload in a serialized DataEnvelope.
+     *
+     * @param bytes serialized DataEnvelope
+     * @return the offset and length of the payload packed in a single {@code long}
+     *         (use {@link KeyExtractor#offset(long)} and {@link KeyExtractor#length(long)} to unpack),
+     *         or {@link KeyExtractor#NOT_FOUND} when the payload is not set or the data is malformed.
+     */
+    public static long payloadRange(byte[] bytes) {
+        if(bytes == null) return KeyExtractor.NOT_FOUND;
+        return KeyExtractor.fieldRange(bytes, 0, bytes.length, PAYLOAD_FIELD);
+    }
+
+    /**
+     * Find the position of the payload in a serialized DataEnvelope, telling a missing payload apart from malformed data.
+     *
+     * @param bytes serialized DataEnvelope (or {@code null})
+     * @return the offset and length of the payload packed in a single {@code long},
+     *         {@link KeyExtractor#NOT_FOUND} when there is no value or the envelope has no payload set,
+     *         or {@link #MALFORMED} when the data can not be scanned
+     */
+    public static long scanPayload(byte[] bytes) {
+        if(bytes == null) return KeyExtractor.NOT_FOUND;
+        return KeyExtractor.scanField(bytes, 0, bytes.length, PAYLOAD_FIELD);
+    }
+
+    /**
+     * Check whether a serialized DataEnvelope is a delete for its key.
+     *
+     * @param bytes serialized DataEnvelope (or {@code null})
+     * @return {@code true} when there is no value, or a well-formed envelope has no payload set (malformed data is no delete)
+     */
+    public static boolean isTombstone(byte[] bytes) {
+        return scanPayload(bytes) == KeyExtractor.NOT_FOUND;
+    }
+
+    /**
+     * Check whether a serialized DataEnvelope can not be scanned (e.g. truncated or corrupt data).
+     *
+     * @param bytes serialized DataEnvelope (or {@code null})
+     * @return {@code true} when the data is malformed
+     */
+    public static boolean isMalformed(byte[] bytes) {
+        return scanPayload(bytes) == MALFORMED;
+    }
+}
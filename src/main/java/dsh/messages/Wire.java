@@ -0,0 +1,174 @@
+package dsh.messages;
+
+import java.util.Arrays;
+
+/**
+ * Minimal protobuf wire format handling for the envelope flyweights, on top of the scanning in {@link KeyExtractor}.
+ *
+ * Reading throws {@code IllegalArgumentException} on malformed data.
+ */
+final class Wire {
+    private Wire() { throw new AssertionError(); }
+
+    static final int WIRETYPE_START_GROUP = 3;
+    static final int WIRETYPE_END_GROUP = 4;
+
+    // same nesting limit as the generated parsers
+    private static final int MAX_DEPTH = 100;
+
+    static int tag(int field, int wireType) { return (field << 3) | wireType; }
+
+    // -- reading
+
+    static int readTag(byte[] bytes, int pos, int to) {
+        int tag = (int) KeyExtractor.readVarint(bytes, pos, to);
+        if((tag >>> 3) == 0) throw new IllegalArgumentException("invalid tag " + tag);
+        return tag;
+    }
+
+    // length of a length delimited field, checked against the end of the enclosing message
+    static int readLength(byte[] bytes, int pos, int to) {
+        int len = (int) KeyExtractor.readVarint(bytes, pos, to);
+        if(len < 0 || len > to - KeyExtractor.varintEnd(bytes, pos, to)) throw new IllegalArgumentException("invalid length " + len);
+        return len;
+    }
+
+    // position after a length delimited field, starting at its length
+    static int lengthDelimitedEnd(byte[] bytes, int pos, int to) {
+        int len = readLength(bytes, pos, to);
+        return KeyExtractor.varintEnd(bytes, pos, to) + len;
+    }
+
+    // like KeyExtractor.skipField, but also skips (deprecated) groups, which the generated parsers keep as unknown fields
+    static int skipField(byte[] bytes, int pos, int to, int tag, int depth) {
+        int wireType = tag & 0x7;
+        switch(wireType) {
+            case WIRETYPE_START_GROUP: {
+                if(depth >= MAX_DEPTH) throw new IllegalArgumentException("groups nested too deep");
+                while(true) {
+                    int inner = readTag(bytes, pos, to);
+                    pos = KeyExtractor.varintEnd(bytes, pos, to);
+                    if((inner & 0x7) == WIRETYPE_END_GROUP) {
+                        if((inner >>> 3) != (tag >>> 3)) throw new IllegalArgumentException("mismatched end group");
+                        return pos;
+                    }
+                    pos = skipField(bytes, pos, to, inner, depth + 1);
+                }
+            }
+            case WIRETYPE_END_GROUP: throw new IllegalArgumentException("unexpected end group");
+            case KeyExtractor.WIRETYPE_LENGTH_DELIMITED: return lengthDelimitedEnd(bytes, pos, to);
+            default: return KeyExtractor.skipField(bytes, pos, to, wireType);
+        }
+    }
+
+    /**
+     * Growable list of byte ranges (packed offset and length) in a buffer, e.g. unknown fields to write back verbatim.
+     */
+    static final class Ranges {
+        private long[] ranges = new long[4];
+        private int count;
+        private int bytes;
+
+        void add(int offset, int length) {
+            if(count == ranges.length) ranges = Arrays.copyOf(ranges, 2 * count);
+            ranges[count++] = KeyExtractor.pack(offset, length);
+            bytes += length;
+        }
+
+        void clear() { count = 0; bytes = 0; }
+
+        int count() { return count; }
+
+        int offset(int i) { return KeyExtractor.offset(ranges[i]); }
+
+        int length(int i) { return KeyExtractor.length(ranges[i]); }
+
+        // total length of the ranges
+        int bytes() { return bytes; }
+
+        int writeTo(byte[] source, byte[] dest, int pos) {
+            for(int i = 0; i < count; i++) {
+                int length = length(i);
+                System.arraycopy(source, offset(i), dest, pos, length);
+                pos += length;
+            }
+            return pos;
+        }
+    }
+
+    // -- writing
+
+    static int varintSize(long value) {
+        int size = 1;
+        while((value & ~0x7FL) != 0) { value >>>= 7; size++; }
+        return size;
+    }
+
+    static int writeVarint(byte[] dest, int pos, long value) {
+        while((value & ~0x7FL) != 0) {
+            dest[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[pos++] = (byte) value;
+        return pos;
+    }
+
+    // size of a length delimited field with the given content length, tag included
+    static int lengthDelimitedSize(int field, int length) {
+        return varintSize(tag(field, KeyExtractor.WIRETYPE_LENGTH_DELIMITED)) + varintSize(length) + length;
+    }
+
+    static int writeLengthDelimitedHeader(byte[] dest, int pos, int field, int length) {
+        pos = writeVarint(dest, pos, tag(field, KeyExtractor.WIRETYPE_LENGTH_DELIMITED));
+        return writeVarint(dest, pos, length);
+    }
+
+    static int utf8Length(CharSequence s) {
+        int n = s.length();
+        int length = n;
+        for(int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) continue;
+            if(c < 0x800) length += 1;
+            else if(Character.isSurrogate(c)) {
+                // a pair is 4 bytes for 2 chars, an unpaired surrogate is written as a single '?'
+                if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) { length += 2; i++; }
+            }
+            else length += 2;
+        }
+        return length;
+    }
+
+    // unpaired surrogates are written as '?', like String.getBytes(UTF_8) does
+    static int writeUtf8(CharSequence s, byte[] dest, int pos) {
+        int n = s.length();
+        for(int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                dest[pos++] = (byte) c;
+            }
+            else if(c < 0x800) {
+                dest[pos++] = (byte) (0xC0 | (c >>> 6));
+                dest[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if(Character.isSurrogate(c)) {
+                if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    dest[pos++] = (byte) (0xF0 | (cp >>> 18));
+                    dest[pos++] = (byte) (0x80 | ((cp >>> 12) & 0x3F));
+                    dest[pos++] = (byte) (0x80 | ((cp >>> 6) & 0x3F));
+                    dest[pos++] = (byte) (0x80 | (cp & 0x3F));
+                }
+                else {
+                    dest[pos++] = '?';
+                }
+            }
+            else {
+                dest[pos++] = (byte) (0xE0 | (c >>> 12));
+                dest[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                dest[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+}
@@ -2,6 +2,7 @@ package dsh.rest;
 
 import com.sun.net.httpserver.HttpServer;
 import dsh.sdk.internal.HttpUtils;
+import dsh.sdk.internal.Threads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -85,7 +86,7 @@ public class SimpleRestServer extends Service {
             SimpleRestServer rest = new SimpleRestServer();
             try {
                 rest.server = HttpServer.create(new InetSocketAddress(this.port == null ? HttpUtils.freePort() : this.port), 0);
-                rest.server.setExecutor(Executors.newSingleThreadExecutor());
+                rest.server.setExecutor(Threads.ioExecutor("dsh-rest-server", Executors::newSingleThreadExecutor));
             }
             catch (IOException e) {
                 throw new Service.ServiceConfigException(e);
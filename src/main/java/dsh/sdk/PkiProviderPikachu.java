@@ -20,6 +20,10 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Implements the {@link PkiProvider} that actually uses the platform PKI service to retrieve all required data.
@@ -243,15 +247,30 @@ public class PkiProviderPikachu implements PkiProvider {
 
     /** */
     private void fetchKafkaCert() throws PkiException {
-        String dn = getDN();
+        // the IP address detection and the DN request are independent round-trips to the PKI service -- run them concurrently
+        //  the IP address is only needed as SAN when serving an SSL endpoint: without one there is nothing to run next to the DN request
+        ExecutorService bootstrap = servesSslEndpoint ? Threads.ioExecutor("dsh-pki-bootstrap", Executors::newSingleThreadExecutor) : null;
+        String dn;
         String dnsSAN = servesSslEndpoint ? dnsName : null;
         String ipSAN = null;
-        if (servesSslEndpoint) {
-            Optional<String> ip = getIPAddress();
-            if (ip.isPresent()) {
-                ipSAN = ip.get();
+        try {
+            Future<Optional<String>> ip = bootstrap != null ? bootstrap.submit(this::getIPAddress) : null;
+            dn = getDN();
+            if (ip != null) {
+                ipSAN = ip.get().orElse(null);
             }
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PkiException("interrupted while handshaking with platform PKI", e);
+        }
+        catch (ExecutionException e) {
+            throw new PkiException("error while handshaking with platform PKI", e);
+        }
+        finally {
+            if (bootstrap != null) bootstrap.shutdown();
+        }
+
         try {
             Certificate cert = sign(SslUtils.buildCsr(dn, key, dnsSAN, ipSAN));
             keystore.setCertificateEntry("server", cert);
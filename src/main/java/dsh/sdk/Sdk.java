@@ -10,8 +10,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 /**
  * The main class for the platform Java SDK -- sal starts from here.
@@ -64,6 +72,12 @@ import java.util.Properties;
  *                  .resetTaskId    (String)
  *                  .build();
  * }</pre>
+ *
+ * Warm up the hot paths of the SDK in the background, and only report healthy once that finished:
+ * <pre>{@code
+ *     Sdk sdk = new Sdk.Builder().autoDetect().setWarmup().build();
+ *     new SimpleRestServer.Builder().setListener("/health", sdk.readiness()).build().start();
+ * }</pre>
  */
 public class Sdk {
     private static final Logger logger = LoggerFactory.getLogger(Sdk.class);
@@ -76,9 +90,9 @@ public class Sdk {
     private static final String MARATHON_APP_ID           = "MARATHON_APP_ID";            // String -- mandatory (regex)
     private static final String DSH_CONTAINER_DNS_NAME    = "DSH_CONTAINER_DNS_NAME";     // String -- mandatory (???)
 
-    // fetch the value of a system property -- throw IllegalArgument Exception when not found or empty
-    private static String getEnvOrThrow(String key) {
-        return Optional.ofNullable(System.getenv(key)).filter(s -> ! s.isEmpty()).orElseThrow(() -> new IllegalArgumentException(key + " not defined (or empty)"));
+    // fetch the value of an environment variable -- throw IllegalArgument Exception when not found or empty
+    private static String getEnvOrThrow(Map<String, String> env, String key) {
+        return Optional.ofNullable(env.get(key)).filter(s -> ! s.isEmpty()).orElseThrow(() -> new IllegalArgumentException(key + " not defined (or empty)"));
     }
 
     /**
@@ -93,6 +107,8 @@ public class Sdk {
         private String dnsName;
         private Properties allProps;
         private boolean servesSslEndpoint;
+        private int warmupIterations;
+        private Executor warmupExecutor = Warmup.BACKGROUND;
 
         /**
          * initialize the SDK from the provided environment variables.
@@ -101,14 +117,25 @@ public class Sdk {
          * @exception IllegalArgumentException on certificate error
          * @exception IllegalArgumentException on invalid or empty environment variables
          */
-        public Builder fromEnv() {
+        public Builder fromEnv() { return fromEnv(System.getenv()); }
+
+        /**
+         * initialize the SDK from the given set of environment variables,
+         * e.g. the environment of a {@link dsh.sdk.emulator.PlatformEmulator} in a test.
+         * @param env the environment variables (name to value)
+         * @return SDK Builder
+         * @exception IllegalArgumentException on certificate error
+         * @exception IllegalArgumentException on invalid or empty environment variables
+         * @see #fromEnv() fromEnv
+         */
+        public Builder fromEnv(Map<String, String> env) {
             try {
-                token = getEnvOrThrow(DSH_SECRET_TOKEN);
-                caCert = SslUtils.certificateFromPEM(getEnvOrThrow(DSH_CA_CERTIFICATE));
-                pkiHost = getEnvOrThrow(DSH_KAFKA_CONFIG_ENDPOINT);
-                taskId = getEnvOrThrow(MESOS_TASK_ID);
-                appId = AppId.from(getEnvOrThrow(MARATHON_APP_ID));
-                dnsName = getEnvOrThrow(DSH_CONTAINER_DNS_NAME);
+                token = getEnvOrThrow(env, DSH_SECRET_TOKEN);
+                caCert = SslUtils.certificateFromPEM(getEnvOrThrow(env, DSH_CA_CERTIFICATE));
+                pkiHost = getEnvOrThrow(env, DSH_KAFKA_CONFIG_ENDPOINT);
+                taskId = getEnvOrThrow(env, MESOS_TASK_ID);
+                appId = AppId.from(getEnvOrThrow(env, MARATHON_APP_ID));
+                dnsName = getEnvOrThrow(env, DSH_CONTAINER_DNS_NAME);
 
                 return this;
             }
@@ -216,6 +243,43 @@ public class Sdk {
          */
         public Builder resetServesSslEndpoint() { this.servesSslEndpoint = false; return this; }
 
+        /**
+         * Warm up the SDK after it is built: exercise the envelope codecs, the partitioner of every stream contract and
+         * topic classification with synthetic data on a background thread, so they are JIT compiled before the first records.
+         * The platform configuration is fetched eagerly in {@link #build()} (handshaking with the PKI service when needed).
+         *
+         * @return SDK Builder
+         * @see Sdk#readiness()
+         */
+        public Builder setWarmup() { return setWarmup(Warmup.DEFAULT_ITERATIONS); }
+
+        /**
+         * Warm up the SDK after it is built, with the given number of iterations per hot path.
+         * (@see setWarmup)
+         *
+         * @param iterations the number of iterations, 0 disables the warmup
+         * @return SDK Builder
+         */
+        public Builder setWarmup(int iterations) {
+            if(iterations < 0) throw new IllegalArgumentException("the number of warmup iterations can not be negative");
+            this.warmupIterations = iterations;
+            return this;
+        }
+
+        /**
+         * Do not warm up the SDK after it is built.
+         * (@see setWarmup)
+         *
+         * @return SDK Builder
+         */
+        public Builder resetWarmup() { this.warmupIterations = 0; return this; }
+
+        // run the warmup on the given executor instead of a new background thread -- lets tests decide when it finishes
+        Builder setWarmupExecutor(Executor executor) {
+            this.warmupExecutor = Objects.requireNonNull(executor, "the warmup executor can not be null");
+            return this;
+        }
+
         /**
          * Initialize the SDK from an existing properties file.
          * This will prevent any handshaking with the platforms PKI service as it will be assumed
@@ -280,12 +344,12 @@ public class Sdk {
         public Sdk build() {
             try {
                 if(allProps != null && ! allProps.isEmpty()) {
-                    return new Sdk(new PkiProviderStatic(allProps));
+                    return new Sdk(new PkiProviderStatic(allProps), warmupIterations, warmupExecutor);
                 }
                 else {
                     return new Sdk(new PkiProviderPikachu(
                             pkiHost, caCert, token, appId, taskId, dnsName, servesSslEndpoint
-                    ));
+                    ), warmupIterations, warmupExecutor);
                 }
             }
             catch(Exception e) {
@@ -306,14 +370,21 @@ public class Sdk {
     //  can be communication with the platform PKI service or static properties
     private final PkiProvider pki;
 
+    // completes when the warmup finished (right away without warmup)
+    private final CompletableFuture<Void> warmup;
+
     /**
      * Create a new SDK object with the given provider
      * @param pki the PKI provider
      * @see PkiProvider PkiProvider
      */
-    public Sdk(PkiProvider pki) {
+    public Sdk(PkiProvider pki) { this(pki, 0, Warmup.BACKGROUND); }
+
+    // fetch the configuration and start the warmup in the background, when requested
+    private Sdk(PkiProvider pki, int warmupIterations, Executor warmupExecutor) {
         this.pki = pki;
         logger.info("new Pki object created - {}", this.toString());
+        this.warmup = warmupIterations > 0 ? Warmup.start(getApp().root(), getProps(), warmupIterations, warmupExecutor) : CompletableFuture.completedFuture(null);
     }
 
     // only for internal use to get access to the PKI configuration:
@@ -335,4 +406,34 @@ public class Sdk {
      * @see AppId
      */
     public AppId getApp() { return this.pki.getAppId(); }
+
+    /**
+     * Readiness of the SDK, to hook up to e.g. the health endpoint of a {@link dsh.rest.SimpleRestServer}:
+     * {@code true} once the warmup finished, or right away when the SDK was built without warmup.
+     *
+     * @return readiness supplier
+     * @see Builder#setWarmup()
+     */
+    public Supplier<Boolean> readiness() { return warmup::isDone; }
+
+    /**
+     * Wait for the warmup to finish.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return {@code true} when the warmup finished (or there is none), {@code false} when the timeout expired
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public boolean awaitWarmup(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            warmup.get(timeout, unit);
+            return true;
+        }
+        catch (TimeoutException e) {
+            return false;
+        }
+        catch (ExecutionException e) {
+            return true;  // the warmup never fails: it logs and completes
+        }
+    }
 }
@@ -0,0 +1,175 @@
+package dsh.sdk;
+
+import com.google.protobuf.ByteString;
+import dsh.messages.DataFlyweight;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.messages.KeyFlyweight;
+import dsh.sdk.internal.Threads;
+import dsh.sdk.kafka.partitioners.DshStreamPartitioner;
+import dsh.sdk.kafka.serdes.DataEnvelopeDeserializer;
+import dsh.sdk.kafka.serdes.DataEnvelopeSerializer;
+import dsh.sdk.kafka.serdes.KeyEnvelopeDeserializer;
+import dsh.sdk.kafka.serdes.KeyEnvelopeSerializer;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+/**
+ * Warmup of the hot paths of the SDK, so the JIT compiler has compiled them before the application takes traffic:
+ * <ul>
+ *   <li>the envelope codecs -- the Kafka serializers and deserializers, and the key and data flyweights</li>
+ *   <li>the partitioning function of every stream contract, directly and through the {@link DshStreamPartitioner}</li>
+ *   <li>topic classification -- parsing topic names into streams, and matching them against the subscription patterns</li>
+ * </ul>
+ * Everything runs on synthetic data on a single background thread, started by {@link Sdk.Builder#build()} when enabled
+ * with {@link Sdk.Builder#setWarmup()}, on the configuration the SDK already fetched.
+ * A failing warmup is logged and counts as finished: it never keeps the application from becoming ready.
+ */
+final class Warmup {
+    private static final Logger logger = LoggerFactory.getLogger(Warmup.class);
+
+    /** Default number of iterations per hot path -- comfortably above the invocation threshold of the optimizing compiler. */
+    static final int DEFAULT_ITERATIONS = 20_000;
+
+    // the number of partitions to use for streams without a partition count in their configuration
+    private static final int DEFAULT_PARTITIONS = 12;
+
+    /** Runs the warmup on a new daemon thread. */
+    static final Executor BACKGROUND = command -> Threads.platformThreadFactory("dsh-sdk-warmup", true).newThread(command).start();
+
+    // sink for the results of the warmup, so the JIT can not eliminate the work as dead code
+    private static volatile long sink;
+
+    private Warmup() { throw new AssertionError(); }
+
+    /**
+     * Start the warmup in the background.
+     *
+     * @param tenant the tenant of the application
+     * @param props the platform configuration, with the stream contracts to warm up
+     * @param iterations the number of iterations per hot path
+     * @param executor runs the warmup, e.g. {@link #BACKGROUND}
+     * @return completes when the warmup finished (also when it failed)
+     */
+    static CompletableFuture<Void> start(String tenant, Properties props, int iterations, Executor executor) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                run(tenant, props, iterations);
+                logger.info("warmup finished in {} ms", (System.nanoTime() - start) / 1_000_000);
+            }
+            catch (Exception e) {
+                logger.warn("warmup aborted after {} ms - {}", (System.nanoTime() - start) / 1_000_000, e.getMessage(), e);
+            }
+            finally {
+                done.complete(null);
+            }
+        });
+        return done;
+    }
+
+    // run all warmup phases on the calling thread
+    static void run(String tenant, Properties props, int iterations) {
+        Random random = new Random(0);
+        List<String> keys = new ArrayList<>();
+        for(int i = 0; i < 256; i++) keys.add("warmup/" + random.nextInt(64) + "/" + random.nextInt(1024) + "/" + i);
+
+        codecs(keys, iterations);
+
+        StreamsConfigParser parser = StreamsConfigParser.of(props);
+        partitioners(parser, props, tenant, keys, iterations);
+        classification(parser, tenant, iterations);
+    }
+
+    private static void codecs(List<String> keys, int iterations) {
+        KeyEnvelopeSerializer keySerializer = new KeyEnvelopeSerializer();
+        KeyEnvelopeDeserializer keyDeserializer = new KeyEnvelopeDeserializer();
+        DataEnvelopeSerializer valueSerializer = new DataEnvelopeSerializer();
+        DataEnvelopeDeserializer valueDeserializer = new DataEnvelopeDeserializer();
+        KeyFlyweight keyFlyweight = new KeyFlyweight();
+        DataFlyweight dataFlyweight = new DataFlyweight();
+
+        byte[] payload = new byte[256];
+        new Random(0).nextBytes(payload);
+        Envelope.DataEnvelope value = Envelope.DataEnvelope.newBuilder()
+                .setPayload(ByteString.copyFrom(payload))
+                .putTracing("span", "warmup")
+                .build();
+
+        long result = 0;
+        for(int i = 0; i < iterations; i++) {
+            Envelope.KeyEnvelope key = Envelope.KeyEnvelope.newBuilder()
+                    .setKey(keys.get(i % keys.size()))
+                    .setHeader(Envelope.KeyHeader.newBuilder()
+                            .setIdentifier(Envelope.Identity.newBuilder().setTenant("warmup").setApplication("warmup"))
+                            .setRetained(i % 2 == 0)
+                            .setQos(i % 3 == 0 ? Envelope.QoS.RELIABLE : Envelope.QoS.BEST_EFFORT))
+                    .build();
+
+            byte[] keyBytes = keySerializer.serialize("warmup", key);
+            byte[] valueBytes = valueSerializer.serialize("warmup", value);
+            result += keyDeserializer.deserialize("warmup", keyBytes).getKey().length();
+            result += valueDeserializer.deserialize("warmup", valueBytes).getPayload().size();
+            result += keyFlyweight.wrap(keyBytes).key().length() + keyFlyweight.qos();
+            result += dataFlyweight.wrap(valueBytes).payloadLength();
+            result += dataFlyweight.tracingView("span").length();
+        }
+        sink += result;
+    }
+
+    private static void partitioners(StreamsConfigParser parser, Properties props, String tenant, List<String> keys, int iterations) {
+        DshStreamPartitioner partitioner = new DshStreamPartitioner(parser);
+        long result = 0;
+        for(StreamsConfigParser.StreamContract contract: parser.streams()) {
+            int partitions = partitionsOf(props, contract.datastream());
+            String topic = contract.produceTopic().orElse(contract.datastream().asTopic(tenant));
+            for(int i = 0; i < iterations; i++) {
+                String key = keys.get(i % keys.size());
+                result += contract.partitioner().apply(key, partitions);
+                result += partitioner.partition(topic, key, partitions, contract.partitioner());
+            }
+        }
+        sink += result;
+    }
+
+    private static void classification(StreamsConfigParser parser, String tenant, int iterations) {
+        List<String> topics = new ArrayList<>();
+        List<Pattern> patterns = new ArrayList<>();
+        for(StreamsConfigParser.StreamContract contract: parser.streams()) {
+            topics.add(contract.datastream().asTopic(tenant));
+            contract.produceTopic().ifPresent(topics::add);
+            contract.subscribePattern().ifPresent(patterns::add);
+        }
+        if(topics.isEmpty()) return;
+        // a topic without a contract
+        topics.add(DataStream.of(DataStream.StreamType.INTERNAL, "dsh-sdk-warmup").asTopic(tenant));
+
+        long result = 0;
+        for(int i = 0; i < iterations; i++) {
+            String topic = topics.get(i % topics.size());
+            DataStream stream = DataStream.of(topic);
+            if(parser.findStream(stream).isPresent()) result++;
+            for(Pattern pattern: patterns) if(pattern.matcher(topic).matches()) result++;
+        }
+        sink += result;
+    }
+
+    private static int partitionsOf(Properties props, DataStream stream) {
+        try {
+            return Integer.parseInt(props.getProperty("datastream." + stream.fullName() + ".partitions", Integer.toString(DEFAULT_PARTITIONS)));
+        }
+        catch (NumberFormatException e) {
+            return DEFAULT_PARTITIONS;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package dsh.sdk.emulator;
+
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.messages.PayloadCodec;
+import dsh.sdk.kafka.GroupMembership;
+import dsh.sdk.kafka.KafkaClientFactory;
+import dsh.sdk.kafka.KafkaConfigParser;
+import dsh.sdk.kafka.consumers.CatchUpReader;
+import dsh.sdk.kafka.consumers.KeyFilter;
+import dsh.sdk.kafka.consumers.ParallelDecodingConsumer;
+import dsh.sdk.kafka.consumers.ParallelStreamConsumer;
+import dsh.sdk.kafka.consumers.StreamRelay;
+import dsh.sdk.kafka.consumers.StreamSubscription;
+import dsh.sdk.kafka.producers.BatchingProducer;
+import dsh.sdk.kafka.producers.ChunkingProducer;
+import dsh.sdk.kafka.producers.FanOutProducer;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The {@link KafkaClientFactory} counterpart for the {@link PlatformEmulator}: the same clients, configured from exactly the same
+ * properties (serdes, stream partitioner, consumer groups, group membership, counting interceptors), but producing to and
+ * consuming from the in-memory {@link TopicLog} instead of a Kafka cluster.
+ *
+ * The plain clients are returned as {@link Producer} and {@link Consumer}, as the emulated clients are no {@code KafkaProducer}
+ * or {@code KafkaConsumer}; all the higher level clients (fan-out, batching and chunking producers, parallel consumers,
+ * catch-up reader, relay) are the regular SDK classes on top of the emulated clients.
+ *
+ * <pre>{@code
+ *   EmulatedClientFactory clients = emulator.clientFactory(sdk);
+ *   Producer<Envelope.KeyEnvelope, Envelope.DataEnvelope> producer = clients.createStreamProducer(null);
+ * }</pre>
+ */
+public class EmulatedClientFactory {
+    private final TopicLog log;
+    private final StreamsConfigParser streamsParser;
+    private final KafkaClientFactory factory;
+
+    private EmulatedClientFactory(TopicLog log, StreamsConfigParser streamsParser, KafkaClientFactory factory) {
+        this.log = Objects.requireNonNull(log);
+        this.streamsParser = Objects.requireNonNull(streamsParser);
+        this.factory = factory;
+    }
+
+    public static EmulatedClientFactory of(TopicLog log, StreamsConfigParser streamsParser, KafkaConfigParser kafkaParser) {
+        return new EmulatedClientFactory(log, streamsParser, KafkaClientFactory.of(streamsParser, kafkaParser));
+    }
+
+    public static EmulatedClientFactory of(TopicLog log, StreamsConfigParser streamsParser, KafkaConfigParser kafkaParser, GroupMembership membership) {
+        return new EmulatedClientFactory(log, streamsParser, KafkaClientFactory.of(streamsParser, kafkaParser, membership));
+    }
+
+    /** @see KafkaClientFactory#createStreamProducer(Properties) */
+    public Producer<Envelope.KeyEnvelope, Envelope.DataEnvelope> createStreamProducer(Properties overrides) {
+        return new EmulatedProducer<>(log, factory.streamProducerProperties(overrides));
+    }
+
+    /** @see KafkaClientFactory#createRawStreamProducer(Properties) */
+    public Producer<byte[], byte[]> createRawStreamProducer(Properties overrides) {
+        return new EmulatedProducer<>(log, factory.rawStreamProducerProperties(overrides));
+    }
+
+    /** @see KafkaClientFactory#createFanOutProducer(Properties) */
+    public FanOutProducer createFanOutProducer(Properties overrides) {
+        return new FanOutProducer(createRawStreamProducer(overrides), streamsParser);
+    }
+
+    /** @see KafkaClientFactory#createBatchingProducer(Properties) */
+    public BatchingProducer.Builder createBatchingProducer(Properties overrides) {
+        return new BatchingProducer.Builder(createRawStreamProducer(overrides), streamsParser);
+    }
+
+    /** @see KafkaClientFactory#createChunkingProducer(Properties) */
+    public ChunkingProducer createChunkingProducer(Properties overrides) {
+        Properties props = factory.rawStreamProducerProperties(overrides);
+        int maxRecordBytes = Integer.parseInt(props.getOrDefault(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, 1024 * 1024).toString());
+        return new ChunkingProducer(new EmulatedProducer<>(log, props), streamsParser, maxRecordBytes);
+    }
+
+    /** @see KafkaClientFactory#createSharedStreamConsumer(Properties) */
+    public Consumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> createSharedStreamConsumer(Properties overrides) {
+        return new EmulatedConsumer<>(log, factory.withMembership(factory.streamConsumerProperties(overrides, KafkaConfigParser.ConsumerGroupType.SHARED)));
+    }
+
+    /** @see KafkaClientFactory#createLocalStreamConsumer(Properties) */
+    public Consumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> createLocalStreamConsumer(Properties overrides) {
+        return new EmulatedConsumer<>(log, factory.withMembership(factory.streamConsumerProperties(overrides, KafkaConfigParser.ConsumerGroupType.PRIVATE)));
+    }
+
+    /** @see KafkaClientFactory#createParallelStreamConsumer(Properties) */
+    public ParallelStreamConsumer.Builder createParallelStreamConsumer(Properties overrides) {
+        Properties props = new Properties();
+        if(overrides != null) props.putAll(overrides);
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+
+        return new ParallelStreamConsumer.Builder(createSharedStreamConsumer(props));
+    }
+
+    /** @see KafkaClientFactory#createSharedRawStreamConsumer(Properties) */
+    public Consumer<byte[], byte[]> createSharedRawStreamConsumer(Properties overrides) {
+        return new EmulatedConsumer<>(log, factory.withMembership(factory.rawStreamConsumerProperties(overrides, KafkaConfigParser.ConsumerGroupType.SHARED)));
+    }
+
+    /** @see KafkaClientFactory#createLocalRawStreamConsumer(Properties) */
+    public Consumer<byte[], byte[]> createLocalRawStreamConsumer(Properties overrides) {
+        return new EmulatedConsumer<>(log, factory.withMembership(factory.rawStreamConsumerProperties(overrides, KafkaConfigParser.ConsumerGroupType.PRIVATE)));
+    }
+
+    /** @see KafkaClientFactory#createParallelDecodingConsumer(Properties) */
+    public ParallelDecodingConsumer createParallelDecodingConsumer(Properties overrides) {
+        return new ParallelDecodingConsumer(createSharedRawStreamConsumer(overrides), ForkJoinPool.commonPool(), null, PayloadCodec.of(overrides));
+    }
+
+    /** @see KafkaClientFactory#createParallelDecodingConsumer(Properties, KeyFilter) */
+    public ParallelDecodingConsumer createParallelDecodingConsumer(Properties overrides, KeyFilter keyFilter) {
+        return new ParallelDecodingConsumer(createSharedRawStreamConsumer(overrides), ForkJoinPool.commonPool(), keyFilter, PayloadCodec.of(overrides));
+    }
+
+    /** @see KafkaClientFactory#createCatchUpReader(Properties, Collection) */
+    public CatchUpReader.Builder<byte[], byte[]> createCatchUpReader(Properties overrides, Collection<DataStream> streams) {
+        Properties assignProps = factory.catchUpConsumerProperties(overrides);
+        return new CatchUpReader.Builder<byte[], byte[]>(() -> new EmulatedConsumer<>(log, assignProps))
+                .setTopics(streamsParser.topicsFor(log.topics(), streams));
+    }
+
+    /** @see KafkaClientFactory#createStreamSubscription(Collection) */
+    public StreamSubscription createStreamSubscription(Collection<DataStream> streams) {
+        return factory.createStreamSubscription(streams);
+    }
+
+    /** @see KafkaClientFactory#createStreamRelay(Properties, DataStream, boolean) */
+    public StreamRelay.Builder createStreamRelay(Properties overrides, DataStream destination, boolean exactlyOnce) {
+        Properties consumerProps = new Properties();
+        Properties producerProps = new Properties();
+        if(overrides != null) {
+            consumerProps.putAll(overrides);
+            producerProps.putAll(overrides);
+        }
+        consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        if(exactlyOnce) {
+            consumerProps.putIfAbsent(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+            producerProps.putIfAbsent(ProducerConfig.TRANSACTIONAL_ID_CONFIG, "relay-" + destination.name() + "-" + UUID.randomUUID());
+        }
+
+        return new StreamRelay.Builder(createSharedRawStreamConsumer(consumerProps), createRawStreamProducer(producerProps), streamsParser)
+                .setDestination(destination)
+                .setTransactional(exactlyOnce);
+    }
+}
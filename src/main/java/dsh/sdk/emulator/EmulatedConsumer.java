@@ -0,0 +1,560 @@
+package dsh.sdk.emulator;
+
+import org.apache.kafka.clients.consumer.*;
+import org.apache.kafka.clients.consumer.internals.ConsumerInterceptors;
+import org.apache.kafka.clients.consumer.internals.NoOpConsumerRebalanceListener;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.InvalidGroupIdException;
+import org.apache.kafka.common.errors.RecordDeserializationException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.utils.Utils;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link Consumer} that reads from the {@link TopicLog} of the {@link PlatformEmulator} instead of fetching from a Kafka cluster.
+ *
+ * It is configured from the same properties as a {@code KafkaConsumer}: the deserializers and interceptors of the configuration
+ * are instantiated and used exactly like the real consumer does.  The consumer group semantics follow Kafka:
+ * <ul>
+ *   <li>subscribed consumers of the same {@code group.id} share the partitions, and rebalance when members join or leave
+ *       (or when a topic matching a pattern subscription gets created) -- the rebalance listener is called from {@code poll},
+ *       with the eager or (for a cooperative assignor) incremental protocol</li>
+ *   <li>a newly assigned partition starts at the committed offset of the group, or else at the {@code auto.offset.reset} position</li>
+ *   <li>{@code enable.auto.commit}, {@code max.poll.records}, {@code isolation.level}, {@code pause}/{@code resume}, {@code seek}
+ *       and {@code wakeup} behave as documented for the {@code KafkaConsumer}</li>
+ * </ul>
+ * A {@code poll} waits for new records until its timeout expires, so consumers wake up as soon as a producer appends.
+ *
+ * Like the real consumer, this consumer is not thread safe: only {@link #wakeup()} can be called from another thread.
+ * Static membership is not emulated: a {@code group.instance.id} is accepted, but a restarted member triggers a rebalance.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class EmulatedConsumer<K, V> implements Consumer<K, V> {
+    private final TopicLog log;
+    private final Deserializer<K> keyDeserializer;
+    private final Deserializer<V> valueDeserializer;
+    private final ConsumerInterceptors<K, V> interceptors;
+    private final String groupId;
+    private final String memberId = "emulated-" + UUID.randomUUID();
+    private final boolean cooperative;
+    private final boolean readCommitted;
+    private final boolean autoCommit;
+    private final long autoCommitIntervalMs;
+    private final int maxPollRecords;
+    private final String offsetReset;
+
+    // subscription
+    private final TopicLog.Member member = this::subscribes;
+    private Set<String> topics = Collections.emptySet();
+    private Pattern pattern;
+    private ConsumerRebalanceListener listener = new NoOpConsumerRebalanceListener();
+    private boolean subscribed;
+    private int generation = -1;
+
+    // the assigned partitions and their positions (null while the position still needs to be looked up)
+    private final Map<TopicPartition, Long> positions = new LinkedHashMap<>();
+    private final Set<TopicPartition> paused = new HashSet<>();
+    private long nextAutoCommit;
+    private int nextPartition;
+    private volatile boolean wakeup;
+    private boolean closed;
+
+    /**
+     * @param log the log to consume from
+     * @param props the consumer configuration, as for a {@code KafkaConsumer}
+     */
+    @SuppressWarnings("unchecked")
+    public EmulatedConsumer(TopicLog log, Properties props) {
+        this.log = Objects.requireNonNull(log);
+        ConsumerConfig config = new ConsumerConfig(props);
+        Map<String, Object> originals = config.originals();
+
+        this.keyDeserializer = config.getConfiguredInstance(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, Deserializer.class);
+        this.keyDeserializer.configure(originals, true);
+        this.valueDeserializer = config.getConfiguredInstance(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, Deserializer.class);
+        this.valueDeserializer.configure(originals, false);
+        this.interceptors = new ConsumerInterceptors<>((List<ConsumerInterceptor<K, V>>) (List<?>) config.getConfiguredInstances(ConsumerConfig.INTERCEPTOR_CLASSES_CONFIG, ConsumerInterceptor.class));
+
+        this.groupId = config.getString(ConsumerConfig.GROUP_ID_CONFIG);
+        // the group uses the protocol of the preferred (first) strategy; the list holds class names or classes
+        List<?> strategies = config.getList(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG);
+        this.cooperative = ! strategies.isEmpty() && String.valueOf(strategies.get(0)).contains("Cooperative");
+        this.readCommitted = "read_committed".equalsIgnoreCase(config.getString(ConsumerConfig.ISOLATION_LEVEL_CONFIG));
+        this.autoCommit = groupId != null && config.getBoolean(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG);
+        this.autoCommitIntervalMs = config.getInt(ConsumerConfig.AUTO_COMMIT_INTERVAL_MS_CONFIG);
+        this.maxPollRecords = config.getInt(ConsumerConfig.MAX_POLL_RECORDS_CONFIG);
+        this.offsetReset = config.getString(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG).toLowerCase(Locale.ROOT);
+        this.nextAutoCommit = System.currentTimeMillis() + autoCommitIntervalMs;
+    }
+
+    @Override
+    public Set<TopicPartition> assignment() {
+        ensureOpen();
+        return Collections.unmodifiableSet(new HashSet<>(positions.keySet()));
+    }
+
+    @Override
+    public Set<String> subscription() {
+        ensureOpen();
+        if(pattern != null) return log.topicsMatching(this::subscribes);
+        return Collections.unmodifiableSet(new HashSet<>(topics));
+    }
+
+    @Override
+    public void subscribe(Collection<String> topics) { subscribe(topics, new NoOpConsumerRebalanceListener()); }
+
+    @Override
+    public void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+        ensureOpen();
+        if(topics == null) throw new IllegalArgumentException("Topic collection to subscribe to cannot be null");
+        if(topics.isEmpty()) {
+            unsubscribe();
+            return;
+        }
+        ensureGroup();
+        ensureNotAssigned();
+        this.topics = new HashSet<>(topics);
+        this.pattern = null;
+        join(listener);
+    }
+
+    @Override
+    public void subscribe(Pattern pattern) { subscribe(pattern, new NoOpConsumerRebalanceListener()); }
+
+    @Override
+    public void subscribe(Pattern pattern, ConsumerRebalanceListener listener) {
+        ensureOpen();
+        if(pattern == null || pattern.toString().isEmpty()) throw new IllegalArgumentException("Topic pattern to subscribe to cannot be " + (pattern == null ? "null" : "empty"));
+        ensureGroup();
+        ensureNotAssigned();
+        this.topics = Collections.emptySet();
+        this.pattern = pattern;
+        join(listener);
+    }
+
+    @Override
+    public void assign(Collection<TopicPartition> partitions) {
+        ensureOpen();
+        if(partitions == null) throw new IllegalArgumentException("Topic partition collection to assign to cannot be null");
+        if(partitions.isEmpty()) {
+            unsubscribe();
+            return;
+        }
+        if(subscribed) throw new IllegalStateException("Subscription to topics, partitions and pattern are mutually exclusive");
+        positions.keySet().retainAll(partitions);
+        paused.retainAll(partitions);
+        for(TopicPartition partition: partitions) positions.putIfAbsent(partition, null);
+    }
+
+    @Override
+    public void unsubscribe() {
+        ensureOpen();
+        if(subscribed) {
+            listener.onPartitionsRevoked(new HashSet<>(positions.keySet()));
+            log.leave(groupId, member);
+        }
+        subscribed = false;
+        generation = -1;
+        topics = Collections.emptySet();
+        pattern = null;
+        positions.clear();
+        paused.clear();
+    }
+
+    @Override
+    @Deprecated
+    public ConsumerRecords<K, V> poll(long timeoutMs) { return poll(Duration.ofMillis(timeoutMs)); }
+
+    @Override
+    public ConsumerRecords<K, V> poll(Duration timeout) {
+        ensureOpen();
+        if(! subscribed && positions.isEmpty()) throw new IllegalStateException("Consumer is not subscribed to any topics or assigned any partitions");
+        long deadline = System.nanoTime() + timeout.toNanos();
+        try {
+            while(true) {
+                if(wakeup) {
+                    wakeup = false;
+                    throw new WakeupException();
+                }
+                long version = log.version();
+                if(subscribed) rebalanceIfNeeded();
+                maybeAutoCommit();
+
+                ConsumerRecords<K, V> records = fetch();
+                if(! records.isEmpty()) return interceptors.onConsume(records);
+
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) return ConsumerRecords.empty();
+                log.await(version, remaining);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptException(e);
+        }
+    }
+
+    @Override
+    public void commitSync() { commitSync(currentOffsets()); }
+
+    @Override
+    public void commitSync(Duration timeout) { commitSync(); }
+
+    @Override
+    public void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        ensureOpen();
+        ensureGroup();
+        if(offsets.isEmpty()) return;
+        log.commit(groupId, offsets);
+        interceptors.onCommit(offsets);
+    }
+
+    @Override
+    public void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets, Duration timeout) { commitSync(offsets); }
+
+    @Override
+    public void commitAsync() { commitAsync(null); }
+
+    @Override
+    public void commitAsync(OffsetCommitCallback callback) { commitAsync(currentOffsets(), callback); }
+
+    @Override
+    public void commitAsync(Map<TopicPartition, OffsetAndMetadata> offsets, OffsetCommitCallback callback) {
+        Map<TopicPartition, OffsetAndMetadata> copy = new HashMap<>(offsets);
+        commitSync(copy);
+        if(callback != null) callback.onComplete(copy, null);
+    }
+
+    @Override
+    public void seek(TopicPartition partition, long offset) {
+        ensureAssigned(partition);
+        if(offset < 0) throw new IllegalArgumentException("seek offset must not be a negative number");
+        positions.put(partition, offset);
+    }
+
+    @Override
+    public void seek(TopicPartition partition, OffsetAndMetadata offsetAndMetadata) { seek(partition, offsetAndMetadata.offset()); }
+
+    @Override
+    public void seekToBeginning(Collection<TopicPartition> partitions) {
+        for(TopicPartition partition: partitions.isEmpty() ? new ArrayList<>(positions.keySet()) : partitions) seek(partition, 0);
+    }
+
+    @Override
+    public void seekToEnd(Collection<TopicPartition> partitions) {
+        for(TopicPartition partition: partitions.isEmpty() ? new ArrayList<>(positions.keySet()) : partitions) seek(partition, end(partition));
+    }
+
+    @Override
+    public long position(TopicPartition partition) {
+        ensureOpen();
+        if(! positions.containsKey(partition)) throw new IllegalStateException("You can only check the position for partitions assigned to this consumer.");
+        return resolvePosition(partition);
+    }
+
+    @Override
+    public long position(TopicPartition partition, Duration timeout) { return position(partition); }
+
+    @Override
+    @Deprecated
+    public OffsetAndMetadata committed(TopicPartition partition) { return committed(Collections.singleton(partition)).get(partition); }
+
+    @Override
+    @Deprecated
+    public OffsetAndMetadata committed(TopicPartition partition, Duration timeout) { return committed(partition); }
+
+    @Override
+    public Map<TopicPartition, OffsetAndMetadata> committed(Set<TopicPartition> partitions) {
+        ensureOpen();
+        ensureGroup();
+        return log.committed(groupId, partitions);
+    }
+
+    @Override
+    public Map<TopicPartition, OffsetAndMetadata> committed(Set<TopicPartition> partitions, Duration timeout) { return committed(partitions); }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() { return Collections.emptyMap(); }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+        ensureOpen();
+        return log.partitionInfos(topic);
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic, Duration timeout) { return partitionsFor(topic); }
+
+    @Override
+    public Map<String, List<PartitionInfo>> listTopics() {
+        ensureOpen();
+        Map<String, List<PartitionInfo>> topics = new HashMap<>();
+        for(String topic: log.topics()) topics.put(topic, log.partitionInfos(topic));
+        return topics;
+    }
+
+    @Override
+    public Map<String, List<PartitionInfo>> listTopics(Duration timeout) { return listTopics(); }
+
+    @Override
+    public Set<TopicPartition> paused() {
+        ensureOpen();
+        return Collections.unmodifiableSet(new HashSet<>(paused));
+    }
+
+    @Override
+    public void pause(Collection<TopicPartition> partitions) {
+        for(TopicPartition partition: partitions) {
+            ensureAssigned(partition);
+            paused.add(partition);
+        }
+    }
+
+    @Override
+    public void resume(Collection<TopicPartition> partitions) {
+        for(TopicPartition partition: partitions) {
+            ensureAssigned(partition);
+            paused.remove(partition);
+        }
+    }
+
+    @Override
+    public Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes(Map<TopicPartition, Long> timestampsToSearch) {
+        ensureOpen();
+        Map<TopicPartition, OffsetAndTimestamp> offsets = new HashMap<>();
+        timestampsToSearch.forEach((partition, timestamp) -> {
+            TopicLog.Partition p = log.partition(partition);
+            long offset = p == null ? -1 : p.offsetForTime(timestamp);
+            offsets.put(partition, offset < 0 ? null : new OffsetAndTimestamp(offset, p.timestampAt(offset)));
+        });
+        return offsets;
+    }
+
+    @Override
+    public Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes(Map<TopicPartition, Long> timestampsToSearch, Duration timeout) { return offsetsForTimes(timestampsToSearch); }
+
+    @Override
+    public Map<TopicPartition, Long> beginningOffsets(Collection<TopicPartition> partitions) {
+        ensureOpen();
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        for(TopicPartition partition: partitions) offsets.put(partition, 0L);
+        return offsets;
+    }
+
+    @Override
+    public Map<TopicPartition, Long> beginningOffsets(Collection<TopicPartition> partitions, Duration timeout) { return beginningOffsets(partitions); }
+
+    @Override
+    public Map<TopicPartition, Long> endOffsets(Collection<TopicPartition> partitions) {
+        ensureOpen();
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        for(TopicPartition partition: partitions) offsets.put(partition, end(partition));
+        return offsets;
+    }
+
+    @Override
+    public Map<TopicPartition, Long> endOffsets(Collection<TopicPartition> partitions, Duration timeout) { return endOffsets(partitions); }
+
+    @Override
+    public OptionalLong currentLag(TopicPartition partition) {
+        ensureOpen();
+        Long position = positions.get(partition);
+        return position == null ? OptionalLong.empty() : OptionalLong.of(end(partition) - position);
+    }
+
+    @Override
+    public ConsumerGroupMetadata groupMetadata() {
+        ensureOpen();
+        ensureGroup();
+        return new ConsumerGroupMetadata(groupId, generation, memberId, Optional.empty());
+    }
+
+    @Override
+    public void enforceRebalance() {
+        ensureOpen();
+        if(! subscribed) throw new IllegalStateException("Tried to force a rebalance but consumer does not have a group.");
+        log.rebalance(groupId);
+    }
+
+    @Override
+    public void enforceRebalance(String reason) { enforceRebalance(); }
+
+    @Override
+    public void close() { close(Duration.ofSeconds(30)); }
+
+    @Override
+    public void close(Duration timeout) {
+        if(closed) return;
+        try {
+            if(autoCommit) commitSync(currentOffsets());
+            if(subscribed) log.leave(groupId, member);
+        }
+        finally {
+            closed = true;
+            Utils.closeQuietly(interceptors, "consumer interceptors");
+            Utils.closeQuietly(keyDeserializer, "consumer key deserializer");
+            Utils.closeQuietly(valueDeserializer, "consumer value deserializer");
+        }
+    }
+
+    @Override
+    public void wakeup() {
+        wakeup = true;
+        log.changed();
+    }
+
+    // -- group membership
+
+    private boolean subscribes(String topic) {
+        Pattern pattern = this.pattern;
+        return pattern != null ? pattern.matcher(topic).matches() : topics.contains(topic);
+    }
+
+    private void join(ConsumerRebalanceListener listener) {
+        this.listener = listener == null ? new NoOpConsumerRebalanceListener() : listener;
+        this.subscribed = true;
+        log.join(groupId, member);
+    }
+
+    // take the assignment of the current generation of the group, calling the rebalance listener like the real consumer does
+    private void rebalanceIfNeeded() {
+        if(log.generation(groupId) == generation) return;
+        TopicLog.Assignment assignment = log.assignment(groupId, member);
+
+        Set<TopicPartition> owned = new HashSet<>(positions.keySet());
+        Set<TopicPartition> revoked = new HashSet<>(owned);
+        Set<TopicPartition> added = new HashSet<>(assignment.partitions);
+        if(cooperative) {
+            revoked.removeAll(assignment.partitions);
+            added.removeAll(owned);
+        }
+        if(! cooperative || ! revoked.isEmpty()) {
+            if(autoCommit) commitSync(offsetsOf(revoked));
+            listener.onPartitionsRevoked(revoked);
+        }
+        positions.keySet().removeAll(revoked);
+        paused.removeAll(revoked);
+        for(TopicPartition partition: added) positions.put(partition, null);
+
+        generation = assignment.generation;
+        listener.onPartitionsAssigned(added);
+    }
+
+    private void maybeAutoCommit() {
+        if(! autoCommit || System.currentTimeMillis() < nextAutoCommit) return;
+        commitSync(currentOffsets());
+        nextAutoCommit = System.currentTimeMillis() + autoCommitIntervalMs;
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> currentOffsets() { return offsetsOf(positions.keySet()); }
+
+    private Map<TopicPartition, OffsetAndMetadata> offsetsOf(Collection<TopicPartition> partitions) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for(TopicPartition partition: partitions) {
+            Long position = positions.get(partition);
+            if(position != null) offsets.put(partition, new OffsetAndMetadata(position));
+        }
+        return offsets;
+    }
+
+    // -- fetching
+
+    private ConsumerRecords<K, V> fetch() {
+        List<TopicPartition> fetchable = new ArrayList<>(positions.keySet());
+        fetchable.removeAll(paused);
+        if(fetchable.isEmpty()) return ConsumerRecords.empty();
+
+        // start at another partition every poll, so a busy partition can not starve the others
+        Map<TopicPartition, List<ConsumerRecord<K, V>>> fetched = new LinkedHashMap<>();
+        List<TopicLog.Record> batch = new ArrayList<>();
+        int budget = maxPollRecords;
+        int start = nextPartition++ % fetchable.size();
+        for(int i = 0; i < fetchable.size() && budget > 0; i++) {
+            TopicPartition partition = fetchable.get((start + i) % fetchable.size());
+            TopicLog.Partition p = log.partition(partition);
+            if(p == null) continue;
+
+            long position = resolvePosition(partition);
+            batch.clear();
+            long next = p.read(position, budget, readCommitted, batch);
+            List<ConsumerRecord<K, V>> records = new ArrayList<>(batch.size());
+            for(TopicLog.Record record: batch) {
+                long offset = record.offset;
+                try {
+                    records.add(deserialize(partition, offset, record));
+                }
+                catch (RuntimeException e) {
+                    // hand out the records before the failing one first; the next poll fails on it
+                    positions.put(partition, offset);
+                    if(! records.isEmpty()) fetched.put(partition, records);
+                    if(fetched.isEmpty()) throw new RecordDeserializationException(partition, offset, "Error deserializing key/value for partition " + partition + " at offset " + offset, e);
+                    return new ConsumerRecords<>(fetched);
+                }
+            }
+            positions.put(partition, next);
+            if(! records.isEmpty()) fetched.put(partition, records);
+            budget -= records.size();
+        }
+        return fetched.isEmpty() ? ConsumerRecords.empty() : new ConsumerRecords<>(fetched);
+    }
+
+    private ConsumerRecord<K, V> deserialize(TopicPartition partition, long offset, TopicLog.Record record) {
+        RecordHeaders headers = new RecordHeaders(record.headers);
+        K key = keyDeserializer.deserialize(partition.topic(), headers, record.key);
+        V value = valueDeserializer.deserialize(partition.topic(), headers, record.value);
+        return new ConsumerRecord<>(partition.topic(), partition.partition(), offset, record.timestamp, TimestampType.CREATE_TIME,
+                record.key == null ? -1 : record.key.length, record.value == null ? -1 : record.value.length, key, value, headers, Optional.empty());
+    }
+
+    // the position of a partition: the committed offset of the group, or else the auto.offset.reset position
+    private long resolvePosition(TopicPartition partition) {
+        Long position = positions.get(partition);
+        if(position != null) return position;
+
+        OffsetAndMetadata committed = groupId == null ? null : log.committed(groupId, partition);
+        if(committed != null) position = committed.offset();
+        else if("earliest".equals(offsetReset)) position = 0L;
+        else if("latest".equals(offsetReset)) position = end(partition);
+        else throw new NoOffsetForPartitionException(partition);
+
+        positions.put(partition, position);
+        return position;
+    }
+
+    private long end(TopicPartition partition) {
+        TopicLog.Partition p = log.partition(partition);
+        if(p == null) return 0;
+        return readCommitted ? p.stableEnd() : p.end();
+    }
+
+    private void ensureOpen() {
+        if(closed) throw new IllegalStateException("This consumer has already been closed.");
+    }
+
+    private void ensureGroup() {
+        if(groupId == null || groupId.isEmpty()) {
+            throw new InvalidGroupIdException("To use the group management or offset commit APIs, you must provide a valid group.id in the consumer configuration.");
+        }
+    }
+
+    private void ensureNotAssigned() {
+        if(! subscribed && ! positions.isEmpty()) throw new IllegalStateException("Subscription to topics, partitions and pattern are mutually exclusive");
+    }
+
+    private void ensureAssigned(TopicPartition partition) {
+        ensureOpen();
+        if(! positions.containsKey(partition)) throw new IllegalStateException("No current assignment for partition " + partition);
+    }
+}
@@ -0,0 +1,235 @@
+package dsh.sdk.emulator;
+
+import org.apache.kafka.clients.consumer.ConsumerGroupMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.*;
+import org.apache.kafka.clients.producer.internals.ProducerInterceptors;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.ApiException;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.utils.Utils;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link Producer} that appends to the {@link TopicLog} of the {@link PlatformEmulator} instead of sending to a Kafka cluster.
+ *
+ * It is configured from the same properties as a {@code KafkaProducer}: the serializers, the partitioner and the interceptors
+ * of the configuration are instantiated and used exactly like the real producer does, so the stream partitioner and the
+ * counting interceptors of the {@link dsh.sdk.kafka.KafkaClientFactory} are exercised as well.
+ * Every {@code send} is acknowledged right away; {@code max.request.size} is enforced on the serialized key, value and headers.
+ * Producing to an unknown topic creates it (like a broker with automatic topic creation does).
+ *
+ * Transactions are supported: the records of a transaction become visible to {@code read_committed} consumers when it commits,
+ * together with the offsets sent to it.  Initializing a second producer with the same {@code transactional.id} fences the first one.
+ * All functions are thread safe.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class EmulatedProducer<K, V> implements Producer<K, V> {
+    private final TopicLog log;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final Partitioner partitioner;
+    private final ProducerInterceptors<K, V> interceptors;
+    private final int maxRequestSize;
+    private final String transactionalId;
+
+    private volatile boolean transactionsInitialized;
+    private boolean fenced;
+    private TopicLog.Transaction transaction;
+    private volatile boolean closed;
+
+    /**
+     * @param log the log to produce to
+     * @param props the producer configuration, as for a {@code KafkaProducer}
+     */
+    @SuppressWarnings("unchecked")
+    public EmulatedProducer(TopicLog log, Properties props) {
+        this.log = Objects.requireNonNull(log);
+        ProducerConfig config = new ProducerConfig(props);
+        Map<String, Object> originals = config.originals();
+
+        this.keySerializer = config.getConfiguredInstance(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, Serializer.class);
+        this.keySerializer.configure(originals, true);
+        this.valueSerializer = config.getConfiguredInstance(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, Serializer.class);
+        this.valueSerializer.configure(originals, false);
+        this.partitioner = config.getConfiguredInstance(ProducerConfig.PARTITIONER_CLASS_CONFIG, Partitioner.class);
+        this.interceptors = new ProducerInterceptors<>((List<ProducerInterceptor<K, V>>) (List<?>) config.getConfiguredInstances(ProducerConfig.INTERCEPTOR_CLASSES_CONFIG, ProducerInterceptor.class));
+        this.maxRequestSize = config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG);
+        this.transactionalId = config.getString(ProducerConfig.TRANSACTIONAL_ID_CONFIG);
+    }
+
+    @Override
+    public synchronized void initTransactions() {
+        ensureOpen();
+        if(transactionalId == null) throw new IllegalStateException("Transactional method invoked on a non-transactional producer.");
+        log.initTransactions(transactionalId, this);
+        transactionsInitialized = true;
+    }
+
+    @Override
+    public synchronized void beginTransaction() throws ProducerFencedException {
+        ensureTransactional();
+        if(transaction != null) throw new IllegalStateException("a transaction is already in progress");
+        transaction = new TopicLog.Transaction();
+    }
+
+    @Override
+    @Deprecated
+    public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets, String consumerGroupId) throws ProducerFencedException {
+        sendOffsetsToTransaction(offsets, new ConsumerGroupMetadata(consumerGroupId));
+    }
+
+    @Override
+    public synchronized void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets, ConsumerGroupMetadata groupMetadata) throws ProducerFencedException {
+        ensureInTransaction();
+        transaction.offsets.computeIfAbsent(groupMetadata.groupId(), g -> new HashMap<>()).putAll(offsets);
+    }
+
+    @Override
+    public synchronized void commitTransaction() throws ProducerFencedException {
+        ensureInTransaction();
+        log.complete(transaction, true);
+        transaction = null;
+    }
+
+    @Override
+    public synchronized void abortTransaction() throws ProducerFencedException {
+        ensureTransactional();
+        if(transaction != null) log.complete(transaction, false);
+        transaction = null;
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<K, V> record) { return send(record, null); }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
+        ensureOpen();
+        if(! transactionsInitialized) return send(record, callback, null);
+
+        // the transaction can not complete while one of its records is being appended
+        synchronized (this) {
+            ensureInTransaction();
+            return send(record, callback, transaction);
+        }
+    }
+
+    private Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback, TopicLog.Transaction current) {
+        ProducerRecord<K, V> intercepted = interceptors.onSend(record);
+        TopicPartition topicPartition = null;
+        try {
+            String topic = intercepted.topic();
+            TopicLog.Partition[] partitions = log.partitionsOf(topic);
+            byte[] keyBytes = keySerializer.serialize(topic, intercepted.headers(), intercepted.key());
+            byte[] valueBytes = valueSerializer.serialize(topic, intercepted.headers(), intercepted.value());
+            Header[] headers = intercepted.headers().toArray();
+            if(intercepted.headers() instanceof RecordHeaders) ((RecordHeaders) intercepted.headers()).setReadOnly();
+
+            int size = (keyBytes == null ? 0 : keyBytes.length) + (valueBytes == null ? 0 : valueBytes.length);
+            for(Header header: headers) size += header.key().length() + (header.value() == null ? 0 : header.value().length);
+            if(size > maxRequestSize) {
+                throw new RecordTooLargeException("The message is " + size + " bytes when serialized which is larger than " + maxRequestSize
+                        + ", which is the value of the " + ProducerConfig.MAX_REQUEST_SIZE_CONFIG + " configuration.");
+            }
+
+            int partition = partition(intercepted, keyBytes, valueBytes, partitions.length);
+            topicPartition = new TopicPartition(topic, partition);
+            long timestamp = intercepted.timestamp() == null ? System.currentTimeMillis() : intercepted.timestamp();
+            long offset = log.append(topicPartition, new TopicLog.Record(timestamp, keyBytes, valueBytes, headers, current));
+
+            RecordMetadata metadata = new RecordMetadata(topicPartition, offset, 0, timestamp,
+                    keyBytes == null ? -1 : keyBytes.length, valueBytes == null ? -1 : valueBytes.length);
+            interceptors.onAcknowledgement(metadata, null);
+            if(callback != null) callback.onCompletion(metadata, null);
+            return CompletableFuture.completedFuture(metadata);
+        }
+        catch (ApiException e) {
+            // like the real producer: broker side errors are reported through the callback and the future
+            interceptors.onSendError(intercepted, topicPartition, e);
+            if(callback != null) callback.onCompletion(null, e);
+            CompletableFuture<RecordMetadata> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        catch (KafkaException e) {
+            interceptors.onSendError(intercepted, topicPartition, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void flush() { ensureOpen(); }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+        ensureOpen();
+        log.partitionsOf(topic);
+        return log.partitionInfos(topic);
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() { return Collections.emptyMap(); }
+
+    @Override
+    public void close() { close(Duration.ofMillis(Long.MAX_VALUE)); }
+
+    @Override
+    public synchronized void close(Duration timeout) {
+        if(closed) return;
+        closed = true;
+        if(transaction != null && ! fenced) log.complete(transaction, false);
+        transaction = null;
+        Utils.closeQuietly(interceptors, "producer interceptors");
+        Utils.closeQuietly(keySerializer, "producer keySerializer");
+        Utils.closeQuietly(valueSerializer, "producer valueSerializer");
+        Utils.closeQuietly(partitioner, "producer partitioner");
+    }
+
+    // another producer initialized the same transactional id: abort the open transaction, and fail from now on
+    synchronized void fence() {
+        fenced = true;
+        if(transaction != null) log.complete(transaction, false);
+        transaction = null;
+    }
+
+    private int partition(ProducerRecord<K, V> record, byte[] keyBytes, byte[] valueBytes, int partitions) {
+        Integer partition = record.partition();
+        if(partition != null) {
+            if(partition < 0 || partition >= partitions) {
+                throw new KafkaException("Invalid partition given with record: " + partition + " is not in the range [0..." + partitions + "].");
+            }
+            return partition;
+        }
+        if(partitioner != null) return partitioner.partition(record.topic(), record.key(), keyBytes, record.value(), valueBytes, log.cluster());
+        return keyBytes == null ? new Random().nextInt(partitions) : Utils.toPositive(Utils.murmur2(keyBytes)) % partitions;
+    }
+
+    private void ensureOpen() {
+        if(closed) throw new IllegalStateException("Cannot perform operation after producer has been closed");
+    }
+
+    private void ensureTransactional() {
+        ensureOpen();
+        if(fenced) throw new ProducerFencedException("There is a newer producer with the same transactionalId " + transactionalId);
+        if(! transactionsInitialized) throw new IllegalStateException("Cannot use transactional methods without invoking initTransactions first");
+    }
+
+    private void ensureInTransaction() {
+        ensureTransactional();
+        if(transaction == null) throw new IllegalStateException("No transaction in progress");
+    }
+}
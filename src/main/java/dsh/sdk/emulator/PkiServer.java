@@ -0,0 +1,202 @@
+package dsh.sdk.emulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dsh.sdk.internal.SslUtils;
+import dsh.sdk.internal.Threads;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the platform PKI service, speaking the protocol of {@link dsh.sdk.PkiProviderPikachu}:
+ * <ul>
+ *   <li>{@code GET /dn/{tenant}/{task}} -- the distinguished name the certificate request needs to have</li>
+ *   <li>{@code POST /sign/{tenant}/{task}} -- sign the certificate request with the CA of the emulator</li>
+ *   <li>{@code GET /kafka/config/{tenant}/{task}} -- the kafka configuration and stream contracts (needs the secret token)</li>
+ * </ul>
+ * The CA key pair is generated when the server is created; the signed certificates are valid for a day.
+ */
+final class PkiServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PkiServer.class);
+    private static final String SIGNATURE_ALGORITHM = "SHA256WithRSAEncryption";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final KeyPair caKey;
+    private final X509Certificate ca;
+    private final String tenant;
+    private final String token;
+    private final String kafkaConfig;
+    private final AtomicLong serial = new AtomicLong(System.currentTimeMillis());
+    private final AtomicInteger signed = new AtomicInteger();
+
+    PkiServer(String tenant, String token, String kafkaConfig) throws IOException {
+        Security.addProvider(new BouncyCastleProvider());
+        this.tenant = tenant;
+        this.token = token;
+        this.kafkaConfig = kafkaConfig;
+
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", BouncyCastleProvider.PROVIDER_NAME);
+            keyGen.initialize(2048, new SecureRandom());
+            this.caKey = keyGen.generateKeyPair();
+
+            X500Name name = new X500Name("CN=dsh-emulator-ca,O=dsh");
+            long now = System.currentTimeMillis();
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(serial.getAndIncrement()),
+                    new Date(now - TimeUnit.HOURS.toMillis(1)), new Date(now + TimeUnit.DAYS.toMillis(365)), name, caKey.getPublic());
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+            this.ca = certificate(builder);
+        }
+        catch (Exception e) {
+            throw new IOException("unable to create the emulator CA", e);
+        }
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Threads.ioExecutor("dsh-emulator-pki", Executors::newSingleThreadExecutor);
+        this.server.setExecutor(executor);
+        this.server.createContext("/dn/", this::handleDn);
+        this.server.createContext("/sign/", this::handleSign);
+        this.server.createContext("/kafka/config/", this::handleKafkaConfig);
+        this.server.start();
+    }
+
+    // the distinguished name of the certificates of the tenant
+    String dn() { return "CN=container." + tenant + ",OU=" + tenant + ",O=dsh"; }
+
+    String url() { return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort(); }
+
+    X509Certificate ca() { return ca; }
+
+    int signed() { return signed.get(); }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void handleDn(HttpExchange http) throws IOException {
+        try {
+            if(! forTenant(http, "/dn/")) respond(http, 404, null);
+            else respond(http, 200, dn());
+        }
+        finally { http.close(); }
+    }
+
+    private void handleKafkaConfig(HttpExchange http) throws IOException {
+        try {
+            if(! forTenant(http, "/kafka/config/")) respond(http, 404, null);
+            else if(! token.equals(http.getRequestHeaders().getFirst("X-Kafka-Config-Token"))) respond(http, 403, null);
+            else respond(http, 200, kafkaConfig);
+        }
+        finally { http.close(); }
+    }
+
+    private void handleSign(HttpExchange http) throws IOException {
+        try {
+            if(! forTenant(http, "/sign/")) {
+                respond(http, 404, null);
+                return;
+            }
+
+            Object parsed;
+            try(PEMParser parser = new PEMParser(new InputStreamReader(http.getRequestBody(), StandardCharsets.UTF_8))) { parsed = parser.readObject(); }
+            if(! (parsed instanceof PKCS10CertificationRequest)) {
+                respond(http, 400, null);
+                return;
+            }
+
+            PKCS10CertificationRequest csr = (PKCS10CertificationRequest) parsed;
+            if(! csr.isSignatureValid(new JcaContentVerifierProviderBuilder().setProvider(BouncyCastleProvider.PROVIDER_NAME).build(csr.getSubjectPublicKeyInfo()))
+                    || ! csr.getSubject().equals(new X500Name(dn()))) {
+                logger.warn("refusing to sign certificate request for {}", csr.getSubject());
+                respond(http, 403, null);
+                return;
+            }
+
+            String certificate = SslUtils.stringFromPEM(sign(csr));
+            signed.incrementAndGet();
+            respond(http, 200, certificate);
+        }
+        catch (Exception e) {
+            logger.error("error signing certificate request - {}", e.getMessage(), e);
+            respond(http, 500, null);
+        }
+        finally { http.close(); }
+    }
+
+    // a certificate for the key of the request, with the extensions (subject alternative names) it asks for
+    private X509Certificate sign(PKCS10CertificationRequest csr) throws Exception {
+        long now = System.currentTimeMillis();
+        X509v3CertificateBuilder builder = new X509v3CertificateBuilder(X500Name.getInstance(ca.getSubjectX500Principal().getEncoded()),
+                BigInteger.valueOf(serial.getAndIncrement()), new Date(now - TimeUnit.HOURS.toMillis(1)), new Date(now + TimeUnit.DAYS.toMillis(1)),
+                csr.getSubject(), csr.getSubjectPublicKeyInfo());
+        for(Attribute attribute: csr.getAttributes(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest)) {
+            Extensions extensions = Extensions.getInstance(attribute.getAttrValues().getObjectAt(0));
+            for(ASN1ObjectIdentifier oid: extensions.getExtensionOIDs()) builder.addExtension(extensions.getExtension(oid));
+        }
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+        return certificate(builder);
+    }
+
+    private X509Certificate certificate(X509v3CertificateBuilder builder) throws Exception {
+        ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).setProvider(BouncyCastleProvider.PROVIDER_NAME).build(caKey.getPrivate());
+        return new JcaX509CertificateConverter().setProvider(BouncyCastleProvider.PROVIDER_NAME).getCertificate(builder.build(signer));
+    }
+
+    // the path is {prefix}{tenant}/{task}
+    private boolean forTenant(HttpExchange http, String prefix) {
+        String[] parts = http.getRequestURI().getPath().substring(prefix.length()).split("/");
+        return parts.length == 2 && parts[0].equals(tenant) && ! parts[1].isEmpty();
+    }
+
+    private static void respond(HttpExchange http, int status, String body) throws IOException {
+        if(body == null) {
+            http.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        http.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        http.sendResponseHeaders(status, bytes.length);
+        try(OutputStream os = http.getResponseBody()) { os.write(bytes); }
+    }
+}
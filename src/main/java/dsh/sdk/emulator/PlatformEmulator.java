@@ -0,0 +1,233 @@
+package dsh.sdk.emulator;
+
+import dsh.messages.DataStream;
+import dsh.sdk.Sdk;
+import dsh.sdk.internal.AppId;
+import dsh.sdk.internal.SslUtils;
+import dsh.sdk.kafka.KafkaConfig;
+import dsh.sdk.kafka.KafkaConfigParser;
+import dsh.sdk.streams.StreamsConfig;
+import dsh.sdk.streams.StreamsConfigParser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-process emulation of the platform services an application needs, to run benchmarks and integration tests without a PKI service
+ * or a Kafka cluster (e.g. in CI):
+ * <ul>
+ *   <li>a local PKI service that signs the certificate requests of the SDK with a generated CA,
+ *       and serves the kafka configuration with the stream contracts of the configured streams</li>
+ *   <li>an in-memory {@link TopicLog} with the topics of those streams, and {@link EmulatedClientFactory emulated clients} on top of it</li>
+ * </ul>
+ * The SDK goes through the full handshake with the PKI service, exactly like on the platform -- either in-process from the
+ * {@link #environment() environment} of the emulator, or in a child process that gets that environment.
+ *
+ * <pre>{@code
+ *   try(PlatformEmulator emulator = new PlatformEmulator.Builder()
+ *           .setAppId("/tenant/benchmark")
+ *           .addStream(DataStream.of("stream.weather"), 12, 1)
+ *           .build()) {
+ *       Sdk sdk = new Sdk.Builder().fromEnv(emulator.environment()).build();
+ *       EmulatedClientFactory clients = emulator.clientFactory(sdk);
+ *       ...
+ *   }
+ * }</pre>
+ *
+ * The kafka configuration points to a non-existing bootstrap server: clients created by the regular
+ * {@link dsh.sdk.kafka.KafkaClientFactory} will not connect, use the {@link EmulatedClientFactory} instead.
+ */
+public class PlatformEmulator implements Closeable {
+    /** The bootstrap servers in the served kafka configuration. */
+    public static final String BOOTSTRAP_SERVERS = "dsh-emulator:9091";
+
+    /**
+     * Builder class to configure the emulator
+     */
+    public static class Builder {
+        private String appId = "/emulator/app";
+        private String taskId;
+        private String token;
+        private int defaultPartitions = 1;
+        private final Map<DataStream, int[]> streams = new LinkedHashMap<>();
+
+        /**
+         * @param appId the application id, as in {@code MARATHON_APP_ID} -- the first group is the tenant (default {@code /emulator/app})
+         * @return emulator Builder
+         */
+        public Builder setAppId(String appId) { this.appId = appId; return this; }
+
+        /**
+         * @param taskId the task id, as in {@code MESOS_TASK_ID} (default: derived from the application id)
+         * @return emulator Builder
+         */
+        public Builder setTaskId(String taskId) { this.taskId = taskId; return this; }
+
+        /**
+         * @param token the secret token the SDK needs to present to fetch the kafka configuration (default: random)
+         * @return emulator Builder
+         */
+        public Builder setToken(String token) { this.token = token; return this; }
+
+        /**
+         * @param partitions the number of partitions of topics that get created by producing to them (default 1)
+         * @return emulator Builder
+         */
+        public Builder setDefaultPartitions(int partitions) { this.defaultPartitions = partitions; return this; }
+
+        /**
+         * Add a stream with the default partitioner: the topic of the tenant gets created with the given number of partitions.
+         *
+         * @param stream the stream
+         * @param partitions the number of partitions
+         * @return emulator Builder
+         */
+        public Builder addStream(DataStream stream, int partitions) { return addStream(stream, partitions, 0); }
+
+        /**
+         * Add a stream with the topic level partitioner: the topic of the tenant gets created with the given number of partitions.
+         *
+         * @param stream the stream
+         * @param partitions the number of partitions
+         * @param partitioningDepth the number of topic levels of the key the partitioner hashes, 0 for the default partitioner
+         * @return emulator Builder
+         */
+        public Builder addStream(DataStream stream, int partitions, int partitioningDepth) {
+            streams.put(Objects.requireNonNull(stream), new int[] { partitions, partitioningDepth });
+            return this;
+        }
+
+        /**
+         * Generate the CA, start the PKI service and create the topics.
+         *
+         * @return a running emulator, to be closed after use
+         * @exception IllegalArgumentException on an invalid configuration, or when the PKI service can not be started
+         */
+        public PlatformEmulator build() {
+            AppId app = AppId.from(appId);
+            if(defaultPartitions < 1) throw new IllegalArgumentException("a topic needs at least one partition");
+            for(int[] stream: streams.values()) {
+                if(stream[0] < 1) throw new IllegalArgumentException("a stream needs at least one partition");
+                if(stream[1] < 0) throw new IllegalArgumentException("the partitioning depth can not be negative");
+            }
+            try {
+                return new PlatformEmulator(this, app);
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException("Unable to start the platform emulator", e);
+            }
+        }
+    }
+
+    private final String appId;
+    private final AppId app;
+    private final String taskId;
+    private final String token;
+    private final Properties kafkaConfig;
+    private final TopicLog log;
+    private final PkiServer pki;
+
+    private PlatformEmulator(Builder builder, AppId app) throws IOException {
+        this.appId = builder.appId;
+        this.app = app;
+        String chain = appId.replaceAll("^/", "").replace('/', '_');
+        this.taskId = builder.taskId != null ? builder.taskId : chain + "." + UUID.randomUUID();
+        this.token = builder.token != null ? builder.token : SslUtils.generatePassword(32);
+
+        this.kafkaConfig = new Properties();
+        kafkaConfig.setProperty("bootstrap.servers", BOOTSTRAP_SERVERS);
+        kafkaConfig.setProperty("security.protocol", "SSL");
+        kafkaConfig.setProperty(KafkaConfig.CONSUMERGROUP_SHARED_CONFIG, IntStream.rangeClosed(1, 3).mapToObj(n -> chain + "_" + n).collect(Collectors.joining(",")));
+        kafkaConfig.setProperty(KafkaConfig.CONSUMERGROUP_PRIVATE_CONFIG, IntStream.rangeClosed(1, 3).mapToObj(n -> taskId + "_" + n).collect(Collectors.joining(",")));
+
+        this.log = new TopicLog(builder.defaultPartitions);
+        builder.streams.forEach((stream, config) -> {
+            String topic = stream.asTopic(app.root());
+            String read = stream.type() == DataStream.StreamType.INTERNAL ? topic.replace(".", "\\.") : stream.fullName().replace(".", "\\.") + "\\.[^.]*";
+            kafkaConfig.setProperty(StreamsConfig.keyFor(stream, StreamsConfig.ConfigType.PARTITIONER), StreamsConfig.valueFor(
+                    config[1] > 0 ? StreamsConfig.PartitionerType.TOPIC_LEVEL : StreamsConfig.PartitionerType.DEFAULT));
+            kafkaConfig.setProperty(StreamsConfig.keyFor(stream, StreamsConfig.ConfigType.PARTITIONINGDEPTH), Integer.toString(config[1]));
+            kafkaConfig.setProperty(StreamsConfig.keyFor(stream, StreamsConfig.ConfigType.READ), read);
+            kafkaConfig.setProperty(StreamsConfig.keyFor(stream, StreamsConfig.ConfigType.WRITE), topic);
+            kafkaConfig.setProperty("datastream." + stream.fullName() + ".partitions", Integer.toString(config[0]));
+            log.createTopic(topic, config[0]);
+        });
+
+        StringWriter props = new StringWriter();
+        kafkaConfig.store(props, "DSH platform emulator");
+        this.pki = new PkiServer(app.root(), token, props.toString());
+    }
+
+    /**
+     * The environment variables the platform gives to a container, pointing to this emulator.
+     * Use them with {@link Sdk.Builder#fromEnv(Map)}, or pass them to a child process that initializes the SDK with {@link Sdk.Builder#fromEnv()}.
+     *
+     * @return the environment variables (name to value)
+     */
+    public Map<String, String> environment() {
+        Map<String, String> env = new LinkedHashMap<>();
+        try {
+            env.put("DSH_SECRET_TOKEN", token);
+            env.put("DSH_CA_CERTIFICATE", SslUtils.stringFromPEM(pki.ca()));
+            env.put("DSH_KAFKA_CONFIG_ENDPOINT", pki.url());
+            env.put("MESOS_TASK_ID", taskId);
+            env.put("MARATHON_APP_ID", appId);
+            env.put("DSH_CONTAINER_DNS_NAME", app.name() + "." + app.root() + ".emulator.local");
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("unable to encode the emulator CA", e);
+        }
+        return Collections.unmodifiableMap(env);
+    }
+
+    /**
+     * @return an SDK builder initialized from the {@link #environment() environment} of this emulator
+     */
+    public Sdk.Builder sdkBuilder() { return new Sdk.Builder().fromEnv(environment()); }
+
+    /**
+     * Create the clients for the in-memory topic log, with the configuration of the given SDK
+     * (which handshakes with the PKI service of this emulator when it did not do so yet), with dynamic group membership.
+     *
+     * @param sdk the SDK, initialized from this emulator
+     * @return factory for emulated clients
+     */
+    public EmulatedClientFactory clientFactory(Sdk sdk) {
+        return EmulatedClientFactory.of(log, StreamsConfigParser.of(sdk), KafkaConfigParser.of(sdk));
+    }
+
+    /**
+     * @return the in-memory topic log
+     */
+    public TopicLog log() { return log; }
+
+    /**
+     * @return the kafka configuration (and stream contracts) served by the PKI service
+     */
+    public Properties kafkaConfig() {
+        Properties props = new Properties();
+        props.putAll(kafkaConfig);
+        return props;
+    }
+
+    /**
+     * @return the generated CA, that signs the certificates of the SDK
+     */
+    public X509Certificate caCertificate() { return pki.ca(); }
+
+    /**
+     * @return the number of certificates the PKI service signed
+     */
+    public int signedCertificates() { return pki.signed(); }
+
+    /**
+     * Stop the PKI service.  The topic log stays readable.
+     */
+    @Override
+    public void close() { pki.close(); }
+}
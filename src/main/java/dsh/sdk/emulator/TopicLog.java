@@ -0,0 +1,364 @@
+package dsh.sdk.emulator;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TopicExistsException;
+import org.apache.kafka.common.header.Header;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory Kafka cluster of the {@link PlatformEmulator}: the topic partitions, the consumer groups and their committed offsets.
+ *
+ * Every partition is an append-only list of serialized records; the offset of a record is its index in that list.
+ * There is no retention and no compaction, so the log keeps everything that was ever produced -- size the benchmarks accordingly.
+ * Records of a transaction are appended when they are sent and stay invisible to {@code read_committed} consumers
+ * until the transaction commits; aborted records are skipped by those consumers.
+ *
+ * The consumer groups hand out the partitions of the subscribed topics round-robin over their members,
+ * and rebalance whenever a member joins or leaves, or a topic gets created.
+ * All functions are thread safe: the producers append under a lock per partition, so producing to different partitions does not contend.
+ *
+ * The clients on top of this log are the {@link EmulatedProducer} and {@link EmulatedConsumer}.
+ */
+public class TopicLog {
+    private static final Node BROKER = new Node(0, "localhost", 9092);
+
+    private final int defaultPartitions;
+    private final Map<String, Partition[]> topics = new HashMap<>();
+    private final Map<String, Group> groups = new HashMap<>();
+    private final Map<String, EmulatedProducer<?, ?>> transactionalProducers = new HashMap<>();
+    private volatile Cluster cluster = cluster(Collections.emptyMap());
+
+    // consumers waiting for new records: every change bumps the version, and only wakes them up when someone is waiting
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Object signal = new Object();
+
+    /**
+     * @param defaultPartitions the number of partitions of the topics that get created automatically when producing to them
+     */
+    public TopicLog(int defaultPartitions) {
+        if(defaultPartitions < 1) throw new IllegalArgumentException("a topic needs at least one partition");
+        this.defaultPartitions = defaultPartitions;
+    }
+
+    /**
+     * Create a topic.
+     *
+     * @param topic the topic name
+     * @param partitions the number of partitions
+     * @exception TopicExistsException when the topic already exists
+     */
+    public void createTopic(String topic, int partitions) {
+        if(partitions < 1) throw new IllegalArgumentException("a topic needs at least one partition");
+        synchronized (this) {
+            if(topics.containsKey(topic)) throw new TopicExistsException("Topic '" + topic + "' already exists.");
+            addTopic(topic, partitions);
+        }
+        changed();
+    }
+
+    /**
+     * @return the names of all topics
+     */
+    public synchronized Set<String> topics() { return new TreeSet<>(topics.keySet()); }
+
+    /**
+     * @return the cluster metadata, as the partitioners see it
+     */
+    public Cluster cluster() { return cluster; }
+
+    /**
+     * The offset the next record of the partition will get.
+     *
+     * @param partition the topic partition
+     * @return the end offset, 0 for unknown partitions
+     */
+    public long endOffset(TopicPartition partition) {
+        Partition p = partition(partition);
+        return p == null ? 0 : p.end();
+    }
+
+    /**
+     * The number of records in all partitions of a topic.
+     *
+     * @param topic the topic name
+     * @return the number of records, 0 for unknown topics
+     */
+    public long size(String topic) {
+        Partition[] partitions;
+        synchronized (this) { partitions = topics.get(topic); }
+        return partitions == null ? 0 : Arrays.stream(partitions).mapToLong(Partition::end).sum();
+    }
+
+    /**
+     * The offset committed by a consumer group.
+     *
+     * @param groupId the consumer group
+     * @param partition the topic partition
+     * @return the committed offset, or {@code null} when the group did not commit one for the partition
+     */
+    public synchronized OffsetAndMetadata committed(String groupId, TopicPartition partition) {
+        Group group = groups.get(groupId);
+        return group == null ? null : group.committed.get(partition);
+    }
+
+    // -- producer side
+
+    // the partitions of a topic -- the topic gets created when it does not exist yet
+    Partition[] partitionsOf(String topic) {
+        Partition[] partitions;
+        synchronized (this) {
+            partitions = topics.get(topic);
+            if(partitions != null) return partitions;
+            partitions = addTopic(topic, defaultPartitions);
+        }
+        changed();
+        return partitions;
+    }
+
+    long append(TopicPartition partition, Record record) {
+        long offset = partitionsOf(partition.topic())[partition.partition()].append(record);
+        changed();
+        return offset;
+    }
+
+    // register the producer of a transactional id -- the previous producer with the same id gets fenced
+    void initTransactions(String transactionalId, EmulatedProducer<?, ?> producer) {
+        EmulatedProducer<?, ?> previous;
+        synchronized (this) { previous = transactionalProducers.put(transactionalId, producer); }
+        if(previous != null && previous != producer) previous.fence();
+    }
+
+    // make the records of the transaction visible (or drop them) and commit its offsets
+    void complete(Transaction transaction, boolean commit) {
+        synchronized (this) {
+            if(commit) transaction.offsets.forEach((groupId, offsets) -> group(groupId).committed.putAll(offsets));
+            transaction.state = commit ? Transaction.COMMITTED : Transaction.ABORTED;
+            for(Partition partition: transaction.partitions) partition.completed(transaction);
+        }
+        changed();
+    }
+
+    // -- consumer side
+
+    Partition partition(TopicPartition partition) {
+        Partition[] partitions;
+        synchronized (this) { partitions = topics.get(partition.topic()); }
+        return partitions == null || partition.partition() >= partitions.length ? null : partitions[partition.partition()];
+    }
+
+    synchronized List<PartitionInfo> partitionInfos(String topic) {
+        Partition[] partitions = topics.get(topic);
+        return partitions == null ? Collections.emptyList() : cluster.partitionsForTopic(topic);
+    }
+
+    synchronized int generation(String groupId) { return group(groupId).generation; }
+
+    synchronized void join(String groupId, Member member) {
+        Group group = group(groupId);
+        if(! group.members.contains(member)) group.members.add(member);
+        group.generation++;
+        changed();
+    }
+
+    synchronized void leave(String groupId, Member member) {
+        Group group = group(groupId);
+        if(group.members.remove(member)) {
+            group.generation++;
+            changed();
+        }
+    }
+
+    synchronized void rebalance(String groupId) {
+        group(groupId).generation++;
+        changed();
+    }
+
+    // the partitions of a member in the current generation: every partition goes round-robin to the members subscribed to its topic
+    synchronized Assignment assignment(String groupId, Member member) {
+        Group group = group(groupId);
+        Set<TopicPartition> assigned = new HashSet<>();
+        int next = 0;
+        for(String topic: new TreeSet<>(topics.keySet())) {
+            List<Member> subscribed = group.members.stream().filter(m -> m.subscribes(topic)).collect(Collectors.toList());
+            if(subscribed.isEmpty()) continue;
+            for(int partition = 0; partition < topics.get(topic).length; partition++) {
+                if(subscribed.get(next++ % subscribed.size()) == member) assigned.add(new TopicPartition(topic, partition));
+            }
+        }
+        return new Assignment(group.generation, assigned);
+    }
+
+    synchronized void commit(String groupId, Map<TopicPartition, OffsetAndMetadata> offsets) {
+        group(groupId).committed.putAll(offsets);
+    }
+
+    synchronized Map<TopicPartition, OffsetAndMetadata> committed(String groupId, Set<TopicPartition> partitions) {
+        Group group = group(groupId);
+        Map<TopicPartition, OffsetAndMetadata> committed = new HashMap<>();
+        for(TopicPartition partition: partitions) committed.put(partition, group.committed.get(partition));
+        return committed;
+    }
+
+    synchronized Set<String> topicsMatching(Predicate<String> subscription) {
+        return topics.keySet().stream().filter(subscription).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    long version() { return version.get(); }
+
+    // wait until the log changed since the given version, or the timeout expired
+    void await(long seen, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        waiting.incrementAndGet();
+        try {
+            synchronized (signal) {
+                long remaining = timeoutNanos;
+                while(version.get() == seen && remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(signal, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+            }
+        }
+        finally { waiting.decrementAndGet(); }
+    }
+
+    // wake up all waiting consumers
+    void changed() {
+        version.incrementAndGet();
+        if(waiting.get() > 0) {
+            synchronized (signal) { signal.notifyAll(); }
+        }
+    }
+
+    private Partition[] addTopic(String topic, int count) {
+        Partition[] partitions = IntStream.range(0, count).mapToObj(n -> new Partition(new TopicPartition(topic, n))).toArray(Partition[]::new);
+        topics.put(topic, partitions);
+        Map<String, Integer> layout = new HashMap<>();
+        topics.forEach((name, p) -> layout.put(name, p.length));
+        cluster = cluster(layout);
+        groups.values().forEach(group -> group.generation++);
+        return partitions;
+    }
+
+    private Group group(String groupId) { return groups.computeIfAbsent(groupId, id -> new Group()); }
+
+    private static Cluster cluster(Map<String, Integer> topics) {
+        List<PartitionInfo> partitions = topics.entrySet().stream()
+                .flatMap(t -> IntStream.range(0, t.getValue()).mapToObj(n -> new PartitionInfo(t.getKey(), n, BROKER, new Node[] { BROKER }, new Node[] { BROKER })))
+                .collect(Collectors.toList());
+        return new Cluster("dsh-emulator", Collections.singletonList(BROKER), partitions, Collections.emptySet(), Collections.emptySet());
+    }
+
+    // a serialized record, as stored in a partition -- the offset is set when it gets appended
+    static final class Record {
+        long offset;
+        final long timestamp;
+        final byte[] key;
+        final byte[] value;
+        final Header[] headers;
+        final Transaction transaction;
+
+        Record(long timestamp, byte[] key, byte[] value, Header[] headers, Transaction transaction) {
+            this.timestamp = timestamp;
+            this.key = key;
+            this.value = value;
+            this.headers = headers;
+            this.transaction = transaction;
+        }
+    }
+
+    // a transaction of a producer: its partitions and the offsets to commit with it
+    static final class Transaction {
+        static final int OPEN = 0, COMMITTED = 1, ABORTED = 2;
+
+        volatile int state = OPEN;
+        final Set<Partition> partitions = ConcurrentHashMap.newKeySet();
+        final Map<String, Map<TopicPartition, OffsetAndMetadata>> offsets = new HashMap<>();
+    }
+
+    static final class Partition {
+        final TopicPartition topicPartition;
+        private final List<Record> records = new ArrayList<>();
+        // the first offset of every open transaction, in offset order
+        private final Map<Transaction, Long> open = new LinkedHashMap<>();
+
+        Partition(TopicPartition topicPartition) { this.topicPartition = topicPartition; }
+
+        synchronized long append(Record record) {
+            if(record.transaction != null) {
+                record.transaction.partitions.add(this);
+                open.putIfAbsent(record.transaction, (long) records.size());
+            }
+            record.offset = records.size();
+            records.add(record);
+            return records.size() - 1;
+        }
+
+        synchronized long end() { return records.size(); }
+
+        // the end offset for read_committed consumers: the first record of a transaction that is still open
+        synchronized long stableEnd() {
+            return open.isEmpty() ? records.size() : open.values().iterator().next();
+        }
+
+        synchronized void completed(Transaction transaction) { open.remove(transaction); }
+
+        // read up to max records from the given offset into the list, and return the offset to continue from
+        synchronized long read(long from, int max, boolean readCommitted, List<Record> into) {
+            long offset = from;
+            while(offset < records.size() && into.size() < max) {
+                Record record = records.get((int) offset);
+                if(readCommitted && record.transaction != null) {
+                    if(record.transaction.state == Transaction.OPEN) break;
+                    if(record.transaction.state == Transaction.ABORTED) { offset++; continue; }
+                }
+                into.add(record);
+                offset++;
+            }
+            return offset;
+        }
+
+        // the first offset with a timestamp at or after the given one, or -1
+        synchronized long offsetForTime(long timestamp) {
+            for(int offset = 0; offset < records.size(); offset++) {
+                if(records.get(offset).timestamp >= timestamp) return offset;
+            }
+            return -1;
+        }
+
+        synchronized long timestampAt(long offset) { return records.get((int) offset).timestamp; }
+    }
+
+    // a member of a consumer group
+    interface Member {
+        boolean subscribes(String topic);
+    }
+
+    static final class Assignment {
+        final int generation;
+        final Set<TopicPartition> partitions;
+
+        Assignment(int generation, Set<TopicPartition> partitions) {
+            this.generation = generation;
+            this.partitions = partitions;
+        }
+    }
+
+    private static final class Group {
+        final List<Member> members = new ArrayList<>();
+        final Map<TopicPartition, OffsetAndMetadata> committed = new HashMap<>();
+        int generation;
+    }
+}
@@ -0,0 +1,77 @@
+package dsh.sdk.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * General purpose thread creation functions used throughout the SDK.
+ *
+ * This is the Java 8 baseline implementation, which only knows about platform threads.
+ * The multi-release JAR contains a Java 21 version of this class (under {@code META-INF/versions/21})
+ * that hands out virtual threads instead, when enabled through the {@value #VIRTUAL_THREADS_CONFIG} system property.
+ */
+public class Threads {
+    /**
+     * System property to enable the virtual-thread execution mode (only effective on Java 21 and up)
+     */
+    public static final String VIRTUAL_THREADS_CONFIG = "dsh.sdk.threads.virtual";
+
+    private Threads() { throw new AssertionError(); }
+
+    /**
+     * Whether the running JVM (and this version of the class) supports virtual threads.
+     *
+     * @return {@code false} on the Java 8 baseline
+     */
+    public static boolean virtualThreadsSupported() { return false; }
+
+    /**
+     * Whether the SDK creates virtual threads for its I/O bound work.
+     *
+     * @return {@code true} when virtual threads are supported and enabled through {@value #VIRTUAL_THREADS_CONFIG}
+     */
+    public static boolean useVirtualThreads() { return virtualThreadsSupported() && Boolean.getBoolean(VIRTUAL_THREADS_CONFIG); }
+
+    /**
+     * Thread factory creating named platform threads.
+     *
+     * @param prefix  name prefix, the threads are numbered from 0
+     * @param daemon  whether the created threads are daemon threads
+     * @return thread factory
+     */
+    public static ThreadFactory platformThreadFactory(String prefix, boolean daemon) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + count.getAndIncrement());
+            t.setDaemon(daemon);
+            return t;
+        };
+    }
+
+    /**
+     * Thread factory for I/O bound work.
+     * Creates virtual threads when the virtual-thread execution mode is active, platform threads otherwise.
+     *
+     * @param prefix  name prefix, the threads are numbered from 0
+     * @param daemon  whether the created platform threads are daemon threads (virtual threads always are)
+     * @return thread factory
+     */
+    public static ThreadFactory ioThreadFactory(String prefix, boolean daemon) {
+        return platformThreadFactory(prefix, daemon);
+    }
+
+    /**
+     * Executor for I/O bound tasks.
+     * Starts a new virtual thread per task when the virtual-thread execution mode is active,
+     * otherwise the given platform executor is created and returned.
+     *
+     * @param prefix    name prefix for the threads created
+     * @param platform  the executor to use in platform-thread mode
+     * @return executor service
+     */
+    public static ExecutorService ioExecutor(String prefix, Supplier<ExecutorService> platform) {
+        return platform.get();
+    }
+}
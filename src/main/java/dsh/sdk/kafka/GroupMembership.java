@@ -0,0 +1,164 @@
+package dsh.sdk.kafka;
+
+import dsh.sdk.Sdk;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.CooperativeStickyAssignor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consumer group membership settings, applied by the {@link KafkaClientFactory} to every consumer it puts in a consumer group.
+ *
+ * By default ({@link #DYNAMIC}) the Kafka defaults are used: every consumer joining or leaving triggers an <i>eager</i> rebalance,
+ * where all members of the group stop consuming and give up all their partitions before the new assignment is handed out.
+ *
+ * Two things make rebalances on redeploys and restarts a lot cheaper:
+ * <ul>
+ *   <li><b>static membership</b> -- every consumer gets a {@code group.instance.id}.  A consumer that leaves and comes back
+ *       with the same id within the session timeout gets its old partitions back, without any rebalance.</li>
+ *   <li><b>cooperative rebalancing</b> -- with the {@link CooperativeStickyAssignor} the members keep consuming during a rebalance,
+ *       and only the partitions that actually move to another member are revoked.</li>
+ * </ul>
+ *
+ * Static membership only pays off with an instance id that is the same again after a restart or redeploy
+ * (e.g. a fixed instance number per container): a static member does not leave the group when it is closed, so a
+ * new id joining next to the old one leaves the partitions of the old id unconsumed until its session times out.
+ * The platform gives no such identity -- the task id changes with every task -- so {@link #of(Sdk)} only enables
+ * cooperative rebalancing, and static membership needs an explicit id through {@link Builder#setInstanceId(String)}.
+ * When multiple consumers of the same group are created, the second one gets {@code -1} appended to the instance id,
+ * the third one {@code -2}, ... -- so the ids stay unique within the application and are the same again after a restart.
+ *
+ * <pre>{@code
+ *   KafkaClientFactory factory = KafkaClientFactory.of(streamsParser, kafkaParser, GroupMembership.of(sdk));
+ *
+ *   GroupMembership stable = new GroupMembership.Builder().setInstanceId("meters-" + instanceNumber).setCooperative(true).build();
+ * }</pre>
+ */
+public class GroupMembership {
+    private static final Logger logger = LoggerFactory.getLogger(GroupMembership.class);
+
+    /**
+     * Dynamic membership with the eager rebalance protocol -- the Kafka defaults.
+     */
+    public static final GroupMembership DYNAMIC = new Builder().build();
+
+    /**
+     * Dynamic membership with cooperative rebalancing, for the consumers of the application of the SDK.
+     * No instance id is derived from the task id, as it changes with every task (see the class documentation).
+     *
+     * @param sdk the SDK the application is initialized with
+     * @return group membership settings
+     */
+    public static GroupMembership of(Sdk sdk) {
+        logger.debug("cooperative group membership for {}", sdk.getApp());
+        return new Builder().setCooperative(true).build();
+    }
+
+    /**
+     * Builder class to configure the group membership
+     */
+    public static class Builder {
+        private String instanceId;
+        private boolean cooperative = false;
+        private Duration sessionTimeout;
+
+        /**
+         * Use static membership.
+         * @param instanceId base for the {@code group.instance.id} of the consumers (characters not allowed by Kafka get replaced) --
+         *                   needs to be stable over restarts and redeploys of the instance, so not derived from the task id
+         * @return Builder
+         */
+        public Builder setInstanceId(String instanceId) { this.instanceId = instanceId; return this; }
+
+        /**
+         * @param cooperative use the cooperative-sticky assignor instead of the default (eager) assignors
+         * @return Builder
+         */
+        public Builder setCooperative(boolean cooperative) { this.cooperative = cooperative; return this; }
+
+        /**
+         * @param sessionTimeout the time a (static) member can be gone before its partitions are reassigned --
+         *                       should cover the restart of an instance (defaults to 2 minutes with static membership)
+         * @return Builder
+         */
+        public Builder setSessionTimeout(Duration sessionTimeout) { this.sessionTimeout = sessionTimeout; return this; }
+
+        /**
+         * Validate the configuration and create the group membership settings.
+         * @return group membership settings
+         * @exception IllegalArgumentException on invalid configuration
+         */
+        public GroupMembership build() {
+            if(instanceId != null && instanceId.isEmpty()) throw new IllegalArgumentException("empty instance id");
+            if(sessionTimeout != null && sessionTimeout.isNegative()) throw new IllegalArgumentException("session timeout can not be negative");
+            return new GroupMembership(this);
+        }
+    }
+
+    private static final int MAX_INSTANCE_ID_LENGTH = 249;
+    private static final Duration DEFAULT_STATIC_SESSION_TIMEOUT = Duration.ofMinutes(2);
+
+    private final String instanceId;
+    private final boolean cooperative;
+    private final Duration sessionTimeout;
+    private final Map<String, AtomicInteger> members = new ConcurrentHashMap<>();
+
+    private GroupMembership(Builder builder) {
+        this.instanceId = builder.instanceId != null ? sanitize(builder.instanceId) : null;
+        this.cooperative = builder.cooperative;
+        this.sessionTimeout = builder.sessionTimeout != null ? builder.sessionTimeout : (instanceId != null ? DEFAULT_STATIC_SESSION_TIMEOUT : null);
+    }
+
+    // Kafka only accepts [a-zA-Z0-9._-] in a group instance id
+    private static String sanitize(String id) {
+        String safe = id.replaceAll("[^a-zA-Z0-9._-]", "_");
+        return safe.length() > MAX_INSTANCE_ID_LENGTH - 8 ? safe.substring(0, MAX_INSTANCE_ID_LENGTH - 8) : safe;
+    }
+
+    /**
+     * @return the base for the group instance ids, if static membership is used
+     */
+    public Optional<String> instanceId() { return Optional.ofNullable(instanceId); }
+
+    /**
+     * @return whether the cooperative rebalance protocol is used
+     */
+    public boolean isCooperative() { return cooperative; }
+
+    /**
+     * Add the membership configuration to the properties of a consumer.
+     * Settings already present in the properties (e.g. from overrides) are left untouched.
+     * Every call for the same consumer group hands out the next instance id.
+     *
+     * @param props consumer properties, containing the {@code group.id}
+     * @return new Properties containing the original ones added with the membership configuration
+     */
+    public Properties apply(Properties props) {
+        Properties allProps = new Properties();
+        allProps.putAll(props);
+
+        String groupId = allProps.getProperty(ConsumerConfig.GROUP_ID_CONFIG);
+        if(instanceId != null && groupId != null && ! allProps.containsKey(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG)) {
+            int member = members.computeIfAbsent(groupId, g -> new AtomicInteger()).getAndIncrement();
+            String id = member == 0 ? instanceId : instanceId + "-" + member;
+            logger.debug("static membership for group {} - instance id: {}", groupId, id);
+            allProps.setProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, id);
+        }
+        if(sessionTimeout != null) allProps.putIfAbsent(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, Long.toString(sessionTimeout.toMillis()));
+        if(cooperative) allProps.putIfAbsent(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, CooperativeStickyAssignor.class.getName());
+
+        return allProps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GroupMembership(instance-id: %s, cooperative: %s, session-timeout: %s)", instanceId, cooperative, sessionTimeout);
+    }
+}
@@ -1,18 +1,39 @@
 package dsh.sdk.kafka;
 
+import dsh.messages.DataStream;
 import dsh.messages.Envelope;
+import dsh.messages.PayloadCodec;
+import dsh.sdk.kafka.consumers.CatchUpReader;
+import dsh.sdk.kafka.consumers.KeyFilter;
+import dsh.sdk.kafka.consumers.ParallelDecodingConsumer;
+import dsh.sdk.kafka.consumers.ParallelStreamConsumer;
+import dsh.sdk.kafka.consumers.StreamRelay;
+import dsh.sdk.kafka.consumers.StreamSubscription;
 import dsh.sdk.kafka.partitioners.DynamicStreamPartitioner;
+import dsh.sdk.kafka.producers.BatchingProducer;
+import dsh.sdk.kafka.producers.ChunkingProducer;
+import dsh.sdk.kafka.producers.FanOutProducer;
 import dsh.sdk.kafka.serdes.DataEnvelopeDeserializer;
 import dsh.sdk.kafka.serdes.DataEnvelopeSerializer;
 import dsh.sdk.kafka.serdes.KeyEnvelopeDeserializer;
 import dsh.sdk.kafka.serdes.KeyEnvelopeSerializer;
+import dsh.sdk.metrics.ConsumerCountingInterceptor;
+import dsh.sdk.metrics.ProducerCountingInterceptor;
 import dsh.sdk.streams.StreamsConfigParser;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Factory class to craete Kafka clients that are automatically configured
@@ -24,19 +45,37 @@ import java.util.Properties;
  *
  * These clients can be used for the majority of use-cases where your application
  * wants to consume and/or produce data from/to a DSH stream.
+ *
+ * All clients count their records, bytes and errors per stream (see {@link dsh.sdk.metrics.StreamMetrics}):
+ * the counting interceptors are added to the interceptors configured in the overrides.
  */
 public class KafkaClientFactory {
     private final StreamsConfigParser streamsParser;
     private final KafkaConfigParser kafkaParser;
+    private final GroupMembership membership;
 
     private KafkaClientFactory() { throw new AssertionError(); }
-    private KafkaClientFactory(StreamsConfigParser streamsParser, KafkaConfigParser kafkaParser) {
+    private KafkaClientFactory(StreamsConfigParser streamsParser, KafkaConfigParser kafkaParser, GroupMembership membership) {
         this.streamsParser = streamsParser;
         this.kafkaParser = kafkaParser;
+        this.membership = membership;
     }
 
     public static KafkaClientFactory of(StreamsConfigParser streamsParser, KafkaConfigParser kafkaParser) {
-        return new KafkaClientFactory(streamsParser, kafkaParser);
+        return new KafkaClientFactory(streamsParser, kafkaParser, GroupMembership.DYNAMIC);
+    }
+
+    /**
+     * Create a factory that configures the consumer group membership of all consumers it creates
+     * (e.g. cooperative rebalancing, see {@link GroupMembership#of(dsh.sdk.Sdk)}, or static membership with a stable instance id).
+     *
+     * @param streamsParser the streams configuration
+     * @param kafkaParser the kafka configuration
+     * @param membership the consumer group membership settings
+     * @return the client factory
+     */
+    public static KafkaClientFactory of(StreamsConfigParser streamsParser, KafkaConfigParser kafkaParser, GroupMembership membership) {
+        return new KafkaClientFactory(streamsParser, kafkaParser, Objects.requireNonNull(membership));
     }
 
     /**
@@ -46,13 +85,85 @@ public class KafkaClientFactory {
      * @return fully configured kafka producer
      */
     public KafkaProducer<Envelope.KeyEnvelope, Envelope.DataEnvelope> createStreamProducer(Properties overrides) {
+        return new KafkaProducer<>(streamProducerProperties(overrides));
+    }
+
+    /**
+     * The configuration of a {@link #createStreamProducer(Properties) stream producer}:
+     * envelope serializers, stream partitioner and counting interceptor on top of the kafka configuration.
+     *
+     * @param overrides custom producer configuration
+     * @return the producer configuration
+     */
+    public Properties streamProducerProperties(Properties overrides) {
         Properties props = kafkaParser.kafkaProducerProperties(overrides);
         props.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, DynamicStreamPartitioner.class.getName());
         props.put(DynamicStreamPartitioner.CONFIG_KEY, streamsParser);
         props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, KeyEnvelopeSerializer.class.getName());
         props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, DataEnvelopeSerializer.class.getName());
 
-        return new KafkaProducer<>(props);
+        return counted(props, ProducerCountingInterceptor.class);
+    }
+
+    /**
+     * Create a kafka producer for raw (pre-serialized) envelopes.
+     * No stream partitioner is configured: the records need an explicit partition (see {@link FanOutProducer}).
+     *
+     * @param overrides custom producer configuration
+     * @return fully configured kafka producer, without envelope serialization
+     */
+    public KafkaProducer<byte[], byte[]> createRawStreamProducer(Properties overrides) {
+        return new KafkaProducer<>(rawStreamProducerProperties(overrides));
+    }
+
+    /**
+     * The configuration of a {@link #createRawStreamProducer(Properties) raw producer}.
+     *
+     * @param overrides custom producer configuration
+     * @return the producer configuration
+     */
+    public Properties rawStreamProducerProperties(Properties overrides) {
+        Properties props = kafkaParser.kafkaProducerProperties(overrides);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+
+        return counted(props, ProducerCountingInterceptor.class);
+    }
+
+    /**
+     * Create a producer that publishes envelopes to multiple streams, serializing them only once.
+     *
+     * @param overrides custom producer configuration
+     * @return producer publishing through a raw kafka producer
+     * @see FanOutProducer
+     */
+    public FanOutProducer createFanOutProducer(Properties overrides) {
+        return new FanOutProducer(createRawStreamProducer(overrides), streamsParser);
+    }
+
+    /**
+     * Create a builder for a producer that packs small envelopes into batched records.
+     *
+     * @param overrides custom producer configuration
+     * @return builder for the batching producer, publishing through a raw kafka producer
+     * @see BatchingProducer
+     */
+    public BatchingProducer.Builder createBatchingProducer(Properties overrides) {
+        return new BatchingProducer.Builder(createRawStreamProducer(overrides), streamsParser);
+    }
+
+    /**
+     * Create a producer that splits envelopes larger than a single record into chunks.
+     * The chunk size follows the {@code max.request.size} of the producer configuration.
+     *
+     * @param overrides custom producer configuration
+     * @return producer publishing through a raw kafka producer
+     * @see ChunkingProducer
+     */
+    public ChunkingProducer createChunkingProducer(Properties overrides) {
+        Properties props = kafkaParser.kafkaProducerProperties(overrides);
+        int maxRecordBytes = Integer.parseInt(props.getOrDefault(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, 1024 * 1024).toString());
+        return new ChunkingProducer(createRawStreamProducer(overrides), streamsParser, maxRecordBytes);
     }
 
     /**
@@ -62,12 +173,7 @@ public class KafkaClientFactory {
      * @return fully configured kafka consumer
      */
     public KafkaConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> createSharedStreamConsumer(Properties overrides) {
-        Properties props = kafkaParser.kafkaConsumerProperties(overrides);
-        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, KeyEnvelopeDeserializer.class.getName());
-        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, DataEnvelopeDeserializer.class.getName());
-        props.putIfAbsent(ConsumerConfig.GROUP_ID_CONFIG, kafkaParser.suggestedConsumerGroup(KafkaConfigParser.ConsumerGroupType.SHARED));
-
-        return new KafkaConsumer<>(props);
+        return new KafkaConsumer<>(withMembership(streamConsumerProperties(overrides, KafkaConfigParser.ConsumerGroupType.SHARED)));
     }
 
     /**
@@ -77,11 +183,209 @@ public class KafkaClientFactory {
      * @return fully configured kafka consumer
      */
     public KafkaConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> createLocalStreamConsumer(Properties overrides) {
+        return new KafkaConsumer<>(withMembership(streamConsumerProperties(overrides, KafkaConfigParser.ConsumerGroupType.PRIVATE)));
+    }
+
+    /**
+     * The configuration of a {@link #createSharedStreamConsumer(Properties) stream consumer}:
+     * envelope deserializers, consumer group and counting interceptor on top of the kafka configuration.
+     * The group membership is not part of it: the create methods add it with {@link #withMembership(Properties)},
+     * so calling this method has no side effects.
+     *
+     * @param overrides custom consumer configuration
+     * @param groupType the suggested consumer group to use, unless the overrides contain a {@code group.id}
+     * @return the consumer configuration
+     */
+    public Properties streamConsumerProperties(Properties overrides, KafkaConfigParser.ConsumerGroupType groupType) {
         Properties props = kafkaParser.kafkaConsumerProperties(overrides);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, KeyEnvelopeDeserializer.class.getName());
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, DataEnvelopeDeserializer.class.getName());
-        props.putIfAbsent(ConsumerConfig.GROUP_ID_CONFIG, kafkaParser.suggestedConsumerGroup(KafkaConfigParser.ConsumerGroupType.PRIVATE));
+        props.putIfAbsent(ConsumerConfig.GROUP_ID_CONFIG, kafkaParser.suggestedConsumerGroup(groupType));
+
+        return counted(props, ConsumerCountingInterceptor.class);
+    }
+
+    /**
+     * Add the group membership of this factory to the configuration of a consumer that is about to be created.
+     * With static membership every call hands out the next instance id of the consumer group,
+     * so call this once per consumer.
+     *
+     * @param props consumer configuration, containing the {@code group.id}
+     * @return new Properties containing the original ones added with the membership configuration
+     * @see GroupMembership#apply(Properties)
+     */
+    public Properties withMembership(Properties props) {
+        return membership.apply(props);
+    }
+
+    /**
+     * Create a builder for a {@link ParallelStreamConsumer}, on top of a kafka consumer sitting in a shared consumer group.
+     * Auto-commit is disabled on the underlying consumer, as the runtime commits the offsets of the processed records itself.
+     *
+     * @param overrides custom consumer configuration
+     * @return builder for the parallel consumer runtime, still requiring a subscription and a record handler
+     */
+    public ParallelStreamConsumer.Builder createParallelStreamConsumer(Properties overrides) {
+        Properties props = new Properties();
+        if(overrides != null) props.putAll(overrides);
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+
+        return new ParallelStreamConsumer.Builder(createSharedStreamConsumer(props));
+    }
+
+    /**
+     * Create a kafka consumer that hands out the raw (serialized) envelopes, sitting in a shared consumer group
+     *
+     * @param overrides custom consumer configuration
+     * @return fully configured kafka consumer, without envelope deserialization
+     */
+    public KafkaConsumer<byte[], byte[]> createSharedRawStreamConsumer(Properties overrides) {
+        return new KafkaConsumer<>(withMembership(rawStreamConsumerProperties(overrides, KafkaConfigParser.ConsumerGroupType.SHARED)));
+    }
+
+    /**
+     * Create a kafka consumer that hands out the raw (serialized) envelopes, sitting in a private consumer group
+     *
+     * @param overrides custom consumer configuration
+     * @return fully configured kafka consumer, without envelope deserialization
+     */
+    public KafkaConsumer<byte[], byte[]> createLocalRawStreamConsumer(Properties overrides) {
+        return new KafkaConsumer<>(withMembership(rawStreamConsumerProperties(overrides, KafkaConfigParser.ConsumerGroupType.PRIVATE)));
+    }
+
+    /**
+     * The configuration of a {@link #createSharedRawStreamConsumer(Properties) raw consumer},
+     * without the group membership (see {@link #withMembership(Properties)}).
+     *
+     * @param overrides custom consumer configuration
+     * @param groupType the suggested consumer group to use, unless the overrides contain a {@code group.id}
+     * @return the consumer configuration
+     */
+    public Properties rawStreamConsumerProperties(Properties overrides, KafkaConfigParser.ConsumerGroupType groupType) {
+        Properties props = kafkaParser.kafkaConsumerProperties(overrides);
+        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        props.putIfAbsent(ConsumerConfig.GROUP_ID_CONFIG, kafkaParser.suggestedConsumerGroup(groupType));
+
+        return counted(props, ConsumerCountingInterceptor.class);
+    }
+
+    /**
+     * Create a consumer, sitting in a shared consumer group, that decodes the envelopes in parallel outside of the poll loop.
+     * Compressed payloads are decompressed with the {@link PayloadCodec} under {@link PayloadCodec#CONFIG_KEY} in the overrides.
+     *
+     * @param overrides custom consumer configuration
+     * @return consumer decoding the envelopes on the common fork-join pool
+     * @see ParallelDecodingConsumer
+     */
+    public ParallelDecodingConsumer createParallelDecodingConsumer(Properties overrides) {
+        return new ParallelDecodingConsumer(createSharedRawStreamConsumer(overrides), ForkJoinPool.commonPool(), null, PayloadCodec.of(overrides));
+    }
+
+    /**
+     * Create a consumer, sitting in a shared consumer group, that only decodes the records with a key matching the given filter.
+     * The other records are dropped without parsing their envelopes.
+     * Compressed payloads are decompressed with the {@link PayloadCodec} under {@link PayloadCodec#CONFIG_KEY} in the overrides.
+     *
+     * @param overrides custom consumer configuration
+     * @param keyFilter the MQTT subscriptions the record keys need to match
+     * @return consumer decoding the matching envelopes on the common fork-join pool
+     * @see KeyFilter
+     */
+    public ParallelDecodingConsumer createParallelDecodingConsumer(Properties overrides, KeyFilter keyFilter) {
+        return new ParallelDecodingConsumer(createSharedRawStreamConsumer(overrides), ForkJoinPool.commonPool(), keyFilter, PayloadCodec.of(overrides));
+    }
+
+    /**
+     * Create a builder for a {@link CatchUpReader} that reads the full history of the given streams with a number of raw consumers in parallel.
+     * The topics of the streams are resolved from the streams configuration and the topics currently in the cluster;
+     * the internal consumers get their partitions assigned directly and do not commit offsets.
+     *
+     * @param overrides custom consumer configuration
+     * @param streams the streams to read
+     * @return builder for the catch-up reader, still requiring a record handler
+     */
+    public CatchUpReader.Builder<byte[], byte[]> createCatchUpReader(Properties overrides, Collection<DataStream> streams) {
+        Properties assignProps = catchUpConsumerProperties(overrides);
+
+        List<String> topics;
+        try(KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(assignProps)) {
+            topics = streamsParser.topicsFor(consumer.listTopics().keySet(), streams);
+        }
+        return new CatchUpReader.Builder<byte[], byte[]>(() -> new KafkaConsumer<>(assignProps)).setTopics(topics);
+    }
+
+    /**
+     * The configuration of the raw consumers of a {@link #createCatchUpReader(Properties, Collection) catch-up reader}:
+     * no group membership and no auto-commit, as their partitions get assigned directly.
+     *
+     * @param overrides custom consumer configuration
+     * @return the consumer configuration
+     */
+    public Properties catchUpConsumerProperties(Properties overrides) {
+        Properties props = new Properties();
+        if(overrides != null) props.putAll(overrides);
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+
+        Properties assignProps = kafkaParser.kafkaConsumerProperties(props);
+        assignProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        assignProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        assignProps.putIfAbsent(ConsumerConfig.GROUP_ID_CONFIG, kafkaParser.suggestedConsumerGroup(KafkaConfigParser.ConsumerGroupType.PRIVATE));
+        return counted(assignProps, ConsumerCountingInterceptor.class);
+    }
+
+    /**
+     * Create a subscription on the concrete topics of the given streams, instead of a pattern subscription.
+     * The topics are resolved from the stream contracts of this factory.
+     *
+     * @param streams the streams to consume
+     * @return stream subscription, to be used with any stream consumer created by this factory
+     * @see StreamSubscription
+     */
+    public StreamSubscription createStreamSubscription(Collection<DataStream> streams) {
+        return new StreamSubscription(() -> streamsParser, streams);
+    }
+
+    /**
+     * Create a builder for a {@link StreamRelay} forwarding raw records to the given stream, with a raw consumer sitting in a
+     * shared consumer group and a raw producer.  Auto-commit is disabled, as the relay commits the offsets itself.
+     *
+     * In exactly-once mode the producer gets a (unique) {@code transactional.id} -- fencing of zombie instances is done
+     * through the consumer group -- and the consumer only reads committed records.
+     *
+     * @param overrides custom consumer and producer configuration
+     * @param destination the stream to forward the records to
+     * @param exactlyOnce relay every polled batch in a transaction, together with its offsets
+     * @return builder for the relay, still requiring a subscription
+     */
+    public StreamRelay.Builder createStreamRelay(Properties overrides, DataStream destination, boolean exactlyOnce) {
+        Properties consumerProps = new Properties();
+        Properties producerProps = new Properties();
+        if(overrides != null) {
+            consumerProps.putAll(overrides);
+            producerProps.putAll(overrides);
+        }
+        consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        if(exactlyOnce) {
+            consumerProps.putIfAbsent(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+            producerProps.putIfAbsent(ProducerConfig.TRANSACTIONAL_ID_CONFIG, "relay-" + destination.name() + "-" + UUID.randomUUID());
+        }
+
+        return new StreamRelay.Builder(createSharedRawStreamConsumer(consumerProps), createRawStreamProducer(producerProps), streamsParser)
+                .setDestination(destination)
+                .setTransactional(exactlyOnce);
+    }
 
-        return new KafkaConsumer<>(props);
+    // add a counting interceptor after the configured interceptors (a class list, or a comma separated string of class names)
+    private static Properties counted(Properties props, Class<?> interceptor) {
+        Object configured = props.get(ProducerConfig.INTERCEPTOR_CLASSES_CONFIG);
+        List<Object> interceptors = new ArrayList<>();
+        if(configured instanceof Collection) interceptors.addAll((Collection<?>) configured);
+        else if(configured != null) {
+            for(String name: configured.toString().split(",")) if(! name.trim().isEmpty()) interceptors.add(name.trim());
+        }
+        if(! interceptors.contains(interceptor) && ! interceptors.contains(interceptor.getName())) interceptors.add(interceptor);
+        props.put(ProducerConfig.INTERCEPTOR_CLASSES_CONFIG, interceptors);
+        return props;
     }
 }
@@ -0,0 +1,277 @@
+package dsh.sdk.kafka.consumers;
+
+import dsh.sdk.internal.Threads;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Reads the history of a set of topics, up to the end offsets at the time it is started, with a number of consumers in parallel.
+ *
+ * The partitions are assigned directly to the internal consumers (no consumer group coordination, nothing gets committed),
+ * round-robin, and every consumer reads on its own thread.  Records beyond the end offsets captured at the start are not handed out:
+ * the reader only delivers the history, and signals through {@link #start()}'s future when all partitions are caught up.
+ *
+ * Records of the same partition are handled in order, on the same thread; records of different partitions are handled concurrently,
+ * so the handler needs to be thread safe (e.g. {@link dsh.sdk.retained.RetainedValueStore#applyRaw(ConsumerRecord)}).
+ *
+ * <pre>{@code
+ *   CatchUpReader<byte[], byte[]> reader = clientFactory.createCatchUpReader(null, Collections.singleton(myStream))
+ *                                            .setHandler(store::applyRaw)
+ *                                            .setReaders(8)
+ *                                            .build();
+ *
+ *   long records = reader.start().get();
+ * }</pre>
+ *
+ * @param <K> record key type
+ * @param <V> record value type
+ */
+public class CatchUpReader<K, V> implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CatchUpReader.class);
+
+    /**
+     * Function handling a single record, called concurrently for records of different partitions.
+     * When it throws, the reader stops and the completion future fails.
+     */
+    public interface RecordHandler<K, V> {
+        void handle(ConsumerRecord<K, V> record) throws Exception;
+    }
+
+    /**
+     * Builder class to configure the catch-up reader
+     */
+    public static class Builder<K, V> {
+        private final Supplier<? extends Consumer<K, V>> consumers;
+        private Collection<String> topics;
+        private Collection<TopicPartition> partitions;
+        private Map<TopicPartition, Long> startOffsets = Collections.emptyMap();
+        private RecordHandler<K, V> handler;
+        private int readers = Runtime.getRuntime().availableProcessors();
+        private Duration pollTimeout = Duration.ofMillis(100);
+        private ThreadFactory threadFactory;
+
+        /**
+         * @param consumers creates the internal consumers (e.g. {@code () -> clientFactory.createLocalRawStreamConsumer(props)})
+         */
+        public Builder(Supplier<? extends Consumer<K, V>> consumers) { this.consumers = Objects.requireNonNull(consumers); }
+
+        /**
+         * Read all partitions of the given topics.
+         * @param topics the topics to read (e.g. from {@link dsh.sdk.streams.StreamsConfigParser#topicsFor(Collection, Collection)})
+         * @return Builder
+         */
+        public Builder<K, V> setTopics(Collection<String> topics) { this.topics = new ArrayList<>(topics); this.partitions = null; return this; }
+
+        /**
+         * Read the given partitions.
+         * @param partitions the partitions to read
+         * @return Builder
+         */
+        public Builder<K, V> setPartitions(Collection<TopicPartition> partitions) { this.partitions = new ArrayList<>(partitions); this.topics = null; return this; }
+
+        /**
+         * @param startOffsets offsets to start reading from (e.g. restored from a snapshot); other partitions are read from the beginning
+         * @return Builder
+         */
+        public Builder<K, V> setStartOffsets(Map<TopicPartition, Long> startOffsets) { this.startOffsets = new HashMap<>(startOffsets); return this; }
+
+        /**
+         * @param handler the function processing the individual records
+         * @return Builder
+         */
+        public Builder<K, V> setHandler(RecordHandler<K, V> handler) { this.handler = handler; return this; }
+
+        /**
+         * @param readers maximum number of consumers reading in parallel (defaults to the number of available processors),
+         *                never more than the number of partitions are used
+         * @return Builder
+         */
+        public Builder<K, V> setReaders(int readers) { this.readers = readers; return this; }
+
+        /**
+         * @param pollTimeout maximum time a single poll on the internal consumers blocks
+         * @return Builder
+         */
+        public Builder<K, V> setPollTimeout(Duration pollTimeout) { this.pollTimeout = pollTimeout; return this; }
+
+        /**
+         * @param threadFactory factory for the reader threads (defaults to {@link Threads#platformThreadFactory(String, boolean)})
+         * @return Builder
+         */
+        public Builder<K, V> setThreadFactory(ThreadFactory threadFactory) { this.threadFactory = threadFactory; return this; }
+
+        /**
+         * Validate the configuration and create the reader.
+         * @return a reader that can be started by calling {@link #start()}
+         * @exception IllegalArgumentException on missing or invalid configuration
+         */
+        public CatchUpReader<K, V> build() {
+            if(handler == null) throw new IllegalArgumentException("no record handler configured");
+            if(topics == null && partitions == null) throw new IllegalArgumentException("no topics or partitions configured");
+            if(readers < 1) throw new IllegalArgumentException("readers needs to be positive");
+            return new CatchUpReader<>(this);
+        }
+    }
+
+    private final Supplier<? extends Consumer<K, V>> consumerSupplier;
+    private final Collection<String> topics;
+    private final Collection<TopicPartition> partitions;
+    private final Map<TopicPartition, Long> startOffsets;
+    private final RecordHandler<K, V> handler;
+    private final int readers;
+    private final Duration pollTimeout;
+    private final ThreadFactory threadFactory;
+
+    private final List<Consumer<K, V>> consumers = new ArrayList<>();
+    private final CompletableFuture<Long> done = new CompletableFuture<>();
+    private final AtomicLong records = new AtomicLong();
+    private volatile boolean running = true;
+
+    private CatchUpReader(Builder<K, V> builder) {
+        this.consumerSupplier = builder.consumers;
+        this.topics = builder.topics;
+        this.partitions = builder.partitions;
+        this.startOffsets = builder.startOffsets;
+        this.handler = builder.handler;
+        this.readers = builder.readers;
+        this.pollTimeout = builder.pollTimeout;
+        this.threadFactory = builder.threadFactory != null ? builder.threadFactory : Threads.platformThreadFactory("dsh-catchup-reader", true);
+    }
+
+    /**
+     * Capture the end offsets, and start reading on the reader threads.
+     * Can only be called once.
+     *
+     * @return future completing with the number of records handled when all partitions are caught up,
+     *         or failing when the handler or a consumer throws
+     */
+    public synchronized CompletableFuture<Long> start() {
+        if(! consumers.isEmpty()) throw new IllegalStateException("catch-up reader already started");
+
+        List<TopicPartition> tps;
+        Map<TopicPartition, Long> endOffsets;
+        List<List<TopicPartition>> assignments = new ArrayList<>();
+        try {
+            Consumer<K, V> first = consumerSupplier.get();
+            consumers.add(first);
+            tps = partitions != null ? new ArrayList<>(partitions) : partitionsOf(first, topics);
+            endOffsets = first.endOffsets(tps);
+
+            // spread the partitions over the readers
+            int count = Math.max(1, Math.min(readers, tps.size()));
+            for(int i = 0; i < count; i++) assignments.add(new ArrayList<>());
+            for(int i = 0; i < tps.size(); i++) assignments.get(i % count).add(tps.get(i));
+            for(int i = 1; i < count; i++) consumers.add(consumerSupplier.get());
+        }
+        catch (RuntimeException e) {
+            consumers.forEach(Consumer::close);
+            throw e;
+        }
+
+        int count = assignments.size();
+
+        logger.info("catching up on {} partitions with {} readers", tps.size(), count);
+        AtomicInteger remaining = new AtomicInteger(count);
+        for(int i = 0; i < count; i++) {
+            Consumer<K, V> consumer = consumers.get(i);
+            List<TopicPartition> assigned = assignments.get(i);
+            threadFactory.newThread(() -> {
+                try {
+                    read(consumer, assigned, endOffsets);
+                }
+                catch (WakeupException e) {
+                    done.completeExceptionally(new IllegalStateException("catch-up reader closed before catching up"));
+                }
+                catch (Exception e) {
+                    logger.error("catch-up reader failed - {}", e.getMessage(), e);
+                    done.completeExceptionally(e);
+                    close();
+                }
+                finally {
+                    consumer.close();
+                }
+                if(remaining.decrementAndGet() == 0 && done.complete(records.get())) logger.info("caught up - {} records read", records.get());
+            }).start();
+        }
+        return done;
+    }
+
+    private static List<TopicPartition> partitionsOf(Consumer<?, ?> consumer, Collection<String> topics) {
+        List<TopicPartition> tps = new ArrayList<>();
+        for(String topic: topics) {
+            List<PartitionInfo> infos = consumer.partitionsFor(topic);
+            if(infos != null) infos.forEach(pi -> tps.add(new TopicPartition(pi.topic(), pi.partition())));
+        }
+        return tps;
+    }
+
+    private void read(Consumer<K, V> consumer, List<TopicPartition> assigned, Map<TopicPartition, Long> endOffsets) throws Exception {
+        consumer.assign(assigned);
+        List<TopicPartition> fromBeginning = new ArrayList<>();
+        for(TopicPartition tp: assigned) {
+            Long offset = startOffsets.get(tp);
+            if(offset != null) consumer.seek(tp, offset);
+            else fromBeginning.add(tp);
+        }
+        if(! fromBeginning.isEmpty()) consumer.seekToBeginning(fromBeginning);
+
+        Map<TopicPartition, Long> pending = new HashMap<>();
+        assigned.forEach(tp -> pending.put(tp, endOffsets.getOrDefault(tp, 0L)));
+
+        while(running) {
+            // partitions that reached their end offset are done: stop fetching them
+            List<TopicPartition> caughtUp = new ArrayList<>();
+            pending.forEach((tp, end) -> { if(consumer.position(tp) >= end) caughtUp.add(tp); });
+            if(! caughtUp.isEmpty()) {
+                consumer.pause(caughtUp);
+                caughtUp.forEach(pending::remove);
+            }
+            if(pending.isEmpty()) return;
+
+            ConsumerRecords<K, V> batch = consumer.poll(pollTimeout);
+            for(TopicPartition tp: batch.partitions()) {
+                Long end = pending.get(tp);
+                if(end == null) continue;
+                for(ConsumerRecord<K, V> record: batch.records(tp)) {
+                    if(record.offset() >= end) break;
+                    handler.handle(record);
+                    records.incrementAndGet();
+                }
+            }
+        }
+        throw new WakeupException();
+    }
+
+    /**
+     * The number of records handled so far.
+     *
+     * @return records handled
+     */
+    public long recordsRead() { return records.get(); }
+
+    /**
+     * Stop reading.  The completion future fails when not all partitions were caught up yet.
+     */
+    @Override
+    public void close() {
+        running = false;
+        synchronized (this) {
+            consumers.forEach(Consumer::wakeup);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package dsh.sdk.kafka.consumers;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import dsh.messages.Envelope;
+import dsh.messages.EnvelopeChunks;
+import dsh.messages.Serdes;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Reassembles the chunks published by a {@link dsh.sdk.kafka.producers.ChunkingProducer} into the original envelopes.
+ *
+ * Chunks are buffered per partition and chunk set until all chunks of the set arrived; the set is then handed out as
+ * a single record, at the offset, timestamp and headers of its last chunk.  Records that are not chunks pass unchanged.
+ * Duplicate chunks (e.g. from producer retries) are ignored, also when they arrive after their set completed or was dropped:
+ * the ids of the most recent sets are remembered per partition.
+ *
+ * The buffered chunks are bounded:
+ * <ul>
+ *   <li>a set is dropped when the partition's record timestamps moved more than the timeout past its first chunk</li>
+ *   <li>the oldest sets are dropped when the buffered chunk data exceeds the maximum</li>
+ *   <li>a set that can not fit in the maximum (e.g. from a corrupt chunk count) is rejected at its first chunk</li>
+ * </ul>
+ * Timeouts use the record timestamps rather than the wall clock, so replaying a stream behaves like consuming it live.
+ *
+ * Committing the offset of a record that follows the first chunk of a set that is still incomplete
+ * would lose that set on a restart: use {@link #committable(Map)} to cap the offsets to commit.
+ *
+ * <pre>{@code
+ *   ChunkAssembler assembler = new ChunkAssembler.Builder().setMaxBufferedBytes(256L << 20).build();
+ *   while(running) {
+ *       for(ConsumerRecord<KeyEnvelope, DataEnvelope> record: assembler.apply(consumer.poll(timeout))) process(record);
+ *       consumer.commitSync(assembler.committable(offsetsOfProcessedRecords));
+ *   }
+ * }</pre>
+ *
+ * All functions are thread safe.
+ */
+public class ChunkAssembler {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkAssembler.class);
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+
+    // number of completed or dropped set ids remembered per partition, to ignore late duplicates of their chunks
+    private static final int FINISHED_SETS_PER_PARTITION = 1024;
+
+    /**
+     * Builder class to construct the chunk assembler
+     */
+    public static class Builder {
+        private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+        private Duration timeout = DEFAULT_TIMEOUT;
+
+        /**
+         * @param bytes maximum chunk data to buffer over all incomplete sets (default 64MB)
+         * @return this builder
+         */
+        public Builder setMaxBufferedBytes(long bytes) { this.maxBufferedBytes = bytes; return this; }
+
+        /**
+         * @param timeout maximum time between the first chunk of a set and the last record of its partition (default 5 minutes)
+         * @return this builder
+         */
+        public Builder setTimeout(Duration timeout) { this.timeout = Objects.requireNonNull(timeout); return this; }
+
+        /**
+         * @return the chunk assembler
+         * @exception IllegalArgumentException when the limits are not positive
+         */
+        public ChunkAssembler build() {
+            if(maxBufferedBytes <= 0) throw new IllegalArgumentException("maximum buffered bytes should be positive");
+            if(timeout.isNegative() || timeout.isZero()) throw new IllegalArgumentException("timeout should be positive");
+            return new ChunkAssembler(this);
+        }
+    }
+
+    // identifies a chunk set: the id is only unique per partition
+    private static class SetKey {
+        final TopicPartition tp;
+        final ByteString id;
+
+        SetKey(TopicPartition tp, ByteString id) {
+            this.tp = tp;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof SetKey)) return false;
+            SetKey other = (SetKey) o;
+            return tp.equals(other.tp) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() { return 31 * tp.hashCode() + id.hashCode(); }
+    }
+
+    // the chunks received so far for a set
+    private static class PendingSet {
+        final long firstOffset;
+        final long firstTimestamp;
+        final int count;
+        final Map<Integer, ByteString> parts = new HashMap<>();
+        long bytes = 0;
+
+        PendingSet(long firstOffset, long firstTimestamp, int count) {
+            this.firstOffset = firstOffset;
+            this.firstTimestamp = firstTimestamp;
+            this.count = count;
+        }
+    }
+
+    private final long maxBufferedBytes;
+    private final long timeoutMs;
+    private final LinkedHashMap<SetKey, PendingSet> pending = new LinkedHashMap<>();   // in order of the first chunk
+    private final Map<TopicPartition, Long> streamTime = new HashMap<>();
+    private final Map<TopicPartition, LinkedHashSet<ByteString>> finished = new HashMap<>();
+    private long buffered = 0;
+    private long dropped = 0;
+
+    private ChunkAssembler(Builder builder) {
+        this.maxBufferedBytes = builder.maxBufferedBytes;
+        this.timeoutMs = builder.timeout.toMillis();
+    }
+
+    /**
+     * Feed a batch of polled records.
+     *
+     * @param records polled records
+     * @return the records with all chunks replaced by the envelopes they completed; the input itself when it holds no chunks
+     */
+    public synchronized ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> apply(ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> records) {
+        boolean chunked = false;
+        for(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record: records) {
+            if(EnvelopeChunks.isChunk(record.value())) { chunked = true; break; }
+        }
+        if(! chunked) {
+            // plain records still move the stream time: incomplete sets of their partitions time out
+            if(! pending.isEmpty()) {
+                for(TopicPartition tp: records.partitions()) {
+                    List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> partitionRecords = records.records(tp);
+                    long latest = partitionRecords.stream().mapToLong(ConsumerRecord::timestamp).max().orElse(Long.MIN_VALUE);
+                    expire(tp, streamTime.merge(tp, latest, Math::max));
+                }
+            }
+            return records;
+        }
+
+        Map<TopicPartition, List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>>> assembled = new HashMap<>();
+        for(TopicPartition tp: records.partitions()) {
+            List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> out = new ArrayList<>();
+            for(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record: records.records(tp)) apply(record).ifPresent(out::add);
+            if(! out.isEmpty()) assembled.put(tp, out);
+        }
+        return new ConsumerRecords<>(assembled);
+    }
+
+    /**
+     * Feed a single record.
+     *
+     * @param record consumed record
+     * @return the record itself when it is not a chunk, the reassembled envelope when it completed a set,
+     *         or empty when more chunks of its set are expected
+     */
+    public synchronized Optional<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> apply(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record) {
+        TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+        long now = streamTime.merge(tp, record.timestamp(), Math::max);
+        expire(tp, now);
+        if(! EnvelopeChunks.isChunk(record.value())) return Optional.of(record);
+
+        EnvelopeChunks.Chunk chunk;
+        try {
+            chunk = EnvelopeChunks.chunkOf(record.value());
+        }
+        catch (Serdes.SerializationException e) {
+            logger.warn("skipping invalid chunk at {}@{}", tp, record.offset(), e);
+            return Optional.empty();
+        }
+
+        SetKey key = new SetKey(tp, chunk.id());
+        PendingSet set = pending.get(key);
+        if(set == null) {
+            // late duplicate of a set that already completed or was dropped
+            Set<ByteString> done = finished.get(tp);
+            if(done != null && done.contains(chunk.id())) return Optional.empty();
+
+            // all chunks but the last one have the same size
+            long minimumBytes = (long) (chunk.count() - 1) * (chunk.index() < chunk.count() - 1 ? chunk.data().size() : 1);
+            if(minimumBytes > maxBufferedBytes) {
+                logger.warn("skipping chunk set at {}@{}: {} chunks can not fit in {} bytes", tp, record.offset(), chunk.count(), maxBufferedBytes);
+                finish(key);
+                dropped++;
+                return Optional.empty();
+            }
+            set = new PendingSet(record.offset(), record.timestamp(), chunk.count());
+            pending.put(key, set);
+        }
+        if(chunk.count() != set.count || set.parts.containsKey(chunk.index())) return Optional.empty();    // duplicate, or not part of this set
+
+        set.parts.put(chunk.index(), chunk.data());
+        set.bytes += chunk.data().size();
+        buffered += chunk.data().size();
+
+        if(set.parts.size() == set.count) {
+            remove(key);
+            return assemble(record, set);
+        }
+
+        while(buffered > maxBufferedBytes && ! pending.isEmpty()) {
+            Map.Entry<SetKey, PendingSet> oldest = pending.entrySet().iterator().next();
+            logger.warn("dropping incomplete chunk set at {}@{}: more than {} bytes buffered", oldest.getKey().tp, oldest.getValue().firstOffset, maxBufferedBytes);
+            drop(oldest.getKey());
+        }
+        return Optional.empty();
+    }
+
+    private Optional<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> assemble(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> last, PendingSet set) {
+        try {
+            List<ByteString> parts = new ArrayList<>(set.count);
+            for(int index = 0; index < set.count; index++) parts.add(set.parts.get(index));
+            ByteString bytes = ByteString.copyFrom(parts);
+            Envelope.DataEnvelope value = Envelope.DataEnvelope.parseFrom(bytes);
+            return Optional.of(new ConsumerRecord<>(last.topic(), last.partition(), last.offset(), last.timestamp(), last.timestampType(),
+                    last.serializedKeySize(), bytes.size(), last.key(), value, last.headers(), last.leaderEpoch()));
+        }
+        catch (InvalidProtocolBufferException e) {
+            logger.warn("skipping chunk set at {}-{}@{}: reassembled envelope is invalid", last.topic(), last.partition(), set.firstOffset, e);
+            dropped++;
+            return Optional.empty();
+        }
+    }
+
+    // drop the sets of the partition that did not complete within the timeout
+    private void expire(TopicPartition tp, long now) {
+        if(pending.isEmpty()) return;
+        List<SetKey> expired = new ArrayList<>();
+        pending.forEach((key, set) -> { if(key.tp.equals(tp) && now - set.firstTimestamp > timeoutMs) expired.add(key); });
+        for(SetKey key: expired) {
+            logger.warn("dropping incomplete chunk set at {}@{}: timed out", tp, pending.get(key).firstOffset);
+            drop(key);
+        }
+    }
+
+    private void drop(SetKey key) {
+        remove(key);
+        dropped++;
+    }
+
+    private void remove(SetKey key) {
+        PendingSet set = pending.remove(key);
+        if(set != null) buffered -= set.bytes;
+        finish(key);
+    }
+
+    // remember the set, so later chunks with its id are ignored
+    private void finish(SetKey key) {
+        LinkedHashSet<ByteString> ids = finished.computeIfAbsent(key.tp, tp -> new LinkedHashSet<>());
+        ids.add(key.id);
+        if(ids.size() > FINISHED_SETS_PER_PARTITION) {
+            Iterator<ByteString> oldest = ids.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Cap offsets to commit, so they do not move past the first chunk of a set that is still incomplete.
+     *
+     * @param offsets offsets to commit
+     * @return the offsets that can safely be committed
+     */
+    public synchronized Map<TopicPartition, OffsetAndMetadata> committable(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        if(pending.isEmpty()) return offsets;
+        Map<TopicPartition, OffsetAndMetadata> capped = new HashMap<>(offsets);
+        pending.forEach((key, set) -> {
+            OffsetAndMetadata offset = capped.get(key.tp);
+            if(offset != null && offset.offset() > set.firstOffset) capped.put(key.tp, new OffsetAndMetadata(set.firstOffset, offset.metadata()));
+        });
+        return capped;
+    }
+
+    /**
+     * Forget the incomplete sets of the given partitions (e.g. after they got revoked).
+     *
+     * @param tps the partitions to remove
+     */
+    public synchronized void remove(Collection<TopicPartition> tps) {
+        new ArrayList<>(pending.keySet()).stream().filter(key -> tps.contains(key.tp)).forEach(this::remove);
+        tps.forEach(streamTime::remove);
+        tps.forEach(finished::remove);
+    }
+
+    /**
+     * @return the number of chunk sets waiting for more chunks
+     */
+    public synchronized int pending() { return pending.size(); }
+
+    /**
+     * @return the chunk data buffered for incomplete sets, in bytes
+     */
+    public synchronized long buffered() { return buffered; }
+
+    /**
+     * @return the number of chunk sets dropped because they timed out, exceeded the buffer, or were invalid
+     */
+    public synchronized long dropped() { return dropped; }
+}
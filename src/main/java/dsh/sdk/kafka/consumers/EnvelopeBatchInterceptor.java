@@ -0,0 +1,92 @@
+package dsh.sdk.kafka.consumers;
+
+import dsh.messages.Envelope;
+import dsh.messages.EnvelopeBatch;
+import dsh.messages.Serdes;
+import dsh.sdk.metrics.StreamMetrics;
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Consumer interceptor that transparently unpacks batches (see {@link EnvelopeBatch}) into their individual envelopes.
+ *
+ * A Kafka deserializer can only turn one record into one value, so the unpacking happens right after deserialization,
+ * when the consumer hands out the polled records.  Every entry becomes a record of its own, with the offset, timestamp
+ * and headers of the batch record.  Records that are not batches are passed on untouched; a poll without any batch
+ * is returned as is.
+ *
+ * A malformed batch is dropped as a whole (none of its entries is handed out), logged, and counted as a
+ * deserialization error in the {@link StreamMetrics} of the consumer -- it is never passed on as the batch record itself,
+ * which the application would see as an envelope without payload (a delete).
+ *
+ * Entries of the same batch share an offset: a committed offset covers all of them.  The {@link OffsetTracker}
+ * (used by {@link ParallelStreamConsumer}) only moves past such an offset once all its entries completed.
+ *
+ * Configure it on a stream consumer with
+ * <pre>{@code
+ *   Properties overrides = new Properties();
+ *   overrides.put(ConsumerConfig.INTERCEPTOR_CLASSES_CONFIG, EnvelopeBatchInterceptor.class.getName());
+ *   KafkaConsumer<KeyEnvelope, DataEnvelope> consumer = clientFactory.createSharedStreamConsumer(overrides);
+ * }</pre>
+ */
+public class EnvelopeBatchInterceptor implements ConsumerInterceptor<Envelope.KeyEnvelope, Envelope.DataEnvelope> {
+    private static final Logger logger = LoggerFactory.getLogger(EnvelopeBatchInterceptor.class);
+
+    private StreamMetrics metrics = StreamMetrics.global();
+
+    @Override
+    public ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> onConsume(ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> records) {
+        boolean batched = false;
+        for(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record: records) {
+            if(EnvelopeBatch.isBatch(record.value())) { batched = true; break; }
+        }
+        if(! batched) return records;
+
+        Map<TopicPartition, List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>>> unpacked = new HashMap<>();
+        for(TopicPartition tp: records.partitions()) {
+            List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> partitionRecords = records.records(tp);
+            List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> out = new ArrayList<>(partitionRecords.size());
+            for(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record: partitionRecords) {
+                if(EnvelopeBatch.isBatch(record.value())) unpack(record, out);
+                else out.add(record);
+            }
+            unpacked.put(tp, out);
+        }
+        return new ConsumerRecords<>(unpacked);
+    }
+
+    // all entries of the batch, or none when it is malformed
+    private void unpack(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> batch, List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> out) {
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> entries = new ArrayList<>();
+        try {
+            EnvelopeBatch.forEach(batch.key(), batch.value(), (key, value) -> entries.add(entry(batch, key, value)));
+            out.addAll(entries);
+        }
+        catch (Serdes.SerializationException e) {
+            logger.warn("dropping malformed envelope batch at {}-{}@{}", batch.topic(), batch.partition(), batch.offset(), e);
+            metrics.counters(batch.topic()).deserializationError();
+        }
+    }
+
+    private static ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> entry(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> batch, Envelope.KeyEnvelope key, Envelope.DataEnvelope value) {
+        return new ConsumerRecord<>(batch.topic(), batch.partition(), batch.offset(), batch.timestamp(), batch.timestampType(),
+                key == batch.key() ? batch.serializedKeySize() : key.getSerializedSize(), value.getSerializedSize(),
+                key, value, batch.headers(), batch.leaderEpoch());
+    }
+
+    @Override
+    public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void configure(Map<String, ?> configs) { metrics = StreamMetrics.of(configs); }
+}
@@ -0,0 +1,57 @@
+package dsh.sdk.kafka.consumers;
+
+import dsh.messages.Envelope;
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Consumer interceptor that transparently reassembles chunked envelopes (see {@link ChunkAssembler}).
+ *
+ * The limits of the assembler are taken from the consumer configuration:
+ * {@value #MAX_BUFFERED_BYTES_CONFIG} and {@value #TIMEOUT_MS_CONFIG}.
+ *
+ * An interceptor can not change the offsets the application commits: with auto-commit, or when committing the
+ * position, a restart can lose a chunk set that was incomplete at the time of the commit.  Use a
+ * {@link ChunkAssembler} directly, together with {@link ChunkAssembler#committable(Map)}, when that matters.
+ *
+ * <pre>{@code
+ *   Properties overrides = new Properties();
+ *   overrides.put(ConsumerConfig.INTERCEPTOR_CLASSES_CONFIG, EnvelopeChunkInterceptor.class.getName());
+ *   KafkaConsumer<KeyEnvelope, DataEnvelope> consumer = clientFactory.createSharedStreamConsumer(overrides);
+ * }</pre>
+ */
+public class EnvelopeChunkInterceptor implements ConsumerInterceptor<Envelope.KeyEnvelope, Envelope.DataEnvelope> {
+    public static final String MAX_BUFFERED_BYTES_CONFIG = "dsh.chunks.max.buffered.bytes";
+    public static final String TIMEOUT_MS_CONFIG = "dsh.chunks.timeout.ms";
+
+    private ChunkAssembler assembler = new ChunkAssembler.Builder().build();
+
+    @Override
+    public ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> onConsume(ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> records) {
+        return assembler.apply(records);
+    }
+
+    @Override
+    public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        ChunkAssembler.Builder builder = new ChunkAssembler.Builder();
+        if(configs.containsKey(MAX_BUFFERED_BYTES_CONFIG)) builder.setMaxBufferedBytes(Long.parseLong(configs.get(MAX_BUFFERED_BYTES_CONFIG).toString()));
+        if(configs.containsKey(TIMEOUT_MS_CONFIG)) builder.setTimeout(Duration.ofMillis(Long.parseLong(configs.get(TIMEOUT_MS_CONFIG).toString())));
+        assembler = builder.build();
+    }
+
+    /**
+     * @return the assembler of this interceptor
+     */
+    public ChunkAssembler assembler() { return assembler; }
+}
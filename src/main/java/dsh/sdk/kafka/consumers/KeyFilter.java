@@ -0,0 +1,71 @@
+package dsh.sdk.kafka.consumers;
+
+import dsh.messages.KeyExtractor;
+import dsh.sdk.mqtt.SubscriptionMatcher;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Consumer side record filter, operating on the serialized {@code KeyEnvelope} only.
+ *
+ * The filter is expressed as a set of MQTT subscriptions (e.g. {@code house/+/meter/#}).
+ * Only the key string is located in the serialized key (see {@link KeyExtractor}) and matched in place
+ * against all subscriptions at once (see {@link SubscriptionMatcher}),
+ * so records that do not match can be dropped before any envelope -- and certainly the value -- gets parsed.
+ *
+ * <pre>{@code
+ *   ParallelDecodingConsumer consumer = clientFactory.createParallelDecodingConsumer(null, KeyFilter.of("house/+/meter/#"));
+ * }</pre>
+ */
+public class KeyFilter implements Predicate<byte[]> {
+    private final Set<String> subscriptions;
+    private final SubscriptionMatcher matcher = new SubscriptionMatcher();
+
+    private KeyFilter(Set<String> subscriptions) {
+        if(subscriptions.isEmpty()) throw new IllegalArgumentException("key filter needs at least one subscription");
+        this.subscriptions = subscriptions;
+        subscriptions.forEach(matcher::add);
+    }
+
+    /**
+     * Create a key filter from a list of MQTT subscriptions.
+     *
+     * @param subscriptions MQTT topic filters, a record passes when its key matches any of them
+     * @return key filter
+     * @exception IllegalArgumentException when no or invalid subscriptions are given
+     */
+    public static KeyFilter of(String... subscriptions) { return of(Arrays.asList(subscriptions)); }
+
+    /**
+     * Create a key filter from a list of MQTT subscriptions.
+     *
+     * @param subscriptions MQTT topic filters, a record passes when its key matches any of them
+     * @return key filter
+     * @exception IllegalArgumentException when no or invalid subscriptions are given
+     */
+    public static KeyFilter of(Collection<String> subscriptions) {
+        return new KeyFilter(new LinkedHashSet<>(subscriptions));
+    }
+
+    /**
+     * Test a serialized KeyEnvelope against the subscriptions.
+     *
+     * @param serializedKey the raw record key
+     * @return {@code true} when the key matches one of the subscriptions,
+     *         {@code false} when it doesn't, or when the record has no (valid) key
+     */
+    @Override
+    public boolean test(byte[] serializedKey) {
+        long range = KeyExtractor.keyRange(serializedKey);
+        if(range == KeyExtractor.NOT_FOUND) return false;
+
+        return matcher.matchesAny(serializedKey, KeyExtractor.offset(range), KeyExtractor.length(range));
+    }
+
+    @Override
+    public String toString() { return "keyfilter" + subscriptions; }
+}
@@ -0,0 +1,139 @@
+package dsh.sdk.kafka.consumers;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.*;
+
+/**
+ * Keeps track of the offsets handed out for processing, per partition,
+ * and calculates the offsets that can safely be committed.
+ *
+ * Records of a single partition can complete out-of-order when they are processed in parallel.
+ * The offset that is safe to commit for a partition is the one right after the highest <i>contiguous</i> completed offset,
+ * so a restart never skips a record that did not finish processing yet.
+ * Several records can share an offset (the entries of an {@link dsh.messages.EnvelopeBatch}): the offset only becomes
+ * committable once all of them completed.
+ *
+ * All functions are thread safe: offsets are typically started from the polling thread and completed from worker threads.
+ */
+public class OffsetTracker {
+
+    // the bookkeeping for a single partition
+    private static class PartitionState {
+        private final ArrayDeque<Long> pending = new ArrayDeque<>();    // started offsets, in order of arrival
+        private final Map<Long, Integer> completed = new HashMap<>();   // completed offsets that are not contiguous (yet), with count
+        private long committable = -1L;                                 // next offset to commit, -1 when nothing completed
+        private boolean dirty = false;                                  // committable moved since the last commit
+    }
+
+    private final Map<TopicPartition, PartitionState> partitions = new HashMap<>();
+    private int inFlight = 0;
+
+    private PartitionState stateFor(TopicPartition tp) { return partitions.computeIfAbsent(tp, k -> new PartitionState()); }
+
+    /**
+     * Mark an offset as handed out for processing.
+     * Offsets for the same partition need to be started in increasing order.
+     *
+     * @param tp      the partition the record belongs to
+     * @param offset  the offset of the record
+     */
+    public synchronized void start(TopicPartition tp, long offset) {
+        stateFor(tp).pending.addLast(offset);
+        inFlight++;
+    }
+
+    /**
+     * Mark an offset as processed.
+     *
+     * @param tp      the partition the record belongs to
+     * @param offset  the offset of the record
+     */
+    public synchronized void complete(TopicPartition tp, long offset) {
+        PartitionState state = partitions.get(tp);
+        if(state == null) return;   // partition got revoked in the meantime
+
+        state.completed.merge(offset, 1, Integer::sum);
+        while(! state.pending.isEmpty() && takeCompleted(state, state.pending.peekFirst())) {
+            long done = state.pending.pollFirst();
+            inFlight--;
+            // only move past an offset when no other record with the same offset is still pending
+            if(state.pending.isEmpty() || state.pending.peekFirst() != done) {
+                state.committable = done + 1;
+                state.dirty = true;
+            }
+        }
+
+        if(state.pending.isEmpty()) this.notifyAll();
+    }
+
+    private static boolean takeCompleted(PartitionState state, long offset) {
+        Integer count = state.completed.get(offset);
+        if(count == null) return false;
+        if(count == 1) state.completed.remove(offset);
+        else state.completed.put(offset, count - 1);
+        return true;
+    }
+
+    /**
+     * The total number of records that are started but not yet contiguously completed, over all partitions.
+     *
+     * @return number of records in flight
+     */
+    public synchronized int inFlight() { return inFlight; }
+
+    /**
+     * The number of records that are started but not yet contiguously completed for the given partition.
+     *
+     * @param tp the partition
+     * @return number of records in flight for the partition
+     */
+    public synchronized int inFlight(TopicPartition tp) {
+        return Optional.ofNullable(partitions.get(tp)).map(s -> s.pending.size()).orElse(0);
+    }
+
+    /**
+     * Collect the offsets that can be committed, and clear the "changed" marker on them.
+     *
+     * @param onlyChanged only return the partitions for which the committable offset moved since the previous call
+     * @return offsets to give to {@link org.apache.kafka.clients.consumer.Consumer#commitSync(Map) commit}
+     */
+    public synchronized Map<TopicPartition, OffsetAndMetadata> committable(boolean onlyChanged) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        partitions.forEach((tp, state) -> {
+            if(state.committable >= 0 && (state.dirty || ! onlyChanged)) offsets.put(tp, new OffsetAndMetadata(state.committable));
+            state.dirty = false;
+        });
+        return offsets;
+    }
+
+    /**
+     * Wait until all started offsets of the given partitions are completed.
+     *
+     * @param tps      the partitions to wait for
+     * @param timeoutMs maximum time to wait in milliseconds
+     * @return {@code true} when all given partitions are idle, {@code false} when the timeout expired
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized boolean awaitIdle(Collection<TopicPartition> tps, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(tps.stream().anyMatch(tp -> inFlight(tp) > 0)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) return false;
+            this.wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Forget all bookkeeping for the given partitions (e.g. after they got revoked).
+     * Completions for these partitions that still come in afterwards are ignored.
+     *
+     * @param tps the partitions to remove
+     */
+    public synchronized void remove(Collection<TopicPartition> tps) {
+        tps.forEach(tp -> Optional.ofNullable(partitions.remove(tp)).ifPresent(s -> inFlight -= s.pending.size()));
+        this.notifyAll();
+    }
+}
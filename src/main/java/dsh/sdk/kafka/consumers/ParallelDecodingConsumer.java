@@ -0,0 +1,230 @@
+package dsh.sdk.kafka.consumers;
+
+import dsh.messages.Envelope;
+import dsh.messages.PayloadCodec;
+import dsh.messages.Serdes;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.RecordDeserializationException;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+/**
+ * Consumer wrapper that moves the envelope deserialization off the polling thread.
+ *
+ * The underlying consumer polls raw {@code byte[]} keys and values (no protobuf parsing inside {@code poll()}).
+ * Every polled batch is split per partition, and each partition is decoded on a {@link ForkJoinPool},
+ * where large partitions are further split in ranges that are decoded in parallel.
+ * The decoded records are handed out through an iterator, partition by partition, in the original offset order;
+ * the iterator only waits for a partition when it reaches it, so the first records can be processed while the rest is still decoding.
+ *
+ * Compressed payloads are decompressed with the given {@link PayloadCodec}, like the
+ * {@link dsh.sdk.kafka.serdes.DataEnvelopeDeserializer} does (without it, only payloads compressed without dictionary can be decompressed).
+ *
+ * Optionally a filter on the serialized key (e.g. a {@link KeyFilter}) can be given: records that do not pass it are
+ * dropped before any envelope parsing is done.
+ *
+ * <pre>{@code
+ *   ParallelDecodingConsumer consumer = clientFactory.createParallelDecodingConsumer(null);
+ *   consumer.consumer().subscribe(streamsParser.subscriptionPatternFor(myStreams));
+ *
+ *   for(;;) {
+ *     Iterator<ConsumerRecord<KeyEnvelope, DataEnvelope>> records = consumer.poll(Duration.ofMillis(100));
+ *     while(records.hasNext()) { . . . }
+ *   }
+ * }</pre>
+ */
+public class ParallelDecodingConsumer implements Closeable {
+    // below this number of records a range is decoded sequentially
+    private static final int SPLIT_THRESHOLD = 256;
+
+    private final Consumer<byte[], byte[]> consumer;
+    private final ForkJoinPool pool;
+    private final Predicate<byte[]> keyFilter;
+    private final PayloadCodec codec;
+
+    /**
+     * Create a decoding consumer that decodes on the common fork-join pool.
+     *
+     * @param consumer the underlying raw consumer
+     */
+    public ParallelDecodingConsumer(Consumer<byte[], byte[]> consumer) { this(consumer, ForkJoinPool.commonPool()); }
+
+    /**
+     * Create a decoding consumer that decodes on the given fork-join pool.
+     *
+     * @param consumer the underlying raw consumer
+     * @param pool the pool to decode the envelopes on
+     */
+    public ParallelDecodingConsumer(Consumer<byte[], byte[]> consumer, ForkJoinPool pool) { this(consumer, pool, null); }
+
+    /**
+     * Create a decoding consumer that decodes on the given fork-join pool, and only decodes the records passing the key filter.
+     *
+     * @param consumer the underlying raw consumer
+     * @param pool the pool to decode the envelopes on
+     * @param keyFilter filter on the serialized key, {@code null} to decode all records
+     */
+    public ParallelDecodingConsumer(Consumer<byte[], byte[]> consumer, ForkJoinPool pool, Predicate<byte[]> keyFilter) {
+        this(consumer, pool, keyFilter, PayloadCodec.NONE);
+    }
+
+    /**
+     * Create a decoding consumer that decodes on the given fork-join pool, only decodes the records passing the key filter,
+     * and decompresses the payloads with the given codec.
+     *
+     * @param consumer the underlying raw consumer
+     * @param pool the pool to decode the envelopes on
+     * @param keyFilter filter on the serialized key, {@code null} to decode all records
+     * @param codec the codec with the dictionaries to decompress the payloads with
+     */
+    public ParallelDecodingConsumer(Consumer<byte[], byte[]> consumer, ForkJoinPool pool, Predicate<byte[]> keyFilter, PayloadCodec codec) {
+        this.consumer = Objects.requireNonNull(consumer);
+        this.pool = Objects.requireNonNull(pool);
+        this.keyFilter = keyFilter;
+        this.codec = Objects.requireNonNull(codec);
+    }
+
+    /**
+     * The underlying raw consumer, to subscribe, commit, seek, ...
+     * Only use it from the thread that polls.
+     *
+     * @return the raw consumer
+     */
+    public Consumer<byte[], byte[]> consumer() { return consumer; }
+
+    /**
+     * Poll the underlying consumer and start decoding the returned batch.
+     *
+     * @param timeout maximum time to block in the underlying poll
+     * @return iterator over the decoded records, in partition/offset order.
+     *         The iterator throws a {@link RecordDeserializationException} when it reaches a record that could not be decoded.
+     */
+    public Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> poll(Duration timeout) {
+        return decode(consumer.poll(timeout));
+    }
+
+    /**
+     * Start decoding a raw batch of records on the fork-join pool.
+     *
+     * @param records batch of raw records
+     * @return iterator over the decoded records (that pass the key filter), in partition/offset order
+     */
+    public Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> decode(ConsumerRecords<byte[], byte[]> records) {
+        List<DecodeTask> tasks = new ArrayList<>(records.partitions().size());
+        for(TopicPartition tp: records.partitions()) {
+            List<ConsumerRecord<byte[], byte[]>> raw = records.records(tp);
+            DecodeTask task = new DecodeTask(raw, keyFilter, codec, new Decoded[raw.size()], 0, raw.size());
+            tasks.add(task);
+            pool.execute(task);
+        }
+
+        return new DecodedIterator(tasks);
+    }
+
+    // the decoded form of a single record: either the record, or the reason it could not be decoded
+    private static class Decoded {
+        private final ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record;
+        private final RecordDeserializationException error;
+
+        private Decoded(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record, RecordDeserializationException error) {
+            this.record = record;
+            this.error = error;
+        }
+    }
+
+    private static Decoded decode(ConsumerRecord<byte[], byte[]> raw, PayloadCodec codec) {
+        try {
+            return new Decoded(new ConsumerRecord<>(
+                    raw.topic(), raw.partition(), raw.offset(),
+                    raw.timestamp(), raw.timestampType(),
+                    raw.serializedKeySize(), raw.serializedValueSize(),
+                    Serdes.deserializeKey.apply(raw.key()),
+                    codec.decompress(Serdes.deserializeValue.apply(raw.value())),
+                    raw.headers(), raw.leaderEpoch()), null);
+        }
+        catch (Serdes.SerializationException e) {
+            return new Decoded(null, new RecordDeserializationException(
+                    new TopicPartition(raw.topic(), raw.partition()), raw.offset(), "error deserializing envelopes", e.getCause()));
+        }
+    }
+
+    // decodes a range of the records of a single partition, forking when the range is large
+    private static class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 2870637585296214137L;
+
+        private final transient List<ConsumerRecord<byte[], byte[]>> raw;
+        private final transient Predicate<byte[]> keyFilter;
+        private final transient PayloadCodec codec;
+        private final transient Decoded[] out;
+        private final int from;
+        private final int to;
+
+        private DecodeTask(List<ConsumerRecord<byte[], byte[]>> raw, Predicate<byte[]> keyFilter, PayloadCodec codec, Decoded[] out, int from, int to) {
+            this.raw = raw;
+            this.keyFilter = keyFilter;
+            this.codec = codec;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= SPLIT_THRESHOLD) {
+                for(int i = from; i < to; i++) {
+                    ConsumerRecord<byte[], byte[]> record = raw.get(i);
+                    out[i] = keyFilter == null || keyFilter.test(record.key()) ? decode(record, codec) : null;   // null: filtered out
+                }
+            }
+            else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeTask(raw, keyFilter, codec, out, from, mid), new DecodeTask(raw, keyFilter, codec, out, mid, to));
+            }
+        }
+    }
+
+    // hands out the decoded records partition by partition, only waiting for a partition when it gets there
+    private static class DecodedIterator implements Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> {
+        private final Iterator<DecodeTask> tasks;
+        private Decoded[] current = new Decoded[0];
+        private int idx = 0;
+
+        private DecodedIterator(List<DecodeTask> tasks) { this.tasks = tasks.iterator(); }
+
+        @Override
+        public boolean hasNext() {
+            for(;;) {
+                while(idx < current.length && current[idx] == null) idx++;    // skip the filtered records
+                if(idx < current.length) return true;
+                if(! tasks.hasNext()) return false;
+
+                DecodeTask task = tasks.next();
+                task.join();
+                current = task.out;
+                idx = 0;
+            }
+        }
+
+        @Override
+        public ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> next() {
+            if(! hasNext()) throw new NoSuchElementException();
+            Decoded d = current[idx++];
+            if(d.error != null) throw d.error;
+            return d.record;
+        }
+    }
+
+    /**
+     * Close the underlying consumer.
+     */
+    @Override
+    public void close() { consumer.close(); }
+}
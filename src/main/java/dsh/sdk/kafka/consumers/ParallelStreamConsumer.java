@@ -0,0 +1,331 @@
+package dsh.sdk.kafka.consumers;
+
+import dsh.messages.Envelope;
+import dsh.sdk.internal.Threads;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * A consumer runtime that polls envelopes on a single thread and hands them to a pool of worker threads.
+ *
+ * Ordering is guaranteed per {@code KeyEnvelope.key}: all records with the same key are processed by the same worker,
+ * in the order they were consumed.  Records with different keys -- even from the same partition -- are processed in parallel.
+ *
+ * Offsets are committed by the runtime itself (make sure {@code enable.auto.commit} is {@code false} on the given consumer),
+ * and only up to the highest <i>contiguous</i> completed offset per partition (see {@link OffsetTracker}).
+ * The number of records in flight is bounded: when the window is full all assigned partitions are paused, and they are resumed
+ * when the workers caught up again.
+ *
+ * In the virtual-thread execution mode (see {@link Threads}) every worker lane runs on its own virtual thread,
+ * so a large number of workers (key groups) can be used for I/O bound handlers.
+ *
+ * <pre>{@code
+ *   ParallelStreamConsumer runtime = clientFactory.createParallelStreamConsumer(null)
+ *                                       .subscribe(streamsParser.subscriptionPatternFor(myStreams))
+ *                                       .setHandler(record -> process(record.key(), record.value()))
+ *                                       .setWorkers(32)
+ *                                       .build();
+ *
+ *   new Thread(runtime).start();
+ *   . . .
+ *   runtime.close();
+ * }</pre>
+ */
+public class ParallelStreamConsumer implements Runnable, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelStreamConsumer.class);
+
+    /**
+     * Function handling a single record.
+     * When it throws, the error handler is called and the record is considered processed.
+     */
+    public interface RecordHandler {
+        void handle(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record) throws Exception;
+    }
+
+    /**
+     * Builder class to configure the parallel consumer
+     */
+    public static class Builder {
+        private final Consumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer;
+        private RecordHandler handler;
+        private BiConsumer<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>, Exception> errorHandler =
+                (record, e) -> logger.error("error handling record - topic: {}, partition: {}, offset: {} - {}", record.topic(), record.partition(), record.offset(), e.getMessage(), e);
+        private Pattern subscribePattern;
+        private Collection<String> subscribeTopics;
+        private StreamSubscription subscription;
+        private int workers = Runtime.getRuntime().availableProcessors();
+        private int maxInFlight = 10000;
+        private Duration pollTimeout = Duration.ofMillis(100);
+        private Duration commitInterval = Duration.ofSeconds(5);
+        private ThreadFactory threadFactory;
+
+        /**
+         * @param consumer the underlying consumer (with {@code enable.auto.commit} set to {@code false})
+         */
+        public Builder(Consumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer) { this.consumer = Objects.requireNonNull(consumer); }
+
+        /**
+         * Subscribe to all topics matching the given pattern.
+         * @param pattern subscription pattern (e.g. from {@link dsh.sdk.streams.StreamsConfigParser#subscriptionPatternFor(Collection)})
+         * @return Builder
+         */
+        public Builder subscribe(Pattern pattern) { this.subscribePattern = pattern; this.subscribeTopics = null; this.subscription = null; return this; }
+
+        /**
+         * Subscribe to the given list of topics.
+         * @param topics topics to consume from
+         * @return Builder
+         */
+        public Builder subscribe(Collection<String> topics) { this.subscribeTopics = new ArrayList<>(topics); this.subscribePattern = null; this.subscription = null; return this; }
+
+        /**
+         * Subscribe to the resolved topics of a set of streams, refreshed from the poll loop.
+         * @param subscription stream subscription (e.g. from {@link dsh.sdk.kafka.KafkaClientFactory#createStreamSubscription(Collection)})
+         * @return Builder
+         */
+        public Builder subscribe(StreamSubscription subscription) { this.subscription = subscription; this.subscribePattern = null; this.subscribeTopics = null; return this; }
+
+        /**
+         * @param handler the function processing the individual records
+         * @return Builder
+         */
+        public Builder setHandler(RecordHandler handler) { this.handler = handler; return this; }
+
+        /**
+         * @param errorHandler function called when the handler throws for a record
+         * @return Builder
+         */
+        public Builder setErrorHandler(BiConsumer<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>, Exception> errorHandler) { this.errorHandler = errorHandler; return this; }
+
+        /**
+         * @param workers number of worker threads (defaults to the number of available processors)
+         * @return Builder
+         */
+        public Builder setWorkers(int workers) { this.workers = workers; return this; }
+
+        /**
+         * @param maxInFlight the number of records in flight at which the partitions get paused
+         * @return Builder
+         */
+        public Builder setMaxInFlight(int maxInFlight) { this.maxInFlight = maxInFlight; return this; }
+
+        /**
+         * @param pollTimeout maximum time a single poll on the underlying consumer blocks
+         * @return Builder
+         */
+        public Builder setPollTimeout(Duration pollTimeout) { this.pollTimeout = pollTimeout; return this; }
+
+        /**
+         * @param commitInterval interval between (asynchronous) offset commits
+         * @return Builder
+         */
+        public Builder setCommitInterval(Duration commitInterval) { this.commitInterval = commitInterval; return this; }
+
+        /**
+         * @param threadFactory factory for the worker threads (defaults to {@link Threads#ioThreadFactory(String, boolean)})
+         * @return Builder
+         */
+        public Builder setThreadFactory(ThreadFactory threadFactory) { this.threadFactory = threadFactory; return this; }
+
+        /**
+         * Validate the configuration and create the runtime.
+         * @return a runtime that can be started by calling {@link #run()}
+         * @exception IllegalArgumentException on missing or invalid configuration
+         */
+        public ParallelStreamConsumer build() {
+            if(handler == null) throw new IllegalArgumentException("no record handler configured");
+            if(subscribePattern == null && subscribeTopics == null && subscription == null) throw new IllegalArgumentException("no subscription configured");
+            if(workers < 1 || maxInFlight < 1) throw new IllegalArgumentException("workers and max-in-flight need to be positive");
+            return new ParallelStreamConsumer(this);
+        }
+    }
+
+    private final Consumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer;
+    private final RecordHandler handler;
+    private final BiConsumer<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>, Exception> errorHandler;
+    private final Pattern subscribePattern;
+    private final Collection<String> subscribeTopics;
+    private final StreamSubscription subscription;
+    private final ExecutorService[] lanes;
+    private final int maxInFlight;
+    private final Duration pollTimeout;
+    private final long commitIntervalMs;
+
+    private final OffsetTracker tracker = new OffsetTracker();
+    private volatile boolean running = true;
+    private boolean paused = false;
+    private long lastCommit = 0L;
+
+    private ParallelStreamConsumer(Builder builder) {
+        this.consumer = builder.consumer;
+        this.handler = builder.handler;
+        this.errorHandler = builder.errorHandler;
+        this.subscribePattern = builder.subscribePattern;
+        this.subscribeTopics = builder.subscribeTopics;
+        this.subscription = builder.subscription;
+        this.maxInFlight = builder.maxInFlight;
+        this.pollTimeout = builder.pollTimeout;
+        this.commitIntervalMs = builder.commitInterval.toMillis();
+
+        ThreadFactory threadFactory = builder.threadFactory != null ? builder.threadFactory : Threads.ioThreadFactory("dsh-parallel-consumer", true);
+        this.lanes = new ExecutorService[builder.workers];
+        for(int i = 0; i < lanes.length; i++) lanes[i] = Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    // all records for the same key end up in the same lane -- lanes process their records sequentially
+    private int laneFor(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record) {
+        int hash = record.key() != null ? record.key().getKey().hashCode() : record.partition();
+        return Utils.toPositive(hash) % lanes.length;
+    }
+
+    private void dispatch(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record) {
+        TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+        tracker.start(tp, record.offset());
+        lanes[laneFor(record)].execute(() -> {
+            try {
+                handler.handle(record);
+            }
+            catch (Exception e) {
+                errorHandler.accept(record, e);
+            }
+            finally {
+                tracker.complete(tp, record.offset());
+            }
+        });
+    }
+
+    // pause all partitions when the in-flight window is full, resume when it is half empty again
+    private void applyBackpressure() {
+        int inFlight = tracker.inFlight();
+        if(! paused && inFlight >= maxInFlight) {
+            logger.debug("pausing consumption - {} records in flight", inFlight);
+            consumer.pause(consumer.assignment());
+            paused = true;
+        }
+        else if(paused && inFlight <= maxInFlight / 2) {
+            logger.debug("resuming consumption - {} records in flight", inFlight);
+            consumer.resume(consumer.paused());
+            paused = false;
+        }
+        else if(paused) {
+            // newly assigned partitions need to be paused as well
+            consumer.pause(consumer.assignment());
+        }
+    }
+
+    private void commit(boolean sync) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = tracker.committable(true);
+        lastCommit = System.currentTimeMillis();
+        if(offsets.isEmpty()) return;
+
+        if(sync) consumer.commitSync(offsets);
+        else consumer.commitAsync(offsets, (o, e) -> { if(e != null) logger.warn("offset commit failed - {}", e.getMessage()); });
+    }
+
+    private final ConsumerRebalanceListener rebalanceListener = new ConsumerRebalanceListener() {
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            // let the workers finish what was handed out for these partitions, so the final commit is complete
+            try {
+                if(! tracker.awaitIdle(partitions, Long.MAX_VALUE)) logger.warn("revoked partitions still have records in flight");
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            commit(true);
+            tracker.remove(partitions);
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {}
+
+        @Override
+        public void onPartitionsLost(Collection<TopicPartition> partitions) {
+            // someone else already owns these partitions -- committing is not allowed anymore
+            tracker.remove(partitions);
+        }
+    };
+
+    /**
+     * Run the poll loop on the calling thread, until {@link #close()} is called.
+     */
+    @Override
+    public void run() {
+        if(subscribePattern != null) consumer.subscribe(subscribePattern, rebalanceListener);
+        else if(subscription != null) subscription.subscribe(consumer, rebalanceListener);
+        else consumer.subscribe(subscribeTopics, rebalanceListener);
+
+        try {
+            while(running) {
+                if(subscription != null) {
+                    subscription.refresh(consumer);
+                    // none of the topics of the streams exist yet: a consumer without subscription can not be polled
+                    if(! subscription.isSubscribed()) {
+                        if(! StreamSubscription.idle(pollTimeout)) running = false;
+                        continue;
+                    }
+                }
+                ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> records = consumer.poll(pollTimeout);
+                records.forEach(this::dispatch);
+
+                applyBackpressure();
+                if(System.currentTimeMillis() - lastCommit >= commitIntervalMs) commit(false);
+            }
+        }
+        catch (WakeupException e) {
+            if(running) throw e;
+        }
+        finally {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        Arrays.stream(lanes).forEach(ExecutorService::shutdown);
+        try {
+            for(ExecutorService lane: lanes) lane.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            commit(true);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            consumer.close();
+        }
+    }
+
+    /**
+     * The number of records currently handed out to the workers that are not yet committable.
+     *
+     * @return records in flight
+     */
+    public int inFlight() { return tracker.inFlight(); }
+
+    /**
+     * Stop the poll loop.
+     * The records that are already handed out will be processed and committed before the consumer gets closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        consumer.wakeup();
+    }
+}
@@ -0,0 +1,335 @@
+package dsh.sdk.kafka.consumers;
+
+import dsh.messages.DataStream;
+import dsh.messages.KeyExtractor;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Forwards the records of one or more streams to a destination stream, without deserializing the envelopes.
+ *
+ * The relay consumes the raw bytes, locates only the key string inside the serialized {@code KeyEnvelope}
+ * (see {@link KeyExtractor}) to compute the destination partition with the partitioner of the destination stream,
+ * and produces the original key, value, headers and timestamp unchanged to the destination's produce topic.
+ *
+ * Two delivery modes are supported:
+ * <ul>
+ *   <li><b>at-least-once</b> (default) -- the producer is flushed before the consumed offsets are committed,
+ *       once per commit interval.  A failed send stops the relay before its offset gets committed.</li>
+ *   <li><b>exactly-once</b> ({@link Builder#setTransactional(boolean)}) -- every polled batch is produced in a transaction,
+ *       together with the consumed offsets.  The producer needs a {@code transactional.id}, and downstream consumers
+ *       should use {@code isolation.level=read_committed}.  An aborted transaction rewinds the consumer to the last committed offsets.</li>
+ * </ul>
+ * In both modes the consumer needs {@code enable.auto.commit} set to {@code false}.
+ *
+ * <pre>{@code
+ *   StreamRelay relay = clientFactory.createStreamRelay(null, DataStream.of("stream", "destination"), false)
+ *                          .subscribe(streamsParser.subscriptionPatternFor(sourceStream))
+ *                          .build();
+ *
+ *   new Thread(relay).start();
+ *   . . .
+ *   relay.close();
+ * }</pre>
+ */
+public class StreamRelay implements Runnable, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(StreamRelay.class);
+
+    /**
+     * Builder class to configure the relay
+     */
+    public static class Builder {
+        private final Consumer<byte[], byte[]> consumer;
+        private final Producer<byte[], byte[]> producer;
+        private final StreamsConfigParser parser;
+        private DataStream destination;
+        private Pattern subscribePattern;
+        private Collection<String> subscribeTopics;
+        private StreamSubscription subscription;
+        private boolean transactional = false;
+        private Duration pollTimeout = Duration.ofMillis(100);
+        private Duration commitInterval = Duration.ofSeconds(5);
+
+        /**
+         * @param consumer the raw consumer to read from (with {@code enable.auto.commit} set to {@code false})
+         * @param producer the raw producer to write with
+         * @param parser the stream contracts, to find the produce topic and partitioner of the destination
+         */
+        public Builder(Consumer<byte[], byte[]> consumer, Producer<byte[], byte[]> producer, StreamsConfigParser parser) {
+            this.consumer = Objects.requireNonNull(consumer);
+            this.producer = Objects.requireNonNull(producer);
+            this.parser = Objects.requireNonNull(parser);
+        }
+
+        /**
+         * @param destination the stream to forward the records to
+         * @return Builder
+         */
+        public Builder setDestination(DataStream destination) { this.destination = destination; return this; }
+
+        /**
+         * Subscribe to all topics matching the given pattern.
+         * @param pattern subscription pattern (e.g. from {@link StreamsConfigParser#subscriptionPatternFor(Collection)})
+         * @return Builder
+         */
+        public Builder subscribe(Pattern pattern) { this.subscribePattern = pattern; this.subscribeTopics = null; this.subscription = null; return this; }
+
+        /**
+         * Subscribe to the given list of topics.
+         * @param topics topics to consume from
+         * @return Builder
+         */
+        public Builder subscribe(Collection<String> topics) { this.subscribeTopics = new ArrayList<>(topics); this.subscribePattern = null; this.subscription = null; return this; }
+
+        /**
+         * Subscribe to the resolved topics of a set of streams, refreshed from the poll loop.
+         * @param subscription stream subscription
+         * @return Builder
+         */
+        public Builder subscribe(StreamSubscription subscription) { this.subscription = subscription; this.subscribePattern = null; this.subscribeTopics = null; return this; }
+
+        /**
+         * @param transactional produce every polled batch and its offsets in a transaction (exactly-once),
+         *                      the producer needs to be configured with a {@code transactional.id}
+         * @return Builder
+         */
+        public Builder setTransactional(boolean transactional) { this.transactional = transactional; return this; }
+
+        /**
+         * @param pollTimeout maximum time a single poll on the consumer blocks
+         * @return Builder
+         */
+        public Builder setPollTimeout(Duration pollTimeout) { this.pollTimeout = pollTimeout; return this; }
+
+        /**
+         * @param commitInterval interval between offset commits in at-least-once mode
+         * @return Builder
+         */
+        public Builder setCommitInterval(Duration commitInterval) { this.commitInterval = commitInterval; return this; }
+
+        /**
+         * Validate the configuration and create the relay.
+         * @return a relay that can be started by calling {@link #run()}
+         * @exception IllegalArgumentException on missing or invalid configuration
+         */
+        public StreamRelay build() {
+            if(destination == null) throw new IllegalArgumentException("no destination stream configured");
+            if(subscribePattern == null && subscribeTopics == null && subscription == null) throw new IllegalArgumentException("no subscription configured");
+            StreamsConfigParser.StreamContract contract = parser.findStream(destination)
+                    .orElseThrow(() -> new IllegalArgumentException("no contract found for stream " + destination));
+            if(! contract.produceTopic().isPresent()) throw new IllegalArgumentException("producing to stream " + destination + " is not allowed");
+            return new StreamRelay(this, contract.produceTopic().get(), contract.partitioner());
+        }
+    }
+
+    private final Consumer<byte[], byte[]> consumer;
+    private final Producer<byte[], byte[]> producer;
+    private final String topic;
+    private final BiFunction<String, Integer, Integer> partitioner;
+    private final Pattern subscribePattern;
+    private final Collection<String> subscribeTopics;
+    private final StreamSubscription subscription;
+    private final boolean transactional;
+    private final Duration pollTimeout;
+    private final long commitIntervalMs;
+
+    // the first failed send in at-least-once mode (transactions keep their own)
+    private final AtomicReference<Exception> sendError = new AtomicReference<>();
+    private final AtomicLong relayed = new AtomicLong();
+    private volatile boolean running = true;
+    private long lastCommit = 0L;
+
+    private StreamRelay(Builder builder, String topic, BiFunction<String, Integer, Integer> partitioner) {
+        this.consumer = builder.consumer;
+        this.producer = builder.producer;
+        this.topic = topic;
+        this.partitioner = partitioner;
+        this.subscribePattern = builder.subscribePattern;
+        this.subscribeTopics = builder.subscribeTopics;
+        this.subscription = builder.subscription;
+        this.transactional = builder.transactional;
+        this.pollTimeout = builder.pollTimeout;
+        this.commitIntervalMs = builder.commitInterval.toMillis();
+    }
+
+    // the original record, re-addressed to the destination partition
+    private ProducerRecord<byte[], byte[]> forward(ConsumerRecord<byte[], byte[]> record, int partitions) {
+        Integer partition = null;
+        if(record.key() != null) {
+            long range = KeyExtractor.keyRange(record.key());
+            // an empty key is not present on the wire
+            String key = range == KeyExtractor.NOT_FOUND ? "" : new String(record.key(), KeyExtractor.offset(range), KeyExtractor.length(range), StandardCharsets.UTF_8);
+            partition = partitioner.apply(key, partitions);
+        }
+        return new ProducerRecord<>(topic, partition, record.timestamp(), record.key(), record.value(), record.headers());
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> positions(ConsumerRecords<byte[], byte[]> records) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for(TopicPartition tp: records.partitions()) {
+            List<ConsumerRecord<byte[], byte[]>> partitionRecords = records.records(tp);
+            offsets.put(tp, new OffsetAndMetadata(partitionRecords.get(partitionRecords.size() - 1).offset() + 1));
+        }
+        return offsets;
+    }
+
+    // the first failed send is kept in the given error holder
+    private void relay(ConsumerRecords<byte[], byte[]> records, AtomicReference<Exception> error) {
+        int partitions = producer.partitionsFor(topic).size();
+        for(ConsumerRecord<byte[], byte[]> record: records) {
+            producer.send(forward(record, partitions), (metadata, e) -> {
+                if(e != null) error.compareAndSet(null, e);
+            });
+        }
+    }
+
+    private void relayTransactional(ConsumerRecords<byte[], byte[]> records) {
+        // send errors only concern the transaction they happened in: after an abort they (and the sends failed by the abort) are dropped
+        AtomicReference<Exception> transactionError = new AtomicReference<>();
+        producer.beginTransaction();
+        try {
+            relay(records, transactionError);
+            producer.flush();
+            if(transactionError.get() != null) throw new KafkaException("relaying records failed", transactionError.get());
+            producer.sendOffsetsToTransaction(positions(records), consumer.groupMetadata());
+            producer.commitTransaction();
+            relayed.addAndGet(records.count());
+        }
+        catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException e) {
+            // fatal: another instance took over, or the producer can not continue
+            throw e;
+        }
+        catch (KafkaException e) {
+            logger.warn("relay transaction aborted - {}", e.getMessage());
+            producer.abortTransaction();
+            rewind();
+        }
+    }
+
+    // continue from the last committed offsets after an aborted transaction
+    private void rewind() {
+        Set<TopicPartition> assigned = consumer.assignment();
+        Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(assigned);
+        for(TopicPartition tp: assigned) {
+            OffsetAndMetadata offset = committed.get(tp);
+            if(offset != null) consumer.seek(tp, offset);
+            else consumer.seekToBeginning(Collections.singleton(tp));
+        }
+    }
+
+    private void commit() {
+        producer.flush();
+        throwOnSendError();
+        consumer.commitSync();
+        lastCommit = System.currentTimeMillis();
+    }
+
+    private void throwOnSendError() {
+        Exception e = sendError.get();
+        if(e != null) throw new KafkaException("relaying records failed", e);
+    }
+
+    private final ConsumerRebalanceListener rebalanceListener = new ConsumerRebalanceListener() {
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            // in transactional mode every batch is already committed with its transaction
+            if(! transactional) commit();
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {}
+    };
+
+    /**
+     * Run the relay on the calling thread, until {@link #close()} is called.
+     *
+     * @exception KafkaException when records could not be relayed
+     */
+    @Override
+    public void run() {
+        if(transactional) producer.initTransactions();
+        if(subscribePattern != null) consumer.subscribe(subscribePattern, rebalanceListener);
+        else if(subscription != null) subscription.subscribe(consumer, rebalanceListener);
+        else consumer.subscribe(subscribeTopics, rebalanceListener);
+
+        boolean clean = false;
+        try {
+            while(running) {
+                if(subscription != null) {
+                    subscription.refresh(consumer);
+                    // none of the topics of the streams exist yet: a consumer without subscription can not be polled
+                    if(! subscription.isSubscribed()) {
+                        if(! StreamSubscription.idle(pollTimeout)) running = false;
+                        continue;
+                    }
+                }
+                ConsumerRecords<byte[], byte[]> records = consumer.poll(pollTimeout);
+                if(! records.isEmpty()) {
+                    if(transactional) relayTransactional(records);
+                    else {
+                        relay(records, sendError);
+                        relayed.addAndGet(records.count());
+                    }
+                }
+                if(! transactional) {
+                    throwOnSendError();
+                    if(System.currentTimeMillis() - lastCommit >= commitIntervalMs) commit();
+                }
+            }
+            clean = true;
+        }
+        catch (WakeupException e) {
+            if(running) throw e;
+            clean = true;
+        }
+        finally {
+            try {
+                if(clean && ! transactional) commit();
+            }
+            finally {
+                consumer.close();
+                producer.close();
+            }
+        }
+    }
+
+    /**
+     * The number of records relayed (in transactional mode: in committed transactions) so far.
+     *
+     * @return records relayed
+     */
+    public long relayed() { return relayed.get(); }
+
+    /**
+     * Stop the relay.
+     * In at-least-once mode the producer is flushed and the offsets committed before the clients get closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        consumer.wakeup();
+    }
+}
@@ -0,0 +1,205 @@
+package dsh.sdk.kafka.consumers;
+
+import dsh.messages.DataStream;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Subscription on the concrete topics of a set of streams, as an alternative for a pattern subscription.
+ *
+ * With {@code subscribe(Pattern)} the Kafka client requests the metadata of <i>all</i> topics in the cluster on every metadata refresh,
+ * and matches the pattern against every topic name -- expensive on clusters with tens of thousands of topics.
+ * This subscription resolves the topics of the streams once (from the stream contracts and the topic names in the cluster,
+ * see {@link StreamsConfigParser#topicsFor(Collection, Collection)}) and subscribes to the explicit topic list,
+ * so the client only fetches metadata for those topics.
+ *
+ * The topics are checked again from the poll loop by {@link #refresh(Consumer)}, in two ways:
+ * <ul>
+ *   <li>once per refresh interval, the subscribed topics are looked up with {@code partitionsFor}: only their metadata is fetched,
+ *       and topics that were removed are dropped</li>
+ *   <li>once per (longer) discovery interval, the topics are resolved again from all topic names in the cluster and the current
+ *       stream contracts, to find new topics of the streams</li>
+ * </ul>
+ * The consumer is only re-subscribed when the topics actually differ.
+ *
+ * When none of the topics of the streams exist yet, the consumer is not subscribed and must not be polled
+ * (see {@link #isSubscribed()}); the topics are then looked up once per refresh interval.
+ * When all topics of the streams disappear, the consumer keeps its last subscription.
+ *
+ * Like the consumer itself, the subscribe and refresh functions must be called from the polling thread.
+ *
+ * <pre>{@code
+ *   StreamSubscription subscription = new StreamSubscription(() -> streamsParser, myStreams);
+ *   subscription.subscribe(consumer);
+ *
+ *   while(running) {
+ *       subscription.refresh(consumer);
+ *       if(! subscription.isSubscribed()) { Thread.sleep(100); continue; }
+ *       ConsumerRecords<KeyEnvelope, DataEnvelope> records = consumer.poll(Duration.ofMillis(100));
+ *       . . .
+ *   }
+ * }</pre>
+ */
+public class StreamSubscription {
+    private static final Logger logger = LoggerFactory.getLogger(StreamSubscription.class);
+    private static final Duration METADATA_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Supplier<StreamsConfigParser> contracts;
+    private final Collection<DataStream> streams;
+    private final long refreshIntervalMs;
+    private final long discoveryIntervalMs;
+
+    private ConsumerRebalanceListener listener;
+    private List<String> topics = Collections.emptyList();
+    private long lastRefresh = 0L;
+    private long lastDiscovery = 0L;
+
+    /**
+     * Subscription checking the subscribed topics every 5 minutes, and looking for new topics every hour.
+     *
+     * @param contracts provides the current stream contracts
+     * @param streams the streams to consume
+     */
+    public StreamSubscription(Supplier<StreamsConfigParser> contracts, Collection<DataStream> streams) {
+        this(contracts, streams, Duration.ofMinutes(5));
+    }
+
+    /**
+     * Subscription looking for new topics every hour.
+     *
+     * @param contracts provides the current stream contracts
+     * @param streams the streams to consume
+     * @param refreshInterval interval between checks for removed topics
+     */
+    public StreamSubscription(Supplier<StreamsConfigParser> contracts, Collection<DataStream> streams, Duration refreshInterval) {
+        this(contracts, streams, refreshInterval, Duration.ofHours(1));
+    }
+
+    /**
+     * @param contracts provides the current stream contracts
+     * @param streams the streams to consume
+     * @param refreshInterval interval between checks for removed topics
+     * @param discoveryInterval interval between checks for new topics, which fetch the names of all topics in the cluster
+     */
+    public StreamSubscription(Supplier<StreamsConfigParser> contracts, Collection<DataStream> streams, Duration refreshInterval, Duration discoveryInterval) {
+        if(streams.isEmpty()) throw new IllegalArgumentException("no streams to subscribe to");
+        this.contracts = Objects.requireNonNull(contracts);
+        this.streams = new ArrayList<>(streams);
+        this.refreshIntervalMs = refreshInterval.toMillis();
+        this.discoveryIntervalMs = discoveryInterval.toMillis();
+    }
+
+    /**
+     * Resolve the topics and subscribe the consumer to them.
+     *
+     * @param consumer the consumer to subscribe
+     */
+    public void subscribe(Consumer<?, ?> consumer) { subscribe(consumer, null); }
+
+    /**
+     * Resolve the topics and subscribe the consumer to them.
+     *
+     * @param consumer the consumer to subscribe
+     * @param listener rebalance listener, also used when re-subscribing after a refresh (can be {@code null})
+     */
+    public void subscribe(Consumer<?, ?> consumer, ConsumerRebalanceListener listener) {
+        this.listener = listener;
+        this.topics = resolve(consumer);
+        this.lastRefresh = System.currentTimeMillis();
+        this.lastDiscovery = lastRefresh;
+        if(topics.isEmpty()) {
+            logger.warn("no topics found for streams {} - not subscribed yet", streams);
+            consumer.unsubscribe();
+        }
+        else apply(consumer);
+    }
+
+    /**
+     * Check the subscribed topics when the refresh interval expired, or re-resolve all topics of the streams
+     * when the discovery interval expired (the refresh interval as long as no topics were found),
+     * and re-subscribe the consumer when the topics are different.
+     * A failing metadata lookup, or finding no topics at all, keeps the current subscription.
+     *
+     * @param consumer the subscribed consumer
+     * @return {@code true} when the consumer was re-subscribed
+     */
+    public boolean refresh(Consumer<?, ?> consumer) {
+        long now = System.currentTimeMillis();
+        // without topics there is nothing to check: look for them once per refresh interval instead
+        boolean discover = now - lastDiscovery >= (topics.isEmpty() ? Math.min(refreshIntervalMs, discoveryIntervalMs) : discoveryIntervalMs);
+        if(! discover && now - lastRefresh < refreshIntervalMs) return false;
+        lastRefresh = now;
+        if(discover) lastDiscovery = now;
+
+        List<String> resolved;
+        try {
+            resolved = discover ? resolve(consumer) : existing(consumer);
+        }
+        catch (TimeoutException | NoSuchElementException e) {
+            logger.warn("could not refresh the topics of streams {} - {}", streams, e.getMessage());
+            return false;
+        }
+        if(resolved.equals(topics)) return false;
+        if(resolved.isEmpty()) {
+            logger.warn("no topics found anymore for streams {} - keeping the subscription on {}", streams, topics);
+            return false;
+        }
+
+        logger.info("topics of streams {} changed from {} to {}", streams, topics, resolved);
+        topics = resolved;
+        apply(consumer);
+        return true;
+    }
+
+    /**
+     * @return the topics currently subscribed to
+     */
+    public List<String> topics() { return Collections.unmodifiableList(topics); }
+
+    /**
+     * @return whether the consumer is subscribed: {@code false} as long as none of the topics of the streams exist,
+     *         in which case the consumer can not be polled
+     */
+    public boolean isSubscribed() { return ! topics.isEmpty(); }
+
+    // wait instead of polling a consumer that is not subscribed yet
+    // returns false when the waiting thread got interrupted
+    static boolean idle(Duration timeout) {
+        try {
+            Thread.sleep(timeout.toMillis());
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private List<String> resolve(Consumer<?, ?> consumer) {
+        return contracts.get().topicsFor(consumer.listTopics(METADATA_TIMEOUT).keySet(), streams);
+    }
+
+    // only fetches the metadata of the subscribed topics
+    private List<String> existing(Consumer<?, ?> consumer) {
+        List<String> existing = new ArrayList<>();
+        for(String topic: topics) {
+            List<PartitionInfo> partitions = consumer.partitionsFor(topic, METADATA_TIMEOUT);
+            if(partitions != null && ! partitions.isEmpty()) existing.add(topic);
+        }
+        return existing;
+    }
+
+    private void apply(Consumer<?, ?> consumer) {
+        if(listener != null) consumer.subscribe(topics, listener);
+        else consumer.subscribe(topics);
+    }
+}
@@ -1,22 +1,31 @@
 package dsh.sdk.kafka.partitioners;
 
 import dsh.messages.Envelope;
+import dsh.sdk.metrics.StreamMetrics;
 import dsh.sdk.streams.StreamsConfigParser;
 import org.apache.kafka.clients.producer.Partitioner;
 import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
 import org.apache.kafka.common.Cluster;
 
 import java.util.Map;
+import java.util.function.BiFunction;
 
 /**
  * A Kafka Partitioner implementation that uses the generic {@link DshStreamPartitioner}
+ *
+ * Records on topics without a stream contract are partitioned by the default Kafka partitioner;
+ * they are counted as partitioner fallbacks in the {@link StreamMetrics}.
  */
 public class DynamicStreamPartitioner implements Partitioner {
 
     private DshStreamPartitioner underlying;
     private final Partitioner defaultPartitioner = new DefaultPartitioner();
+    private StreamMetrics metrics = StreamMetrics.global();
     public static final String CONFIG_KEY = "__dynamicstreampartitioner";
 
+    // cached by the stream partitioner for topics without a contract: marks the records to fall back on the default partitioner
+    private static final BiFunction<String, Integer, Integer> NO_CONTRACT = (unused1, unused2) -> -1;
+
     /**
      * This constructor will not be used when this partitioner gets configured in the producer properties.
      * It is only valid for testing purposes, or for usage in Frameworks that let you construct the Kafka partitioner yourself.
@@ -48,6 +57,7 @@ public class DynamicStreamPartitioner implements Partitioner {
     @Override
     public void configure(Map<String, ?> configs) {
         if(underlying == null && configs.containsKey(CONFIG_KEY)) underlying = new DshStreamPartitioner((StreamsConfigParser)configs.get(CONFIG_KEY));
+        metrics = StreamMetrics.of(configs);
         defaultPartitioner.configure(configs);
     }
 
@@ -68,13 +78,11 @@ public class DynamicStreamPartitioner implements Partitioner {
                                                             : key instanceof String ? (String)key
                                                                                     : new String(keyBytes);
 
-        return (underlying != null)
-                ? underlying.partition(
-                                topic,
-                                keyStr,
-                                cluster.partitionCountForTopic(topic),
-                                (unused1, unused2) -> defaultPartitioner.partition(topic, key, keyBytes, value, valueBytes, cluster)
-                            )
-                : defaultPartitioner.partition(topic, key, keyBytes, value, valueBytes, cluster);
+        int partition = (underlying != null) ? underlying.partition(topic, keyStr, cluster.partitionCountForTopic(topic), NO_CONTRACT) : -1;
+        if(partition >= 0) return partition;
+
+        // the fallback is decided per record: the stream partitioner caches the function, not the partition of the first record
+        metrics.counters(topic).partitionerFallback();
+        return defaultPartitioner.partition(topic, key, keyBytes, value, valueBytes, cluster);
     }
 }
@@ -0,0 +1,311 @@
+package dsh.sdk.kafka.producers;
+
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.messages.EnvelopeBatch;
+import dsh.messages.Serdes;
+import dsh.sdk.internal.Threads;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.SerializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Packs small envelopes that go to the same key or the same partition into a single Kafka record (see {@link EnvelopeBatch}).
+ *
+ * Every Kafka record carries a fixed overhead (record header, key, headers), which dominates for small payloads.
+ * This producer collects the envelopes per group -- the key, or the partition of a stream -- and publishes a group
+ * as one record when
+ * <ul>
+ *   <li>the next envelope would make the batch larger than the maximum batch size</li>
+ *   <li>it reached the maximum number of envelopes</li>
+ *   <li>its first envelope waited for the linger time</li>
+ *   <li>{@link #flush()} or {@link #close()} is called</li>
+ * </ul>
+ * A batch holding a single envelope is published as a plain record.  Tombstones are never batched: they publish
+ * the pending batch of their group first, and are sent on their own right after.
+ *
+ * Consumers need to unpack the batches: configure the {@link dsh.sdk.kafka.consumers.EnvelopeBatchInterceptor} on them,
+ * or use {@link EnvelopeBatch#forEach(byte[], byte[], java.util.function.BiConsumer)} on raw records.
+ * With {@link Grouping#PARTITION} the batch record carries the key of its first envelope: only group by key on
+ * compacted streams.
+ *
+ * All functions are thread safe.
+ *
+ * <pre>{@code
+ *   BatchingProducer producer = clientFactory.createBatchingProducer(null)
+ *                                   .setGrouping(BatchingProducer.Grouping.PARTITION)
+ *                                   .setLinger(Duration.ofMillis(20))
+ *                                   .build();
+ *
+ *   producer.send(stream, key, value);
+ * }</pre>
+ */
+public class BatchingProducer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BatchingProducer.class);
+
+    /**
+     * What envelopes end up in the same batch.
+     */
+    public enum Grouping {
+        /** envelopes with the same key string, on the same stream */
+        KEY,
+        /** envelopes for the same partition of a stream */
+        PARTITION
+    }
+
+    public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+    public static final int DEFAULT_MAX_BATCH_RECORDS = 500;
+    public static final Duration DEFAULT_LINGER = Duration.ofMillis(10);
+
+    /**
+     * Builder class to construct the batching producer
+     */
+    public static class Builder {
+        private final Producer<byte[], byte[]> producer;
+        private final StreamsConfigParser parser;
+        private Grouping grouping = Grouping.KEY;
+        private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+        private int maxBatchRecords = DEFAULT_MAX_BATCH_RECORDS;
+        private Duration linger = DEFAULT_LINGER;
+        private ThreadFactory threadFactory = Threads.platformThreadFactory("batching-producer", true);
+
+        /**
+         * @param producer raw producer (see {@link dsh.sdk.kafka.KafkaClientFactory#createRawStreamProducer(Properties)})
+         * @param parser the stream contracts
+         */
+        public Builder(Producer<byte[], byte[]> producer, StreamsConfigParser parser) {
+            this.producer = Objects.requireNonNull(producer);
+            this.parser = Objects.requireNonNull(parser);
+        }
+
+        /**
+         * @param grouping what envelopes to batch together (default {@link Grouping#KEY})
+         * @return this builder
+         */
+        public Builder setGrouping(Grouping grouping) { this.grouping = Objects.requireNonNull(grouping); return this; }
+
+        /**
+         * @param bytes maximum size of the serialized batch (default {@value #DEFAULT_MAX_BATCH_BYTES})
+         * @return this builder
+         */
+        public Builder setMaxBatchBytes(int bytes) { this.maxBatchBytes = bytes; return this; }
+
+        /**
+         * @param records maximum number of envelopes in a batch (default {@value #DEFAULT_MAX_BATCH_RECORDS})
+         * @return this builder
+         */
+        public Builder setMaxBatchRecords(int records) { this.maxBatchRecords = records; return this; }
+
+        /**
+         * @param linger maximum time the first envelope of a batch waits before the batch gets published (default 10ms)
+         * @return this builder
+         */
+        public Builder setLinger(Duration linger) { this.linger = Objects.requireNonNull(linger); return this; }
+
+        /**
+         * @param threadFactory factory for the thread publishing the lingering batches
+         * @return this builder
+         */
+        public Builder setThreadFactory(ThreadFactory threadFactory) { this.threadFactory = Objects.requireNonNull(threadFactory); return this; }
+
+        /**
+         * @return the batching producer
+         * @exception IllegalArgumentException when the limits are not positive
+         */
+        public BatchingProducer build() {
+            if(maxBatchBytes <= 0) throw new IllegalArgumentException("maximum batch size should be positive");
+            if(maxBatchRecords <= 0) throw new IllegalArgumentException("maximum number of records in a batch should be positive");
+            if(linger.isNegative()) throw new IllegalArgumentException("linger time can not be negative");
+            return new BatchingProducer(this);
+        }
+    }
+
+    // the envelopes that end up in the same batch: same topic and partition, and for KEY grouping the same key
+    private static class Group {
+        final String topic;
+        final int partition;
+        final String key;
+
+        Group(String topic, int partition, String key) {
+            this.topic = topic;
+            this.partition = partition;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof Group)) return false;
+            Group other = (Group) o;
+            return partition == other.partition && topic.equals(other.topic) && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() { return Objects.hash(topic, partition, key); }
+    }
+
+    // the envelopes collected for a group
+    private static class Batch {
+        final byte[] recordKey;
+        final List<byte[]> keys = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>();
+        final List<CompletableFuture<RecordMetadata>> futures = new ArrayList<>();
+        int bytes = 0;
+        ScheduledFuture<?> expiry;
+
+        Batch(byte[] recordKey) { this.recordKey = recordKey; }
+    }
+
+    private final Producer<byte[], byte[]> producer;
+    private final StreamTargets targets;
+    private final Grouping grouping;
+    private final int maxBatchBytes;
+    private final int maxBatchRecords;
+    private final long lingerMs;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Map<Group, Batch> batches = new HashMap<>();
+    private volatile boolean closed = false;
+
+    private BatchingProducer(Builder builder) {
+        this.producer = builder.producer;
+        this.targets = new StreamTargets(builder.parser);
+        this.grouping = builder.grouping;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.maxBatchRecords = builder.maxBatchRecords;
+        this.lingerMs = builder.linger.toMillis();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, builder.threadFactory);
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Add an envelope to the batch of its group.
+     *
+     * @param stream the stream to publish to
+     * @param key the key envelope
+     * @param value the data envelope (or {@code null} for a tombstone, which is sent unbatched)
+     * @return completes when the batch holding the envelope got acknowledged
+     * @exception IllegalArgumentException when the stream has no contract or can not be produced to
+     * @exception IllegalStateException when the producer is closed
+     * @exception SerializationException when the envelopes can not be serialized
+     */
+    public CompletableFuture<RecordMetadata> send(DataStream stream, Envelope.KeyEnvelope key, Envelope.DataEnvelope value) {
+        StreamTargets.Target target = targets.targetFor(stream);
+        byte[] keyBytes;
+        byte[] valueBytes;
+        try {
+            keyBytes = Serdes.serializeKey.apply(key);
+            valueBytes = Serdes.serializeValue.apply(value);
+        }
+        catch (Serdes.SerializationException e) {
+            throw new SerializationException(e);
+        }
+
+        int partition = target.partitionFor(producer, key.getKey());
+        Group group = new Group(target.topic, partition, grouping == Grouping.KEY ? key.getKey() : null);
+        CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+
+        synchronized (this) {
+            if(closed) throw new IllegalStateException("producer is closed");
+
+            if(valueBytes == null) {
+                publish(group, batches.remove(group));
+                producer.send(new ProducerRecord<>(group.topic, group.partition, keyBytes, null), (metadata, e) -> complete(future, metadata, e));
+                return future;
+            }
+
+            Batch batch = batches.get(group);
+            int size = EnvelopeBatch.entrySize(batch == null ? keyBytes : batch.recordKey, keyBytes, valueBytes);
+            if(batch != null && batch.bytes + size > maxBatchBytes) {
+                publish(group, batches.remove(group));
+                batch = null;
+                size = EnvelopeBatch.entrySize(keyBytes, keyBytes, valueBytes);
+            }
+            if(batch == null) {
+                Batch created = new Batch(keyBytes);
+                batch = created;
+                batches.put(group, created);
+                created.expiry = scheduler.schedule(() -> expire(group, created), lingerMs, TimeUnit.MILLISECONDS);
+            }
+
+            batch.keys.add(keyBytes);
+            batch.values.add(valueBytes);
+            batch.futures.add(future);
+            batch.bytes += size;
+            if(batch.keys.size() >= maxBatchRecords || batch.bytes >= maxBatchBytes) publish(group, batches.remove(group));
+        }
+        return future;
+    }
+
+    // linger time of a batch expired: publish it, unless it already got published
+    private synchronized void expire(Group group, Batch batch) {
+        if(batches.get(group) == batch) publish(group, batches.remove(group));
+    }
+
+    // called with the lock held, so the batches of a group get sent in order
+    private void publish(Group group, Batch batch) {
+        if(batch == null) return;
+        if(batch.expiry != null) batch.expiry.cancel(false);
+
+        byte[] value = batch.keys.size() == 1 ? batch.values.get(0) : EnvelopeBatch.encode(batch.recordKey, batch.keys, batch.values);
+        List<CompletableFuture<RecordMetadata>> futures = batch.futures;
+        try {
+            producer.send(new ProducerRecord<>(group.topic, group.partition, batch.recordKey, value), (metadata, e) -> {
+                for(CompletableFuture<RecordMetadata> future: futures) complete(future, metadata, e);
+            });
+        }
+        catch (RuntimeException e) {
+            logger.warn("failed to publish batch of {} envelopes to {}-{}", futures.size(), group.topic, group.partition, e);
+            for(CompletableFuture<RecordMetadata> future: futures) future.completeExceptionally(e);
+        }
+    }
+
+    private static void complete(CompletableFuture<RecordMetadata> future, RecordMetadata metadata, Exception e) {
+        if(e != null) future.completeExceptionally(e);
+        else future.complete(metadata);
+    }
+
+    /**
+     * @return the number of envelopes waiting in a batch that is not published yet
+     */
+    public synchronized int pending() {
+        return batches.values().stream().mapToInt(b -> b.keys.size()).sum();
+    }
+
+    /**
+     * Publish all pending batches, and wait until all sent records are acknowledged.
+     */
+    public void flush() {
+        synchronized (this) {
+            new ArrayList<>(batches.keySet()).forEach(group -> publish(group, batches.remove(group)));
+        }
+        producer.flush();
+    }
+
+    /**
+     * @return the underlying raw producer
+     */
+    public Producer<byte[], byte[]> producer() { return producer; }
+
+    /**
+     * Publish the pending batches, and close the underlying producer.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if(closed) return;
+            closed = true;
+        }
+        scheduler.shutdownNow();
+        flush();
+        producer.close();
+    }
+}
@@ -0,0 +1,124 @@
+package dsh.sdk.kafka.producers;
+
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.messages.EnvelopeChunks;
+import dsh.messages.Serdes;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.SerializationException;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes envelopes that are too large for a single Kafka record as a set of ordered chunks (see {@link EnvelopeChunks}).
+ *
+ * Records above the producer's {@code max.request.size} (or the broker's {@code message.max.bytes}) fail at send time.
+ * Instead of raising those limits for the whole cluster, this producer splits the serialized {@code DataEnvelope}
+ * into chunks that each fit in a record, and sends them in order, with the same key, to the same partition --
+ * computed with the {@link StreamsConfigParser.StreamContract#partitioner() partitioner} of the stream on the shared key.
+ * Envelopes that fit in a single record, and tombstones, are sent unchanged.
+ *
+ * Consumers reassemble the chunks with a {@link dsh.sdk.kafka.consumers.ChunkAssembler}, or transparently
+ * with the {@link dsh.sdk.kafka.consumers.EnvelopeChunkInterceptor}.
+ *
+ * All functions are thread safe.
+ *
+ * <pre>{@code
+ *   ChunkingProducer producer = clientFactory.createChunkingProducer(null);
+ *   producer.send(stream, key, largeValue).get();
+ * }</pre>
+ */
+public class ChunkingProducer implements Closeable {
+    /**
+     * Room left in every record for the record framing, headers and the key.
+     */
+    public static final int RECORD_OVERHEAD = 1024;
+
+    private final Producer<byte[], byte[]> producer;
+    private final StreamTargets targets;
+    private final int maxRecordBytes;
+
+    /**
+     * @param producer raw producer (see {@link dsh.sdk.kafka.KafkaClientFactory#createRawStreamProducer(Properties)})
+     * @param parser the stream contracts
+     * @param maxRecordBytes maximum size of a single record, typically the {@code max.request.size} of the producer
+     * @exception IllegalArgumentException when the maximum record size leaves no room for chunk data
+     */
+    public ChunkingProducer(Producer<byte[], byte[]> producer, StreamsConfigParser parser, int maxRecordBytes) {
+        if(maxRecordBytes <= 2 * RECORD_OVERHEAD) throw new IllegalArgumentException("maximum record size too small: " + maxRecordBytes);
+        this.producer = Objects.requireNonNull(producer);
+        this.targets = new StreamTargets(parser);
+        this.maxRecordBytes = maxRecordBytes;
+    }
+
+    /**
+     * Publish an envelope, split into chunks when it does not fit in a single record.
+     *
+     * @param stream the stream to publish to
+     * @param key the key envelope
+     * @param value the data envelope (or {@code null} for a tombstone)
+     * @return completes with the metadata of the last chunk when all chunks are acknowledged,
+     *         or exceptionally when one of them failed
+     * @exception IllegalArgumentException when the stream has no contract or can not be produced to,
+     *            or when the key alone does not fit in a record
+     * @exception SerializationException when the envelopes can not be serialized
+     */
+    public CompletableFuture<RecordMetadata> send(DataStream stream, Envelope.KeyEnvelope key, Envelope.DataEnvelope value) {
+        StreamTargets.Target target = targets.targetFor(stream);
+        byte[] keyBytes;
+        byte[] valueBytes;
+        try {
+            keyBytes = Serdes.serializeKey.apply(key);
+            valueBytes = Serdes.serializeValue.apply(value);
+        }
+        catch (Serdes.SerializationException e) {
+            throw new SerializationException(e);
+        }
+
+        int partition = target.partitionFor(producer, key.getKey());
+        int maxValueBytes = maxRecordBytes - RECORD_OVERHEAD - keyBytes.length;
+        if(maxValueBytes <= RECORD_OVERHEAD) throw new IllegalArgumentException("key too large to publish: " + keyBytes.length + " bytes");
+
+        List<byte[]> chunks = valueBytes == null || valueBytes.length <= maxValueBytes
+                ? Collections.singletonList(valueBytes)
+                : EnvelopeChunks.split(chunkId(), valueBytes, maxValueBytes);
+
+        CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(chunks.size());
+        for(byte[] chunk: chunks) {
+            producer.send(new ProducerRecord<>(target.topic, partition, keyBytes, chunk), (metadata, e) -> {
+                if(e != null) future.completeExceptionally(e);
+                else if(remaining.decrementAndGet() == 0) future.complete(metadata);
+            });
+        }
+        return future;
+    }
+
+    private static byte[] chunkId() {
+        UUID uuid = UUID.randomUUID();
+        return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+    }
+
+    /**
+     * @return maximum size of a single record
+     */
+    public int maxRecordBytes() { return maxRecordBytes; }
+
+    /**
+     * @return the underlying raw producer
+     */
+    public Producer<byte[], byte[]> producer() { return producer; }
+
+    /**
+     * Close the underlying producer.
+     */
+    @Override
+    public void close() { producer.close(); }
+}
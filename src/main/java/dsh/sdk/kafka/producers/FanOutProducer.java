@@ -0,0 +1,107 @@
+package dsh.sdk.kafka.producers;
+
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.messages.Serdes;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.SerializationException;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ * Publishes the same envelope to several streams, serializing the {@code KeyEnvelope} and {@code DataEnvelope} only once.
+ *
+ * A stream producer (see {@link dsh.sdk.kafka.KafkaClientFactory#createStreamProducer(Properties)}) serializes the key and value
+ * again on every {@code send}.  This producer serializes them once, and hands the same bytes to a raw producer for the
+ * {@link StreamsConfigParser.StreamContract#produceTopic() produce topic} of every target stream.
+ * The partition is computed up front with the {@link StreamsConfigParser.StreamContract#partitioner() partitioner}
+ * of each stream, on the key string -- exactly like the partitioner of a stream producer does.
+ *
+ * The stream contracts are looked up once per stream and cached.  All functions are thread safe.
+ *
+ * <pre>{@code
+ *   FanOutProducer producer = clientFactory.createFanOutProducer(null);
+ *   producer.send(Arrays.asList(publicStream, internalStream), key, value);
+ * }</pre>
+ */
+public class FanOutProducer implements Closeable {
+    private final Producer<byte[], byte[]> producer;
+    private final StreamTargets targets;
+
+    /**
+     * @param producer raw producer (see {@link dsh.sdk.kafka.KafkaClientFactory#createRawStreamProducer(Properties)})
+     * @param parser the stream contracts
+     */
+    public FanOutProducer(Producer<byte[], byte[]> producer, StreamsConfigParser parser) {
+        this.producer = Objects.requireNonNull(producer);
+        this.targets = new StreamTargets(parser);
+    }
+
+    /**
+     * Publish an envelope to a number of streams.
+     *
+     * @param streams the streams to publish to
+     * @param key the key envelope
+     * @param value the data envelope (or {@code null} for a tombstone)
+     * @return the futures of the individual sends, in the order of the streams
+     * @exception NullPointerException when the key envelope is {@code null}
+     * @exception IllegalArgumentException when a stream has no contract or can not be produced to
+     * @exception SerializationException when the envelopes can not be serialized
+     */
+    public List<Future<RecordMetadata>> send(Collection<DataStream> streams, Envelope.KeyEnvelope key, Envelope.DataEnvelope value) {
+        return send(streams, key, value, null);
+    }
+
+    /**
+     * Publish an envelope to a number of streams.
+     *
+     * @param streams the streams to publish to
+     * @param key the key envelope
+     * @param value the data envelope (or {@code null} for a tombstone)
+     * @param callback called for every individual send when it completes (can be {@code null})
+     * @return the futures of the individual sends, in the order of the streams
+     * @exception NullPointerException when the key envelope is {@code null}
+     * @exception IllegalArgumentException when a stream has no contract or can not be produced to
+     * @exception SerializationException when the envelopes can not be serialized
+     */
+    public List<Future<RecordMetadata>> send(Collection<DataStream> streams, Envelope.KeyEnvelope key, Envelope.DataEnvelope value, Callback callback) {
+        Objects.requireNonNull(key, "the key envelope can not be null");
+        // resolve all targets first: nothing gets sent when one of the streams is invalid
+        List<StreamTargets.Target> resolved = new ArrayList<>(streams.size());
+        for(DataStream stream: streams) resolved.add(targets.targetFor(stream));
+
+        byte[] keyBytes;
+        byte[] valueBytes;
+        try {
+            keyBytes = Serdes.serializeKey.apply(key);
+            valueBytes = Serdes.serializeValue.apply(value);
+        }
+        catch (Serdes.SerializationException e) {
+            throw new SerializationException(e);
+        }
+
+        List<Future<RecordMetadata>> futures = new ArrayList<>(resolved.size());
+        for(StreamTargets.Target target: resolved) {
+            ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(target.topic, target.partitionFor(producer, key.getKey()), keyBytes, valueBytes);
+            futures.add(producer.send(record, callback));
+        }
+        return futures;
+    }
+
+    /**
+     * @return the underlying raw producer
+     */
+    public Producer<byte[], byte[]> producer() { return producer; }
+
+    /**
+     * Close the underlying producer.
+     */
+    @Override
+    public void close() { producer.close(); }
+}
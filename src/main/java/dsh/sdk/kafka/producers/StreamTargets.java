@@ -0,0 +1,54 @@
+package dsh.sdk.kafka.producers;
+
+import dsh.messages.DataStream;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.producer.Producer;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * The produce topic and partitioner of the streams a producer publishes to.
+ * The stream contracts are looked up once per stream and cached.  All functions are thread safe.
+ */
+class StreamTargets {
+    // produce topic and partitioner function of a stream
+    static class Target {
+        final String topic;
+        final BiFunction<String, Integer, Integer> partitioner;
+
+        Target(String topic, BiFunction<String, Integer, Integer> partitioner) {
+            this.topic = topic;
+            this.partitioner = partitioner;
+        }
+
+        // the partition of the key on the produce topic -- exactly like the partitioner of a stream producer computes it
+        int partitionFor(Producer<?, ?> producer, String key) {
+            return partitioner.apply(key, producer.partitionsFor(topic).size());
+        }
+    }
+
+    private final StreamsConfigParser parser;
+    private final Map<DataStream, Target> targets = new ConcurrentHashMap<>();
+
+    StreamTargets(StreamsConfigParser parser) {
+        this.parser = Objects.requireNonNull(parser);
+    }
+
+    /**
+     * @param stream the stream to publish to
+     * @return the produce topic and partitioner of the stream
+     * @exception IllegalArgumentException when the stream has no contract or can not be produced to
+     */
+    Target targetFor(DataStream stream) {
+        return targets.computeIfAbsent(stream, ds -> {
+            StreamsConfigParser.StreamContract contract = parser.findStream(ds)
+                    .orElseThrow(() -> new IllegalArgumentException("no contract found for stream " + ds));
+            String topic = contract.produceTopic()
+                    .orElseThrow(() -> new IllegalArgumentException("producing to stream " + ds + " is not allowed"));
+            return new Target(topic, contract.partitioner());
+        });
+    }
+}
@@ -1,7 +1,10 @@
 package dsh.sdk.kafka.serdes;
 
 import dsh.messages.Envelope;
+import dsh.messages.PayloadCodec;
 import dsh.messages.Serdes;
+import dsh.messages.Tracing;
+import dsh.sdk.metrics.StreamMetrics;
 import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.serialization.Deserializer;
 
@@ -9,8 +12,16 @@ import java.util.Map;
 
 /**
  * Kafka DataEnvelope deserializer
+ *
+ * Compressed payloads are decompressed, with the dictionaries of the {@link PayloadCodec} configured under
+ * {@link PayloadCodec#CONFIG_KEY} (without it, only payloads compressed without dictionary can be decompressed).
+ *
+ * With {@link Tracing#LAZY_CONFIG} set to {@code true}, the tracing entries are not decoded: read them through {@link Tracing}.
  */
 public class DataEnvelopeDeserializer implements Deserializer<Envelope.DataEnvelope> {
+    private StreamMetrics metrics = StreamMetrics.global();
+    private PayloadCodec codec = PayloadCodec.NONE;
+    private boolean lazyTracing = false;
 
     @Override
     public void close() {
@@ -18,13 +29,17 @@ public class DataEnvelopeDeserializer implements Deserializer<Envelope.DataEnvel
 
     @Override
     public void configure(Map<String, ?> configs, boolean isKey) {
+        metrics = StreamMetrics.of(configs);
+        codec = PayloadCodec.of(configs);
+        if(configs.containsKey(Tracing.LAZY_CONFIG)) lazyTracing = Boolean.parseBoolean(String.valueOf(configs.get(Tracing.LAZY_CONFIG)));
     }
 
     @Override
     public Envelope.DataEnvelope deserialize(String topic, byte[] data) {
         try {
-            return Serdes.deserializeValue.apply(data);
+            return codec.decompress(lazyTracing ? Tracing.parseDeferred(data) : Serdes.deserializeValue.apply(data));
         } catch (Serdes.SerializationException e) {
+            metrics.counters(topic).deserializationError();
             throw new SerializationException(e.getCause());
         }
     }
@@ -1,7 +1,9 @@
 package dsh.sdk.kafka.serdes;
 
 import dsh.messages.Envelope;
+import dsh.messages.PayloadCodec;
 import dsh.messages.Serdes;
+import dsh.sdk.metrics.StreamMetrics;
 import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.serialization.Serializer;
 
@@ -9,20 +11,28 @@ import java.util.Map;
 
 /**
  * Kafka DataEnvelope serializer
+ *
+ * Payloads get compressed when a {@link PayloadCodec} is configured under {@link PayloadCodec#CONFIG_KEY}.
  */
 public class DataEnvelopeSerializer implements Serializer<Envelope.DataEnvelope> {
+    private StreamMetrics metrics = StreamMetrics.global();
+    private PayloadCodec codec = null;
 
     @Override
     public void close() {}
 
     @Override
-    public void configure(Map<String, ?> configs, boolean isKey) {}
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        metrics = StreamMetrics.of(configs);
+        if(configs.get(PayloadCodec.CONFIG_KEY) instanceof PayloadCodec) codec = (PayloadCodec) configs.get(PayloadCodec.CONFIG_KEY);
+    }
 
     @Override
     public byte[] serialize(String topic, Envelope.DataEnvelope data) {
         try {
-            return Serdes.serializeValue.apply(data);
+            return Serdes.serializeValue.apply(codec == null ? data : codec.compress(topic, data));
         } catch (Serdes.SerializationException e) {
+            metrics.counters(topic).serializationError();
             throw new SerializationException(e);
         }
     }
@@ -2,6 +2,7 @@ package dsh.sdk.kafka.serdes;
 
 import dsh.messages.Envelope;
 import dsh.messages.Serdes;
+import dsh.sdk.metrics.StreamMetrics;
 import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.serialization.Deserializer;
 
@@ -11,18 +12,20 @@ import java.util.Map;
  * Kafka KeyEnvelope deserializer
  */
 public class KeyEnvelopeDeserializer implements Deserializer<Envelope.KeyEnvelope> {
+    private StreamMetrics metrics = StreamMetrics.global();
 
     @Override
     public void close() {}
 
     @Override
-    public void configure(Map<String, ?> configs, boolean isKey) {}
+    public void configure(Map<String, ?> configs, boolean isKey) { metrics = StreamMetrics.of(configs); }
 
     @Override
     public Envelope.KeyEnvelope deserialize(String topic, byte[] data) {
         try {
             return Serdes.deserializeKey.apply(data);
         } catch (Serdes.SerializationException e) {
+            metrics.counters(topic).deserializationError();
             throw new SerializationException(e.getCause());
         }
     }
@@ -2,6 +2,7 @@ package dsh.sdk.kafka.serdes;
 
 import dsh.messages.Envelope;
 import dsh.messages.Serdes;
+import dsh.sdk.metrics.StreamMetrics;
 import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.serialization.Serializer;
 
@@ -11,18 +12,20 @@ import java.util.Map;
  * Kafka KeyEnvelope serializer
  */
 public class KeyEnvelopeSerializer implements Serializer<Envelope.KeyEnvelope> {
+    private StreamMetrics metrics = StreamMetrics.global();
 
     @Override
     public void close() {}
 
     @Override
-    public void configure(Map<String, ?> configs, boolean isKey) {}
+    public void configure(Map<String, ?> configs, boolean isKey) { metrics = StreamMetrics.of(configs); }
 
     @Override
     public byte[] serialize(String topic, Envelope.KeyEnvelope data) {
         try {
             return Serdes.serializeKey.apply(data);
         } catch (Serdes.SerializationException e) {
+            metrics.counters(topic).serializationError();
             throw new SerializationException(e);
         }
     }
@@ -0,0 +1,40 @@
+package dsh.sdk.metrics;
+
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Map;
+
+/**
+ * Consumer interceptor that counts the records the consumer hands out, and their serialized bytes, per stream and
+ * per QoS (see {@link StreamMetrics}).
+ *
+ * The stream is looked up once per partition of a poll, not per record.  The QoS is taken from the key envelope;
+ * raw records are counted without QoS.  Registered on every consumer of the {@link dsh.sdk.kafka.KafkaClientFactory}.
+ */
+public class ConsumerCountingInterceptor<K, V> implements ConsumerInterceptor<K, V> {
+    private StreamMetrics metrics = StreamMetrics.global();
+
+    @Override
+    public ConsumerRecords<K, V> onConsume(ConsumerRecords<K, V> records) {
+        for(TopicPartition tp: records.partitions()) {
+            StreamCounters counters = metrics.counters(tp.topic());
+            for(ConsumerRecord<K, V> record: records.records(tp)) {
+                counters.consumed(ProducerCountingInterceptor.qos(record.key()), Math.max(0, record.serializedKeySize()) + Math.max(0, record.serializedValueSize()));
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void configure(Map<String, ?> configs) { metrics = StreamMetrics.of(configs); }
+}
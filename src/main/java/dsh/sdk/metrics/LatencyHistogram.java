@@ -0,0 +1,97 @@
+package dsh.sdk.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in microseconds, with a bounded relative error.
+ *
+ * Values are counted in log-linear buckets: every power of two is split in 16 linear sub-buckets, so a bucket is at most
+ * 1/16th (~6%) of its values wide.  Values from 0 up to 2<sup>40</sup> microseconds (~12 days) are kept; larger ones count
+ * in the last bucket.  Recording is a few instructions and an atomic increment, and never allocates.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    static int bucket(long micros) {
+        if(micros < SUB_BUCKETS) return (int) Math.max(0, micros);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if(exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    // lowest value counted in a bucket
+    static long lowerBound(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    // lowest value of the next bucket
+    static long upperBound(int bucket) { return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1); }
+
+    /**
+     * Record a latency (negative values, e.g. from clock skew between hosts, count as 0).
+     *
+     * @param micros the latency in microseconds
+     */
+    public void record(long micros) {
+        if(micros < 0) micros = 0;
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        sum.add(micros);
+    }
+
+    /** @return the number of recorded latencies */
+    public long count() { return count.sum(); }
+
+    /** @return the sum of the recorded latencies, in microseconds */
+    public long sum() { return sum.sum(); }
+
+    /**
+     * @param micros a latency in microseconds
+     * @return the number of recorded latencies in buckets entirely below the given latency
+     */
+    public long countBelow(long micros) {
+        long below = 0;
+        for(int i = 0; i < BUCKETS && upperBound(i) <= micros; i++) below += counts.get(i);
+        return below;
+    }
+
+    /**
+     * @param quantile the quantile, 0 to 1 (e.g. 0.99)
+     * @return the latency at the quantile in microseconds (the middle of its bucket), 0 when nothing is recorded
+     */
+    public long percentile(double quantile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        if(total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return i < SUB_BUCKETS ? i : (lowerBound(i) + upperBound(i) - 1) / 2;
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+
+    /** @return the highest recorded latency in microseconds (accurate to its bucket), 0 when nothing is recorded */
+    public long max() {
+        for(int i = BUCKETS - 1; i >= 0; i--) if(counts.get(i) > 0) return i < SUB_BUCKETS ? i : upperBound(i) - 1;
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram(count=" + count() + ", p50=" + percentile(0.5) + "us, p99=" + percentile(0.99) + "us, max=" + max() + "us)";
+    }
+}
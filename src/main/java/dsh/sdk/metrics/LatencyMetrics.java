@@ -0,0 +1,126 @@
+package dsh.sdk.metrics;
+
+import dsh.messages.DataStream;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end (produce to consume) latency per {@link DataStream}.
+ *
+ * The {@link LatencyStampInterceptor} stamps a sample of the produced records with their send time, in the Kafka header
+ * {@value #HEADER} (8 bytes: microseconds since the epoch).  The {@link LatencyRecordingInterceptor} records the latency
+ * of every stamped record it consumes in the histogram of the stream of the record.  Only a sample is stamped,
+ * so the consumer side only pays for a header lookup on the other records.  The latency is measured between the wall
+ * clocks of producer and consumer, so it is only as accurate as the clock synchronization between the hosts.
+ *
+ * The interceptors record in the registry given under {@link #CONFIG_KEY} in the consumer configuration, or
+ * in the {@link #global()} registry.  Export it over the {@link dsh.rest.SimpleRestServer}:
+ *
+ * <pre>{@code
+ *   Properties producerOverrides = new Properties();
+ *   producerOverrides.put(ProducerConfig.INTERCEPTOR_CLASSES_CONFIG, LatencyStampInterceptor.class.getName());
+ *   producerOverrides.put(LatencyStampInterceptor.SAMPLE_RATE_CONFIG, "0.01");
+ *
+ *   Properties consumerOverrides = new Properties();
+ *   consumerOverrides.put(ConsumerConfig.INTERCEPTOR_CLASSES_CONFIG, LatencyRecordingInterceptor.class.getName());
+ *
+ *   Service metrics = new SimpleRestServer.Builder()
+ *                           .setListener("/metrics", LatencyMetrics.global()::scrape)
+ *                           .build();
+ * }</pre>
+ */
+public class LatencyMetrics {
+    /**
+     * Kafka header holding the send time of a record.
+     */
+    public static final String HEADER = "dsh-sent-us";
+
+    /**
+     * Configuration key for a registry instance in the consumer properties.
+     */
+    public static final String CONFIG_KEY = "__latencymetrics";
+
+    /**
+     * Name of the exported metric.
+     */
+    public static final String METRIC = "dsh_end_to_end_latency_seconds";
+
+    // bucket boundaries of the exported histogram, in seconds
+    private static final double[] EXPORTED_BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private static final LatencyMetrics GLOBAL = new LatencyMetrics();
+
+    // wall clock with sub-millisecond resolution: the epoch time at start plus the elapsed monotonic time
+    private static final long EPOCH_BASE_MICROS = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) - TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+
+    // a histogram that is never exported, for records on topics that are not DSH streams
+    private static final LatencyHistogram IGNORED = new LatencyHistogram();
+
+    private final ConcurrentMap<DataStream, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> topics = new ConcurrentHashMap<>();
+
+    /** @return the registry the interceptors use when no other registry is configured */
+    public static LatencyMetrics global() { return GLOBAL; }
+
+    /** @return the current time, in microseconds since the epoch */
+    public static long nowMicros() { return EPOCH_BASE_MICROS + TimeUnit.NANOSECONDS.toMicros(System.nanoTime()); }
+
+    static byte[] encode(long micros) { return ByteBuffer.allocate(Long.BYTES).putLong(micros).array(); }
+
+    static long decode(byte[] bytes) {
+        if(bytes == null || bytes.length != Long.BYTES) return -1L;
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * @param stream the stream
+     * @return the latency histogram of the stream
+     */
+    public LatencyHistogram histogram(DataStream stream) { return histograms.computeIfAbsent(stream, s -> new LatencyHistogram()); }
+
+    LatencyHistogram histogram(String topic) {
+        return topics.computeIfAbsent(topic, t -> {
+            try {
+                return histogram(DataStream.of(t));
+            }
+            catch (IllegalArgumentException e) {
+                return IGNORED;
+            }
+        });
+    }
+
+    /** @return the histograms per stream (read-only) */
+    public Map<DataStream, LatencyHistogram> histograms() { return Collections.unmodifiableMap(new TreeMap<>(histograms)); }
+
+    /**
+     * Export the histograms in the Prometheus text format.
+     *
+     * The exported bucket boundaries are accurate to the bucket width of the {@link LatencyHistogram} (~6%).
+     *
+     * @return the histograms, one time series per stream (labeled {@code stream})
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP ").append(METRIC).append(" end-to-end latency of sampled records, from send to consume\n");
+        out.append("# TYPE ").append(METRIC).append(" histogram\n");
+        histograms().forEach((stream, histogram) -> {
+            String label = "stream=\"" + stream.fullName() + "\"";
+            long count = histogram.count();
+            for(double bucket: EXPORTED_BUCKETS) {
+                long below = histogram.countBelow((long) (bucket * 1_000_000));
+                out.append(METRIC).append("_bucket{").append(label).append(",le=\"").append(BigDecimal.valueOf(bucket).stripTrailingZeros().toPlainString()).append("\"} ").append(below).append('\n');
+            }
+            out.append(METRIC).append("_bucket{").append(label).append(",le=\"+Inf\"} ").append(count).append('\n');
+            out.append(METRIC).append("_sum{").append(label).append("} ").append(histogram.sum() / 1_000_000.0).append('\n');
+            out.append(METRIC).append("_count{").append(label).append("} ").append(count).append('\n');
+        });
+        return out.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package dsh.sdk.metrics;
+
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+
+import java.util.Map;
+
+/**
+ * Consumer interceptor that records the end-to-end latency of the records stamped by the {@link LatencyStampInterceptor},
+ * in the histogram of their stream (see {@link LatencyMetrics}).
+ *
+ * The latency is taken when the consumer hands out the polled records, so it includes the time the records spent
+ * in the consumer's fetch buffer, but not the processing by the application.  Records on topics that are not
+ * DSH streams are ignored.  Works for any key and value type.
+ */
+public class LatencyRecordingInterceptor<K, V> implements ConsumerInterceptor<K, V> {
+    private LatencyMetrics metrics = LatencyMetrics.global();
+
+    @Override
+    public ConsumerRecords<K, V> onConsume(ConsumerRecords<K, V> records) {
+        long now = LatencyMetrics.nowMicros();
+        for(ConsumerRecord<K, V> record: records) {
+            Header header = record.headers().lastHeader(LatencyMetrics.HEADER);
+            if(header == null) continue;
+            long sent = LatencyMetrics.decode(header.value());
+            if(sent > 0) metrics.histogram(record.topic()).record(now - sent);
+        }
+        return records;
+    }
+
+    @Override
+    public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        if(configs.get(LatencyMetrics.CONFIG_KEY) instanceof LatencyMetrics) metrics = (LatencyMetrics) configs.get(LatencyMetrics.CONFIG_KEY);
+    }
+}
@@ -0,0 +1,51 @@
+package dsh.sdk.metrics;
+
+import org.apache.kafka.clients.producer.ProducerInterceptor;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Producer interceptor that stamps a sample of the records with their send time, for the end-to-end latency
+ * measured by the {@link LatencyRecordingInterceptor} (see {@link LatencyMetrics}).
+ *
+ * Every n-th record is stamped, with n set by {@link #SAMPLE_RATE_CONFIG}: at a rate of 0.01 (the default),
+ * one in every 100 records.  The stamp is a Kafka header, the envelopes are left untouched.
+ * Works for any key and value type.
+ */
+public class LatencyStampInterceptor<K, V> implements ProducerInterceptor<K, V> {
+    /**
+     * Fraction of the records to stamp, 0 to 1 (default 0.01).
+     */
+    public static final String SAMPLE_RATE_CONFIG = "dsh.latency.sample.rate";
+
+    private long interval = 100;
+    private final AtomicLong sent = new AtomicLong();
+
+    @Override
+    public ProducerRecord<K, V> onSend(ProducerRecord<K, V> record) {
+        if(sent.getAndIncrement() % interval != 0) return record;
+        RecordHeaders headers = new RecordHeaders(record.headers().toArray());
+        headers.remove(LatencyMetrics.HEADER);
+        headers.add(LatencyMetrics.HEADER, LatencyMetrics.encode(LatencyMetrics.nowMicros()));
+        return new ProducerRecord<>(record.topic(), record.partition(), record.timestamp(), record.key(), record.value(), headers);
+    }
+
+    @Override
+    public void onAcknowledgement(RecordMetadata metadata, Exception exception) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        Object rate = configs.get(SAMPLE_RATE_CONFIG);
+        if(rate == null) return;
+        double fraction = Double.parseDouble(rate.toString());
+        if(fraction <= 0 || fraction > 1) throw new IllegalArgumentException(SAMPLE_RATE_CONFIG + " should be in (0, 1]");
+        interval = Math.max(1, Math.round(1 / fraction));
+    }
+}
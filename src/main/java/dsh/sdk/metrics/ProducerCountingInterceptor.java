@@ -0,0 +1,47 @@
+package dsh.sdk.metrics;
+
+import com.google.protobuf.MessageLite;
+import dsh.messages.Envelope;
+import org.apache.kafka.clients.producer.ProducerInterceptor;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+import java.util.Map;
+
+/**
+ * Producer interceptor that counts the records handed to the producer, and their bytes, per stream and per QoS
+ * (see {@link StreamMetrics}).
+ *
+ * The bytes are the serialized sizes of the envelopes before payload compression (the generated classes cache
+ * the size, so the serializer does not compute it again), or the lengths of raw (pre-serialized) keys and values.
+ * The QoS is taken from the key envelope; raw records are counted without QoS.
+ * Registered on every producer of the {@link dsh.sdk.kafka.KafkaClientFactory}.
+ */
+public class ProducerCountingInterceptor<K, V> implements ProducerInterceptor<K, V> {
+    private StreamMetrics metrics = StreamMetrics.global();
+
+    static Envelope.QoS qos(Object key) {
+        return key instanceof Envelope.KeyEnvelope ? ((Envelope.KeyEnvelope) key).getHeader().getQos() : null;
+    }
+
+    private static int size(Object data) {
+        if(data instanceof MessageLite) return ((MessageLite) data).getSerializedSize();
+        if(data instanceof byte[]) return ((byte[]) data).length;
+        return 0;
+    }
+
+    @Override
+    public ProducerRecord<K, V> onSend(ProducerRecord<K, V> record) {
+        metrics.counters(record.topic()).produced(qos(record.key()), size(record.key()) + size(record.value()));
+        return record;
+    }
+
+    @Override
+    public void onAcknowledgement(RecordMetadata metadata, Exception exception) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void configure(Map<String, ?> configs) { metrics = StreamMetrics.of(configs); }
+}
@@ -0,0 +1,104 @@
+package dsh.sdk.metrics;
+
+import dsh.messages.Envelope;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Record, byte and error counters of a single {@link dsh.messages.DataStream} (see {@link StreamMetrics}).
+ *
+ * The counters are {@link LongAdder}s: they are striped over multiple cells when threads contend, so producing
+ * from many threads does not serialize on a shared counter.  Records and bytes are counted per {@link Envelope.QoS}
+ * of the key envelope; records without a (decoded) key envelope are counted under QoS {@code null}.
+ */
+public final class StreamCounters {
+    // QoS slots: the QoS number, plus one for records without a known QoS
+    private static final int UNKNOWN = 2;
+    // exported label values of the QoS slots
+    static final String[] QOS_LABELS = { "best_effort", "reliable", "unknown" };
+
+    private final LongAdder[] producedRecords = adders();
+    private final LongAdder[] producedBytes = adders();
+    private final LongAdder[] consumedRecords = adders();
+    private final LongAdder[] consumedBytes = adders();
+    private final LongAdder serializationErrors = new LongAdder();
+    private final LongAdder deserializationErrors = new LongAdder();
+    private final LongAdder partitionerFallbacks = new LongAdder();
+
+    private static LongAdder[] adders() { return new LongAdder[] { new LongAdder(), new LongAdder(), new LongAdder() }; }
+
+    private static int slot(Envelope.QoS qos) {
+        return qos == null || qos == Envelope.QoS.UNRECOGNIZED ? UNKNOWN : qos.getNumber();
+    }
+
+    /**
+     * Count a record handed to the producer.
+     *
+     * @param qos QoS of the record ({@code null} when unknown)
+     * @param bytes serialized size of key and value
+     */
+    public void produced(Envelope.QoS qos, long bytes) {
+        int slot = slot(qos);
+        producedRecords[slot].increment();
+        producedBytes[slot].add(bytes);
+    }
+
+    /**
+     * Count a record handed out by the consumer.
+     *
+     * @param qos QoS of the record ({@code null} when unknown)
+     * @param bytes serialized size of key and value
+     */
+    public void consumed(Envelope.QoS qos, long bytes) {
+        int slot = slot(qos);
+        consumedRecords[slot].increment();
+        consumedBytes[slot].add(bytes);
+    }
+
+    /** Count a key or value that failed to serialize. */
+    public void serializationError() { serializationErrors.increment(); }
+
+    /** Count a key or value that failed to deserialize. */
+    public void deserializationError() { deserializationErrors.increment(); }
+
+    /** Count a record partitioned by the default Kafka partitioner, for lack of a stream contract. */
+    public void partitionerFallback() { partitionerFallbacks.increment(); }
+
+    /**
+     * @param qos the QoS ({@code null} for records without a known QoS)
+     * @return the number of produced records
+     */
+    public long producedRecords(Envelope.QoS qos) { return producedRecords[slot(qos)].sum(); }
+
+    /**
+     * @param qos the QoS ({@code null} for records without a known QoS)
+     * @return the number of produced bytes
+     */
+    public long producedBytes(Envelope.QoS qos) { return producedBytes[slot(qos)].sum(); }
+
+    /**
+     * @param qos the QoS ({@code null} for records without a known QoS)
+     * @return the number of consumed records
+     */
+    public long consumedRecords(Envelope.QoS qos) { return consumedRecords[slot(qos)].sum(); }
+
+    /**
+     * @param qos the QoS ({@code null} for records without a known QoS)
+     * @return the number of consumed bytes
+     */
+    public long consumedBytes(Envelope.QoS qos) { return consumedBytes[slot(qos)].sum(); }
+
+    /** @return the number of keys and values that failed to serialize */
+    public long serializationErrors() { return serializationErrors.sum(); }
+
+    /** @return the number of keys and values that failed to deserialize */
+    public long deserializationErrors() { return deserializationErrors.sum(); }
+
+    /** @return the number of records partitioned by the default Kafka partitioner */
+    public long partitionerFallbacks() { return partitionerFallbacks.sum(); }
+
+    long producedRecords(int slot) { return producedRecords[slot].sum(); }
+    long producedBytes(int slot) { return producedBytes[slot].sum(); }
+    long consumedRecords(int slot) { return consumedRecords[slot].sum(); }
+    long consumedBytes(int slot) { return consumedBytes[slot].sum(); }
+}
@@ -0,0 +1,134 @@
+package dsh.sdk.metrics;
+
+import dsh.messages.DataStream;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Throughput and error counters per {@link DataStream}.
+ *
+ * The clients created by the {@link dsh.sdk.kafka.KafkaClientFactory} count into these counters: the
+ * {@link ProducerCountingInterceptor} and {@link ConsumerCountingInterceptor} count records and bytes per stream and
+ * per QoS, the envelope serdes count (de)serialization errors and the {@link dsh.sdk.kafka.partitioners.DynamicStreamPartitioner}
+ * counts the records it could not partition by a stream contract.  A topic is classified to its stream once; records on
+ * topics that are not DSH streams are not counted.
+ *
+ * The counters are totals: records/s and bytes/s are their rate, as computed by the monitoring system scraping them.
+ * They count in the registry given under {@link #CONFIG_KEY} in the client configuration, or in the {@link #global()}
+ * registry.  Export it over the {@link dsh.rest.SimpleRestServer}:
+ *
+ * <pre>{@code
+ *   Service metrics = new SimpleRestServer.Builder()
+ *                           .setListener("/metrics", StreamMetrics.global()::scrape)
+ *                           .build();
+ * }</pre>
+ */
+public class StreamMetrics {
+    /**
+     * Configuration key for a registry instance in the client properties.
+     */
+    public static final String CONFIG_KEY = "__streammetrics";
+
+    /**
+     * Prefix of the names of the exported metrics.
+     */
+    public static final String METRIC_PREFIX = "dsh_stream_";
+
+    private static final StreamMetrics GLOBAL = new StreamMetrics();
+
+    // counters that are never exported, for records on topics that are not DSH streams
+    private static final StreamCounters IGNORED = new StreamCounters();
+
+    private final ConcurrentMap<DataStream, StreamCounters> streams = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StreamCounters> topics = new ConcurrentHashMap<>();
+
+    /** @return the registry the clients count in when no other registry is configured */
+    public static StreamMetrics global() { return GLOBAL; }
+
+    /**
+     * @param configs client configuration
+     * @return the registry configured under {@link #CONFIG_KEY}, or the global registry
+     */
+    public static StreamMetrics of(Map<String, ?> configs) {
+        Object metrics = configs.get(CONFIG_KEY);
+        return metrics instanceof StreamMetrics ? (StreamMetrics) metrics : GLOBAL;
+    }
+
+    /**
+     * @param stream the stream
+     * @return the counters of the stream
+     */
+    public StreamCounters counters(DataStream stream) { return streams.computeIfAbsent(stream, s -> new StreamCounters()); }
+
+    /**
+     * @param topic a Kafka topic (or {@code null})
+     * @return the counters of the stream of the topic (counters that are not exported when the topic is not a stream)
+     */
+    public StreamCounters counters(String topic) {
+        if(topic == null) return IGNORED;
+        StreamCounters counters = topics.get(topic);
+        if(counters != null) return counters;
+        return topics.computeIfAbsent(topic, t -> {
+            try {
+                return counters(DataStream.of(t));
+            }
+            catch (IllegalArgumentException e) {
+                return IGNORED;
+            }
+        });
+    }
+
+    /** @return the counters per stream (read-only) */
+    public Map<DataStream, StreamCounters> streams() { return Collections.unmodifiableMap(new TreeMap<>(streams)); }
+
+    /**
+     * Export the counters in the Prometheus text format.
+     *
+     * @return the counters, labeled {@code stream} (and {@code direction} and {@code qos} for records and bytes)
+     */
+    public String scrape() {
+        Map<DataStream, StreamCounters> streams = streams();
+        StringBuilder out = new StringBuilder();
+        perQos(out, streams, "records_total", "records produced and consumed", StreamCounters::producedRecords, StreamCounters::consumedRecords);
+        perQos(out, streams, "bytes_total", "serialized bytes of the records produced and consumed", StreamCounters::producedBytes, StreamCounters::consumedBytes);
+        perStream(out, streams, "serialization_errors_total", "keys and values that failed to serialize", StreamCounters::serializationErrors);
+        perStream(out, streams, "deserialization_errors_total", "keys and values that failed to deserialize", StreamCounters::deserializationErrors);
+        perStream(out, streams, "partitioner_fallbacks_total", "records partitioned without a stream contract", StreamCounters::partitionerFallbacks);
+        return out.toString();
+    }
+
+    private interface SlotCounter { long get(StreamCounters counters, int slot); }
+
+    private static void perQos(StringBuilder out, Map<DataStream, StreamCounters> streams, String name, String help, SlotCounter produced, SlotCounter consumed) {
+        header(out, name, help);
+        streams.forEach((stream, counters) -> {
+            for(int slot = 0; slot < StreamCounters.QOS_LABELS.length; slot++) {
+                series(out, name, stream, "produced", slot, produced.get(counters, slot));
+                series(out, name, stream, "consumed", slot, consumed.get(counters, slot));
+            }
+        });
+    }
+
+    // only the directions and QoS levels that occurred
+    private static void series(StringBuilder out, String name, DataStream stream, String direction, int slot, long value) {
+        if(value == 0) return;
+        out.append(METRIC_PREFIX).append(name).append("{stream=\"").append(stream.fullName()).append("\",direction=\"").append(direction)
+                .append("\",qos=\"").append(StreamCounters.QOS_LABELS[slot]).append("\"} ").append(value).append('\n');
+    }
+
+    private static void perStream(StringBuilder out, Map<DataStream, StreamCounters> streams, String name, String help, ToLongFunction<StreamCounters> counter) {
+        header(out, name, help);
+        streams.forEach((stream, counters) -> out.append(METRIC_PREFIX).append(name).append("{stream=\"").append(stream.fullName()).append("\"} ")
+                .append(counter.applyAsLong(counters)).append('\n'));
+    }
+
+    private static void header(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(METRIC_PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(METRIC_PREFIX).append(name).append(" counter\n");
+    }
+}
@@ -0,0 +1,310 @@
+package dsh.sdk.mqtt;
+
+import dsh.sdk.internal.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Dictionary assigning compact {@code int} ids to MQTT style keys (levels separated by {@link StringUtils#TOPIC_DELIMITER}).
+ *
+ * Keys like {@code tenant/site/building/floor/device/metric} share long prefixes.  Instead of holding every key as a
+ * {@code String}, the dictionary stores each distinct level only once, and every key as a node in a trie of levels
+ * (a parent node and a level id: a few {@code int}s per key).
+ * Keys get dense ids ({@code 0, 1, 2, ...}) in order of insertion, so they can be used as index in arrays or bitsets --
+ * e.g. as the key space for per-partition caches, retained value stores or de-duplication sets.
+ *
+ * Lookups work on a {@code CharSequence} or directly on the UTF-8 bytes of a key (e.g. the key range inside a serialized
+ * {@code KeyEnvelope}, see {@link dsh.messages.KeyExtractor}), without allocation.
+ * Ids are never reused: the dictionary only grows.  All functions are thread safe.
+ *
+ * <pre>{@code
+ *   KeyDictionary keys = new KeyDictionary();
+ *   int id = keys.intern(record.key().getKey());
+ *   . . .
+ *   String key = keys.key(id);
+ * }</pre>
+ */
+public class KeyDictionary {
+    /**
+     * Returned by the lookups when a key is not in the dictionary.
+     */
+    public static final int NOT_FOUND = -1;
+
+    private static final int ROOT = 0;
+    private static final char DELIMITER_CHAR = StringUtils.TOPIC_DELIMITER.charAt(0);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // distinct levels, with an open addressing table (level id + 1, 0 is empty) on their hash
+    private byte[][] levels = new byte[64][];
+    private int[] levelHashes = new int[64];
+    private int levelCount = 0;
+    private int[] levelTable = new int[128];
+
+    // trie nodes: parent node, level id, and key id (or NOT_FOUND when the node is only a prefix)
+    private int[] parents = new int[64];
+    private int[] nodeLevels = new int[64];
+    private int[] nodeKeys = new int[64];
+    private int nodeCount = 1;
+
+    // children: open addressing table on (parent, level) -> node + 1, 0 is empty
+    private long[] childKeys = new long[128];
+    private int[] childNodes = new int[128];
+
+    // key id -> node
+    private int[] keyNodes = new int[64];
+    private int keyCount = 0;
+
+    public KeyDictionary() {
+        nodeKeys[ROOT] = NOT_FOUND;
+        parents[ROOT] = NOT_FOUND;
+    }
+
+    /**
+     * Look up the id of a key, adding the key when it is not in the dictionary yet.
+     *
+     * @param key the key
+     * @return the id of the key
+     */
+    public int intern(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Look up the id of a UTF-8 encoded key, adding the key when it is not in the dictionary yet.
+     *
+     * @param bytes  buffer containing the key
+     * @param offset start of the key in the buffer
+     * @param length length of the key in bytes
+     * @return the id of the key
+     */
+    public int intern(byte[] bytes, int offset, int length) {
+        int id = idOf(bytes, offset, length);
+        if(id != NOT_FOUND) return id;
+
+        lock.writeLock().lock();
+        try {
+            final int end = offset + length;
+            int node = ROOT;
+            for(int pos = offset; pos <= end; ) {
+                int levelEnd = pos;
+                while(levelEnd < end && bytes[levelEnd] != TopicFilter.DELIMITER) levelEnd++;
+                node = addChild(node, addLevel(bytes, pos, levelEnd));
+                pos = levelEnd + 1;
+            }
+
+            if(nodeKeys[node] == NOT_FOUND) {
+                if(keyCount == keyNodes.length) keyNodes = Arrays.copyOf(keyNodes, keyCount * 2);
+                keyNodes[keyCount] = node;
+                nodeKeys[node] = keyCount++;
+            }
+            return nodeKeys[node];
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Look up the id of a UTF-8 encoded key.
+     *
+     * @param bytes  buffer containing the key
+     * @param offset start of the key in the buffer
+     * @param length length of the key in bytes
+     * @return the id of the key, or {@link #NOT_FOUND}
+     */
+    public int idOf(byte[] bytes, int offset, int length) {
+        lock.readLock().lock();
+        try {
+            final int end = offset + length;
+            int node = ROOT;
+            for(int pos = offset; pos <= end; ) {
+                int levelEnd = pos;
+                while(levelEnd < end && bytes[levelEnd] != TopicFilter.DELIMITER) levelEnd++;
+                int level = findLevel(bytes, pos, levelEnd, mix(TopicFilter.Utf8.hash(bytes, pos, levelEnd)));
+                if(level == NOT_FOUND || (node = findChild(node, level)) == NOT_FOUND) return NOT_FOUND;
+                pos = levelEnd + 1;
+            }
+            return nodeKeys[node];
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Look up the id of a key.
+     *
+     * @param key the key
+     * @return the id of the key, or {@link #NOT_FOUND}
+     */
+    public int idOf(CharSequence key) {
+        lock.readLock().lock();
+        try {
+            final int end = key.length();
+            int node = ROOT;
+            for(int pos = 0; pos <= end; ) {
+                int levelEnd = pos;
+                while(levelEnd < end && key.charAt(levelEnd) != DELIMITER_CHAR) levelEnd++;
+                int level = findLevel(key, pos, levelEnd, mix(TopicFilter.Utf8.hash(key, pos, levelEnd)));
+                if(level == NOT_FOUND || (node = findChild(node, level)) == NOT_FOUND) return NOT_FOUND;
+                pos = levelEnd + 1;
+            }
+            return nodeKeys[node];
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuild the key for an id.
+     *
+     * @param id id returned by {@link #intern(String)}
+     * @return the key
+     * @exception IllegalArgumentException when the id is unknown
+     */
+    public String key(int id) {
+        lock.readLock().lock();
+        try {
+            if(id < 0 || id >= keyCount) throw new IllegalArgumentException("unknown key id: " + id);
+
+            int node = keyNodes[id];
+            int size = -1;
+            for(int n = node; n != ROOT; n = parents[n]) size += levels[nodeLevels[n]].length + 1;
+
+            byte[] bytes = new byte[size];
+            int pos = size;
+            for(int n = node; n != ROOT; n = parents[n]) {
+                byte[] level = levels[nodeLevels[n]];
+                pos -= level.length;
+                System.arraycopy(level, 0, bytes, pos, level.length);
+                if(pos > 0) bytes[--pos] = TopicFilter.DELIMITER;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of keys in the dictionary (the next id to hand out)
+     */
+    public int size() {
+        lock.readLock().lock();
+        try { return keyCount; } finally { lock.readLock().unlock(); }
+    }
+
+    /**
+     * @return the number of distinct levels stored
+     */
+    public int levels() {
+        lock.readLock().lock();
+        try { return levelCount; } finally { lock.readLock().unlock(); }
+    }
+
+    // -- levels
+
+    private int findLevel(byte[] bytes, int from, int to, int hash) {
+        int mask = levelTable.length - 1;
+        for(int i = hash & mask; levelTable[i] != 0; i = (i + 1) & mask) {
+            int level = levelTable[i] - 1;
+            if(levelHashes[level] == hash && TopicFilter.Utf8.equals(levels[level], bytes, from, to)) return level;
+        }
+        return NOT_FOUND;
+    }
+
+    private int findLevel(CharSequence cs, int from, int to, int hash) {
+        int mask = levelTable.length - 1;
+        for(int i = hash & mask; levelTable[i] != 0; i = (i + 1) & mask) {
+            int level = levelTable[i] - 1;
+            if(levelHashes[level] == hash && TopicFilter.Utf8.equals(levels[level], cs, from, to)) return level;
+        }
+        return NOT_FOUND;
+    }
+
+    private int addLevel(byte[] bytes, int from, int to) {
+        int hash = mix(TopicFilter.Utf8.hash(bytes, from, to));
+        int level = findLevel(bytes, from, to, hash);
+        if(level != NOT_FOUND) return level;
+
+        if(levelCount == levels.length) {
+            levels = Arrays.copyOf(levels, levelCount * 2);
+            levelHashes = Arrays.copyOf(levelHashes, levelCount * 2);
+        }
+        level = levelCount++;
+        levels[level] = Arrays.copyOfRange(bytes, from, to);
+        levelHashes[level] = hash;
+
+        if(levelCount * 2 > levelTable.length) {
+            levelTable = new int[levelTable.length * 2];
+            for(int l = 0; l < levelCount; l++) putLevel(l);
+        }
+        else putLevel(level);
+        return level;
+    }
+
+    private void putLevel(int level) {
+        int mask = levelTable.length - 1;
+        int i = levelHashes[level] & mask;
+        while(levelTable[i] != 0) i = (i + 1) & mask;
+        levelTable[i] = level + 1;
+    }
+
+    // -- nodes
+
+    private static long childKey(int parent, int level) { return ((long) parent << 32) | (level & 0xFFFFFFFFL); }
+
+    private static int childHash(long key) { return mix((int) (key ^ (key >>> 32)) * 0x9E3779B9); }
+
+    private int findChild(int parent, int level) {
+        long key = childKey(parent, level);
+        int mask = childNodes.length - 1;
+        for(int i = childHash(key) & mask; childNodes[i] != 0; i = (i + 1) & mask) {
+            if(childKeys[i] == key) return childNodes[i] - 1;
+        }
+        return NOT_FOUND;
+    }
+
+    private int addChild(int parent, int level) {
+        int child = findChild(parent, level);
+        if(child != NOT_FOUND) return child;
+
+        if(nodeCount == parents.length) {
+            parents = Arrays.copyOf(parents, nodeCount * 2);
+            nodeLevels = Arrays.copyOf(nodeLevels, nodeCount * 2);
+            nodeKeys = Arrays.copyOf(nodeKeys, nodeCount * 2);
+        }
+        child = nodeCount++;
+        parents[child] = parent;
+        nodeLevels[child] = level;
+        nodeKeys[child] = NOT_FOUND;
+
+        if(nodeCount * 2 > childNodes.length) {
+            childKeys = new long[childNodes.length * 2];
+            childNodes = new int[childNodes.length * 2];
+            for(int n = 1; n < nodeCount; n++) putChild(childKey(parents[n], nodeLevels[n]), n);
+        }
+        else putChild(childKey(parent, level), child);
+        return child;
+    }
+
+    private void putChild(long key, int node) {
+        int mask = childNodes.length - 1;
+        int i = childHash(key) & mask;
+        while(childNodes[i] != 0) i = (i + 1) & mask;
+        childKeys[i] = key;
+        childNodes[i] = node + 1;
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        return hash ^ (hash >>> 13);
+    }
+}
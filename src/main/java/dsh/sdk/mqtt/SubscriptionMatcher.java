@@ -0,0 +1,357 @@
+package dsh.sdk.mqtt;
+
+import dsh.sdk.internal.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches keys against a (large) set of MQTT subscriptions at once.
+ *
+ * All subscriptions are compiled into a single trie of topic levels, with separate branches for the {@code +} and {@code #} wildcards.
+ * Matching a key walks the trie level by level, so the cost depends on the depth of the key and the number of wildcard branches
+ * it hits -- not on the number of subscriptions.  Every subscription gets an {@code int} handle when it is added;
+ * a match returns the handles of all matching subscriptions in a reusable {@link Matches} buffer.
+ *
+ * The match functions do not allocate: levels are hashed and compared directly on the UTF-8 bytes of the key
+ * (or on the characters of a {@code CharSequence}).  Wildcard semantics are the same as for {@link TopicFilter}.
+ *
+ * Adding and removing subscriptions is not thread safe; matching concurrently (each thread using its own {@link Matches})
+ * is safe as long as the subscriptions are not modified at the same time.
+ *
+ * <pre>{@code
+ *   SubscriptionMatcher matcher = new SubscriptionMatcher();
+ *   int meters = matcher.add("house/+/meter/#");
+ *   int lights = matcher.add("house/1/light");
+ *
+ *   SubscriptionMatcher.Matches matches = new SubscriptionMatcher.Matches();
+ *   matcher.match("house/1/meter/power", matches);   // matches contains 'meters'
+ * }</pre>
+ */
+public class SubscriptionMatcher {
+    private static final char DELIMITER_CHAR = StringUtils.TOPIC_DELIMITER.charAt(0);
+    private static final int NO_HANDLE = -1;
+
+    /**
+     * Reusable buffer collecting the handles of the matching subscriptions.
+     */
+    public static final class Matches {
+        private int[] handles;
+        private int size = 0;
+
+        public Matches() { this(16); }
+
+        /**
+         * @param capacity initial capacity, the buffer grows when more subscriptions match
+         */
+        public Matches(int capacity) { this.handles = new int[Math.max(1, capacity)]; }
+
+        private void add(int[] src, int count) {
+            if(size + count > handles.length) handles = Arrays.copyOf(handles, Math.max(handles.length * 2, size + count));
+            System.arraycopy(src, 0, handles, size, count);
+            size += count;
+        }
+
+        /**
+         * @return the number of matching subscriptions
+         */
+        public int size() { return size; }
+
+        /**
+         * @param idx index in the buffer, {@code 0 <= idx < size()}
+         * @return handle of a matching subscription
+         */
+        public int get(int idx) {
+            if(idx >= size) throw new IndexOutOfBoundsException("index " + idx + " >= " + size);
+            return handles[idx];
+        }
+
+        /**
+         * @return the handles of the matching subscriptions in a new array
+         */
+        public int[] toArray() { return Arrays.copyOf(handles, size); }
+
+        /**
+         * Empty the buffer (the match functions do this themselves).
+         */
+        public void clear() { size = 0; }
+    }
+
+    // a single level in the trie
+    private static final class Node {
+        private final Node parent;
+        private final byte[] level;         // null for the root and for '+' nodes
+
+        // exact children, in an open addressing hash table on the UTF-8 level bytes
+        private byte[][] keys = new byte[0][];
+        private int[] hashes = new int[0];
+        private Node[] children = new Node[0];
+        private int childCount = 0;
+        private Node plus;                  // '+' child
+
+        private int[] exact = new int[0];   // handles of the subscriptions ending on this level
+        private int exactCount = 0;
+        private int[] multi = new int[0];   // handles of the subscriptions ending on this level with '#'
+        private int multiCount = 0;
+
+        private Node(Node parent, byte[] level) { this.parent = parent; this.level = level; }
+
+        private boolean isEmpty() { return childCount == 0 && plus == null && exactCount == 0 && multiCount == 0; }
+
+        private Node child(byte[] bytes, int from, int to, int hash) {
+            if(childCount == 0) return null;
+            int mask = keys.length - 1;
+            for(int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+                if(hashes[i] == hash && TopicFilter.Utf8.equals(keys[i], bytes, from, to)) return children[i];
+            }
+            return null;
+        }
+
+        private Node child(CharSequence cs, int from, int to, int hash) {
+            if(childCount == 0) return null;
+            int mask = keys.length - 1;
+            for(int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+                if(hashes[i] == hash && TopicFilter.Utf8.equals(keys[i], cs, from, to)) return children[i];
+            }
+            return null;
+        }
+
+        private Node addChild(byte[] level) {
+            int hash = hash(level, 0, level.length);
+            Node existing = child(level, 0, level.length, hash);
+            if(existing != null) return existing;
+
+            if((childCount + 1) * 2 > keys.length) rehash(Math.max(4, keys.length * 2));
+            Node node = new Node(this, level);
+            put(level, hash, node);
+            childCount++;
+            return node;
+        }
+
+        private void removeChild(Node node) {
+            byte[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            Node[] oldChildren = children;
+            keys = new byte[oldKeys.length][];
+            hashes = new int[oldKeys.length];
+            children = new Node[oldKeys.length];
+            childCount = 0;
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldChildren[i] != null && oldChildren[i] != node) { put(oldKeys[i], oldHashes[i], oldChildren[i]); childCount++; }
+            }
+        }
+
+        private void rehash(int capacity) {
+            byte[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            Node[] oldChildren = children;
+            keys = new byte[capacity][];
+            hashes = new int[capacity];
+            children = new Node[capacity];
+            for(int i = 0; i < oldKeys.length; i++) if(oldKeys[i] != null) put(oldKeys[i], oldHashes[i], oldChildren[i]);
+        }
+
+        private void put(byte[] level, int hash, Node node) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while(keys[i] != null) i = (i + 1) & mask;
+            keys[i] = level;
+            hashes[i] = hash;
+            children[i] = node;
+        }
+    }
+
+    private final Node root = new Node(null, null);
+    private final List<String> filters = new ArrayList<>();     // filter per handle, null when removed
+    private final List<Node> nodes = new ArrayList<>();         // trie node per handle
+    private final List<Integer> free = new ArrayList<>();       // handles that can be reused
+    private int size = 0;
+
+    /**
+     * Add a subscription.
+     *
+     * @param filter MQTT topic filter, e.g. {@code house/+/meter/#}
+     * @return the handle identifying this subscription in the match results
+     * @exception IllegalArgumentException when the filter is not valid
+     */
+    public int add(String filter) {
+        String[] parts = TopicFilter.split(filter);
+        boolean multiLevel = parts[parts.length - 1].equals(TopicFilter.MULTI_LEVEL_WILDCARD);
+
+        Node node = root;
+        for(int i = 0; i < (multiLevel ? parts.length - 1 : parts.length); i++) {
+            if(parts[i].equals(TopicFilter.SINGLE_LEVEL_WILDCARD)) {
+                if(node.plus == null) node.plus = new Node(node, null);
+                node = node.plus;
+            }
+            else node = node.addChild(parts[i].getBytes(StandardCharsets.UTF_8));
+        }
+
+        int handle;
+        if(free.isEmpty()) {
+            handle = filters.size();
+            filters.add(filter);
+            nodes.add(node);
+        }
+        else {
+            handle = free.remove(free.size() - 1);
+            filters.set(handle, filter);
+            nodes.set(handle, node);
+        }
+
+        if(multiLevel) {
+            node.multi = append(node.multi, node.multiCount, handle);
+            node.multiCount++;
+        }
+        else {
+            node.exact = append(node.exact, node.exactCount, handle);
+            node.exactCount++;
+        }
+        size++;
+        return handle;
+    }
+
+    /**
+     * Remove a subscription.  Its handle can be given out again by a later {@link #add(String)}.
+     *
+     * @param handle handle returned by {@link #add(String)}
+     * @return {@code true} when the subscription was removed, {@code false} when the handle is unknown
+     */
+    public boolean remove(int handle) {
+        if(handle < 0 || handle >= filters.size() || filters.get(handle) == null) return false;
+        Node node = nodes.get(handle);
+
+        int idx = indexOf(node.multi, node.multiCount, handle);
+        if(idx >= 0) node.multi[idx] = node.multi[--node.multiCount];
+        else {
+            idx = indexOf(node.exact, node.exactCount, handle);
+            node.exact[idx] = node.exact[--node.exactCount];
+        }
+
+        // prune the branch that became empty
+        while(node.parent != null && node.isEmpty()) {
+            if(node.level == null) node.parent.plus = null;
+            else node.parent.removeChild(node);
+            node = node.parent;
+        }
+
+        filters.set(handle, null);
+        nodes.set(handle, null);
+        free.add(handle);
+        size--;
+        return true;
+    }
+
+    /**
+     * @param handle handle returned by {@link #add(String)}
+     * @return the topic filter of the subscription, or {@code null} when the handle is unknown
+     */
+    public String filter(int handle) { return handle >= 0 && handle < filters.size() ? filters.get(handle) : null; }
+
+    /**
+     * @return the number of subscriptions
+     */
+    public int size() { return size; }
+
+    /**
+     * Collect all subscriptions matching a UTF-8 encoded key.
+     *
+     * @param bytes   buffer containing the key
+     * @param offset  start of the key in the buffer
+     * @param length  length of the key in bytes
+     * @param matches buffer receiving the handles of the matching subscriptions (cleared first)
+     * @return the number of matching subscriptions
+     */
+    public int match(byte[] bytes, int offset, int length, Matches matches) {
+        matches.clear();
+        match(root, bytes, offset, offset + length, matches);
+        return matches.size();
+    }
+
+    /**
+     * Collect all subscriptions matching a key.
+     *
+     * @param key     the key
+     * @param matches buffer receiving the handles of the matching subscriptions (cleared first)
+     * @return the number of matching subscriptions
+     */
+    public int match(CharSequence key, Matches matches) {
+        matches.clear();
+        if(key != null) match(root, key, 0, key.length(), matches);
+        return matches.size();
+    }
+
+    /**
+     * Check whether a UTF-8 encoded key matches at least one subscription.
+     *
+     * @param bytes   buffer containing the key
+     * @param offset  start of the key in the buffer
+     * @param length  length of the key in bytes
+     * @return {@code true} when any subscription matches
+     */
+    public boolean matchesAny(byte[] bytes, int offset, int length) { return matchesAny(root, bytes, offset, offset + length); }
+
+    // pos == end + 1 means all levels of the key are consumed
+    private static void match(Node node, byte[] bytes, int pos, int end, Matches matches) {
+        if(node.multiCount > 0) matches.add(node.multi, node.multiCount);     // '#' also matches the parent level
+        if(pos > end) {
+            if(node.exactCount > 0) matches.add(node.exact, node.exactCount);
+            return;
+        }
+
+        int levelEnd = pos;
+        int hash = 0;
+        while(levelEnd < end && bytes[levelEnd] != TopicFilter.DELIMITER) hash = 31 * hash + bytes[levelEnd++];     // same as Utf8.hash
+
+        Node child = node.child(bytes, pos, levelEnd, mix(hash));
+        if(child != null) match(child, bytes, levelEnd + 1, end, matches);
+        if(node.plus != null) match(node.plus, bytes, levelEnd + 1, end, matches);
+    }
+
+    private static void match(Node node, CharSequence key, int pos, int end, Matches matches) {
+        if(node.multiCount > 0) matches.add(node.multi, node.multiCount);
+        if(pos > end) {
+            if(node.exactCount > 0) matches.add(node.exact, node.exactCount);
+            return;
+        }
+
+        int levelEnd = pos;
+        while(levelEnd < end && key.charAt(levelEnd) != DELIMITER_CHAR) levelEnd++;
+
+        Node child = node.childCount > 0 ? node.child(key, pos, levelEnd, hash(key, pos, levelEnd)) : null;
+        if(child != null) match(child, key, levelEnd + 1, end, matches);
+        if(node.plus != null) match(node.plus, key, levelEnd + 1, end, matches);
+    }
+
+    private static boolean matchesAny(Node node, byte[] bytes, int pos, int end) {
+        if(node.multiCount > 0) return true;
+        if(pos > end) return node.exactCount > 0;
+
+        int levelEnd = pos;
+        int hash = 0;
+        while(levelEnd < end && bytes[levelEnd] != TopicFilter.DELIMITER) hash = 31 * hash + bytes[levelEnd++];
+
+        Node child = node.child(bytes, pos, levelEnd, mix(hash));
+        return (child != null && matchesAny(child, bytes, levelEnd + 1, end))
+                || (node.plus != null && matchesAny(node.plus, bytes, levelEnd + 1, end));
+    }
+
+    // -- helpers
+
+    private static int hash(byte[] bytes, int from, int to) { return mix(TopicFilter.Utf8.hash(bytes, from, to)); }
+    private static int hash(CharSequence cs, int from, int to) { return mix(TopicFilter.Utf8.hash(cs, from, to)); }
+    private static int mix(int hash) { return hash ^ (hash >>> 16); }
+
+    private static int[] append(int[] array, int count, int value) {
+        int[] result = count < array.length ? array : Arrays.copyOf(array, Math.max(2, array.length * 2));
+        result[count] = value;
+        return result;
+    }
+
+    private static int indexOf(int[] array, int count, int value) {
+        for(int i = 0; i < count; i++) if(array[i] == value) return i;
+        return NO_HANDLE;
+    }
+}
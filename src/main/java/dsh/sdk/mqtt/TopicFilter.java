@@ -0,0 +1,205 @@
+package dsh.sdk.mqtt;
+
+import dsh.sdk.internal.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single MQTT subscription (topic filter), compiled for fast matching against keys.
+ *
+ * The filter levels are separated by {@link StringUtils#TOPIC_DELIMITER}, and can contain the MQTT wildcards:
+ * <ul>
+ *     <li>{@code +} matches exactly one level (e.g. {@code house/+/meter})</li>
+ *     <li>{@code #} matches any number of levels, including the parent level itself, and can only be the last level (e.g. {@code house/#})</li>
+ * </ul>
+ *
+ * Matching works directly on the UTF-8 bytes of a key (e.g. the key range inside a serialized {@code KeyEnvelope})
+ * or on a {@code CharSequence}, without any allocation.
+ */
+public class TopicFilter {
+    static final String SINGLE_LEVEL_WILDCARD = "+";
+    static final String MULTI_LEVEL_WILDCARD = "#";
+    static final byte DELIMITER = (byte) StringUtils.TOPIC_DELIMITER.charAt(0);
+
+    private final String filter;
+    private final byte[][] levels;      // UTF-8 encoded levels, null for a '+' level
+    private final boolean multiLevel;   // filter ends with '#'
+
+    private TopicFilter(String filter) {
+        this.filter = filter;
+        String[] parts = split(filter);
+        this.multiLevel = parts[parts.length - 1].equals(MULTI_LEVEL_WILDCARD);
+
+        int count = multiLevel ? parts.length - 1 : parts.length;
+        this.levels = new byte[count][];
+        for(int i = 0; i < count; i++) levels[i] = parts[i].equals(SINGLE_LEVEL_WILDCARD) ? null : parts[i].getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Split and validate a topic filter into its levels.
+     *
+     * @param filter MQTT topic filter
+     * @return the individual levels (empty levels are kept)
+     * @exception IllegalArgumentException when the filter is empty, or uses the wildcards in an invalid way
+     */
+    static String[] split(String filter) {
+        if(filter == null || filter.isEmpty()) throw new IllegalArgumentException("empty topic filter");
+        String[] parts = filter.split(StringUtils.TOPIC_DELIMITER, -1);
+        for(int i = 0; i < parts.length; i++) {
+            String level = parts[i];
+            if(level.contains(MULTI_LEVEL_WILDCARD) && (! level.equals(MULTI_LEVEL_WILDCARD) || i != parts.length - 1))
+                throw new IllegalArgumentException("'#' is only allowed as the last level of a topic filter: " + filter);
+            if(level.contains(SINGLE_LEVEL_WILDCARD) && ! level.equals(SINGLE_LEVEL_WILDCARD))
+                throw new IllegalArgumentException("'+' has to occupy a complete level of a topic filter: " + filter);
+        }
+        return parts;
+    }
+
+    /**
+     * Compile an MQTT topic filter.
+     *
+     * @param filter MQTT topic filter, e.g. {@code house/+/meter/#}
+     * @return compiled filter
+     * @exception IllegalArgumentException when the filter is not valid
+     */
+    public static TopicFilter of(String filter) { return new TopicFilter(filter); }
+
+    /**
+     * Match the filter against a UTF-8 encoded key.
+     *
+     * @param bytes  buffer containing the key
+     * @param offset start of the key in the buffer
+     * @param length length of the key in bytes
+     * @return {@code true} when the key matches the filter
+     */
+    public boolean matches(byte[] bytes, int offset, int length) {
+        final int end = offset + length;
+        int pos = offset;
+        for(int l = 0; l < levels.length; l++) {
+            if(pos > end) return false;                     // key has less levels than the filter
+
+            int levelEnd = pos;
+            while(levelEnd < end && bytes[levelEnd] != DELIMITER) levelEnd++;
+
+            byte[] level = levels[l];
+            if(level != null) {
+                if(levelEnd - pos != level.length) return false;
+                for(int i = 0; i < level.length; i++) if(bytes[pos + i] != level[i]) return false;
+            }
+            pos = levelEnd + 1;                             // skip the delimiter, ends up at end + 1 after the last level
+        }
+
+        return multiLevel || pos == end + 1;
+    }
+
+    /**
+     * Match the filter against a key.
+     *
+     * @param key the key
+     * @return {@code true} when the key matches the filter
+     */
+    public boolean matches(CharSequence key) {
+        if(key == null) return false;
+        final int end = key.length();
+        final char delim = StringUtils.TOPIC_DELIMITER.charAt(0);
+        int pos = 0;
+        for(int l = 0; l < levels.length; l++) {
+            if(pos > end) return false;
+
+            int levelEnd = pos;
+            while(levelEnd < end && key.charAt(levelEnd) != delim) levelEnd++;
+
+            byte[] level = levels[l];
+            if(level != null && ! Utf8.equals(level, key, pos, levelEnd)) return false;
+            pos = levelEnd + 1;
+        }
+
+        return multiLevel || pos == end + 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(! (o instanceof TopicFilter)) return false;
+        return filter.equals(((TopicFilter) o).filter);
+    }
+
+    @Override
+    public int hashCode() { return filter.hashCode(); }
+
+    @Override
+    public String toString() { return filter; }
+
+    /**
+     * Allocation free hashing and comparison of UTF-8 encoded bytes and (parts of) character sequences.
+     * The hash of a character sequence equals the hash of its UTF-8 encoding.
+     */
+    static class Utf8 {
+        private Utf8() { throw new AssertionError(); }
+
+        static int hash(byte[] bytes, int from, int to) {
+            int hash = 0;
+            for(int i = from; i < to; i++) hash = 31 * hash + bytes[i];
+            return hash;
+        }
+
+        static int hash(CharSequence cs, int from, int to) {
+            int hash = 0;
+            for(int i = from; i < to; i++) {
+                int c = cs.charAt(i);
+                if(c < 0x80) hash = 31 * hash + (byte) c;
+                else if(c < 0x800) {
+                    hash = 31 * hash + (byte) (0xC0 | (c >> 6));
+                    hash = 31 * hash + (byte) (0x80 | (c & 0x3F));
+                }
+                else if(Character.isHighSurrogate((char) c) && i + 1 < to) {
+                    int cp = Character.toCodePoint((char) c, cs.charAt(++i));
+                    hash = 31 * hash + (byte) (0xF0 | (cp >> 18));
+                    hash = 31 * hash + (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    hash = 31 * hash + (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    hash = 31 * hash + (byte) (0x80 | (cp & 0x3F));
+                }
+                else {
+                    hash = 31 * hash + (byte) (0xE0 | (c >> 12));
+                    hash = 31 * hash + (byte) (0x80 | ((c >> 6) & 0x3F));
+                    hash = 31 * hash + (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return hash;
+        }
+
+        static boolean equals(byte[] utf8, byte[] bytes, int from, int to) {
+            if(to - from != utf8.length) return false;
+            for(int i = 0; i < utf8.length; i++) if(utf8[i] != bytes[from + i]) return false;
+            return true;
+        }
+
+        static boolean equals(byte[] utf8, CharSequence cs, int from, int to) {
+            int b = 0;
+            for(int i = from; i < to; i++) {
+                int c = cs.charAt(i);
+                if(c < 0x80) {
+                    if(b >= utf8.length || utf8[b++] != (byte) c) return false;
+                }
+                else if(c < 0x800) {
+                    if(b + 1 >= utf8.length || utf8[b++] != (byte) (0xC0 | (c >> 6)) || utf8[b++] != (byte) (0x80 | (c & 0x3F))) return false;
+                }
+                else if(Character.isHighSurrogate((char) c) && i + 1 < to) {
+                    int cp = Character.toCodePoint((char) c, cs.charAt(++i));
+                    if(b + 3 >= utf8.length
+                            || utf8[b++] != (byte) (0xF0 | (cp >> 18))
+                            || utf8[b++] != (byte) (0x80 | ((cp >> 12) & 0x3F))
+                            || utf8[b++] != (byte) (0x80 | ((cp >> 6) & 0x3F))
+                            || utf8[b++] != (byte) (0x80 | (cp & 0x3F))) return false;
+                }
+                else {
+                    if(b + 2 >= utf8.length
+                            || utf8[b++] != (byte) (0xE0 | (c >> 12))
+                            || utf8[b++] != (byte) (0x80 | ((c >> 6) & 0x3F))
+                            || utf8[b++] != (byte) (0x80 | (c & 0x3F))) return false;
+                }
+            }
+            return b == utf8.length;
+        }
+    }
+}
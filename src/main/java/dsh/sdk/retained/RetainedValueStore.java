@@ -0,0 +1,732 @@
+package dsh.sdk.retained;
+
+import dsh.messages.Envelope;
+import dsh.messages.EnvelopeBatch;
+import dsh.messages.KeyExtractor;
+import dsh.messages.PayloadCodec;
+import dsh.messages.Serdes;
+import dsh.messages.ValueExtractor;
+import dsh.sdk.mqtt.TopicFilter;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Client side equivalent of the platform's Latest Value Store: keeps the last {@code DataEnvelope} for every key.
+ *
+ * The store is fed from a consumer ({@link #apply(ConsumerRecords)} or {@link #applyRaw(ConsumerRecords)}),
+ * and follows the same semantics as the platform:
+ * <ul>
+ *     <li>only messages with {@code KeyHeader.retained} set are kept (unless configured otherwise)</li>
+ *     <li>a DataEnvelope without payload ({@code KIND_NOT_SET}) -- or a {@code null} value -- deletes the key</li>
+ * </ul>
+ *
+ * To keep large stores out of the Java heap, keys and serialized envelopes are stored in off-heap (direct) buffer slabs.
+ * The on-heap index is a compact open-addressing table holding only a hash and a slab location per key.
+ * Space of overwritten and deleted values is reclaimed by compacting the slabs when more than half of them is garbage.
+ *
+ * Raw records are stored as they were consumed; compressed payloads (see {@link PayloadCodec}) are decompressed on lookup,
+ * with the codec given to {@link Builder#setPayloadCodec(PayloadCodec)}.
+ *
+ * Lookups can be done on a single key, or on an MQTT topic filter ({@code +} and {@code #} wildcards).
+ * All functions are thread safe: typically a single consumer thread applies records while other threads read.
+ *
+ * The store remembers the next offset to consume for every partition it got records from.  A {@link #snapshot(Path) snapshot}
+ * writes the entries -- in their off-heap layout -- together with these offsets to a file.  A restarted task
+ * {@link Builder#restore(Path) restores} the store by memory-mapping that file (no copying or parsing of the values),
+ * and only needs to {@link #catchUp(Consumer, Collection, Duration) replay} the stream from the saved offsets.
+ *
+ * <pre>{@code
+ *   RetainedValueStore store = new RetainedValueStore.Builder().build();
+ *   . . .
+ *   store.apply(consumer.poll(Duration.ofMillis(100)));
+ *   . . .
+ *   Optional<DataEnvelope> value = store.get("house/1/meter");
+ *   Map<String, DataEnvelope> meters = store.match("house/+/meter");
+ *
+ *   // on shutdown
+ *   store.snapshot(snapshotFile);
+ *
+ *   // on restart
+ *   RetainedValueStore store = new RetainedValueStore.Builder().restore(snapshotFile);
+ *   KafkaConsumer<byte[], byte[]> consumer = clientFactory.createLocalRawStreamConsumer(null);
+ *   store.catchUp(consumer, partitionsOf(consumer, topics), Duration.ofMinutes(5));
+ * }</pre>
+ */
+public class RetainedValueStore {
+    private static final Logger logger = LoggerFactory.getLogger(RetainedValueStore.class);
+
+    private static final int ENTRY_HEADER = 2 * Integer.BYTES;  // key length + value length
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int SNAPSHOT_MAGIC = 0x44534852;       // "DSHR"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;        // entries are mapped in segments of at most 1GB
+
+    /**
+     * Builder class to configure the store
+     */
+    public static class Builder {
+        private int slabSize = 4 * 1024 * 1024;
+        private boolean retainedOnly = true;
+        private PayloadCodec codec = PayloadCodec.NONE;
+
+        /**
+         * @param slabSize size in bytes of the off-heap buffers to allocate (values that do not fit get their own buffer)
+         * @return Builder
+         */
+        public Builder setSlabSize(int slabSize) { this.slabSize = slabSize; return this; }
+
+        /**
+         * @param retainedOnly only keep the messages with the retained flag set (default {@code true}),
+         *                     when {@code false} the last message of every key is kept
+         * @return Builder
+         */
+        public Builder setRetainedOnly(boolean retainedOnly) { this.retainedOnly = retainedOnly; return this; }
+
+        /**
+         * @param codec the codec with the dictionaries to decompress the payloads of raw records with
+         *              (default {@link PayloadCodec#NONE}, only decompressing payloads compressed without dictionary)
+         * @return Builder
+         */
+        public Builder setPayloadCodec(PayloadCodec codec) { this.codec = Objects.requireNonNull(codec); return this; }
+
+        /**
+         * @return empty store
+         * @exception IllegalArgumentException on invalid configuration
+         */
+        public RetainedValueStore build() {
+            if(slabSize < 1024) throw new IllegalArgumentException("slab size needs to be at least 1024 bytes");
+            return new RetainedValueStore(this);
+        }
+
+        /**
+         * Create a store from a snapshot file written by {@link RetainedValueStore#snapshot(Path)}.
+         * The entries are memory-mapped from the file, only the (on-heap) index gets rebuilt.
+         *
+         * @param snapshot the snapshot file
+         * @return store with the contents and partition offsets of the snapshot
+         * @throws IOException when the snapshot can not be read, or is not a valid snapshot
+         * @exception IllegalArgumentException on invalid configuration
+         */
+        public RetainedValueStore restore(Path snapshot) throws IOException {
+            RetainedValueStore store = build();
+            store.load(snapshot);
+            return store;
+        }
+    }
+
+    private final int slabSize;
+    private final boolean retainedOnly;
+    private final PayloadCodec codec;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // off-heap storage: entries of [key length][value length][key bytes][value bytes], appended to the last slab
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    private long usedBytes = 0L;
+    private long liveBytes = 0L;
+
+    // index: linear probing on the key hash, location = slab index << 32 | offset in slab
+    private int[] hashes = new int[INITIAL_CAPACITY];     // 0 marks an empty slot
+    private long[] locations = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // next offset to consume, per partition the applied records came from
+    private final Map<TopicPartition, Long> offsets = new HashMap<>();
+
+    private RetainedValueStore(Builder builder) {
+        this.slabSize = builder.slabSize;
+        this.retainedOnly = builder.retainedOnly;
+        this.codec = builder.codec;
+    }
+
+    // -- feeding the store
+
+    /**
+     * Apply a deserialized record to the store.
+     * A batch (see {@link EnvelopeBatch}) is applied entry by entry.
+     *
+     * @param record consumed record
+     * @return {@code true} when the record changed the store (stored or deleted a key)
+     */
+    public boolean apply(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record) {
+        track(record);
+        if(EnvelopeBatch.isBatch(record.value())) {
+            boolean[] changed = { false };
+            EnvelopeBatch.forEach(record.key(), record.value(), (key, value) -> changed[0] |= apply(key, value));
+            return changed[0];
+        }
+        return apply(record.key(), record.value());
+    }
+
+    private boolean apply(Envelope.KeyEnvelope key, Envelope.DataEnvelope value) {
+        if(key == null || (retainedOnly && ! key.getHeader().getRetained())) return false;
+
+        if(value == null || value.getKindCase() == Envelope.DataEnvelope.KindCase.KIND_NOT_SET) return remove(key.getKey());
+        put(key.getKey(), value);
+        return true;
+    }
+
+    /**
+     * Apply a batch of deserialized records to the store.
+     *
+     * @param records consumed records
+     * @return the number of records that changed the store
+     */
+    public int apply(ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> records) {
+        int changed = 0;
+        for(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record: records) if(apply(record)) changed++;
+        return changed;
+    }
+
+    /**
+     * Apply a raw (serialized) record to the store.
+     * The envelopes are not deserialized: key, retained flag and payload presence are read from the wire format directly.
+     * A batch (see {@link EnvelopeBatch}) is applied entry by entry.
+     *
+     * @param record consumed raw record
+     * @return {@code true} when the record changed the store (stored or deleted a key)
+     */
+    public boolean applyRaw(ConsumerRecord<byte[], byte[]> record) {
+        track(record);
+        if(EnvelopeBatch.isBatch(record.value())) {
+            boolean[] changed = { false };
+            EnvelopeBatch.forEach(record.key(), record.value(), (key, value) -> changed[0] |= applyRaw(key, value));
+            return changed[0];
+        }
+        return applyRaw(record.key(), record.value());
+    }
+
+    private boolean applyRaw(byte[] key, byte[] value) {
+        long range = KeyExtractor.keyRange(key);
+        if(range == KeyExtractor.NOT_FOUND || (retainedOnly && ! KeyExtractor.retained(key))) return false;
+
+        int keyOffset = KeyExtractor.offset(range);
+        int keyLength = KeyExtractor.length(range);
+        long payload = ValueExtractor.scanPayload(value);
+        if(payload == ValueExtractor.MALFORMED) {
+            // corrupt data must not delete the retained value of the key
+            logger.warn("skipping malformed value for key {}", new String(key, keyOffset, keyLength, StandardCharsets.UTF_8));
+            return false;
+        }
+        if(payload == KeyExtractor.NOT_FOUND) return remove(key, keyOffset, keyLength);
+        put(key, keyOffset, keyLength, value);
+        return true;
+    }
+
+    /**
+     * Apply a batch of raw (serialized) records to the store.
+     *
+     * @param records consumed raw records
+     * @return the number of records that changed the store
+     */
+    public int applyRaw(ConsumerRecords<byte[], byte[]> records) {
+        int changed = 0;
+        for(ConsumerRecord<byte[], byte[]> record: records) if(applyRaw(record)) changed++;
+        return changed;
+    }
+
+    private void track(ConsumerRecord<?, ?> record) {
+        lock.writeLock().lock();
+        try {
+            offsets.merge(new TopicPartition(record.topic(), record.partition()), record.offset() + 1, Math::max);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replay a stream into the store, from the stored partition offsets up to the end offsets at the time of the call.
+     *
+     * The given consumer gets the partitions assigned directly (no consumer group coordination).
+     * Partitions the store has no offset for are read from the beginning.  After catching up the consumer stays assigned
+     * and positioned, so it can be used to keep following the stream.
+     *
+     * @param consumer raw consumer, e.g. from {@link dsh.sdk.kafka.KafkaClientFactory#createLocalRawStreamConsumer(java.util.Properties)}
+     * @param partitions the partitions of the stream
+     * @param timeout maximum time to spend catching up
+     * @return {@code true} when all partitions are caught up, {@code false} when the timeout expired first
+     */
+    public boolean catchUp(Consumer<byte[], byte[]> consumer, Collection<TopicPartition> partitions, Duration timeout) {
+        consumer.assign(partitions);
+        Map<TopicPartition, Long> start = offsets();
+        List<TopicPartition> fromBeginning = new ArrayList<>();
+        for(TopicPartition tp: partitions) {
+            Long offset = start.get(tp);
+            if(offset != null) consumer.seek(tp, offset);
+            else fromBeginning.add(tp);
+        }
+        if(! fromBeginning.isEmpty()) consumer.seekToBeginning(fromBeginning);
+
+        Map<TopicPartition, Long> end = new HashMap<>(consumer.endOffsets(partitions));
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        long applied = 0L;
+        while(true) {
+            end.entrySet().removeIf(e -> consumer.position(e.getKey()) >= e.getValue());
+            if(end.isEmpty()) {
+                logger.info("retained value store caught up - {} records replayed, {} keys", applied, size());
+                return true;
+            }
+            if(System.currentTimeMillis() >= deadline) {
+                logger.warn("retained value store did not catch up in time - {} partitions behind", end.size());
+                return false;
+            }
+            ConsumerRecords<byte[], byte[]> records = consumer.poll(Duration.ofMillis(100));
+            applyRaw(records);
+            applied += records.count();
+        }
+    }
+
+    /**
+     * The offsets to continue consuming from, for all partitions records were applied from (or restored from a snapshot).
+     *
+     * @return next offset to consume, per partition
+     */
+    public Map<TopicPartition, Long> offsets() {
+        lock.readLock().lock();
+        try { return new HashMap<>(offsets); } finally { lock.readLock().unlock(); }
+    }
+
+    /**
+     * Store a value for a key, replacing the previous one.
+     *
+     * @param key   the key
+     * @param value the value to keep
+     */
+    public void put(String key, Envelope.DataEnvelope value) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        put(k, 0, k.length, Serdes.serializeValue.apply(value));
+    }
+
+    /**
+     * Delete a key.
+     *
+     * @param key the key
+     * @return {@code true} when the key was present
+     */
+    public boolean remove(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        return remove(k, 0, k.length);
+    }
+
+    /**
+     * Remove all keys and release the off-heap buffers.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            slabs = new ArrayList<>();
+            hashes = new int[INITIAL_CAPACITY];
+            locations = new long[INITIAL_CAPACITY];
+            size = 0;
+            usedBytes = 0L;
+            liveBytes = 0L;
+            offsets.clear();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // -- snapshots
+
+    /**
+     * Write the contents of the store, and the partition offsets, to a snapshot file.
+     * The file is written next to the target and moved in place when complete, so an existing snapshot is replaced atomically.
+     *
+     * @param snapshot the snapshot file
+     * @throws IOException when the snapshot could not be written
+     */
+    public void snapshot(Path snapshot) throws IOException {
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // split the live entries in segments
+            List<Long> segments = new ArrayList<>();
+            long segment = 0L;
+            for(int slot = 0; slot < hashes.length; slot++) {
+                if(hashes[slot] == 0) continue;
+                int entry = entrySize(locations[slot]);
+                if(segment + entry > MAX_SEGMENT_SIZE) { segments.add(segment); segment = 0L; }
+                segment += entry;
+            }
+            segments.add(segment);
+
+            // header
+            List<byte[]> topics = new ArrayList<>();
+            int headerSize = 4 * Integer.BYTES;
+            for(TopicPartition tp: offsets.keySet()) {
+                byte[] topic = tp.topic().getBytes(StandardCharsets.UTF_8);
+                topics.add(topic);
+                headerSize += Short.BYTES + topic.length + Integer.BYTES + Long.BYTES;
+            }
+            headerSize += Integer.BYTES + segments.size() * Long.BYTES;
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(size).putInt(offsets.size());
+            int t = 0;
+            for(Map.Entry<TopicPartition, Long> e: offsets.entrySet()) {
+                byte[] topic = topics.get(t++);
+                header.putShort((short) topic.length).put(topic).putInt(e.getKey().partition()).putLong(e.getValue());
+            }
+            header.putInt(segments.size());
+            segments.forEach(header::putLong);
+            ((Buffer) header).flip();
+            while(header.hasRemaining()) channel.write(header);
+
+            // entries
+            long position = headerSize;
+            int slot = 0;
+            for(long length: segments) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+                while(out.hasRemaining()) {
+                    while(hashes[slot] == 0) slot++;
+                    long location = locations[slot++];
+                    ByteBuffer entry = slabs.get(slab(location)).duplicate();
+                    ((Buffer) entry).position(offset(location));
+                    ((Buffer) entry).limit(offset(location) + entrySize(location));
+                    out.put(entry);
+                }
+                out.force();
+                position += length;
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("retained value store snapshot written to {} - {} keys", snapshot, size());
+    }
+
+    // map the entries of a snapshot as (read-only) slabs, and rebuild the index on top of them
+    private void load(Path snapshot) throws IOException {
+        lock.writeLock().lock();
+        try(FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            InputStream in = Channels.newInputStream(channel);
+            DataInputStream data = new DataInputStream(in);
+            if(data.readInt() != SNAPSHOT_MAGIC || data.readInt() != SNAPSHOT_VERSION) throw new IOException("not a retained value store snapshot: " + snapshot);
+
+            int entries = data.readInt();
+            int partitions = data.readInt();
+            long position = 4 * Integer.BYTES;
+            for(int i = 0; i < partitions; i++) {
+                byte[] topic = new byte[data.readShort()];
+                data.readFully(topic);
+                offsets.put(new TopicPartition(new String(topic, StandardCharsets.UTF_8), data.readInt()), data.readLong());
+                position += Short.BYTES + topic.length + Integer.BYTES + Long.BYTES;
+            }
+            long[] segments = new long[data.readInt()];
+            for(int i = 0; i < segments.length; i++) segments[i] = data.readLong();
+            position += Integer.BYTES + segments.length * Long.BYTES;
+
+            resize(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, entries) * 2) * 2));
+            for(long length: segments) {
+                if(length == 0) continue;
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int slab = slabs.size();
+                slabs.add(mapped);
+                for(int offset = 0; offset < length; ) {
+                    int keyLength = mapped.getInt(offset);
+                    insert(hash(mapped, offset + ENTRY_HEADER, keyLength), location(slab, offset));
+                    offset += ENTRY_HEADER + keyLength + mapped.getInt(offset + Integer.BYTES);
+                }
+                ((Buffer) mapped).position(mapped.limit());    // read-only: new entries go to a fresh slab
+                usedBytes += length;
+                position += length;
+            }
+            size = entries;
+            liveBytes = usedBytes;
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt retained value store snapshot: " + snapshot, e);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("retained value store restored from {} - {} keys, {} partitions", snapshot, size(), offsets.size());
+    }
+
+    // -- lookups
+
+    /**
+     * Point lookup.
+     *
+     * @param key the key
+     * @return the last retained value for the key, empty when there is none
+     */
+    public Optional<Envelope.DataEnvelope> get(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = find(k, 0, k.length, hash(k, 0, k.length));
+            return slot < 0 ? Optional.empty() : Optional.of(value(locations[slot]));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return {@code true} when the store holds a value for the key
+     */
+    public boolean contains(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            return find(k, 0, k.length, hash(k, 0, k.length)) >= 0;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Wildcard lookup: all keys matching an MQTT topic filter.
+     * Only the matching entries are deserialized; a filter without wildcards results in a point lookup.
+     *
+     * @param filter MQTT topic filter, e.g. {@code house/+/meter/#}
+     * @return the matching keys with their last retained value
+     * @exception IllegalArgumentException when the filter is not valid
+     */
+    public Map<String, Envelope.DataEnvelope> match(String filter) {
+        TopicFilter topicFilter = TopicFilter.of(filter);
+        if(! filter.contains("+") && ! filter.contains("#"))
+            return get(filter).map(v -> Collections.singletonMap(filter, v)).orElse(Collections.emptyMap());
+
+        Map<String, Envelope.DataEnvelope> result = new HashMap<>();
+        byte[] scratch = new byte[256];
+        lock.readLock().lock();
+        try {
+            for(int slot = 0; slot < hashes.length; slot++) {
+                if(hashes[slot] == 0) continue;
+
+                long location = locations[slot];
+                ByteBuffer slab = slabs.get(slab(location));
+                int offset = offset(location);
+                int keyLength = slab.getInt(offset);
+                if(keyLength > scratch.length) scratch = new byte[Math.max(keyLength, scratch.length * 2)];
+                read(slab, offset + ENTRY_HEADER, scratch, keyLength);
+
+                if(topicFilter.matches(scratch, 0, keyLength))
+                    result.put(new String(scratch, 0, keyLength, StandardCharsets.UTF_8), value(location));
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of keys in the store
+     */
+    public int size() {
+        lock.readLock().lock();
+        try { return size; } finally { lock.readLock().unlock(); }
+    }
+
+    /**
+     * @return the number of off-heap bytes allocated for the slabs
+     */
+    public long offHeapBytes() {
+        lock.readLock().lock();
+        try { return slabs.stream().mapToLong(ByteBuffer::capacity).sum(); } finally { lock.readLock().unlock(); }
+    }
+
+    // -- internals (callers hold the lock)
+
+    private void put(byte[] key, int keyOffset, int keyLength, byte[] value) {
+        int hash = hash(key, keyOffset, keyLength);
+        lock.writeLock().lock();
+        try {
+            long location = append(key, keyOffset, keyLength, value);
+            int slot = find(key, keyOffset, keyLength, hash);
+            if(slot >= 0) {
+                liveBytes -= entrySize(locations[slot]);
+                locations[slot] = location;
+            }
+            else {
+                if((size + 1) * 2 > hashes.length) resize(hashes.length * 2);
+                insert(hash, location);
+                size++;
+            }
+            liveBytes += ENTRY_HEADER + keyLength + value.length;
+            compactIfNeeded();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean remove(byte[] key, int keyOffset, int keyLength) {
+        int hash = hash(key, keyOffset, keyLength);
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, keyOffset, keyLength, hash);
+            if(slot < 0) return false;
+
+            liveBytes -= entrySize(locations[slot]);
+            delete(slot);
+            size--;
+            compactIfNeeded();
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long append(byte[] key, int keyOffset, int keyLength, byte[] value) {
+        int needed = ENTRY_HEADER + keyLength + value.length;
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if(slab == null || slab.remaining() < needed) {
+            slab = ByteBuffer.allocateDirect(Math.max(slabSize, needed));
+            slabs.add(slab);
+        }
+
+        long location = location(slabs.size() - 1, slab.position());
+        slab.putInt(keyLength).putInt(value.length).put(key, keyOffset, keyLength).put(value);
+        usedBytes += needed;
+        return location;
+    }
+
+    // rewrite all live entries into fresh slabs once more than half of the used space is garbage
+    private void compactIfNeeded() {
+        if(usedBytes - liveBytes <= Math.max(slabSize, usedBytes / 2)) return;
+
+        List<ByteBuffer> old = slabs;
+        slabs = new ArrayList<>();
+        usedBytes = 0L;
+        byte[] keyBuf = new byte[256];
+        for(int slot = 0; slot < hashes.length; slot++) {
+            if(hashes[slot] == 0) continue;
+            ByteBuffer slab = old.get(slab(locations[slot]));
+            int offset = offset(locations[slot]);
+            int keyLength = slab.getInt(offset);
+            byte[] value = new byte[slab.getInt(offset + Integer.BYTES)];
+            if(keyLength > keyBuf.length) keyBuf = new byte[keyLength];
+            read(slab, offset + ENTRY_HEADER, keyBuf, keyLength);
+            read(slab, offset + ENTRY_HEADER + keyLength, value, value.length);
+            locations[slot] = append(keyBuf, 0, keyLength, value);
+        }
+        logger.debug("compacted retained value store - {} keys, {} slabs -> {} slabs", size, old.size(), slabs.size());
+    }
+
+    private int find(byte[] key, int keyOffset, int keyLength, int hash) {
+        int mask = hashes.length - 1;
+        for(int slot = hash & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+            if(hashes[slot] == hash && keyEquals(locations[slot], key, keyOffset, keyLength)) return slot;
+        }
+        return -1;
+    }
+
+    private void insert(int hash, long location) {
+        int mask = hashes.length - 1;
+        int slot = hash & mask;
+        while(hashes[slot] != 0) slot = (slot + 1) & mask;
+        hashes[slot] = hash;
+        locations[slot] = location;
+    }
+
+    // backward shift deletion: keeps the probe sequences intact without tombstones
+    private void delete(int slot) {
+        int mask = hashes.length - 1;
+        int hole = slot;
+        for(int next = (hole + 1) & mask; hashes[next] != 0; next = (next + 1) & mask) {
+            int home = hashes[next] & mask;
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if(movable) {
+                hashes[hole] = hashes[next];
+                locations[hole] = locations[next];
+                hole = next;
+            }
+        }
+        hashes[hole] = 0;
+    }
+
+    private void resize(int capacity) {
+        int[] oldHashes = hashes;
+        long[] oldLocations = locations;
+        hashes = new int[capacity];
+        locations = new long[capacity];
+        for(int i = 0; i < oldHashes.length; i++) if(oldHashes[i] != 0) insert(oldHashes[i], oldLocations[i]);
+    }
+
+    private boolean keyEquals(long location, byte[] key, int keyOffset, int keyLength) {
+        ByteBuffer slab = slabs.get(slab(location));
+        int offset = offset(location);
+        if(slab.getInt(offset) != keyLength) return false;
+        int start = offset + ENTRY_HEADER;
+        for(int i = 0; i < keyLength; i++) if(slab.get(start + i) != key[keyOffset + i]) return false;
+        return true;
+    }
+
+    private int entrySize(long location) {
+        ByteBuffer slab = slabs.get(slab(location));
+        int offset = offset(location);
+        return ENTRY_HEADER + slab.getInt(offset) + slab.getInt(offset + Integer.BYTES);
+    }
+
+    private Envelope.DataEnvelope value(long location) {
+        ByteBuffer slab = slabs.get(slab(location));
+        int offset = offset(location);
+        int keyLength = slab.getInt(offset);
+        byte[] value = new byte[slab.getInt(offset + Integer.BYTES)];
+        read(slab, offset + ENTRY_HEADER + keyLength, value, value.length);
+        return codec.decompress(Serdes.deserializeValue.apply(value));
+    }
+
+    // -- helpers
+
+    private static void read(ByteBuffer slab, int offset, byte[] dst, int length) {
+        ByteBuffer view = slab.duplicate();
+        ((Buffer) view).position(offset);
+        view.get(dst, 0, length);
+    }
+
+    private static long location(int slab, int offset) { return ((long) slab << 32) | (offset & 0xFFFFFFFFL); }
+    private static int slab(long location) { return (int) (location >>> 32); }
+    private static int offset(long location) { return (int) location; }
+
+    private static int hash(byte[] bytes, int from, int length) {
+        int h = 0x9747b28c;
+        for(int i = from; i < from + length; i++) h = 31 * h + bytes[i];
+        return mix(h);
+    }
+
+    private static int hash(ByteBuffer buffer, int from, int length) {
+        int h = 0x9747b28c;
+        for(int i = from; i < from + length; i++) h = 31 * h + buffer.get(i);
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h == 0 ? 1 : h;      // 0 marks an empty slot
+    }
+}
@@ -195,6 +195,21 @@ public class StreamsConfigParser {
                 .orElseThrow(NoSuchElementException::new);
     }
 
+    /**
+     * Resolve the actual topics of the given streams from a list of existing topics
+     * (e.g. from {@link org.apache.kafka.clients.consumer.Consumer#listTopics()}).
+     *
+     * @param topics all topics known in the cluster
+     * @param dataStreams list of {@link DataStream datastream} objects to resolve
+     * @return the topics belonging to the streams, sorted by name
+     * @exception NoSuchElementException when none of the streams has a subscription pattern
+     * @see #subscriptionPatternFor(Collection)
+     */
+    public List<String> topicsFor(Collection<String> topics, Collection<DataStream> dataStreams) {
+        Pattern pattern = subscriptionPatternFor(dataStreams);
+        return topics.stream().filter(t -> pattern.matcher(t).matches()).sorted().collect(Collectors.toList());
+    }
+
     /**
      * Find a streams contract information.
      *
@@ -208,6 +223,16 @@ public class StreamsConfigParser {
         return Optional.ofNullable(streamProperties.get(ds));
     }
 
+    /**
+     * All stream contracts found in the configuration.
+     *
+     * @return the stream contracts (unmodifiable)
+     * @see StreamContract
+     */
+    public Collection<StreamContract> streams() {
+        return Collections.unmodifiableCollection(streamProperties.values());
+    }
+
     @Override
     public String toString() {
         return String.format(
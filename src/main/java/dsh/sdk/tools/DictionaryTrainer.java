@@ -0,0 +1,84 @@
+package dsh.sdk.tools;
+
+import com.google.protobuf.ByteString;
+import dsh.messages.CompressionDictionary;
+import dsh.messages.Envelope;
+import dsh.messages.PayloadCodec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line tool to train a {@link CompressionDictionary} on sample payloads.
+ *
+ * <pre>
+ *   java -cp platform-sdk-java.jar dsh.sdk.tools.DictionaryTrainer [--id 1] [--size 16384] [--lines] --out weather.dict samples...
+ * </pre>
+ * Every sample file is one payload, or with {@code --lines} every line of a sample file is one payload (e.g. JSON lines).
+ * The tool writes the dictionary, and reports the compression with and without it on the samples.
+ */
+public class DictionaryTrainer {
+    private DictionaryTrainer() { throw new AssertionError(); }
+
+    private static final String USAGE = "usage: DictionaryTrainer [--id <id>] [--size <bytes>] [--lines] --out <file> <sample>...";
+
+    public static void main(String[] args) throws IOException {
+        int id = 1;
+        int size = 16 * 1024;
+        boolean lines = false;
+        Path out = null;
+        List<Path> files = new ArrayList<>();
+
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--id": id = Integer.parseInt(args[++i]); break;
+                case "--size": size = Integer.parseInt(args[++i]); break;
+                case "--lines": lines = true; break;
+                case "--out": out = Paths.get(args[++i]); break;
+                default: files.add(Paths.get(args[i]));
+            }
+        }
+        if(out == null || files.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        List<byte[]> samples = new ArrayList<>();
+        for(Path file: files) {
+            if(lines) Files.readAllLines(file).stream().filter(l -> ! l.isEmpty()).forEach(l -> samples.add(l.getBytes(StandardCharsets.UTF_8)));
+            else samples.add(Files.readAllBytes(file));
+        }
+
+        CompressionDictionary dictionary = CompressionDictionary.train(id, samples, size);
+        dictionary.write(out);
+        System.out.printf("trained dictionary %d on %d samples: %d bytes written to %s%n", id, samples.size(), dictionary.size(), out);
+
+        long[] totals = evaluate(samples, dictionary);
+        System.out.printf("payload bytes: %d original, %d deflated, %d deflated with dictionary%n", totals[0], totals[1], totals[2]);
+    }
+
+    /**
+     * Compress the samples without and with a dictionary.
+     *
+     * @param samples sample payloads
+     * @param dictionary the dictionary
+     * @return total bytes: original, compressed without dictionary, compressed with dictionary
+     */
+    public static long[] evaluate(List<byte[]> samples, CompressionDictionary dictionary) {
+        PayloadCodec plain = new PayloadCodec.Builder().compressTopic("sample", 0).setMinPayloadSize(0).build();
+        PayloadCodec primed = new PayloadCodec.Builder().addDictionary(dictionary).compressTopic("sample", dictionary.id()).setMinPayloadSize(0).build();
+        long[] totals = new long[3];
+        for(byte[] sample: samples) {
+            Envelope.DataEnvelope value = Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFrom(sample)).build();
+            totals[0] += sample.length;
+            totals[1] += plain.compress("sample", value).getPayload().size();
+            totals[2] += primed.compress("sample", value).getPayload().size();
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,395 @@
+package dsh.sdk.tools;
+
+import com.google.protobuf.ByteString;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.sdk.Sdk;
+import dsh.sdk.kafka.KafkaClientFactory;
+import dsh.sdk.kafka.KafkaConfigParser;
+import dsh.sdk.metrics.LatencyHistogram;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic stream traffic, for load tests of producers, consumers and the services in between.
+ *
+ * Keys are MQTT style topics of a fixed depth, with a configurable fan-out per level; their popularity follows
+ * a Zipf distribution (a few keys get most of the records), with the popular keys scattered over the key space.
+ * Payload sizes follow a {@link SizeDistribution}, and a fraction of the records is reliable and/or retained.
+ * Every key envelope carries the identity of the publishing application (see {@link dsh.sdk.internal.AppId#identity()}).
+ *
+ * {@link #run(Producer, String, double, Duration)} sends the records at a fixed rate through any producer:
+ * a stream producer of the {@link KafkaClientFactory}, or a {@link org.apache.kafka.clients.producer.MockProducer}
+ * for local runs.  The latency of a record is measured from the time it was scheduled to be sent, not from the time it
+ * was actually sent: when the producer stalls, the records that should have been sent in the meantime count their
+ * wait too (there is no coordinated omission).  The service time, from the actual send, is reported next to it.
+ *
+ * <pre>{@code
+ *   LoadGenerator generator = new LoadGenerator.Builder()
+ *                                   .setIdentity(sdk.getApp().identity())
+ *                                   .setFanOut(10, 100, 50)
+ *                                   .setPayloadSizes(LoadGenerator.SizeDistribution.logNormal(200, 1))
+ *                                   .setReliableFraction(0.1)
+ *                                   .build();
+ *   LoadGenerator.Result result = generator.run(clientFactory.createStreamProducer(new Properties()), topic, 5000, Duration.ofMinutes(1));
+ * }</pre>
+ *
+ * A generator is not thread safe: run one per thread.
+ * From the command line, against a stream configured through {@code new Sdk.Builder().autoDetect()}:
+ * <pre>
+ *   java -cp platform-sdk-java.jar dsh.sdk.tools.LoadGenerator --stream stream.weather --rate 5000 [--seconds 60] [--fan-out 10,100,50]
+ *                                                             [--zipf 1.0] [--payload 100[:1000]] [--reliable 0.1] [--retained 0.01]
+ * </pre>
+ */
+public class LoadGenerator {
+    /**
+     * Largest number of distinct keys (the product of the fan-outs).
+     */
+    public static final int MAX_KEYS = 1 << 22;
+
+    // payloads are slices of a random buffer: larger payloads are truncated
+    private static final int MAX_PAYLOAD = 1024 * 1024;
+
+    /**
+     * Distribution of the payload sizes.
+     */
+    @FunctionalInterface
+    public interface SizeDistribution {
+        /**
+         * @param random the random source of the generator
+         * @return the next payload size, in bytes
+         */
+        int next(Random random);
+
+        /**
+         * @param size the size of every payload
+         * @return payloads of a fixed size
+         */
+        static SizeDistribution fixed(int size) { return random -> size; }
+
+        /**
+         * @param min the smallest size
+         * @param max the largest size
+         * @return sizes spread evenly over [min, max]
+         */
+        static SizeDistribution uniform(int min, int max) { return random -> min + random.nextInt(max - min + 1); }
+
+        /**
+         * @param median the median size
+         * @param sigma the standard deviation of the logarithm of the size (e.g. 1 for a long tail)
+         * @return sizes with a log-normal distribution, as typical of (compressed) text payloads
+         */
+        static SizeDistribution logNormal(double median, double sigma) { return random -> (int) Math.round(median * Math.exp(sigma * random.nextGaussian())); }
+    }
+
+    /**
+     * Builder class to construct the generator
+     */
+    public static class Builder {
+        private Envelope.Identity identity = null;
+        private int[] fanOut = { 10, 10, 10 };
+        private double zipfExponent = 1.0;
+        private SizeDistribution payloadSizes = SizeDistribution.fixed(100);
+        private double reliableFraction = 0;
+        private double retainedFraction = 0;
+        private long seed = System.nanoTime();
+
+        /**
+         * @param identity the identity of the publishing application, e.g. {@code sdk.getApp().identity()}
+         * @return this builder
+         */
+        public Builder setIdentity(Envelope.Identity identity) { this.identity = identity; return this; }
+
+        /**
+         * @param perLevel the number of distinct values at every level of the key (the key depth is the number of levels, default 10, 10, 10)
+         * @return this builder
+         */
+        public Builder setFanOut(int... perLevel) { this.fanOut = perLevel.clone(); return this; }
+
+        /**
+         * @param exponent the exponent of the Zipf distribution of the key popularity: 0 for uniform, higher for more skew (default 1)
+         * @return this builder
+         */
+        public Builder setZipfExponent(double exponent) { this.zipfExponent = exponent; return this; }
+
+        /**
+         * @param sizes the payload size distribution (default a fixed 100 bytes)
+         * @return this builder
+         */
+        public Builder setPayloadSizes(SizeDistribution sizes) { this.payloadSizes = sizes; return this; }
+
+        /**
+         * @param fraction fraction of the records with QoS {@code RELIABLE} (default 0)
+         * @return this builder
+         */
+        public Builder setReliableFraction(double fraction) { this.reliableFraction = fraction; return this; }
+
+        /**
+         * @param fraction fraction of the records marked retained (default 0)
+         * @return this builder
+         */
+        public Builder setRetainedFraction(double fraction) { this.retainedFraction = fraction; return this; }
+
+        /**
+         * @param seed seed of the random source, to generate the same traffic again
+         * @return this builder
+         */
+        public Builder setSeed(long seed) { this.seed = seed; return this; }
+
+        /**
+         * @return the generator
+         * @exception IllegalArgumentException when the identity is missing, or a setting is out of range
+         */
+        public LoadGenerator build() {
+            if(identity == null) throw new IllegalArgumentException("identity is mandatory");
+            if(fanOut.length == 0) throw new IllegalArgumentException("fan-out needs at least one level");
+            long keys = 1;
+            for(int n: fanOut) {
+                if(n <= 0) throw new IllegalArgumentException("fan-out should be positive");
+                keys *= n;
+                if(keys > MAX_KEYS) throw new IllegalArgumentException("more than " + MAX_KEYS + " keys");
+            }
+            if(zipfExponent < 0) throw new IllegalArgumentException("Zipf exponent should not be negative");
+            if(reliableFraction < 0 || reliableFraction > 1 || retainedFraction < 0 || retainedFraction > 1) throw new IllegalArgumentException("fractions should be in [0, 1]");
+            return new LoadGenerator(this, (int) keys);
+        }
+    }
+
+    private final int[] fanOut;
+    private final SizeDistribution payloadSizes;
+    private final double reliableFraction;
+    private final double retainedFraction;
+    private final Random random;
+    private final double[] cumulative;      // cumulative probability of the key ranks
+    private final int[] keyOfRank;          // popular keys are scattered over the key space
+    private final Envelope.KeyHeader[] headers;
+    private final ByteString payloadSource;
+
+    private LoadGenerator(Builder builder, int keys) {
+        this.fanOut = builder.fanOut;
+        this.payloadSizes = builder.payloadSizes;
+        this.reliableFraction = builder.reliableFraction;
+        this.retainedFraction = builder.retainedFraction;
+        this.random = new Random(builder.seed);
+
+        this.cumulative = new double[keys];
+        double sum = 0;
+        for(int rank = 0; rank < keys; rank++) cumulative[rank] = sum += 1 / Math.pow(rank + 1, builder.zipfExponent);
+        for(int rank = 0; rank < keys; rank++) cumulative[rank] /= sum;
+
+        this.keyOfRank = new int[keys];
+        for(int i = 0; i < keys; i++) keyOfRank[i] = i;
+        for(int i = keys - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int key = keyOfRank[i]; keyOfRank[i] = keyOfRank[j]; keyOfRank[j] = key;
+        }
+
+        // the four combinations of QoS and retained
+        this.headers = new Envelope.KeyHeader[4];
+        for(int i = 0; i < headers.length; i++) {
+            headers[i] = Envelope.KeyHeader.newBuilder()
+                    .setIdentifier(builder.identity)
+                    .setQos((i & 1) != 0 ? Envelope.QoS.RELIABLE : Envelope.QoS.BEST_EFFORT)
+                    .setRetained((i & 2) != 0)
+                    .build();
+        }
+
+        byte[] payload = new byte[MAX_PAYLOAD];
+        random.nextBytes(payload);
+        this.payloadSource = ByteString.copyFrom(payload);
+    }
+
+    /** @return the number of distinct keys */
+    public int keys() { return keyOfRank.length; }
+
+    /**
+     * @param index index of a key, from 0 to the number of keys
+     * @return the key: one value per level, e.g. {@code "l0-3/l1-27/l2-9"}
+     */
+    public String key(int index) {
+        String[] levels = new String[fanOut.length];
+        for(int level = fanOut.length - 1; level >= 0; level--) {
+            levels[level] = "l" + level + "-" + index % fanOut[level];
+            index /= fanOut[level];
+        }
+        return String.join("/", levels);
+    }
+
+    /** @return the index of the next key, drawn by popularity */
+    public int nextKeyIndex() {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        if(rank < 0) rank = -rank - 1;
+        return keyOfRank[Math.min(rank, keyOfRank.length - 1)];
+    }
+
+    /** @return the next key envelope */
+    public Envelope.KeyEnvelope nextKey() {
+        int header = (random.nextDouble() < reliableFraction ? 1 : 0) | (random.nextDouble() < retainedFraction ? 2 : 0);
+        return Envelope.KeyEnvelope.newBuilder().setHeader(headers[header]).setKey(key(nextKeyIndex())).build();
+    }
+
+    /** @return the next data envelope, with a random payload (a slice of a shared buffer, not copied) */
+    public Envelope.DataEnvelope nextValue() {
+        int size = Math.max(0, Math.min(MAX_PAYLOAD, payloadSizes.next(random)));
+        int offset = random.nextInt(MAX_PAYLOAD - size + 1);
+        return Envelope.DataEnvelope.newBuilder().setPayload(payloadSource.substring(offset, offset + size)).build();
+    }
+
+    /**
+     * Outcome of a run.
+     */
+    public static class Result {
+        private final long sent;
+        private final long acknowledged;
+        private final long errors;
+        private final long elapsedNanos;
+        private final LatencyHistogram latency;
+        private final LatencyHistogram serviceTime;
+
+        private Result(long sent, long acknowledged, long errors, long elapsedNanos, LatencyHistogram latency, LatencyHistogram serviceTime) {
+            this.sent = sent;
+            this.acknowledged = acknowledged;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.serviceTime = serviceTime;
+        }
+
+        /** @return the number of records sent */
+        public long sent() { return sent; }
+
+        /** @return the number of records acknowledged by the broker */
+        public long acknowledged() { return acknowledged; }
+
+        /** @return the number of records that failed */
+        public long errors() { return errors; }
+
+        /** @return the time from the first send to the last acknowledgement */
+        public Duration elapsed() { return Duration.ofNanos(elapsedNanos); }
+
+        /** @return the achieved rate, in acknowledged records per second */
+        public double rate() { return acknowledged * 1e9 / Math.max(1, elapsedNanos); }
+
+        /** @return latencies from the scheduled send time to the acknowledgement, in microseconds */
+        public LatencyHistogram latency() { return latency; }
+
+        /** @return latencies from the actual send to the acknowledgement, in microseconds */
+        public LatencyHistogram serviceTime() { return serviceTime; }
+
+        @Override
+        public String toString() {
+            return String.format("sent %d, acknowledged %d, failed %d in %.1f s (%.0f records/s)%n"
+                            + "latency      (us): p50 %d, p99 %d, p99.9 %d, max %d%n"
+                            + "service time (us): p50 %d, p99 %d, p99.9 %d, max %d",
+                    sent, acknowledged, errors, elapsedNanos / 1e9, rate(),
+                    latency.percentile(0.5), latency.percentile(0.99), latency.percentile(0.999), latency.max(),
+                    serviceTime.percentile(0.5), serviceTime.percentile(0.99), serviceTime.percentile(0.999), serviceTime.max());
+        }
+    }
+
+    /**
+     * Send generated records at a fixed rate, and wait for their acknowledgements.
+     *
+     * Records are scheduled at fixed intervals from the start.  When the producer falls behind (e.g. because
+     * {@code send} blocks on a full buffer), the late records are sent as fast as possible until it catches up:
+     * no records are skipped, and their latency counts from their scheduled time.
+     *
+     * @param producer the producer (it is flushed, not closed)
+     * @param topic the topic to produce on
+     * @param rate records per second
+     * @param duration the time to send records for
+     * @return the outcome
+     * @exception IllegalArgumentException when the rate is not positive
+     */
+    public Result run(Producer<Envelope.KeyEnvelope, Envelope.DataEnvelope> producer, String topic, double rate, Duration duration) {
+        if(rate <= 0) throw new IllegalArgumentException("rate should be positive");
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram serviceTime = new LatencyHistogram();
+        LongAdder acknowledged = new LongAdder();
+        LongAdder errors = new LongAdder();
+
+        double interval = 1e9 / rate;
+        long start = System.nanoTime();
+        long records = (long) (duration.toNanos() / interval);
+        for(long i = 0; i < records; i++) {
+            long scheduled = start + (long) (i * interval);
+            for(long wait = scheduled - System.nanoTime(); wait > 0; wait = scheduled - System.nanoTime()) LockSupport.parkNanos(wait);
+
+            ProducerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record = new ProducerRecord<>(topic, nextKey(), nextValue());
+            long sent = System.nanoTime();
+            producer.send(record, (metadata, exception) -> {
+                long now = System.nanoTime();
+                if(exception != null) {
+                    errors.increment();
+                    return;
+                }
+                acknowledged.increment();
+                latency.record(TimeUnit.NANOSECONDS.toMicros(now - scheduled));
+                serviceTime.record(TimeUnit.NANOSECONDS.toMicros(now - sent));
+            });
+        }
+        producer.flush();
+        return new Result(records, acknowledged.sum(), errors.sum(), System.nanoTime() - start, latency, serviceTime);
+    }
+
+    private static final String USAGE = "usage: LoadGenerator --stream <stream> --rate <records/s> [--seconds <s>] [--fan-out <n>,<n>...] [--zipf <exponent>] "
+                                      + "[--payload <bytes>[:<max bytes>]] [--reliable <fraction>] [--retained <fraction>]";
+
+    public static void main(String[] args) {
+        String stream = null;
+        double rate = 0;
+        int seconds = 60;
+        Builder builder = new Builder();
+
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--stream": stream = args[++i]; break;
+                case "--rate": rate = Double.parseDouble(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--fan-out": {
+                    List<Integer> levels = new ArrayList<>();
+                    for(String n: args[++i].split(",")) levels.add(Integer.parseInt(n.trim()));
+                    builder.setFanOut(levels.stream().mapToInt(Integer::intValue).toArray());
+                    break;
+                }
+                case "--zipf": builder.setZipfExponent(Double.parseDouble(args[++i])); break;
+                case "--payload": {
+                    String[] sizes = args[++i].split(":");
+                    builder.setPayloadSizes(sizes.length == 1 ? SizeDistribution.fixed(Integer.parseInt(sizes[0])) : SizeDistribution.uniform(Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1])));
+                    break;
+                }
+                case "--reliable": builder.setReliableFraction(Double.parseDouble(args[++i])); break;
+                case "--retained": builder.setRetainedFraction(Double.parseDouble(args[++i])); break;
+                default:
+                    System.err.println(USAGE);
+                    System.exit(1);
+            }
+        }
+        if(stream == null || rate <= 0) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        Sdk sdk = new Sdk.Builder().autoDetect().build();
+        StreamsConfigParser streams = StreamsConfigParser.of(sdk);
+        String topic = streams.findStream(DataStream.of(stream))
+                .flatMap(StreamsConfigParser.StreamContract::produceTopic)
+                .orElseThrow(() -> new IllegalArgumentException("not allowed to produce on the stream"));
+        LoadGenerator generator = builder.setIdentity(sdk.getApp().identity()).build();
+
+        try(Producer<Envelope.KeyEnvelope, Envelope.DataEnvelope> producer = KafkaClientFactory.of(streams, KafkaConfigParser.of(sdk)).createStreamProducer(new Properties())) {
+            System.out.println(generator.run(producer, topic, rate, Duration.ofSeconds(seconds)));
+        }
+    }
+}
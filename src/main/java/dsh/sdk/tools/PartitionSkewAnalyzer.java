@@ -0,0 +1,292 @@
+package dsh.sdk.tools;
+
+import dsh.messages.DataStream;
+import dsh.messages.KeyFlyweight;
+import dsh.messages.Serdes;
+import dsh.sdk.Sdk;
+import dsh.sdk.internal.StringUtils;
+import dsh.sdk.kafka.KafkaClientFactory;
+import dsh.sdk.kafka.KafkaConfigParser;
+import dsh.sdk.streams.StreamsConfig;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.BiFunction;
+
+/**
+ * Partition load analysis of a sample of record keys, to choose the partitioning depth and partition count of a stream.
+ *
+ * The topic-level partitioner hashes the first {@code partitioningDepth} levels of the key: too shallow a depth puts
+ * many keys on few partitions, too deep a depth spreads keys that belong together.  The analyzer replays the sampled
+ * keys through the partitioning functions of the {@link StreamsConfigParser}, at every depth and for the whole key
+ * (the default partitioner), and reports the load per partition, the skew (maximum over mean load) and the hot
+ * partitioning keys.  {@link #recommend(List, double)} picks the shallowest depth within a skew budget.
+ *
+ * <pre>
+ *   java -cp platform-sdk-java.jar dsh.sdk.tools.PartitionSkewAnalyzer --partitions 12,24,48 [--max-skew 1.5] [--hot 5] keys.txt
+ *   java -cp platform-sdk-java.jar dsh.sdk.tools.PartitionSkewAnalyzer --partitions 24 --live stream.weather [--records 100000] [--seconds 60]
+ * </pre>
+ * A key file holds one key per line.  With {@code --live}, the keys are sampled from a stream with a consumer
+ * in a private group, configured through {@code new Sdk.Builder().autoDetect()}.
+ */
+public class PartitionSkewAnalyzer {
+    /**
+     * Depth of the reports on the whole key (the default partitioner).
+     */
+    public static final int WHOLE_KEY = 0;
+
+    // the stream the partitioning functions are configured for
+    private static final DataStream STREAM = DataStream.of("stream.skew");
+
+    private final Map<String, Long> weights = new HashMap<>();
+    private long total = 0;
+    private int maxDepth = 0;
+
+    /**
+     * Load of the partitions for one depth and partition count.
+     */
+    public static class Report {
+        private final int depth;
+        private final long[] load;
+        private final long total;
+        private final int distinctKeys;
+        private final List<Map.Entry<String, Long>> hotKeys;
+
+        private Report(int depth, long[] load, long total, int distinctKeys, List<Map.Entry<String, Long>> hotKeys) {
+            this.depth = depth;
+            this.load = load;
+            this.total = total;
+            this.distinctKeys = distinctKeys;
+            this.hotKeys = hotKeys;
+        }
+
+        /** @return the partitioning depth, or {@link #WHOLE_KEY} */
+        public int depth() { return depth; }
+
+        /** @return the number of partitions */
+        public int partitions() { return load.length; }
+
+        /**
+         * @param partition the partition
+         * @return the number of sampled records on the partition
+         */
+        public long load(int partition) { return load[partition]; }
+
+        /** @return the number of sampled records on the busiest partition */
+        public long max() {
+            long max = 0;
+            for(long l: load) max = Math.max(max, l);
+            return max;
+        }
+
+        /** @return the mean number of sampled records per partition */
+        public double mean() { return (double) total / load.length; }
+
+        /** @return maximum over mean load: 1 when evenly spread, the number of partitions when all records are on one */
+        public double skew() { return total == 0 ? 1 : max() / mean(); }
+
+        /** @return the number of partitions without records */
+        public int emptyPartitions() {
+            int empty = 0;
+            for(long l: load) if(l == 0) empty++;
+            return empty;
+        }
+
+        /** @return the number of distinct partitioning keys (key prefixes at the depth) */
+        public int distinctKeys() { return distinctKeys; }
+
+        /** @return the heaviest partitioning keys with their number of records, heaviest first */
+        public List<Map.Entry<String, Long>> hotKeys() { return hotKeys; }
+
+        @Override
+        public String toString() {
+            StringBuilder hot = new StringBuilder();
+            for(Map.Entry<String, Long> key: hotKeys) {
+                if(hot.length() > 0) hot.append(", ");
+                hot.append(key.getKey()).append(String.format(" (%.1f%%)", 100.0 * key.getValue() / total));
+            }
+            return String.format("%-9s %10d %8d %10d %10.1f %6.2f %6d  %s",
+                    depth == WHOLE_KEY ? "whole key" : Integer.toString(depth), load.length, distinctKeys, max(), mean(), skew(), emptyPartitions(), hot);
+        }
+    }
+
+    /**
+     * Add a sampled key.
+     *
+     * @param key the key
+     * @return this analyzer
+     */
+    public PartitionSkewAnalyzer add(String key) { return add(key, 1); }
+
+    /**
+     * Add a sampled key with a weight (e.g. its number of records, or bytes).
+     *
+     * @param key the key
+     * @param weight the weight
+     * @return this analyzer
+     */
+    public PartitionSkewAnalyzer add(String key, long weight) {
+        weights.merge(key, weight, Long::sum);
+        total += weight;
+        maxDepth = Math.max(maxDepth, depthOf(key));
+        return this;
+    }
+
+    private static int depthOf(String key) { return key.split(StringUtils.TOPIC_DELIMITER).length; }
+
+    /** @return the total weight of the sample */
+    public long total() { return total; }
+
+    /** @return the number of distinct keys in the sample */
+    public int distinctKeys() { return weights.size(); }
+
+    /** @return the number of levels of the deepest key in the sample */
+    public int maxDepth() { return maxDepth; }
+
+    /**
+     * Analyze the partition load at every depth of the sample, and for the whole key.
+     *
+     * @param partitions the number of partitions
+     * @param hotKeys the number of hot keys to report
+     * @return the reports, from depth 1 to the deepest key, then the whole key
+     */
+    public List<Report> analyze(int partitions, int hotKeys) {
+        List<Report> reports = new ArrayList<>();
+        for(int depth = 1; depth <= maxDepth; depth++) reports.add(analyze(partitions, depth, hotKeys));
+        reports.add(analyze(partitions, WHOLE_KEY, hotKeys));
+        return reports;
+    }
+
+    /**
+     * Analyze the partition load at a depth.
+     *
+     * @param partitions the number of partitions
+     * @param depth the partitioning depth, or {@link #WHOLE_KEY}
+     * @param hotKeys the number of hot keys to report
+     * @return the report
+     * @exception IllegalArgumentException when the partitions or depth are not positive
+     */
+    public Report analyze(int partitions, int depth, int hotKeys) {
+        if(partitions <= 0 || depth < 0) throw new IllegalArgumentException("partitions and depth should be positive");
+
+        // all keys with the same prefix land on the same partition: hash every prefix once
+        Map<String, Long> prefixes = new HashMap<>();
+        weights.forEach((key, weight) -> prefixes.merge(depth == WHOLE_KEY ? key : StringUtils.take(StringUtils.TOPIC_DELIMITER, key, depth), weight, Long::sum));
+
+        BiFunction<String, Integer, Integer> partitioner = partitioner(depth);
+        long[] load = new long[partitions];
+        prefixes.forEach((prefix, weight) -> load[partitioner.apply(prefix, partitions)] += weight);
+
+        List<Map.Entry<String, Long>> hot = new ArrayList<>(prefixes.entrySet());
+        hot.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return new Report(depth, load, total, prefixes.size(), Collections.unmodifiableList(new ArrayList<>(hot.subList(0, Math.min(hotKeys, hot.size())))));
+    }
+
+    // the partitioning function the streams configuration creates for the depth
+    private static BiFunction<String, Integer, Integer> partitioner(int depth) {
+        Properties props = new Properties();
+        props.put(StreamsConfig.keyFor(STREAM, StreamsConfig.ConfigType.PARTITIONER), StreamsConfig.valueFor(depth == WHOLE_KEY ? StreamsConfig.PartitionerType.DEFAULT : StreamsConfig.PartitionerType.TOPIC_LEVEL));
+        if(depth != WHOLE_KEY) props.put(StreamsConfig.keyFor(STREAM, StreamsConfig.ConfigType.PARTITIONINGDEPTH), Integer.toString(depth));
+        return StreamsConfigParser.of(props).findStream(STREAM).orElseThrow(IllegalStateException::new).partitioner();
+    }
+
+    /**
+     * Pick the shallowest depth with a skew within budget: shallower depths keep more related keys on the same partition.
+     *
+     * @param reports the reports of one partition count
+     * @param maxSkew the highest acceptable skew (maximum over mean load)
+     * @return the shallowest report within budget, or the least skewed one when none is
+     */
+    public static Report recommend(List<Report> reports, double maxSkew) {
+        Report best = null;
+        for(Report report: reports) {
+            if(report.skew() > maxSkew) continue;
+            if(best == null || deeper(best, report)) best = report;
+        }
+        if(best != null) return best;
+        for(Report report: reports) if(best == null || report.skew() < best.skew()) best = report;
+        return best;
+    }
+
+    // the whole key is deeper than any depth
+    private static boolean deeper(Report report, Report than) {
+        if(than.depth() == WHOLE_KEY) return false;
+        return report.depth() == WHOLE_KEY || report.depth() > than.depth();
+    }
+
+    private static final String USAGE = "usage: PartitionSkewAnalyzer --partitions <n>[,<n>...] [--max-skew <skew>] [--hot <n>] (<key file>... | --live <stream> [--records <n>] [--seconds <s>])";
+
+    public static void main(String[] args) throws IOException {
+        List<Integer> partitionCounts = new ArrayList<>();
+        double maxSkew = 1.5;
+        int hot = 3;
+        String live = null;
+        int records = 100_000;
+        int seconds = 60;
+        List<String> files = new ArrayList<>();
+
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--partitions": for(String n: args[++i].split(",")) partitionCounts.add(Integer.parseInt(n.trim())); break;
+                case "--max-skew": maxSkew = Double.parseDouble(args[++i]); break;
+                case "--hot": hot = Integer.parseInt(args[++i]); break;
+                case "--live": live = args[++i]; break;
+                case "--records": records = Integer.parseInt(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                default: files.add(args[i]);
+            }
+        }
+        if(partitionCounts.isEmpty() || (live == null) == files.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        PartitionSkewAnalyzer analyzer = new PartitionSkewAnalyzer();
+        if(live != null) sample(analyzer, DataStream.of(live), records, Duration.ofSeconds(seconds));
+        for(String file: files) {
+            try(BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                for(String line = reader.readLine(); line != null; line = reader.readLine()) if(! line.isEmpty()) analyzer.add(line);
+            }
+        }
+        System.out.printf("%d records, %d distinct keys, up to %d levels deep%n", analyzer.total(), analyzer.distinctKeys(), analyzer.maxDepth());
+        if(analyzer.total() == 0) return;
+
+        for(int partitions: partitionCounts) {
+            List<Report> reports = analyzer.analyze(partitions, hot);
+            System.out.printf("%n%-9s %10s %8s %10s %10s %6s %6s  %s%n", "depth", "partitions", "keys", "max", "mean", "skew", "empty", "hot keys");
+            reports.forEach(System.out::println);
+            Report advice = recommend(reports, maxSkew);
+            System.out.printf("advice for %d partitions: %s (skew %.2f%s)%n", partitions,
+                    advice.depth() == WHOLE_KEY ? "default partitioner" : "partitioningDepth " + advice.depth(), advice.skew(),
+                    advice.skew() > maxSkew ? ", above " + maxSkew + ": consider fewer partitions" : "");
+        }
+    }
+
+    // sample the keys of a stream from the end of its topics
+    private static void sample(PartitionSkewAnalyzer analyzer, DataStream stream, int records, Duration timeout) {
+        Sdk sdk = new Sdk.Builder().autoDetect().build();
+        StreamsConfigParser streams = StreamsConfigParser.of(sdk);
+        KafkaClientFactory factory = KafkaClientFactory.of(streams, KafkaConfigParser.of(sdk));
+        KeyFlyweight key = new KeyFlyweight();
+        long deadline = System.nanoTime() + timeout.toNanos();
+        try(KafkaConsumer<byte[], byte[]> consumer = factory.createLocalRawStreamConsumer(new Properties())) {
+            consumer.subscribe(streams.subscriptionPatternFor(stream));
+            while(analyzer.total() < records && System.nanoTime() < deadline) {
+                for(ConsumerRecord<byte[], byte[]> record: consumer.poll(Duration.ofMillis(500))) {
+                    try {
+                        if(record.key() != null) analyzer.add(key.wrap(record.key()).key().toString());
+                    }
+                    catch (Serdes.SerializationException e) { /* not a key envelope: not sampled */ }
+                }
+            }
+        }
+    }
+}
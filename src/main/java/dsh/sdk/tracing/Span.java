@@ -0,0 +1,97 @@
+package dsh.sdk.tracing;
+
+import dsh.messages.Envelope;
+import dsh.messages.Tracing;
+import dsh.messages.TracingBlock;
+import dsh.sdk.metrics.LatencyMetrics;
+
+import java.util.Collections;
+
+/**
+ * A unit of work in a trace, e.g. the handling of a record.
+ *
+ * Spans are created by a {@link Tracer}.  An unsampled span is the shared {@link #NOOP} span: it records and
+ * propagates nothing, so the unsampled path does not allocate.  A sampled span is exported when it ends.
+ */
+public final class Span {
+    /**
+     * The span of unsampled work.
+     */
+    public static final Span NOOP = new Span(null, 0L, "", SpanExporter.NONE);
+
+    private final SpanContext context;
+    private final long parentSpanId;
+    private final String name;
+    private final SpanExporter exporter;
+    private final long startMicros;
+    private volatile long endMicros;
+    private TracingBlock tracing;       // cached encoding of the context, for injection
+
+    Span(SpanContext context, long parentSpanId, String name, SpanExporter exporter) {
+        this.context = context;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.exporter = exporter;
+        this.startMicros = context == null ? 0L : LatencyMetrics.nowMicros();
+    }
+
+    /** @return {@code true} when the span is sampled (recorded and propagated) */
+    public boolean isSampled() { return context != null; }
+
+    /** @return the context of the span, {@code null} when not sampled */
+    public SpanContext context() { return context; }
+
+    /** @return the span id of the parent, 0 for a root span */
+    public long parentSpanId() { return parentSpanId; }
+
+    /** @return the name of the span */
+    public String name() { return name; }
+
+    /** @return the start time in microseconds since the epoch */
+    public long startMicros() { return startMicros; }
+
+    /** @return the end time in microseconds since the epoch, 0 while not ended */
+    public long endMicros() { return endMicros; }
+
+    /**
+     * End the span, and export it when sampled.  Ending a span more than once has no effect.
+     */
+    public void end() {
+        if(context == null) return;
+        synchronized(this) {
+            if(endMicros != 0) return;
+            endMicros = LatencyMetrics.nowMicros();
+        }
+        exporter.export(this);
+    }
+
+    /**
+     * Propagate the span to an outgoing envelope, as its parent.  Nothing is added when the span is not sampled.
+     *
+     * On an envelope without tracing the encoded context is shared with all other envelopes the span is injected in
+     * (as a {@link TracingBlock}: read it back through {@link Tracing}, not the tracing map); other tracing entries are kept.
+     *
+     * @param builder the outgoing envelope
+     * @return the builder
+     */
+    public Envelope.DataEnvelope.Builder inject(Envelope.DataEnvelope.Builder builder) {
+        if(context == null) return builder;
+        if(builder.getTracingCount() == 0 && builder.getUnknownFields().asMap().isEmpty()) {
+            if(tracing == null) tracing = TracingBlock.of(Collections.singletonMap(Tracer.TRACEPARENT, context.traceparent()));
+            return tracing.applyTo(builder);
+        }
+        if(builder.getUnknownFields().hasField(Envelope.DataEnvelope.TRACING_FIELD_NUMBER)) {
+            // deferred entries would win over the map: decode them first
+            Envelope.DataEnvelope decoded = Tracing.decoded(builder.buildPartial());
+            builder.clearTracing().putAllTracing(decoded.getTracingMap()).setUnknownFields(decoded.getUnknownFields());
+        }
+        return builder.putTracing(Tracer.TRACEPARENT, context.traceparent());
+    }
+
+    @Override
+    public String toString() {
+        if(context == null) return "Span(not sampled)";
+        return "Span(" + name + ", trace=" + context.traceId() + ", span=" + context.spanIdHex()
+                + (parentSpanId == 0 ? "" : ", parent=" + Long.toHexString(parentSpanId)) + ", " + (endMicros == 0 ? "running" : (endMicros - startMicros) + "us") + ")";
+    }
+}
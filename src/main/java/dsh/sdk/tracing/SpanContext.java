@@ -0,0 +1,155 @@
+package dsh.sdk.tracing;
+
+/**
+ * Identity of a span, as propagated between applications in a W3C {@code traceparent}.
+ *
+ * <pre>
+ *   00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01
+ *   version - trace id (16 bytes) - span id (8 bytes) - flags (01: sampled)
+ * </pre>
+ * The encoded form is built once per context, and reused for every record it is injected in.
+ */
+public final class SpanContext {
+    private static final int LENGTH = 55;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long traceIdHigh;
+    private final long traceIdLow;
+    private final long spanId;
+    private final boolean sampled;
+    private String traceparent;         // cached encoding
+
+    /**
+     * @param traceIdHigh high 8 bytes of the trace id
+     * @param traceIdLow  low 8 bytes of the trace id
+     * @param spanId      the span id
+     * @param sampled     the sampled flag
+     * @exception IllegalArgumentException when the trace or span id is zero (invalid)
+     */
+    public SpanContext(long traceIdHigh, long traceIdLow, long spanId, boolean sampled) {
+        if(traceIdHigh == 0 && traceIdLow == 0) throw new IllegalArgumentException("trace id should not be zero");
+        if(spanId == 0) throw new IllegalArgumentException("span id should not be zero");
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow = traceIdLow;
+        this.spanId = spanId;
+        this.sampled = sampled;
+    }
+
+    /** @return high 8 bytes of the trace id */
+    public long traceIdHigh() { return traceIdHigh; }
+
+    /** @return low 8 bytes of the trace id */
+    public long traceIdLow() { return traceIdLow; }
+
+    /** @return the span id */
+    public long spanId() { return spanId; }
+
+    /** @return {@code true} when the trace is sampled */
+    public boolean isSampled() { return sampled; }
+
+    /** @return the trace id as 32 hex digits */
+    public String traceId() {
+        char[] chars = new char[32];
+        hex(traceIdHigh, chars, 0);
+        hex(traceIdLow, chars, 16);
+        return new String(chars);
+    }
+
+    /** @return the span id as 16 hex digits */
+    public String spanIdHex() {
+        char[] chars = new char[16];
+        hex(spanId, chars, 0);
+        return new String(chars);
+    }
+
+    /** @return the W3C traceparent (version 00) */
+    public String traceparent() {
+        if(traceparent == null) {
+            char[] chars = new char[LENGTH];
+            chars[0] = '0'; chars[1] = '0'; chars[2] = '-';
+            hex(traceIdHigh, chars, 3);
+            hex(traceIdLow, chars, 19);
+            chars[35] = '-';
+            hex(spanId, chars, 36);
+            chars[52] = '-'; chars[53] = '0'; chars[54] = sampled ? '1' : '0';
+            traceparent = new String(chars);
+        }
+        return traceparent;
+    }
+
+    private static void hex(long value, char[] dest, int pos) {
+        for(int i = 15; i >= 0; i--) {
+            dest[pos + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Check the sampled flag of a traceparent, without parsing it.
+     *
+     * @param traceparent a traceparent (or {@code null})
+     * @return {@code true} when the traceparent has the length of a valid one and its sampled flag set
+     */
+    public static boolean isSampled(CharSequence traceparent) {
+        if(traceparent == null || traceparent.length() < LENGTH) return false;
+        int flags = Character.digit(traceparent.charAt(LENGTH - 1), 16);
+        return flags >= 0 && (flags & 1) == 1;
+    }
+
+    /**
+     * Parse a W3C traceparent.
+     *
+     * @param traceparent the traceparent (or {@code null})
+     * @return the context, or {@code null} when the traceparent is invalid
+     */
+    public static SpanContext parse(CharSequence traceparent) {
+        if(traceparent == null || traceparent.length() < LENGTH) return null;
+        long version = parseHex(traceparent, 0, 2);
+        if(version < 0 || version == 0xFF) return null;
+        // version 00 has exactly 55 characters, later versions may append fields
+        if(version == 0 ? traceparent.length() != LENGTH : traceparent.length() > LENGTH && traceparent.charAt(LENGTH) != '-') return null;
+        if(traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-') return null;
+        long flags = parseHex(traceparent, 53, 2);
+        if(flags < 0) return null;
+        Long high = parseLong(traceparent, 3);
+        Long low = parseLong(traceparent, 19);
+        Long span = parseLong(traceparent, 36);
+        if(high == null || low == null || span == null || (high == 0 && low == 0) || span == 0) return null;
+        SpanContext context = new SpanContext(high, low, span, (flags & 1) == 1);
+        if(version == 0) context.traceparent = traceparent.toString();
+        return context;
+    }
+
+    private static long parseHex(CharSequence s, int from, int length) {
+        long value = 0;
+        for(int i = from; i < from + length; i++) {
+            char c = s.charAt(i);
+            // lowercase only, as the specification requires
+            int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+            if(digit < 0) return -1;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static Long parseLong(CharSequence s, int from) {
+        long high = parseHex(s, from, 8);
+        long low = parseHex(s, from + 8, 8);
+        if(high < 0 || low < 0) return null;
+        return (high << 32) | low;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(! (o instanceof SpanContext)) return false;
+        SpanContext that = (SpanContext) o;
+        return traceIdHigh == that.traceIdHigh && traceIdLow == that.traceIdLow && spanId == that.spanId && sampled == that.sampled;
+    }
+
+    @Override
+    public int hashCode() { return Long.hashCode(traceIdHigh ^ traceIdLow ^ spanId) * 31 + (sampled ? 1 : 0); }
+
+    @Override
+    public String toString() { return traceparent(); }
+}
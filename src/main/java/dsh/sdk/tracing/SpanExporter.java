@@ -0,0 +1,31 @@
+package dsh.sdk.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives the sampled spans when they end, e.g. to send them to a tracing backend.
+ *
+ * Called on the thread that ends the span: an exporter should hand the span off (e.g. to a queue) rather than
+ * do I/O inline.  Only sampled spans are exported.
+ */
+@FunctionalInterface
+public interface SpanExporter {
+    /**
+     * @param span an ended, sampled span
+     */
+    void export(Span span);
+
+    /**
+     * Exporter that drops all spans (propagation only).
+     */
+    SpanExporter NONE = span -> {};
+
+    /**
+     * @return an exporter that logs the spans at debug level
+     */
+    static SpanExporter logging() {
+        Logger logger = LoggerFactory.getLogger(SpanExporter.class);
+        return span -> logger.debug("{}", span);
+    }
+}
@@ -0,0 +1,170 @@
+package dsh.sdk.tracing;
+
+import dsh.messages.DataFlyweight;
+import dsh.messages.Envelope;
+import dsh.messages.Tracing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Span propagation through the {@code tracing} map of the {@code DataEnvelope}, with head-based sampling.
+ *
+ * The span context travels as a W3C {@value #TRACEPARENT} entry.  Whether a trace is sampled is decided once,
+ * where it starts (the head): a span continuing a trace follows the sampled flag of its parent, a root span is sampled
+ * at the configured rate.  Only sampled spans are propagated, so unsampled records carry no tracing at all; a record
+ * without context starts a new trace, which is sampled at the same rate.
+ *
+ * Unsampled work gets the shared {@link Span#NOOP} span: starting, ending and injecting it does not allocate.
+ * (Reading the traceparent of a {@code DataEnvelope} does allocate the read-only view protobuf returns for its tracing
+ * map; reading it from a {@link DataFlyweight} does not allocate at all.)
+ * A sampled context is encoded once and shared by all records it is injected in.  A tracer is thread safe.
+ *
+ * <pre>{@code
+ *   Tracer tracer = new Tracer.Builder().setSampleRate(0.001).setExporter(exporter).build();
+ *   for(ConsumerRecord<KeyEnvelope, DataEnvelope> record: records) {
+ *     Span span = tracer.startSpan("enrich", record.value());
+ *     DataEnvelope out = span.inject(DataEnvelope.newBuilder().setPayload(enrich(record.value()))).build();
+ *     producer.send(new ProducerRecord<>(topic, record.key(), out));
+ *     span.end();
+ *   }
+ * }</pre>
+ */
+public class Tracer {
+    /**
+     * The tracing key of the span context.
+     */
+    public static final String TRACEPARENT = "traceparent";
+
+    /**
+     * Builder class to construct the tracer
+     */
+    public static class Builder {
+        private double sampleRate = 0.01;
+        private SpanExporter exporter = SpanExporter.NONE;
+
+        /**
+         * @param rate fraction of the traces to sample where they start, 0 to 1 (default 0.01)
+         * @return this builder
+         */
+        public Builder setSampleRate(double rate) { this.sampleRate = rate; return this; }
+
+        /**
+         * @param exporter receives the sampled spans when they end (default none)
+         * @return this builder
+         */
+        public Builder setExporter(SpanExporter exporter) { this.exporter = exporter; return this; }
+
+        /**
+         * @return the tracer
+         * @exception IllegalArgumentException when the sample rate is not in [0, 1]
+         */
+        public Tracer build() {
+            if(sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException("sample rate should be in [0, 1]");
+            return new Tracer(this);
+        }
+    }
+
+    private final double sampleRate;
+    private final SpanExporter exporter;
+    // the last parsed parent: consecutive records often share their parent
+    private volatile SpanContext lastParent;
+
+    private Tracer(Builder builder) {
+        this.sampleRate = builder.sampleRate;
+        this.exporter = builder.exporter;
+    }
+
+    /**
+     * Extract the span context of an envelope.
+     *
+     * @param value the envelope (or {@code null})
+     * @return the context, or {@code null} when there is none (or it is invalid)
+     */
+    public SpanContext extract(Envelope.DataEnvelope value) {
+        if(value == null) return null;
+        return context(Tracing.get(value, TRACEPARENT));
+    }
+
+    /**
+     * Extract the span context of an envelope flyweight.
+     *
+     * @param value the envelope (or {@code null})
+     * @return the context, or {@code null} when there is none (or it is invalid)
+     */
+    public SpanContext extract(DataFlyweight value) {
+        return value == null ? null : context(value.tracingView(TRACEPARENT));
+    }
+
+    private SpanContext context(CharSequence traceparent) {
+        if(traceparent == null) return null;
+        SpanContext last = lastParent;
+        if(last != null && last.traceparent().contentEquals(traceparent)) return last;
+        SpanContext parsed = SpanContext.parse(traceparent);
+        if(parsed != null) lastParent = parsed;
+        return parsed;
+    }
+
+    /**
+     * Start a root span, sampled at the configured rate.
+     *
+     * @param name name of the span
+     * @return the span, {@link Span#NOOP} when not sampled
+     */
+    public Span startSpan(String name) {
+        if(sampleRate == 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) return Span.NOOP;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new Span(new SpanContext(nonZero(random), random.nextLong(), nonZero(random), true), 0L, name, exporter);
+    }
+
+    /**
+     * Start a span continuing the trace of an incoming envelope, or a root span when it has no context.
+     *
+     * @param name name of the span
+     * @param parent the incoming envelope (or {@code null})
+     * @return the span, {@link Span#NOOP} when not sampled
+     */
+    public Span startSpan(String name, Envelope.DataEnvelope parent) {
+        if(parent == null) return startSpan(name);
+        String traceparent = Tracing.get(parent, TRACEPARENT);
+        if(traceparent == null) return startSpan(name);
+        if(! SpanContext.isSampled(traceparent)) return Span.NOOP;     // decided upstream, without parsing
+        return startSpan(name, context(traceparent));
+    }
+
+    /**
+     * Start a span continuing the trace of an incoming envelope flyweight, or a root span when it has no context.
+     *
+     * The traceparent is read in place: for unsampled traces, this does not allocate.
+     *
+     * @param name name of the span
+     * @param parent the incoming envelope (or {@code null})
+     * @return the span, {@link Span#NOOP} when not sampled
+     */
+    public Span startSpan(String name, DataFlyweight parent) {
+        if(parent == null) return startSpan(name);
+        CharSequence traceparent = parent.tracingView(TRACEPARENT);
+        if(traceparent == null) return startSpan(name);
+        if(! SpanContext.isSampled(traceparent)) return Span.NOOP;
+        return startSpan(name, context(traceparent));
+    }
+
+    /**
+     * Start a span continuing a trace, or a root span when there is no parent.
+     *
+     * @param name name of the span
+     * @param parent the parent context (or {@code null})
+     * @return the span, {@link Span#NOOP} when not sampled
+     */
+    public Span startSpan(String name, SpanContext parent) {
+        if(parent == null) return startSpan(name);
+        if(! parent.isSampled()) return Span.NOOP;
+        SpanContext context = new SpanContext(parent.traceIdHigh(), parent.traceIdLow(), nonZero(ThreadLocalRandom.current()), true);
+        return new Span(context, parent.spanId(), name, exporter);
+    }
+
+    private static long nonZero(ThreadLocalRandom random) {
+        long id;
+        do { id = random.nextLong(); } while(id == 0);
+        return id;
+    }
+}
@@ -0,0 +1,118 @@
+import dsh.messages.DataStream;
+import dsh.sdk.kafka.consumers.CatchUpReader;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CatchUpReaderTests {
+    private static final String TOPIC = "stream.history.tenant";
+    private static final int PARTITIONS = 6;
+    private static final int HISTORY = 200;      // records per partition at the time the reader starts
+
+    // a mock cluster: every consumer created gets the history (plus some newer records) of the partitions assigned to it
+    private final List<MockConsumer<String, String>> created = new CopyOnWriteArrayList<>();
+
+    private MockConsumer<String, String> newConsumer() {
+        MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        Map<TopicPartition, Long> beginning = new HashMap<>();
+        Map<TopicPartition, Long> end = new HashMap<>();
+        for(int p = 0; p < PARTITIONS; p++) {
+            beginning.put(new TopicPartition(TOPIC, p), 0L);
+            end.put(new TopicPartition(TOPIC, p), (long) HISTORY);
+        }
+        consumer.updateBeginningOffsets(beginning);
+        consumer.updateEndOffsets(end);
+        consumer.updatePartitions(TOPIC, IntStream.range(0, PARTITIONS)
+                .mapToObj(p -> new PartitionInfo(TOPIC, p, Node.noNode(), new Node[0], new Node[0]))
+                .collect(Collectors.toList()));
+        consumer.schedulePollTask(() -> consumer.assignment().forEach(tp -> {
+            for(long o = 0; o < HISTORY + 10; o++) consumer.addRecord(new ConsumerRecord<>(TOPIC, tp.partition(), o, "key-" + o, "value-" + o));
+        }));
+        created.add(consumer);
+        return consumer;
+    }
+
+    @Test
+    public void readsAllPartitionsUpToEndOffsetsInParallel() throws Exception {
+        Map<Integer, List<Long>> seen = new ConcurrentHashMap<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        CatchUpReader<String, String> reader = new CatchUpReader.Builder<String, String>(this::newConsumer)
+                .setTopics(Collections.singleton(TOPIC))
+                .setStartOffsets(Collections.singletonMap(new TopicPartition(TOPIC, 0), 150L))
+                .setReaders(4)
+                .setPollTimeout(Duration.ofMillis(1))
+                .setHandler(r -> {
+                    seen.computeIfAbsent(r.partition(), p -> Collections.synchronizedList(new ArrayList<>())).add(r.offset());
+                    threads.add(Thread.currentThread().getName());
+                })
+                .build();
+
+        assertEquals((PARTITIONS - 1) * HISTORY + 50, reader.start().get(10, TimeUnit.SECONDS));
+        assertEquals(4, created.size());
+        assertEquals(4, threads.size());
+        assertTrue(created.stream().allMatch(MockConsumer::closed));
+
+        for(int p = 0; p < PARTITIONS; p++) {
+            long first = p == 0 ? 150 : 0;
+            assertEquals(offsets(first, HISTORY), seen.get(p), "partition " + p);
+        }
+        assertThrows(IllegalStateException.class, reader::start);
+    }
+
+    @Test
+    public void handlerFailureFailsTheReader() {
+        CatchUpReader<String, String> reader = new CatchUpReader.Builder<String, String>(this::newConsumer)
+                .setPartitions(Arrays.asList(new TopicPartition(TOPIC, 0), new TopicPartition(TOPIC, 1)))
+                .setPollTimeout(Duration.ofMillis(1))
+                .setHandler(r -> { if(r.offset() == 100) throw new IllegalStateException("boom"); })
+                .build();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> reader.start().get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+
+    @Test
+    public void builderRejectsIncompleteConfig() {
+        assertThrows(IllegalArgumentException.class, () -> new CatchUpReader.Builder<String, String>(this::newConsumer).setHandler(r -> {}).build());
+        assertThrows(IllegalArgumentException.class, () -> new CatchUpReader.Builder<String, String>(this::newConsumer).setTopics(Collections.singleton(TOPIC)).build());
+    }
+
+    @Test
+    public void streamTopicsAreResolvedFromConfig() {
+        Properties props = new Properties();
+        props.put("datastream.stream.history.cluster", "/tt");
+        props.put("datastream.stream.history.partitioner", "default-partitioner");
+        props.put("datastream.stream.history.replication", "3");
+        props.put("datastream.stream.history.partitions", "6");
+        props.put("datastream.stream.history.read", "stream\\.history\\.[^.]*");
+        props.put("datastream.stream.history.write", "stream.history.tenant");
+        StreamsConfigParser parser = StreamsConfigParser.of(props);
+
+        List<String> topics = parser.topicsFor(Arrays.asList("stream.other.tenant", "stream.history.tenant", "stream.history.b", "stream.history.tenant.x"),
+                Collections.singleton(DataStream.of("stream.history")));
+        assertEquals(Arrays.asList("stream.history.b", "stream.history.tenant"), topics);
+    }
+
+    private static List<Long> offsets(long from, long to) {
+        List<Long> offsets = new ArrayList<>();
+        for(long o = from; o < to; o++) offsets.add(o);
+        return offsets;
+    }
+}
@@ -0,0 +1,286 @@
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnknownFieldSet;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.messages.EnvelopeChunks;
+import dsh.messages.Serdes;
+import dsh.sdk.kafka.consumers.ChunkAssembler;
+import dsh.sdk.kafka.consumers.EnvelopeChunkInterceptor;
+import dsh.sdk.kafka.producers.ChunkingProducer;
+import dsh.sdk.streams.StreamsConfigParser;
+import mocks.MockKafka;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkingTests {
+    private static final String TOPIC = "stream.mine.tenant";
+    private static final DataStream STREAM = DataStream.of("stream.mine");
+    private static final int MAX_RECORD = 16 * 1024;
+
+    private final StreamsConfigParser parser = StreamsConfigParser.of(new HashMap<String, String>() {{
+        put("datastream.stream.mine.partitions", "12");
+        put("datastream.stream.mine.partitioner", "topic-level-partitioner");
+        put("datastream.stream.mine.partitioningDepth", "2");
+        put("datastream.stream.mine.write", TOPIC);
+    }});
+
+    private final Cluster cluster = MockKafka.clusterFor(TOPIC, 12);
+
+    private static Envelope.KeyEnvelope key(String key) {
+        return Envelope.KeyEnvelope.newBuilder()
+                .setKey(key)
+                .setHeader(Envelope.KeyHeader.newBuilder().setIdentifier(Envelope.Identity.newBuilder().setTenant("tenant").setApplication("app")))
+                .build();
+    }
+
+    private static Envelope.DataEnvelope value(int size, int seed) {
+        byte[] payload = new byte[size];
+        new Random(seed).nextBytes(payload);
+        return Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFrom(payload)).putTracing("span", "s" + seed).build();
+    }
+
+    // the records a consumer would get for what the producer sent, with increasing offsets and timestamps
+    private static List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> consumed(List<ProducerRecord<byte[], byte[]>> sent, long firstOffset, long timestampStep) {
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = new ArrayList<>();
+        long offset = firstOffset;
+        for(ProducerRecord<byte[], byte[]> r: sent) {
+            records.add(new ConsumerRecord<>(r.topic(), r.partition(), offset, offset * timestampStep, TimestampType.CREATE_TIME,
+                    r.key().length, r.value() == null ? -1 : r.value().length,
+                    Serdes.deserializeKey.apply(r.key()), Serdes.deserializeValue.apply(r.value()), new RecordHeaders(), Optional.empty()));
+            offset++;
+        }
+        return records;
+    }
+
+    private static ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> poll(List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records) {
+        Map<TopicPartition, List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>>> map = new HashMap<>();
+        records.forEach(r -> map.computeIfAbsent(new TopicPartition(r.topic(), r.partition()), tp -> new ArrayList<>()).add(r));
+        return new ConsumerRecords<>(map);
+    }
+
+    @Test
+    public void largeEnvelopesAreChunkedOnOnePartitionAndReassembled() throws Exception {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        ChunkingProducer producer = new ChunkingProducer(mock, parser, MAX_RECORD);
+        Envelope.KeyEnvelope key = key("camera/7/frame");
+        Envelope.DataEnvelope large = value(100_000, 1);
+
+        CompletableFuture<?> future = producer.send(STREAM, key, large);
+        assertTrue(future.isDone());
+        List<ProducerRecord<byte[], byte[]>> sent = mock.history();
+        assertTrue(sent.size() >= 7);
+        int partition = parser.findStream(STREAM).get().partitioner().apply(key.getKey(), 12);
+        for(ProducerRecord<byte[], byte[]> record: sent) {
+            assertEquals(partition, record.partition().intValue());
+            assertArrayEquals(key.toByteArray(), record.key());
+            assertTrue(record.key().length + record.value().length <= MAX_RECORD - ChunkingProducer.RECORD_OVERHEAD);
+            assertTrue(EnvelopeChunks.isChunk(record.value()));
+        }
+
+        ChunkAssembler assembler = new ChunkAssembler.Builder().build();
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = consumed(sent, 100, 1);
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> out = new ArrayList<>();
+        assembler.apply(poll(records.subList(0, 3))).forEach(out::add);
+        assertTrue(out.isEmpty());
+        assertEquals(1, assembler.pending());
+        assembler.apply(poll(records.subList(3, records.size()))).forEach(out::add);
+
+        assertEquals(1, out.size());
+        assertEquals(large, out.get(0).value());
+        assertEquals(key, out.get(0).key());
+        assertEquals(100 + sent.size() - 1, out.get(0).offset());
+        assertEquals(0, assembler.pending());
+        assertEquals(0, assembler.buffered());
+    }
+
+    @Test
+    public void smallEnvelopesAndTombstonesPassUnchanged() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        ChunkingProducer producer = new ChunkingProducer(mock, parser, MAX_RECORD);
+        producer.send(STREAM, key("a/b"), value(100, 1));
+        producer.send(STREAM, key("a/b"), null);
+        assertEquals(2, mock.history().size());
+        assertArrayEquals(value(100, 1).toByteArray(), mock.history().get(0).value());
+        assertNull(mock.history().get(1).value());
+
+        ChunkAssembler assembler = new ChunkAssembler.Builder().build();
+        ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> polled = poll(consumed(mock.history(), 0, 1));
+        assertSame(polled, assembler.apply(polled));
+    }
+
+    @Test
+    public void chunksOutOfOrderDuplicatedAndInterleaved() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        ChunkingProducer producer = new ChunkingProducer(mock, parser, MAX_RECORD);
+        producer.send(STREAM, key("a/b"), value(40_000, 1));
+        List<ProducerRecord<byte[], byte[]>> first = new ArrayList<>(mock.history());
+        mock.clear();
+        producer.send(STREAM, key("a/b"), value(40_000, 2));
+        List<ProducerRecord<byte[], byte[]>> second = new ArrayList<>(mock.history());
+
+        // interleave both sets, reverse the first one, and duplicate a chunk
+        List<ProducerRecord<byte[], byte[]>> mixed = new ArrayList<>();
+        for(int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if(i < first.size()) mixed.add(first.get(first.size() - 1 - i));
+            if(i < second.size()) mixed.add(second.get(i));
+        }
+        mixed.add(1, second.get(0));
+
+        ChunkAssembler assembler = new ChunkAssembler.Builder().build();
+        List<Envelope.DataEnvelope> out = new ArrayList<>();
+        for(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record: consumed(mixed, 0, 1)) assembler.apply(record).ifPresent(r -> out.add(r.value()));
+        assertEquals(new HashSet<>(Arrays.asList(value(40_000, 1), value(40_000, 2))), new HashSet<>(out));
+        assertEquals(2, out.size());
+    }
+
+    @Test
+    public void incompleteSetsTimeOutAndBufferIsBounded() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        ChunkingProducer producer = new ChunkingProducer(mock, parser, MAX_RECORD);
+        producer.send(STREAM, key("a/b"), value(40_000, 1));
+        List<ProducerRecord<byte[], byte[]>> incomplete = new ArrayList<>(mock.history().subList(0, 2));
+
+        // timeout on record timestamps: 1 second per offset, 10 seconds timeout
+        ChunkAssembler assembler = new ChunkAssembler.Builder().setTimeout(Duration.ofSeconds(10)).build();
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = consumed(incomplete, 0, 1000);
+        records.forEach(assembler::apply);
+        assertEquals(1, assembler.pending());
+        assertEquals(new OffsetAndMetadata(0), assembler.committable(Collections.singletonMap(new TopicPartition(TOPIC, incomplete.get(0).partition()), new OffsetAndMetadata(2))).values().iterator().next());
+
+        mock.clear();
+        producer.send(STREAM, key("a/b"), value(10, 2));
+        assertTrue(assembler.apply(consumed(mock.history(), 20, 1000).get(0)).isPresent());
+        assertEquals(0, assembler.pending());
+        assertEquals(1, assembler.dropped());
+
+        // buffer limit: the oldest incomplete set gets dropped
+        ChunkAssembler small = new ChunkAssembler.Builder().setMaxBufferedBytes(20_000).build();
+        mock.clear();
+        producer.send(STREAM, key("a/b"), value(25_000, 3));
+        producer.send(STREAM, key("a/b"), value(25_000, 4));
+        List<ProducerRecord<byte[], byte[]>> sent = mock.history();
+        int perSet = sent.size() / 2;
+        List<ProducerRecord<byte[], byte[]>> partial = new ArrayList<>(sent.subList(0, perSet - 1));
+        partial.addAll(sent.subList(perSet, sent.size()));
+        List<Envelope.DataEnvelope> out = new ArrayList<>();
+        consumed(partial, 0, 1).forEach(r -> small.apply(r).ifPresent(a -> out.add(a.value())));
+        assertEquals(Collections.singletonList(value(25_000, 4)), out);
+        assertTrue(small.buffered() <= 20_000);
+        assertEquals(1, small.dropped());
+    }
+
+    @Test
+    public void incompleteSetsTimeOutOnPollsWithoutChunks() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        ChunkingProducer producer = new ChunkingProducer(mock, parser, MAX_RECORD);
+        producer.send(STREAM, key("a/b"), value(40_000, 1));
+        List<ProducerRecord<byte[], byte[]>> incomplete = new ArrayList<>(mock.history().subList(0, 2));
+        TopicPartition tp = new TopicPartition(TOPIC, incomplete.get(0).partition());
+
+        ChunkAssembler assembler = new ChunkAssembler.Builder().setTimeout(Duration.ofSeconds(10)).build();
+        assembler.apply(poll(consumed(incomplete, 0, 1000)));
+        assertEquals(1, assembler.pending());
+
+        // the producer stops sending chunks: only plain records follow, within the timeout ...
+        mock.clear();
+        producer.send(STREAM, key("a/b"), value(10, 2));
+        ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> plain = poll(consumed(mock.history(), 5, 1000));
+        assertSame(plain, assembler.apply(plain));
+        assertEquals(1, assembler.pending());
+        assertEquals(new OffsetAndMetadata(0), assembler.committable(Collections.singletonMap(tp, new OffsetAndMetadata(6))).get(tp));
+
+        // ... and after it: the set is dropped, and the commits of the partition move on
+        plain = poll(consumed(mock.history(), 20, 1000));
+        assertSame(plain, assembler.apply(plain));
+        assertEquals(0, assembler.pending());
+        assertEquals(0, assembler.buffered());
+        assertEquals(1, assembler.dropped());
+        assertEquals(new OffsetAndMetadata(21), assembler.committable(Collections.singletonMap(tp, new OffsetAndMetadata(21))).get(tp));
+    }
+
+    // a chunk with a hand-written header, as a corrupt or hostile producer could send it
+    private static Envelope.DataEnvelope chunk(String id, int index, int count, int size) throws IOException {
+        ByteString.Output header = ByteString.newOutput();
+        CodedOutputStream out = CodedOutputStream.newInstance(header);
+        out.writeByteArray(1, id.getBytes(StandardCharsets.UTF_8));
+        out.writeUInt32(2, index);
+        out.writeUInt32(3, count);
+        out.flush();
+        return Envelope.DataEnvelope.newBuilder().setUnknownFields(UnknownFieldSet.newBuilder()
+                .addField(EnvelopeChunks.CHUNK_HEADER_FIELD, UnknownFieldSet.Field.newBuilder().addLengthDelimited(header.toByteString()).build())
+                .addField(EnvelopeChunks.CHUNK_DATA_FIELD, UnknownFieldSet.Field.newBuilder().addLengthDelimited(ByteString.copyFrom(new byte[size])).build())
+                .build()).build();
+    }
+
+    @Test
+    public void setsThatCanNotFitAreRejected() throws Exception {
+        ChunkAssembler assembler = new ChunkAssembler.Builder().setMaxBufferedBytes(1024 * 1024).build();
+        TopicPartition tp = new TopicPartition(TOPIC, 0);
+
+        // a chunk count close to 2^31 is rejected up front, without allocating anything for it
+        assertFalse(assembler.apply(new ConsumerRecord<>(TOPIC, 0, 0, key("a/b"), chunk("huge", 0, Integer.MAX_VALUE, 1000))).isPresent());
+        assertFalse(assembler.apply(new ConsumerRecord<>(TOPIC, 0, 1, key("a/b"), chunk("huge", 1, Integer.MAX_VALUE, 1000))).isPresent());
+        assertEquals(0, assembler.pending());
+        assertEquals(0, assembler.buffered());
+        assertEquals(1, assembler.dropped());
+        assertEquals(new OffsetAndMetadata(2), assembler.committable(Collections.singletonMap(tp, new OffsetAndMetadata(2))).get(tp));
+
+        // a set that fits is buffered
+        assertFalse(assembler.apply(new ConsumerRecord<>(TOPIC, 0, 2, key("a/b"), chunk("fits", 0, 1000, 1000))).isPresent());
+        assertEquals(1, assembler.pending());
+    }
+
+    @Test
+    public void lateDuplicatesOfCompletedSetsAreIgnored() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        ChunkingProducer producer = new ChunkingProducer(mock, parser, MAX_RECORD);
+        producer.send(STREAM, key("a/b"), value(40_000, 1));
+        List<ProducerRecord<byte[], byte[]>> sent = new ArrayList<>(mock.history());
+        TopicPartition tp = new TopicPartition(TOPIC, sent.get(0).partition());
+
+        ChunkAssembler assembler = new ChunkAssembler.Builder().build();
+        List<Envelope.DataEnvelope> out = new ArrayList<>();
+        consumed(sent, 0, 1).forEach(r -> assembler.apply(r).ifPresent(a -> out.add(a.value())));
+        assertEquals(Collections.singletonList(value(40_000, 1)), out);
+
+        // a producer retry delivers the first chunk once more, after the set completed
+        ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> retried = consumed(sent.subList(0, 1), sent.size(), 1).get(0);
+        assertFalse(assembler.apply(retried).isPresent());
+        assertEquals(0, assembler.pending());
+        assertEquals(new OffsetAndMetadata(sent.size() + 1), assembler.committable(Collections.singletonMap(tp, new OffsetAndMetadata(sent.size() + 1))).get(tp));
+    }
+
+    @Test
+    public void interceptorTakesLimitsFromConfig() throws Exception {
+        EnvelopeChunkInterceptor interceptor = new EnvelopeChunkInterceptor();
+        Map<String, Object> configs = new HashMap<>();
+        configs.put(EnvelopeChunkInterceptor.MAX_BUFFERED_BYTES_CONFIG, "1000");
+        configs.put(EnvelopeChunkInterceptor.TIMEOUT_MS_CONFIG, 60000);
+        interceptor.configure(configs);
+
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        new ChunkingProducer(mock, parser, MAX_RECORD).send(STREAM, key("a/b"), value(40_000, 1)).get(1, TimeUnit.SECONDS);
+        assertTrue(interceptor.onConsume(poll(consumed(mock.history().subList(0, 1), 0, 1))).isEmpty());
+        assertEquals(0, interceptor.assembler().pending());
+        assertEquals(1, interceptor.assembler().dropped());
+    }
+}
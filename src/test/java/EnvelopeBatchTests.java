@@ -0,0 +1,296 @@
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.messages.EnvelopeBatch;
+import dsh.messages.Serdes;
+import dsh.sdk.kafka.consumers.EnvelopeBatchInterceptor;
+import dsh.sdk.kafka.producers.BatchingProducer;
+import dsh.sdk.metrics.StreamMetrics;
+import dsh.sdk.retained.RetainedValueStore;
+import dsh.sdk.streams.StreamsConfigParser;
+import mocks.MockKafka;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EnvelopeBatchTests {
+    private static final String TOPIC = "stream.mine.tenant";
+    private static final DataStream STREAM = DataStream.of("stream.mine");
+
+    private final StreamsConfigParser parser = StreamsConfigParser.of(new HashMap<String, String>() {{
+        put("datastream.stream.mine.partitions", "12");
+        put("datastream.stream.mine.partitioner", "topic-level-partitioner");
+        put("datastream.stream.mine.partitioningDepth", "1");
+        put("datastream.stream.mine.write", TOPIC);
+    }});
+
+    private final Cluster cluster = MockKafka.clusterFor(TOPIC, 12);
+
+    private static Envelope.KeyEnvelope key(String key) {
+        return Envelope.KeyEnvelope.newBuilder()
+                .setKey(key)
+                .setHeader(Envelope.KeyHeader.newBuilder()
+                        .setIdentifier(Envelope.Identity.newBuilder().setTenant("tenant").setApplication("app"))
+                        .setRetained(true)
+                        .setQos(Envelope.QoS.BEST_EFFORT))
+                .build();
+    }
+
+    private static Envelope.DataEnvelope value(String payload) {
+        return Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8(payload)).build();
+    }
+
+    private static Envelope.DataEnvelope parseValue(byte[] bytes) { return Serdes.deserializeValue.apply(bytes); }
+
+    private static Envelope.KeyEnvelope parseKey(byte[] bytes) { return Serdes.deserializeKey.apply(bytes); }
+
+    @Test
+    public void batchRoundTripsTypedAndRaw() {
+        byte[] recordKey = key("house/1").toByteArray();
+        List<byte[]> keys = Arrays.asList(recordKey, key("house/2").toByteArray(), recordKey);
+        List<byte[]> values = Arrays.asList(value("a").toByteArray(), value("b").toByteArray(), Envelope.DataEnvelope.getDefaultInstance().toByteArray());
+        byte[] batch = EnvelopeBatch.encode(recordKey, keys, values);
+
+        assertTrue(EnvelopeBatch.isBatch(batch));
+        assertFalse(EnvelopeBatch.isBatch(value("a").toByteArray()));
+        assertFalse(EnvelopeBatch.isBatch((byte[]) null));
+
+        Envelope.DataEnvelope parsed = parseValue(batch);
+        assertTrue(EnvelopeBatch.isBatch(parsed));
+        assertFalse(EnvelopeBatch.isBatch(value("a")));
+        assertFalse(EnvelopeBatch.isBatch((Envelope.DataEnvelope) null));
+
+        Envelope.KeyEnvelope typedKey = parseKey(recordKey);
+        List<Envelope.KeyEnvelope> typedKeys = new ArrayList<>();
+        List<Envelope.DataEnvelope> typedValues = new ArrayList<>();
+        assertEquals(3, EnvelopeBatch.forEach(typedKey, parsed, (k, v) -> { typedKeys.add(k); typedValues.add(v); }));
+        assertSame(typedKey, typedKeys.get(0));
+        assertEquals(key("house/2"), typedKeys.get(1));
+        assertSame(typedKey, typedKeys.get(2));
+        assertEquals(Arrays.asList(value("a"), value("b"), Envelope.DataEnvelope.getDefaultInstance()), typedValues);
+
+        List<byte[]> rawKeys = new ArrayList<>();
+        List<byte[]> rawValues = new ArrayList<>();
+        assertEquals(3, EnvelopeBatch.forEach(recordKey, batch, (k, v) -> { rawKeys.add(k); rawValues.add(v); }));
+        assertSame(recordKey, rawKeys.get(0));
+        for(int i = 0; i < 3; i++) {
+            assertArrayEquals(keys.get(i), rawKeys.get(i));
+            assertArrayEquals(values.get(i), rawValues.get(i));
+        }
+
+        // the batch survives a re-serialization of the parsed envelope
+        assertArrayEquals(batch, parsed.toByteArray());
+    }
+
+    @Test
+    public void encodeRejectsTombstonesAndMalformedBatchesFail() {
+        byte[] recordKey = key("a").toByteArray();
+        assertThrows(IllegalArgumentException.class, () -> EnvelopeBatch.encode(recordKey, Collections.singletonList(recordKey), Collections.singletonList(null)));
+        assertThrows(IllegalArgumentException.class, () -> EnvelopeBatch.encode(recordKey, Collections.singletonList(recordKey), Collections.emptyList()));
+
+        byte[] batch = EnvelopeBatch.encode(recordKey, Arrays.asList(recordKey, recordKey), Arrays.asList(value("a").toByteArray(), value("b").toByteArray()));
+        byte[] truncated = Arrays.copyOf(batch, batch.length - 2);
+        assertThrows(Serdes.SerializationException.class, () -> EnvelopeBatch.forEach(recordKey, truncated, (k, v) -> {}));
+    }
+
+    @Test
+    public void interceptorUnpacksBatchesSharingTheOffset() {
+        Envelope.KeyEnvelope recordKey = key("house/1");
+        byte[] batch = EnvelopeBatch.encode(recordKey.toByteArray(),
+                Arrays.asList(recordKey.toByteArray(), key("house/2").toByteArray()),
+                Arrays.asList(value("a").toByteArray(), value("b").toByteArray()));
+
+        TopicPartition tp = new TopicPartition(TOPIC, 3);
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> polled = Arrays.asList(
+                new ConsumerRecord<>(TOPIC, 3, 7, key("house/0"), value("plain")),
+                new ConsumerRecord<>(TOPIC, 3, 8, recordKey, parseValue(batch)),
+                new ConsumerRecord<>(TOPIC, 3, 9, key("house/3"), null));
+        EnvelopeBatchInterceptor interceptor = new EnvelopeBatchInterceptor();
+
+        ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> plain = new ConsumerRecords<>(Collections.singletonMap(tp, Collections.singletonList(polled.get(0))));
+        assertSame(plain, interceptor.onConsume(plain));
+
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> out = interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(tp, polled))).records(tp);
+        assertEquals(4, out.size());
+        assertSame(polled.get(0), out.get(0));
+        assertEquals(Arrays.asList(7L, 8L, 8L, 9L), Arrays.asList(out.get(0).offset(), out.get(1).offset(), out.get(2).offset(), out.get(3).offset()));
+        assertEquals(Arrays.asList("house/0", "house/1", "house/2", "house/3"), Arrays.asList(out.get(0).key().getKey(), out.get(1).key().getKey(), out.get(2).key().getKey(), out.get(3).key().getKey()));
+        assertEquals(value("a"), out.get(1).value());
+        assertEquals(value("b"), out.get(2).value());
+        assertNull(out.get(3).value());
+    }
+
+    @Test
+    public void interceptorDropsMalformedBatches() {
+        // a valid entry, followed by an entry with a truncated value
+        UnknownFieldSet valid = UnknownFieldSet.newBuilder()
+                .addField(2, UnknownFieldSet.Field.newBuilder().addLengthDelimited(value("a").toByteString()).build()).build();
+        UnknownFieldSet truncated = UnknownFieldSet.newBuilder()
+                .addField(2, UnknownFieldSet.Field.newBuilder().addLengthDelimited(ByteString.copyFrom(new byte[] { 0x0a, 0x05 })).build()).build();
+        Envelope.DataEnvelope malformed = Envelope.DataEnvelope.newBuilder().setUnknownFields(UnknownFieldSet.newBuilder()
+                .addField(EnvelopeBatch.BATCH_FIELD, UnknownFieldSet.Field.newBuilder().addLengthDelimited(valid.toByteString()).addLengthDelimited(truncated.toByteString()).build())
+                .build()).build();
+        assertTrue(EnvelopeBatch.isBatch(malformed));
+
+        TopicPartition tp = new TopicPartition(TOPIC, 3);
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> polled = Arrays.asList(
+                new ConsumerRecord<>(TOPIC, 3, 7, key("house/0"), value("plain")),
+                new ConsumerRecord<>(TOPIC, 3, 8, key("house/1"), malformed),
+                new ConsumerRecord<>(TOPIC, 3, 9, key("house/2"), value("after")));
+        StreamMetrics metrics = new StreamMetrics();
+        EnvelopeBatchInterceptor interceptor = new EnvelopeBatchInterceptor();
+        interceptor.configure(Collections.singletonMap(StreamMetrics.CONFIG_KEY, metrics));
+
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> out = interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(tp, polled))).records(tp);
+        assertEquals(Arrays.asList(polled.get(0), polled.get(2)), out);
+        assertEquals(1, metrics.counters(TOPIC).deserializationErrors());
+    }
+
+    @Test
+    public void retainedStoreAppliesBatchEntries() {
+        byte[] recordKey = key("house/1").toByteArray();
+        byte[] batch = EnvelopeBatch.encode(recordKey,
+                Arrays.asList(recordKey, key("house/2").toByteArray(), recordKey),
+                Arrays.asList(value("a").toByteArray(), value("b").toByteArray(), value("c").toByteArray()));
+
+        RetainedValueStore raw = new RetainedValueStore.Builder().build();
+        assertTrue(raw.applyRaw(new ConsumerRecord<>(TOPIC, 0, 0, recordKey, batch)));
+        assertEquals(value("c"), raw.get("house/1").orElse(null));
+        assertEquals(value("b"), raw.get("house/2").orElse(null));
+
+        RetainedValueStore typed = new RetainedValueStore.Builder().build();
+        assertTrue(typed.apply(new ConsumerRecord<>(TOPIC, 0, 0, parseKey(recordKey), parseValue(batch))));
+        assertEquals(2, typed.size());
+        assertEquals(value("c"), typed.get("house/1").orElse(null));
+    }
+
+    private BatchingProducer.Builder producer(MockProducer<byte[], byte[]> mock) {
+        return new BatchingProducer.Builder(mock, parser).setLinger(Duration.ofHours(1));
+    }
+
+    @Test
+    public void producerBatchesPerKeyOrPartition() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        BatchingProducer byKey = producer(mock).build();
+        List<CompletableFuture<RecordMetadata>> futures = new ArrayList<>();
+        for(int i = 0; i < 10; i++) futures.add(byKey.send(STREAM, key("house/" + (i % 2)), value("v" + i)));
+        assertEquals(10, byKey.pending());
+        assertTrue(mock.history().isEmpty());
+
+        byKey.flush();
+        assertEquals(0, byKey.pending());
+        assertEquals(2, mock.history().size());
+        assertTrue(futures.stream().allMatch(CompletableFuture::isDone));
+        for(ProducerRecord<byte[], byte[]> record: mock.history()) {
+            List<String> payloads = new ArrayList<>();
+            EnvelopeBatch.forEach(record.key(), record.value(), (k, v) -> {
+                assertSame(record.key(), k);
+                payloads.add(parseValue(v).getPayload().toStringUtf8());
+            });
+            assertEquals(5, payloads.size());
+            assertEquals(parser.findStream(STREAM).get().partitioner().apply(parseKey(record.key()).getKey(), 12), record.partition());
+        }
+
+        // partitioning depth 1: "house/0" and "house/1" land on the same partition, but are only batched together when grouping by partition
+        mock.clear();
+        BatchingProducer byPartition = producer(mock).setGrouping(BatchingProducer.Grouping.PARTITION).build();
+        String other = "house/1";
+        byPartition.send(STREAM, key("house/0"), value("x"));
+        byPartition.send(STREAM, key(other), value("y"));
+        byPartition.flush();
+        assertEquals(1, mock.history().size());
+        List<String> keys = new ArrayList<>();
+        EnvelopeBatch.forEach(mock.history().get(0).key(), mock.history().get(0).value(), (k, v) -> keys.add(parseKey(k).getKey()));
+        assertEquals(Arrays.asList("house/0", other), keys);
+    }
+
+    @Test
+    public void producerRespectsLimitsAndTombstones() throws Exception {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        BatchingProducer producer = producer(mock).setMaxBatchRecords(4).setMaxBatchBytes(1024).build();
+
+        // record limit
+        for(int i = 0; i < 4; i++) producer.send(STREAM, key("a"), value("v" + i));
+        assertEquals(1, mock.history().size());
+
+        // size limit: never exceeded
+        mock.clear();
+        String payload = String.join("", Collections.nCopies(400, "x"));
+        for(int i = 0; i < 3; i++) producer.send(STREAM, key("a"), value(payload));
+        assertEquals(1, mock.history().size());
+        assertTrue(mock.history().get(0).value().length <= 1024);
+        assertEquals(1, producer.pending());
+
+        // a tombstone publishes the pending envelope first, as a plain record
+        mock.clear();
+        producer.send(STREAM, key("a"), null).get(1, TimeUnit.SECONDS);
+        assertEquals(2, mock.history().size());
+        assertFalse(EnvelopeBatch.isBatch(mock.history().get(0).value()));
+        assertEquals(value(payload), parseValue(mock.history().get(0).value()));
+        assertNull(mock.history().get(1).value());
+
+        // linger
+        mock.clear();
+        BatchingProducer lingering = new BatchingProducer.Builder(mock, parser).setLinger(Duration.ofMillis(20)).build();
+        CompletableFuture<RecordMetadata> future = lingering.send(STREAM, key("b"), value("b"));
+        assertEquals(TOPIC, future.get(5, TimeUnit.SECONDS).topic());
+        assertEquals(1, mock.history().size());
+
+        lingering.close();
+        assertThrows(IllegalStateException.class, () -> lingering.send(STREAM, key("b"), value("b")));
+        assertTrue(mock.closed());
+    }
+
+    @Test
+    @Tag("performance")
+    public void batchingPerformance(TestReporter testReporter) {
+        Envelope.KeyEnvelope[] keys = new Envelope.KeyEnvelope[64];
+        for(int i = 0; i < keys.length; i++) keys[i] = key("house/" + i + "/meter");
+        Envelope.DataEnvelope value = value("21.5");
+
+        MockProducer<byte[], byte[]> plain = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        long plainOps = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            for(Envelope.KeyEnvelope key: keys) plain.send(new ProducerRecord<>(TOPIC, 0, key.toByteArray(), value.toByteArray()));
+            plain.clear();
+        }).ops();
+
+        MockProducer<byte[], byte[]> batched = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        BatchingProducer producer = producer(batched).setGrouping(BatchingProducer.Grouping.PARTITION).build();
+        long[] records = { 0 };
+        Loop loop = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            for(Envelope.KeyEnvelope key: keys) producer.send(STREAM, key, value);
+            producer.flush();
+            records[0] += batched.history().size();
+            batched.clear();
+        });
+
+        testReporter.publishEntry("plain records, 64 envelopes - publishes/s", Long.toString(plainOps));
+        testReporter.publishEntry("batched by partition, 64 envelopes - publishes/s", Long.toString(loop.ops()));
+        testReporter.publishEntry("batched by partition - kafka records per 64 envelopes", Long.toString(records[0] / loop.count()));
+
+        // key and value bytes handed to kafka, excluding the per-record overhead the batching saves on top
+        long plainBytes = 0;
+        for(Envelope.KeyEnvelope key: keys) plainBytes += key.getSerializedSize() + value.getSerializedSize();
+        for(Envelope.KeyEnvelope key: keys) producer.send(STREAM, key, value);
+        producer.flush();
+        long batchedBytes = batched.history().stream().mapToLong(r -> r.key().length + r.value().length).sum();
+        testReporter.publishEntry("key + value bytes per 64 envelopes - plain vs batched", plainBytes + " vs " + batchedBytes);
+    }
+}
@@ -0,0 +1,277 @@
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnknownFieldSet;
+import dsh.messages.DataFlyweight;
+import dsh.messages.Envelope;
+import dsh.messages.KeyFlyweight;
+import dsh.messages.Serdes;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EnvelopeFlyweightTests {
+    private static final String[] FRAGMENTS = { "a", "key", "/", "tenant-7", "é", "ß", "日本", "😀", " ", "\u0000", "߿", "￿" };
+
+    private static String string(Random random) {
+        if(random.nextInt(5) == 0) return "";
+        StringBuilder s = new StringBuilder();
+        for(int i = random.nextInt(8); i >= 0; i--) s.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        return s.toString();
+    }
+
+    private static UnknownFieldSet unknownFields(Random random, int from) {
+        UnknownFieldSet.Builder fields = UnknownFieldSet.newBuilder();
+        if(random.nextInt(3) != 0) return fields.build();
+        for(int i = random.nextInt(3); i >= 0; i--) {
+            UnknownFieldSet.Field.Builder field = UnknownFieldSet.Field.newBuilder();
+            switch(random.nextInt(5)) {
+                case 0: field.addVarint(random.nextLong()); break;
+                case 1: field.addFixed32(random.nextInt()); break;
+                case 2: field.addFixed64(random.nextLong()); break;
+                case 3: field.addLengthDelimited(ByteString.copyFromUtf8(string(random))); break;
+                default: field.addGroup(UnknownFieldSet.newBuilder().addField(1, UnknownFieldSet.Field.newBuilder().addVarint(random.nextInt()).build()).build());
+            }
+            fields.mergeField(from + random.nextInt(20), field.build());
+        }
+        return fields.build();
+    }
+
+    private static Envelope.KeyEnvelope randomKey(Random random, boolean unknown) {
+        Envelope.KeyEnvelope.Builder key = Envelope.KeyEnvelope.newBuilder().setKey(string(random));
+        if(random.nextInt(4) != 0) {
+            Envelope.KeyHeader.Builder header = Envelope.KeyHeader.newBuilder()
+                    .setRetained(random.nextBoolean())
+                    .setQosValue(new int[] { 0, 1, 7, -1, Integer.MAX_VALUE }[random.nextInt(5)]);
+            if(random.nextInt(4) != 0) {
+                Envelope.Identity.Builder identity = Envelope.Identity.newBuilder().setTenant(string(random));
+                switch(random.nextInt(5)) {
+                    case 0: identity.setFreeForm(string(random)); break;
+                    case 1: identity.setUser(string(random)); break;
+                    case 2: identity.setClient(string(random)); break;
+                    case 3: identity.setApplication(string(random)); break;
+                    default:
+                }
+                if(unknown) identity.setUnknownFields(unknownFields(random, 6));
+                header.setIdentifier(identity);
+            }
+            if(unknown) header.setUnknownFields(unknownFields(random, 4));
+            key.setHeader(header);
+        }
+        if(unknown) key.setUnknownFields(unknownFields(random, 3));
+        return key.build();
+    }
+
+    private static Envelope.DataEnvelope randomValue(Random random, boolean unknown) {
+        Envelope.DataEnvelope.Builder value = Envelope.DataEnvelope.newBuilder();
+        if(random.nextInt(4) != 0) {
+            byte[] payload = new byte[random.nextInt(4) == 0 ? 0 : random.nextInt(300)];
+            random.nextBytes(payload);
+            value.setPayload(ByteString.copyFrom(payload));
+        }
+        for(int i = random.nextInt(4); i > 0; i--) value.putTracing(string(random), string(random));
+        if(unknown) value.setUnknownFields(unknownFields(random, 500));
+        return value.build();
+    }
+
+    private static void assertSameKey(Envelope.KeyEnvelope expected, KeyFlyweight actual) {
+        assertEquals(expected.getKey(), actual.key().toString());
+        assertTrue(actual.key().contentEquals(expected.getKey()));
+        assertEquals(expected.hasHeader(), actual.hasHeader());
+        assertEquals(expected.getHeader().hasIdentifier(), actual.hasIdentity());
+        assertEquals(expected.getHeader().getRetained(), actual.retained());
+        assertEquals(expected.getHeader().getQosValue(), actual.qos());
+        Envelope.Identity identity = expected.getHeader().getIdentifier();
+        assertEquals(identity.getTenant(), actual.tenant().toString());
+        assertEquals(identity.getPublisherCase().getNumber(), actual.publisherCase());
+        String publisher = identity.getFreeForm() + identity.getUser() + identity.getClient() + identity.getApplication();
+        assertEquals(publisher, actual.publisher().toString());
+    }
+
+    @Test
+    public void keyFlyweightRoundTripsGeneratedBytes() {
+        Random random = new Random(1);
+        KeyFlyweight flyweight = new KeyFlyweight();
+        for(int i = 0; i < 5000; i++) {
+            Envelope.KeyEnvelope key = randomKey(random, true);
+            byte[] bytes = key.toByteArray();
+            flyweight.wrap(bytes);
+            assertSameKey(key, flyweight);
+            assertEquals(bytes.length, flyweight.encodedSize());
+            assertArrayEquals(bytes, flyweight.toByteArray());
+            assertEquals(key, flyweight.toEnvelope());
+        }
+    }
+
+    @Test
+    public void keyFlyweightSettersWriteGeneratedBytes() {
+        Random random = new Random(2);
+        KeyFlyweight flyweight = new KeyFlyweight();
+        for(int i = 0; i < 5000; i++) {
+            Envelope.KeyEnvelope key = randomKey(random, false);
+            flyweight.clear();
+            if(key.hasHeader()) flyweight.setRetained(key.getHeader().getRetained()).setQos(key.getHeader().getQosValue());
+            if(key.getHeader().hasIdentifier()) {
+                Envelope.Identity identity = key.getHeader().getIdentifier();
+                flyweight.setTenant(identity.getTenant());
+                String publisher = identity.getFreeForm() + identity.getUser() + identity.getClient() + identity.getApplication();
+                flyweight.setPublisher(identity.getPublisherCase().getNumber(), publisher);
+            }
+            flyweight.setKey(key.getKey());
+            assertArrayEquals(key.toByteArray(), flyweight.toByteArray());
+        }
+
+        // modifying a wrapped envelope keeps the other fields
+        Envelope.KeyEnvelope key = randomKey(new Random(3), true).toBuilder().setKey("old").build();
+        assertEquals(key.toBuilder().setKey("new/key").build(), flyweight.wrap(key.toByteArray()).setKey("new/key").toEnvelope());
+        assertEquals(key.toBuilder().clearHeader().build(), flyweight.wrap(key.toByteArray()).clearHeader().toEnvelope());
+
+        // unpaired surrogates are written like the generated classes do
+        Envelope.KeyEnvelope unpaired = Envelope.KeyEnvelope.newBuilder().setKey("a\uD800b\uDC00").build();
+        assertArrayEquals(unpaired.toByteArray(), flyweight.clear().setKey(unpaired.getKey()).toByteArray());
+        assertThrows(IllegalArgumentException.class, () -> flyweight.setPublisher(6, "x"));
+    }
+
+    @Test
+    public void dataFlyweightRoundTripsGeneratedBytes() {
+        Random random = new Random(4);
+        DataFlyweight flyweight = new DataFlyweight();
+        for(int i = 0; i < 5000; i++) {
+            Envelope.DataEnvelope value = randomValue(random, true);
+            byte[] bytes = value.toByteArray();
+            flyweight.wrap(bytes);
+            assertEquals(value.hasPayload(), flyweight.hasPayload());
+            assertEquals(value.getPayload(), ByteString.copyFrom(flyweight.payloadBuffer(), flyweight.payloadOffset(), flyweight.payloadLength()));
+            for(Map.Entry<String, String> entry: value.getTracingMap().entrySet()) assertEquals(entry.getValue(), flyweight.tracing(entry.getKey()));
+            assertNull(flyweight.tracing("not-there"));
+            assertEquals(value.getTracingMap(), flyweight.tracing());
+            assertEquals(bytes.length, flyweight.encodedSize());
+            assertArrayEquals(bytes, flyweight.toByteArray());
+            assertEquals(value, flyweight.toEnvelope());
+        }
+    }
+
+    @Test
+    public void dataFlyweightSettersWriteGeneratedBytes() {
+        Random random = new Random(5);
+        DataFlyweight flyweight = new DataFlyweight();
+        for(int i = 0; i < 5000; i++) {
+            Envelope.DataEnvelope value = randomValue(random, false);
+            flyweight.clear();
+            if(value.hasPayload()) flyweight.setPayload(value.getPayload().toByteArray());
+            value.getTracingMap().forEach(flyweight::putTracing);
+            assertArrayEquals(value.toByteArray(), flyweight.toByteArray());
+        }
+
+        // modifying a wrapped envelope keeps the other fields, e.g. a compression header
+        Envelope.DataEnvelope value = randomValue(new Random(6), true).toBuilder()
+                .setUnknownFields(UnknownFieldSet.newBuilder().addField(503, UnknownFieldSet.Field.newBuilder().addLengthDelimited(ByteString.copyFromUtf8("header")).build()).build())
+                .build();
+        assertEquals(value.toBuilder().putTracing("span", "1234").build(), flyweight.wrap(value.toByteArray()).putTracing("span", "1234").toEnvelope());
+        assertEquals(value.toBuilder().clearKind().clearTracing().build(), flyweight.wrap(value.toByteArray()).clearPayload().clearTracing().toEnvelope());
+        byte[] payload = "payload".getBytes();
+        assertEquals(value.toBuilder().setPayload(ByteString.copyFrom(payload, 1, 3)).build(), flyweight.wrap(value.toByteArray()).setPayload(payload, 1, 3).toEnvelope());
+    }
+
+    private static byte[] mutate(Random random, byte[] bytes) {
+        switch(random.nextInt(4)) {
+            case 0: {
+                byte[] garbage = new byte[random.nextInt(40)];
+                random.nextBytes(garbage);
+                return garbage;
+            }
+            case 1: return Arrays.copyOf(bytes, random.nextInt(bytes.length + 1));
+            default: {
+                byte[] mutated = bytes.clone();
+                for(int i = 1 + random.nextInt(3); i > 0 && mutated.length > 0; i--) mutated[random.nextInt(mutated.length)] = (byte) random.nextInt();
+                return mutated;
+            }
+        }
+    }
+
+    @Test
+    public void flyweightsAgreeWithGeneratedParsersOnCorruptData() throws InvalidProtocolBufferException {
+        Random random = new Random(7);
+        KeyFlyweight key = new KeyFlyweight();
+        DataFlyweight value = new DataFlyweight();
+        int accepted = 0;
+        for(int i = 0; i < 50000; i++) {
+            byte[] keyBytes = mutate(random, randomKey(random, true).toByteArray());
+            Envelope.KeyEnvelope parsedKey = null;
+            try { parsedKey = Envelope.KeyEnvelope.parseFrom(keyBytes); } catch (InvalidProtocolBufferException e) { /* rejected */ }
+            try {
+                key.wrap(keyBytes);
+                // the flyweight does not validate UTF-8, so it accepts more than the generated parser
+                if(parsedKey != null) {
+                    assertSameKey(parsedKey, key);
+                    assertEquals(parsedKey, Envelope.KeyEnvelope.parseFrom(key.toByteArray()));
+                    accepted++;
+                }
+            }
+            catch (Serdes.SerializationException e) {
+                assertNull(parsedKey, "flyweight rejected a valid key");
+            }
+
+            byte[] valueBytes = mutate(random, randomValue(random, true).toByteArray());
+            Envelope.DataEnvelope parsedValue = null;
+            try { parsedValue = Envelope.DataEnvelope.parseFrom(valueBytes); } catch (InvalidProtocolBufferException e) { /* rejected */ }
+            try {
+                value.wrap(valueBytes);
+                if(parsedValue != null) {
+                    assertEquals(parsedValue.getTracingMap(), value.tracing());
+                    assertEquals(parsedValue, Envelope.DataEnvelope.parseFrom(value.toByteArray()));
+                    accepted++;
+                }
+            }
+            catch (Serdes.SerializationException e) {
+                assertNull(parsedValue, "flyweight rejected a valid value");
+            }
+        }
+        assertTrue(accepted > 1000, "too few valid mutations: " + accepted);
+    }
+
+    @Test
+    @Tag("performance")
+    public void flyweightPerformance(TestReporter testReporter) {
+        Random random = new Random(8);
+        byte[][] keys = new byte[1000][];
+        byte[][] values = new byte[1000][];
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = Envelope.KeyEnvelope.newBuilder().setKey("house/" + i + "/temperature")
+                    .setHeader(Envelope.KeyHeader.newBuilder().setQos(Envelope.QoS.RELIABLE)
+                            .setIdentifier(Envelope.Identity.newBuilder().setTenant("tenant").setClient("client-" + i)))
+                    .build().toByteArray();
+            byte[] payload = new byte[100];
+            random.nextBytes(payload);
+            values[i] = Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFrom(payload))
+                    .putTracing("span", "00f067aa0ba902b7").putTracing("trace", "4bf92f3577b34da6a3ce929d0e0e4736").build().toByteArray();
+        }
+
+        int[] i = { 0 };
+        long[] sink = { 0 };
+        long generatedOps = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            int n = i[0]++ % keys.length;
+            Envelope.KeyEnvelope key = Serdes.deserializeKey.apply(keys[n]);
+            Envelope.DataEnvelope value = Serdes.deserializeValue.apply(values[n]);
+            sink[0] += key.getKey().length() + key.getHeader().getIdentifier().getTenant().length() + value.getPayload().size();
+        }).ops();
+
+        KeyFlyweight key = new KeyFlyweight();
+        DataFlyweight value = new DataFlyweight();
+        long flyweightOps = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            int n = i[0]++ % keys.length;
+            key.wrap(keys[n]);
+            value.wrap(values[n]);
+            sink[0] += key.key().length() + key.tenant().length() + value.payloadLength();
+        }).ops();
+
+        testReporter.publishEntry("generated classes - key and value parses/s", Long.toString(generatedOps));
+        testReporter.publishEntry("flyweights - key and value wraps/s", Long.toString(flyweightOps));
+        assertTrue(sink[0] > 0);
+    }
+}
@@ -0,0 +1,140 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.sdk.kafka.partitioners.DynamicStreamPartitioner;
+import dsh.sdk.kafka.producers.FanOutProducer;
+import dsh.sdk.kafka.serdes.DataEnvelopeSerializer;
+import dsh.sdk.kafka.serdes.KeyEnvelopeSerializer;
+import dsh.sdk.streams.StreamsConfigParser;
+import mocks.MockKafka;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FanOutProducerTests {
+    private static final DataStream PUBLIC = DataStream.of("stream.mine");
+    private static final DataStream INTERNAL = DataStream.of("internal.mine");
+    private static final List<DataStream> BOTH = Arrays.asList(PUBLIC, INTERNAL);
+
+    private final StreamsConfigParser parser = StreamsConfigParser.of(new HashMap<String, String>() {{
+        put("datastream.stream.mine.partitions", "24");
+        put("datastream.stream.mine.partitioner", "topic-level-partitioner");
+        put("datastream.stream.mine.partitioningDepth", "3");
+        put("datastream.stream.mine.write", "stream.mine.tenant");
+        put("datastream.internal.mine.partitions", "12");
+        put("datastream.internal.mine.partitioner", "topic-level-partitioner");
+        put("datastream.internal.mine.partitioningDepth", "1");
+        put("datastream.internal.mine.write", "internal.mine.tenant");
+        put("datastream.internal.readonly.partitions", "12");
+        put("datastream.internal.readonly.partitioner", "default-partitioner");
+        put("datastream.internal.readonly.read", "internal\\.readonly\\.[^.]*");
+    }});
+
+    private final Cluster cluster = MockKafka.clusterFor(new HashMap<String, Integer>() {{
+        put("stream.mine.tenant", 24);
+        put("internal.mine.tenant", 12);
+    }});
+
+    private static Envelope.KeyEnvelope key(String key) {
+        return Envelope.KeyEnvelope.newBuilder()
+                .setKey(key)
+                .setHeader(Envelope.KeyHeader.newBuilder()
+                        .setIdentifier(Envelope.Identity.newBuilder().setTenant("tenant").setApplication("app"))
+                        .setQos(Envelope.QoS.BEST_EFFORT))
+                .build();
+    }
+
+    private static Envelope.DataEnvelope value(String payload) {
+        return Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8(payload)).build();
+    }
+
+    @Test
+    public void publishesSameBytesToEveryStreamOnItsOwnPartition() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        FanOutProducer producer = new FanOutProducer(mock, parser);
+        DynamicStreamPartitioner partitioner = new DynamicStreamPartitioner(parser);
+
+        for(int i = 0; i < 100; i++) {
+            Envelope.KeyEnvelope key = key("a/" + i + "/b/c/" + (i * 7));
+            Envelope.DataEnvelope value = value("payload " + i);
+            mock.clear();
+            assertEquals(2, producer.send(BOTH, key, value).size());
+
+            List<ProducerRecord<byte[], byte[]>> sent = mock.history();
+            assertEquals(Arrays.asList("stream.mine.tenant", "internal.mine.tenant"), Arrays.asList(sent.get(0).topic(), sent.get(1).topic()));
+            assertSame(sent.get(0).key(), sent.get(1).key());
+            assertSame(sent.get(0).value(), sent.get(1).value());
+            assertArrayEquals(key.toByteArray(), sent.get(0).key());
+            assertArrayEquals(value.toByteArray(), sent.get(0).value());
+            for(ProducerRecord<byte[], byte[]> record: sent) {
+                assertEquals(partitioner.partition(record.topic(), key, null, null, null, cluster), record.partition().intValue());
+            }
+        }
+    }
+
+    @Test
+    public void tombstonesAndCallbacks() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        FanOutProducer producer = new FanOutProducer(mock, parser);
+
+        List<String> acked = new ArrayList<>();
+        producer.send(BOTH, key("a/b"), null, (metadata, e) -> acked.add(metadata.topic()));
+        assertEquals(Arrays.asList("stream.mine.tenant", "internal.mine.tenant"), acked);
+        assertTrue(mock.history().stream().allMatch(r -> r.value() == null));
+    }
+
+    @Test
+    public void invalidStreamsSendNothing() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        FanOutProducer producer = new FanOutProducer(mock, parser);
+
+        assertThrows(IllegalArgumentException.class, () -> producer.send(Arrays.asList(PUBLIC, DataStream.of("internal.readonly")), key("a/b"), value("x")));
+        assertThrows(IllegalArgumentException.class, () -> producer.send(Arrays.asList(PUBLIC, DataStream.of("stream.unknown")), key("a/b"), value("x")));
+        assertTrue(mock.history().isEmpty());
+    }
+
+    @Test
+    public void nullKeysSendNothing() {
+        MockProducer<byte[], byte[]> mock = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        FanOutProducer producer = new FanOutProducer(mock, parser);
+
+        assertThrows(NullPointerException.class, () -> producer.send(BOTH, null, value("x")));
+        assertTrue(mock.history().isEmpty());
+    }
+
+    @Test
+    @Tag("performance")
+    public void fanOutPerformance(TestReporter testReporter) {
+        Envelope.KeyEnvelope key = key("house/12/floor/3/meter/power");
+        Envelope.DataEnvelope value = value(String.join("", Collections.nCopies(64, "0123456789abcdef")));
+        List<DataStream> streams = Arrays.asList(PUBLIC, INTERNAL, PUBLIC, INTERNAL);
+
+        MockProducer<Envelope.KeyEnvelope, Envelope.DataEnvelope> streamProducer = new MockProducer<>(cluster, true, new DynamicStreamPartitioner(parser), new KeyEnvelopeSerializer(), new DataEnvelopeSerializer());
+        Map<DataStream, String> topics = new HashMap<>();
+        streams.forEach(s -> topics.put(s, parser.findStream(s).flatMap(StreamsConfigParser.StreamContract::produceTopic).get()));
+        long perSend = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            for(DataStream s: streams) streamProducer.send(new ProducerRecord<>(topics.get(s), key, value));
+            streamProducer.clear();
+        }).ops();
+
+        MockProducer<byte[], byte[]> rawProducer = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        FanOutProducer fanOut = new FanOutProducer(rawProducer, parser);
+        long once = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            fanOut.send(streams, key, value);
+            rawProducer.clear();
+        }).ops();
+
+        testReporter.publishEntry("stream producer, 4 streams - publishes/s", Long.toString(perSend));
+        testReporter.publishEntry("fan-out producer, 4 streams - publishes/s", Long.toString(once));
+    }
+}
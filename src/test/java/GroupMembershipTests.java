@@ -0,0 +1,174 @@
+import dsh.sdk.PkiProviderStatic;
+import dsh.sdk.Sdk;
+import dsh.sdk.kafka.GroupMembership;
+import dsh.sdk.kafka.KafkaClientFactory;
+import dsh.sdk.kafka.KafkaConfigParser;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerPartitionAssignor;
+import org.apache.kafka.clients.consumer.CooperativeStickyAssignor;
+import org.apache.kafka.clients.consumer.RangeAssignor;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GroupMembershipTests {
+
+    private static Properties group(String groupId) {
+        Properties props = new Properties();
+        props.setProperty(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+        return props;
+    }
+
+    @Test
+    public void dynamicMembershipKeepsKafkaDefaults() {
+        Properties props = GroupMembership.DYNAMIC.apply(group("g"));
+        assertEquals(group("g"), props);
+    }
+
+    @Test
+    public void cooperativeMembershipFromSdk() {
+        Properties platform = new Properties();
+        platform.put("consumerGroups.private", "tenant_application.00000000-0000-0000-0000-000000000000_1");
+        GroupMembership membership = GroupMembership.of(new Sdk(new PkiProviderStatic(platform)));
+
+        // the task id changes with every task: no static membership
+        Properties props = membership.apply(group("shared"));
+        assertEquals(Optional.empty(), membership.instanceId());
+        assertNull(props.getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+        assertNull(props.getProperty(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG));
+        assertEquals(CooperativeStickyAssignor.class.getName(), props.getProperty(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG));
+        assertTrue(membership.isCooperative());
+    }
+
+    @Test
+    public void staticMembershipFromExplicitInstanceId() {
+        GroupMembership membership = new GroupMembership.Builder().setInstanceId("meters-3").setCooperative(true).build();
+
+        Properties first = membership.apply(group("shared"));
+        Properties second = membership.apply(group("shared"));
+        Properties other = membership.apply(group("private"));
+
+        assertEquals("meters-3", first.getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+        assertEquals("meters-3-1", second.getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+        assertEquals("meters-3", other.getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+        assertEquals(CooperativeStickyAssignor.class.getName(), first.getProperty(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG));
+        assertEquals("120000", first.getProperty(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG));
+    }
+
+    @Test
+    public void consumerPropertiesDoNotHandOutInstanceIds() {
+        Properties platform = new Properties();
+        platform.put("consumerGroups.shared", "tenant_application_1");
+        GroupMembership membership = new GroupMembership.Builder().setInstanceId("meters-3").build();
+        KafkaClientFactory factory = KafkaClientFactory.of(StreamsConfigParser.of(platform), KafkaConfigParser.of(platform), membership);
+
+        // inspecting the configuration leaves the instance ids of the group alone
+        Properties props = factory.streamConsumerProperties(null, KafkaConfigParser.ConsumerGroupType.SHARED);
+        factory.rawStreamConsumerProperties(null, KafkaConfigParser.ConsumerGroupType.SHARED);
+        assertNull(props.getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+
+        assertEquals("meters-3", factory.withMembership(props).getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+        assertEquals("meters-3-1", factory.withMembership(props).getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+    }
+
+    @Test
+    public void overridesAndInvalidCharacters() {
+        GroupMembership membership = new GroupMembership.Builder()
+                .setInstanceId("tenant/my app#1")
+                .setSessionTimeout(Duration.ofSeconds(30))
+                .build();
+        assertEquals(Optional.of("tenant_my_app_1"), membership.instanceId());
+
+        Properties props = group("g");
+        props.setProperty(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, "10000");
+        Properties applied = membership.apply(props);
+        assertEquals("tenant_my_app_1", applied.getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+        assertEquals("10000", applied.getProperty(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG));
+        assertNull(applied.getProperty(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG));
+
+        // consumers without a group (assign only) are left alone
+        assertNull(membership.apply(new Properties()).getProperty(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG));
+
+        assertThrows(IllegalArgumentException.class, () -> new GroupMembership.Builder().setInstanceId("").build());
+    }
+
+    // -- rebalance cost of a rolling restart, with the assignors of the Kafka client acting as group leader
+
+    private static final String TOPIC = "stream.meters.tenant";
+    private static final int PARTITIONS = 24;
+    private static final List<String> MEMBERS = Arrays.asList("a", "b", "c", "d");
+
+    private static Cluster cluster() {
+        List<PartitionInfo> partitions = IntStream.range(0, PARTITIONS)
+                .mapToObj(p -> new PartitionInfo(TOPIC, p, Node.noNode(), new Node[0], new Node[0]))
+                .collect(Collectors.toList());
+        return new Cluster("cluster", Collections.emptyList(), partitions, Collections.emptySet(), Collections.emptySet());
+    }
+
+    // one rebalance: returns the partitions every member was assigned, adds the partitions members had to give up to 'revoked'
+    private static Map<String, List<TopicPartition>> rebalance(ConsumerPartitionAssignor assignor, Map<String, List<TopicPartition>> owned, int[] revoked) {
+        boolean cooperative = assignor.supportedProtocols().contains(ConsumerPartitionAssignor.RebalanceProtocol.COOPERATIVE);
+        Map<String, ConsumerPartitionAssignor.Subscription> subscriptions = new TreeMap<>();
+        owned.forEach((member, partitions) -> {
+            // eager: every member gives up all of its partitions before joining
+            if(! cooperative) revoked[0] += partitions.size();
+            subscriptions.put(member, new ConsumerPartitionAssignor.Subscription(Collections.singletonList(TOPIC), null, cooperative ? partitions : Collections.emptyList()));
+        });
+
+        Map<String, List<TopicPartition>> assigned = new TreeMap<>();
+        assignor.assign(cluster(), new ConsumerPartitionAssignor.GroupSubscription(subscriptions)).groupAssignment()
+                .forEach((member, assignment) -> assigned.put(member, new ArrayList<>(assignment.partitions())));
+
+        if(cooperative) {
+            // cooperative: only the partitions moving away are revoked -- and handed out in a follow-up rebalance
+            boolean moved = false;
+            for(String member: owned.keySet()) {
+                List<TopicPartition> lost = new ArrayList<>(owned.get(member));
+                lost.removeAll(assigned.get(member));
+                revoked[0] += lost.size();
+                moved |= ! lost.isEmpty();
+            }
+            if(moved) return rebalance(assignor, assigned, revoked);
+        }
+        return assigned;
+    }
+
+    private static int rollingRestartCost(ConsumerPartitionAssignor assignor) {
+        int[] revoked = {0};
+        Map<String, List<TopicPartition>> owned = new TreeMap<>();
+        MEMBERS.forEach(m -> owned.put(m, Collections.emptyList()));
+        owned.putAll(rebalance(assignor, owned, new int[1]));
+
+        for(String restarting: MEMBERS) {
+            // the member leaves (its own partitions stop anyway) ...
+            owned.remove(restarting);
+            owned.putAll(rebalance(assignor, owned, revoked));
+            // ... and joins again
+            owned.put(restarting, Collections.emptyList());
+            owned.putAll(rebalance(assignor, owned, revoked));
+            assertEquals(PARTITIONS, owned.values().stream().mapToInt(List::size).sum());
+        }
+        return revoked[0];
+    }
+
+    @Test
+    public void cooperativeRebalancingStopsFewerPartitions(TestReporter testReporter) {
+        int eager = rollingRestartCost(new RangeAssignor());
+        int cooperative = rollingRestartCost(new CooperativeStickyAssignor());
+
+        testReporter.publishEntry("partitions revoked during rolling restart - eager (range)", Integer.toString(eager));
+        testReporter.publishEntry("partitions revoked during rolling restart - cooperative sticky", Integer.toString(cooperative));
+        assertTrue(cooperative * 3 < eager, "cooperative: " + cooperative + ", eager: " + eager);
+    }
+}
@@ -0,0 +1,110 @@
+import dsh.sdk.mqtt.KeyDictionary;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeyDictionaryTests {
+
+    @Test
+    public void keysRoundTripThroughIds() {
+        KeyDictionary dict = new KeyDictionary();
+        List<String> keys = Arrays.asList("tenant/site/building/floor/device/metric", "tenant/site", "tenant", "", "/", "//a/", "a/", "/a",
+                "ünïcödé/🙂/level", "tenant/site/building/floor/device/other");
+
+        for(int i = 0; i < keys.size(); i++) assertEquals(i, dict.intern(keys.get(i)), keys.get(i));
+        for(int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            byte[] padded = ("xx" + key + "yy").getBytes(StandardCharsets.UTF_8);
+            assertEquals(i, dict.idOf(key));
+            assertEquals(i, dict.idOf(padded, 2, key.getBytes(StandardCharsets.UTF_8).length));
+            assertEquals(i, dict.intern(key));
+            assertEquals(key, dict.key(i));
+        }
+        assertEquals(keys.size(), dict.size());
+        assertThrows(IllegalArgumentException.class, () -> dict.key(keys.size()));
+    }
+
+    @Test
+    public void prefixesAreNotKeysUntilInterned() {
+        KeyDictionary dict = new KeyDictionary();
+        dict.intern("a/b/c");
+        assertEquals(KeyDictionary.NOT_FOUND, dict.idOf("a/b"));
+        assertEquals(KeyDictionary.NOT_FOUND, dict.idOf("a/b/c/d"));
+        assertEquals(KeyDictionary.NOT_FOUND, dict.idOf("x"));
+        assertEquals(1, dict.intern("a/b"));
+        assertEquals(1, dict.idOf("a/b"));
+    }
+
+    @Test
+    public void levelsAreStoredOnce() {
+        KeyDictionary dict = new KeyDictionary();
+        for(int device = 0; device < 100; device++)
+            for(String metric: Arrays.asList("power", "voltage", "current"))
+                dict.intern("tenant/site/" + device + "/" + metric);
+
+        assertEquals(300, dict.size());
+        assertEquals(2 + 100 + 3, dict.levels());
+        assertEquals("tenant/site/42/voltage", dict.key(dict.idOf("tenant/site/42/voltage")));
+    }
+
+    @Test
+    public void concurrentInternsGiveUniqueIds() throws Exception {
+        KeyDictionary dict = new KeyDictionary();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<Map<String, Integer>>> results = new ArrayList<>();
+        for(int t = 0; t < 4; t++) {
+            results.add(pool.submit(() -> {
+                Map<String, Integer> ids = new HashMap<>();
+                for(int i = 0; i < 5000; i++) {
+                    String key = "t/" + (i % 50) + "/" + i;
+                    ids.put(key, dict.intern(key));
+                }
+                return ids;
+            }));
+        }
+        Map<String, Integer> all = new HashMap<>();
+        for(Future<Map<String, Integer>> f: results) {
+            f.get().forEach((key, id) -> assertEquals(id, all.merge(key, id, (a, b) -> { assertEquals(a, b); return a; })));
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(5000, dict.size());
+        assertEquals(5000, new HashSet<>(all.values()).size());
+        all.forEach((key, id) -> assertEquals(key, dict.key(id)));
+    }
+
+    private static long usedHeap() {
+        for(int i = 0; i < 3; i++) System.gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    @Test
+    @Tag("performance")
+    public void dictionaryFootprint(TestReporter testReporter) {
+        final int count = 1_000_000;
+        long base = usedHeap();
+        Map<String, Integer> map = new HashMap<>();
+        for(int i = 0; i < count; i++) map.put("tenant/site-" + (i % 10) + "/building-" + (i % 100) + "/floor-" + (i % 20) + "/device-" + (i / 7) + "/metric-" + (i % 7), i);
+        long mapBytes = usedHeap() - base;
+        map = null;
+
+        base = usedHeap();
+        KeyDictionary dict = new KeyDictionary();
+        for(int i = 0; i < count; i++) dict.intern("tenant/site-" + (i % 10) + "/building-" + (i % 100) + "/floor-" + (i % 20) + "/device-" + (i / 7) + "/metric-" + (i % 7));
+        long dictBytes = usedHeap() - base;
+
+        assertEquals(count, dict.size());
+        testReporter.publishEntry("HashMap<String, Integer> bytes per key", Long.toString(mapBytes / count));
+        testReporter.publishEntry("KeyDictionary bytes per key", Long.toString(dictBytes / count));
+    }
+}
@@ -0,0 +1,157 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.Envelope;
+import dsh.messages.KeyExtractor;
+import dsh.messages.Serdes;
+import dsh.sdk.kafka.consumers.KeyFilter;
+import dsh.sdk.kafka.consumers.ParallelDecodingConsumer;
+import dsh.sdk.mqtt.TopicFilter;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeyFilterTests {
+    private static final String TOPIC = "stream.test.tenant";
+
+    private static byte[] serializedKey(String key) {
+        return Serdes.serializeKey.apply(Envelope.KeyEnvelope.newBuilder()
+                .setHeader(Envelope.KeyHeader.newBuilder()
+                        .setIdentifier(Envelope.Identity.newBuilder().setTenant("tenant").setApplication("me"))
+                        .setQos(Envelope.QoS.RELIABLE)
+                        .setRetained(true))
+                .setKey(key)
+                .build());
+    }
+
+    private static ConsumerRecord<byte[], byte[]> raw(long offset, String key) {
+        return new ConsumerRecord<>(TOPIC, 0, offset, serializedKey(key),
+                Serdes.serializeValue.apply(Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8("value-" + offset)).build()));
+    }
+
+    private static boolean matches(String filter, String key) {
+        TopicFilter f = TopicFilter.of(filter);
+        byte[] padded = ("xx" + key + "yy").getBytes(StandardCharsets.UTF_8);
+        boolean onBytes = f.matches(padded, 2, key.getBytes(StandardCharsets.UTF_8).length);
+        assertEquals(onBytes, f.matches(key), "bytes and string matching disagree for " + filter + " on " + key);
+        return onBytes;
+    }
+
+    @Test
+    public void keyExtractorFindsKeyInSerializedEnvelope() {
+        for(String key: Arrays.asList("a/b/c", "", "ünïcödé/🙂/x", new String(new char[300]).replace('\0', 'k'))) {
+            byte[] bytes = serializedKey(key);
+            assertEquals(key, Serdes.deserializeKey.apply(bytes).getKey());
+            assertEquals(key.isEmpty() ? null : key, KeyExtractor.key(bytes));     // proto3 does not serialize an empty key
+        }
+    }
+
+    @Test
+    public void keyExtractorHandlesMissingAndMalformedKeys() {
+        assertEquals(KeyExtractor.NOT_FOUND, KeyExtractor.keyRange(null));
+        assertEquals(KeyExtractor.NOT_FOUND, KeyExtractor.keyRange(new byte[0]));
+        assertEquals(KeyExtractor.NOT_FOUND, KeyExtractor.keyRange(Serdes.serializeKey.apply(Envelope.KeyEnvelope.newBuilder().setHeader(Envelope.KeyHeader.newBuilder().setRetained(true)).build())));
+
+        byte[] bytes = serializedKey("some/key");
+        assertEquals(KeyExtractor.NOT_FOUND, KeyExtractor.keyRange(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertEquals(KeyExtractor.NOT_FOUND, KeyExtractor.keyRange(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF}));
+        assertEquals(KeyExtractor.NOT_FOUND, KeyExtractor.keyRange(new byte[]{0x12, 0x7F, 0x01}));
+    }
+
+    @Test
+    public void topicFilterWildcards() {
+        assertTrue(matches("a/b/c", "a/b/c"));
+        assertFalse(matches("a/b/c", "a/b"));
+        assertFalse(matches("a/b/c", "a/b/c/d"));
+        assertFalse(matches("a/b/c", "a/b/cc"));
+
+        assertTrue(matches("a/+/c", "a/b/c"));
+        assertTrue(matches("a/+/c", "a//c"));
+        assertFalse(matches("a/+/c", "a/b/d/c"));
+        assertTrue(matches("+/+", "a/b"));
+        assertFalse(matches("+", "a/b"));
+
+        assertTrue(matches("a/#", "a"));
+        assertTrue(matches("a/#", "a/b/c"));
+        assertFalse(matches("a/#", "ab/c"));
+        assertTrue(matches("#", "anything/at/all"));
+        assertTrue(matches("+/b/#", "x/b"));
+
+        assertTrue(matches("ünï/+/🙂", "ünï/x/🙂"));
+        assertFalse(matches("ünï/+/🙂", "uni/x/🙂"));
+    }
+
+    @Test
+    public void invalidTopicFiltersAreRejected() {
+        for(String filter: Arrays.asList("", "a/#/b", "a/b#", "a+/b", "a/+b"))
+            assertThrows(IllegalArgumentException.class, () -> TopicFilter.of(filter), filter);
+        assertThrows(IllegalArgumentException.class, () -> KeyFilter.of(Collections.emptyList()));
+    }
+
+    @Test
+    public void keyFilterMatchesOnSerializedKey() {
+        KeyFilter filter = KeyFilter.of("house/+/meter/#", "garden/light");
+        assertTrue(filter.test(serializedKey("house/1/meter")));
+        assertTrue(filter.test(serializedKey("house/1/meter/power")));
+        assertTrue(filter.test(serializedKey("garden/light")));
+        assertFalse(filter.test(serializedKey("garden/light/1")));
+        assertFalse(filter.test(serializedKey("house/meter")));
+        assertFalse(filter.test(null));
+        assertFalse(filter.test(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void decodingConsumerOnlyDecodesMatchingRecords() {
+        List<ConsumerRecord<byte[], byte[]>> list = new ArrayList<>();
+        for(int o = 0; o < 1000; o++) list.add(raw(o, (o % 3 == 0 ? "house/" : "street/") + o + "/meter"));
+        list.add(new ConsumerRecord<>(TOPIC, 0, 1000, serializedKey("street/x"), new byte[]{0, 1, 2, 3, 4, 5}));   // would fail to decode
+
+        ParallelDecodingConsumer consumer = new ParallelDecodingConsumer(new MockConsumer<>(OffsetResetStrategy.EARLIEST), ForkJoinPool.commonPool(), KeyFilter.of("house/#"));
+        Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> it = consumer.decode(new ConsumerRecords<>(Collections.singletonMap(new TopicPartition(TOPIC, 0), list)));
+
+        long expected = 0;
+        while(it.hasNext()) {
+            ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> r = it.next();
+            assertEquals(expected, r.offset());
+            assertEquals("house/" + expected + "/meter", r.key().getKey());
+            expected += 3;
+        }
+        assertEquals(1002, expected);
+    }
+
+    @Test
+    @Tag("performance")
+    public void keyFilterPerformance(TestReporter testReporter) {
+        List<ConsumerRecord<byte[], byte[]>> list = new ArrayList<>();
+        for(int o = 0; o < 50000; o++) list.add(raw(o, (o % 100 == 0 ? "house/" : "street/") + o + "/meter/power"));
+        ConsumerRecords<byte[], byte[]> records = new ConsumerRecords<>(Collections.singletonMap(new TopicPartition(TOPIC, 0), list));
+        KeyFilter filter = KeyFilter.of("house/+/meter/#");
+
+        long decodeAll = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            for(ConsumerRecord<byte[], byte[]> r: records) {
+                Envelope.KeyEnvelope key = Serdes.deserializeKey.apply(r.key());
+                Envelope.DataEnvelope value = Serdes.deserializeValue.apply(r.value());
+                if(key.getKey().startsWith("house/") && value == null) fail();
+            }
+        }).ops();
+        long filtered = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            for(ConsumerRecord<byte[], byte[]> r: records) {
+                if(filter.test(r.key()) && Serdes.deserializeValue.apply(r.value()) == null) fail();
+            }
+        }).ops();
+
+        testReporter.publishEntry("decode then filter (1% match) records/s", Long.toString(decodeAll * records.count()));
+        testReporter.publishEntry("filter on serialized key (1% match) records/s", Long.toString(filtered * records.count()));
+    }
+}
@@ -0,0 +1,97 @@
+import dsh.messages.DataStream;
+import dsh.sdk.metrics.LatencyHistogram;
+import dsh.sdk.metrics.LatencyMetrics;
+import dsh.sdk.metrics.LatencyRecordingInterceptor;
+import dsh.sdk.metrics.LatencyStampInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyMetricsTests {
+    private static final String TOPIC = "stream.weather.tenant";
+
+    private static ConsumerRecords<String, String> consumed(List<ProducerRecord<String, String>> sent) {
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        for(ProducerRecord<String, String> record: sent) {
+            records.add(new ConsumerRecord<>(record.topic(), 0, records.size(), 0L, TimestampType.CREATE_TIME, 0, 0,
+                    record.key(), record.value(), new RecordHeaders(record.headers().toArray()), Optional.empty()));
+        }
+        return new ConsumerRecords<>(Collections.singletonMap(new TopicPartition(TOPIC, 0), records));
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinBucketWidth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long micros = 1; micros <= 100_000; micros++) histogram.record(micros);
+        histogram.record(-5);
+
+        assertEquals(100_001, histogram.count());
+        for(double quantile: new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            double expected = quantile * 100_000;
+            assertEquals(expected, histogram.percentile(quantile), expected * 0.07, "p" + quantile);
+        }
+        assertEquals(100_000, histogram.max(), 100_000 * 0.07);
+        assertEquals(2, histogram.countBelow(2));       // -5 counts as 0, and 1
+        assertEquals(0, new LatencyHistogram().percentile(0.99));
+    }
+
+    @Test
+    public void interceptorsMeasureSampledRecordsPerStream() {
+        LatencyStampInterceptor<String, String> stamp = new LatencyStampInterceptor<>();
+        stamp.configure(Collections.singletonMap(LatencyStampInterceptor.SAMPLE_RATE_CONFIG, "0.1"));
+        List<ProducerRecord<String, String>> sent = new ArrayList<>();
+        for(int i = 0; i < 1000; i++) sent.add(stamp.onSend(new ProducerRecord<>(i % 2 == 0 ? TOPIC : "scratch.topic", "key", "value")));
+        assertEquals(100, sent.stream().filter(r -> r.headers().lastHeader(LatencyMetrics.HEADER) != null).count());
+
+        LatencyMetrics metrics = new LatencyMetrics();
+        LatencyRecordingInterceptor<String, String> recording = new LatencyRecordingInterceptor<>();
+        recording.configure(Collections.singletonMap(LatencyMetrics.CONFIG_KEY, metrics));
+        ConsumerRecords<String, String> records = consumed(sent);
+        assertSame(records, recording.onConsume(records));
+
+        // every 10th record is stamped, all of them on the stream topic; the other topic is not a stream
+        LatencyHistogram histogram = metrics.histogram(DataStream.of("stream.weather"));
+        assertEquals(100, histogram.count());
+        assertTrue(histogram.max() < TimeUnit.SECONDS.toMicros(10));
+        assertEquals(Collections.singleton(DataStream.of("stream.weather")), metrics.histograms().keySet());
+
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("# TYPE " + LatencyMetrics.METRIC + " histogram"));
+        assertTrue(scrape.contains(LatencyMetrics.METRIC + "_bucket{stream=\"stream.weather\",le=\"0.0005\"} "));
+        assertTrue(scrape.contains(LatencyMetrics.METRIC + "_bucket{stream=\"stream.weather\",le=\"+Inf\"} 100\n"));
+        assertTrue(scrape.contains(LatencyMetrics.METRIC + "_count{stream=\"stream.weather\"} 100\n"));
+
+        assertThrows(IllegalArgumentException.class, () -> stamp.configure(Collections.singletonMap(LatencyStampInterceptor.SAMPLE_RATE_CONFIG, "2")));
+    }
+
+    @Test
+    @Tag("performance")
+    public void interceptorOverhead(TestReporter testReporter) {
+        LatencyStampInterceptor<String, String> stamp = new LatencyStampInterceptor<>();
+        stamp.configure(Collections.emptyMap());
+        ProducerRecord<String, String> record = new ProducerRecord<>(TOPIC, "key", "value");
+        long sendOps = new Loop(5, TimeUnit.SECONDS).run(() -> stamp.onSend(record)).ops();
+
+        List<ProducerRecord<String, String>> sent = new ArrayList<>();
+        for(int i = 0; i < 1000; i++) sent.add(stamp.onSend(record));
+        ConsumerRecords<String, String> records = consumed(sent);
+        LatencyRecordingInterceptor<String, String> recording = new LatencyRecordingInterceptor<>();
+        recording.configure(Collections.singletonMap(LatencyMetrics.CONFIG_KEY, new LatencyMetrics()));
+        long consumeOps = new Loop(5, TimeUnit.SECONDS).run(() -> recording.onConsume(records)).ops();
+
+        testReporter.publishEntry("stamp interceptor at 1% sampling - records/s", Long.toString(sendOps));
+        testReporter.publishEntry("recording interceptor at 1% sampling - records/s", Long.toString(consumeOps * records.count()));
+    }
+}
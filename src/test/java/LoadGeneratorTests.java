@@ -0,0 +1,100 @@
+import dsh.messages.Envelope;
+import dsh.sdk.internal.AppId;
+import dsh.sdk.kafka.serdes.DataEnvelopeSerializer;
+import dsh.sdk.kafka.serdes.KeyEnvelopeSerializer;
+import dsh.sdk.tools.LoadGenerator;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadGeneratorTests {
+    private static final Envelope.Identity IDENTITY = AppId.from("tenant/load-generator").identity();
+
+    @Test
+    public void generatesKeysAndValuesAsConfigured() {
+        LoadGenerator generator = new LoadGenerator.Builder()
+                .setIdentity(IDENTITY)
+                .setFanOut(4, 25, 10)
+                .setZipfExponent(1.2)
+                .setPayloadSizes(LoadGenerator.SizeDistribution.uniform(50, 150))
+                .setReliableFraction(0.25)
+                .setRetainedFraction(0.1)
+                .setSeed(1)
+                .build();
+        assertEquals(1000, generator.keys());
+        assertEquals("l0-3/l1-24/l2-9", generator.key(999));
+
+        Map<String, Integer> counts = new HashMap<>();
+        int reliable = 0, retained = 0;
+        for(int i = 0; i < 20_000; i++) {
+            Envelope.KeyEnvelope key = generator.nextKey();
+            assertEquals(IDENTITY, key.getHeader().getIdentifier());
+            assertEquals(3, key.getKey().split("/").length);
+            counts.merge(key.getKey(), 1, Integer::sum);
+            if(key.getHeader().getQos() == Envelope.QoS.RELIABLE) reliable++;
+            if(key.getHeader().getRetained()) retained++;
+
+            int size = generator.nextValue().getPayload().size();
+            assertTrue(size >= 50 && size <= 150, "payload size " + size);
+        }
+        assertEquals(0.25, reliable / 20_000.0, 0.02);
+        assertEquals(0.1, retained / 20_000.0, 0.02);
+
+        // Zipf: the most popular key gets a large share, far above the uniform 1/1000
+        int top = counts.values().stream().max(Integer::compare).get();
+        assertTrue(top > 20_000 / 20, "most popular key only " + top);
+
+        // the same seed generates the same traffic
+        LoadGenerator again = new LoadGenerator.Builder().setIdentity(IDENTITY).setFanOut(4, 25, 10).setSeed(7).build();
+        LoadGenerator same = new LoadGenerator.Builder().setIdentity(IDENTITY).setFanOut(4, 25, 10).setSeed(7).build();
+        for(int i = 0; i < 100; i++) assertEquals(again.nextKey(), same.nextKey());
+
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator.Builder().build());
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator.Builder().setIdentity(IDENTITY).setFanOut(1 << 12, 1 << 12).build());
+    }
+
+    @Test
+    public void latencyCountsFromTheScheduledSendTime() {
+        LoadGenerator generator = new LoadGenerator.Builder().setIdentity(IDENTITY).setSeed(2).build();
+
+        // a producer that stalls for 100ms on its 200th record
+        MockProducer<Envelope.KeyEnvelope, Envelope.DataEnvelope> producer = new MockProducer<Envelope.KeyEnvelope, Envelope.DataEnvelope>(true, new KeyEnvelopeSerializer(), new DataEnvelopeSerializer()) {
+            private int sent = 0;
+
+            @Override
+            public synchronized Future<RecordMetadata> send(ProducerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record, Callback callback) {
+                if(++sent == 200) {
+                    try { TimeUnit.MILLISECONDS.sleep(100); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                }
+                return super.send(record, callback);
+            }
+        };
+        LoadGenerator.Result result = generator.run(producer, "stream.load.tenant", 1000, Duration.ofSeconds(1));
+
+        assertEquals(1000, result.sent());
+        assertEquals(1000, result.acknowledged());
+        assertEquals(0, result.errors());
+        assertEquals(1000, producer.history().size());
+        assertEquals(1000, result.latency().count());
+        assertTrue(result.elapsed().toMillis() >= 999);
+
+        // only one record took long to send, but the ~100 records scheduled during the stall waited for it
+        long slowService = result.serviceTime().count() - result.serviceTime().countBelow(50_000);
+        long slowLatency = result.latency().count() - result.latency().countBelow(50_000);
+        assertTrue(slowService <= 2, "slow sends " + slowService);
+        assertTrue(slowLatency >= 40, "late records " + slowLatency);
+        assertTrue(result.latency().max() >= 100_000 * 0.94);
+
+        assertThrows(IllegalArgumentException.class, () -> generator.run(producer, "stream.load.tenant", 0, Duration.ofSeconds(1)));
+    }
+}
@@ -0,0 +1,261 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.sdk.kafka.consumers.OffsetTracker;
+import dsh.sdk.kafka.consumers.ParallelStreamConsumer;
+import dsh.sdk.kafka.consumers.StreamSubscription;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelConsumerTests {
+    private static final String TOPIC = "stream.test.tenant";
+    private static final TopicPartition TP0 = new TopicPartition(TOPIC, 0);
+    private static final TopicPartition TP1 = new TopicPartition(TOPIC, 1);
+
+    private static ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record(TopicPartition tp, long offset, String key) {
+        return new ConsumerRecord<>(
+                tp.topic(), tp.partition(), offset,
+                Envelope.KeyEnvelope.newBuilder().setKey(key).build(),
+                Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8(Long.toString(offset))).build()
+        );
+    }
+
+    private static MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> mockConsumer(List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records) {
+        return mockConsumer(new MockConsumer<>(OffsetResetStrategy.EARLIEST), records);
+    }
+
+    private static MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> mockConsumer(MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer, List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records) {
+        consumer.schedulePollTask(() -> {
+            consumer.rebalance(Arrays.asList(TP0, TP1));
+            Map<TopicPartition, Long> beginning = new HashMap<>();
+            beginning.put(TP0, 0L);
+            beginning.put(TP1, 0L);
+            consumer.updateBeginningOffsets(beginning);
+            consumer.seek(TP0, 0L);
+            consumer.seek(TP1, 0L);
+            records.forEach(consumer::addRecord);
+        });
+        return consumer;
+    }
+
+    private static void await(long timeoutMs, java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(! condition.getAsBoolean()) {
+            if(System.currentTimeMillis() > deadline) fail("condition not met in time");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void offsetTrackerOnlyCommitsContiguousOffsets() {
+        OffsetTracker tracker = new OffsetTracker();
+        for(long o = 10; o < 15; o++) tracker.start(TP0, o);
+
+        tracker.complete(TP0, 11);
+        tracker.complete(TP0, 12);
+        assertTrue(tracker.committable(true).isEmpty());
+        assertEquals(5, tracker.inFlight());
+
+        tracker.complete(TP0, 10);
+        assertEquals(new OffsetAndMetadata(13), tracker.committable(true).get(TP0));
+        assertEquals(2, tracker.inFlight());
+        assertTrue(tracker.committable(true).isEmpty());
+        assertEquals(new OffsetAndMetadata(13), tracker.committable(false).get(TP0));
+    }
+
+    @Test
+    public void offsetTrackerWaitsForAllEntriesOfSharedOffset() {
+        // offset 11 is a batch of three envelopes
+        OffsetTracker tracker = new OffsetTracker();
+        tracker.start(TP0, 10);
+        for(int i = 0; i < 3; i++) tracker.start(TP0, 11);
+        tracker.start(TP0, 12);
+
+        tracker.complete(TP0, 11);
+        tracker.complete(TP0, 11);
+        tracker.complete(TP0, 10);
+        assertEquals(new OffsetAndMetadata(11), tracker.committable(true).get(TP0));
+        assertEquals(2, tracker.inFlight());
+
+        tracker.complete(TP0, 12);
+        assertTrue(tracker.committable(true).isEmpty());
+        tracker.complete(TP0, 11);
+        assertEquals(new OffsetAndMetadata(13), tracker.committable(true).get(TP0));
+        assertEquals(0, tracker.inFlight());
+    }
+
+    @Test
+    public void offsetTrackerIgnoresRemovedPartitions() {
+        OffsetTracker tracker = new OffsetTracker();
+        tracker.start(TP0, 0);
+        tracker.start(TP1, 0);
+        tracker.remove(Collections.singleton(TP0));
+        tracker.complete(TP0, 0);
+
+        assertEquals(1, tracker.inFlight());
+        assertFalse(tracker.committable(false).containsKey(TP0));
+    }
+
+    @Test
+    public void recordsWithSameKeyAreProcessedInOrder() throws Exception {
+        final int count = 2000;
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = new ArrayList<>();
+        for(int i = 0; i < count; i++) records.add(record(i % 2 == 0 ? TP0 : TP1, i / 2, "key/" + (i % 2) + "/" + (i % 17)));
+
+        Map<String, List<Long>> seen = new ConcurrentHashMap<>();
+        AtomicInteger processed = new AtomicInteger();
+        MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer = mockConsumer(records);
+
+        ParallelStreamConsumer runtime = new ParallelStreamConsumer.Builder(consumer)
+                .subscribe(Pattern.compile("stream\\.test\\..*"))
+                .setWorkers(8)
+                .setPollTimeout(Duration.ofMillis(1))
+                .setCommitInterval(Duration.ofMillis(1))
+                .setHandler(r -> {
+                    if(ThreadLocalRandom.current().nextInt(10) == 0) Thread.sleep(1);
+                    seen.computeIfAbsent(r.key().getKey(), k -> Collections.synchronizedList(new ArrayList<>())).add(r.offset());
+                    processed.incrementAndGet();
+                })
+                .build();
+
+        Thread t = new Thread(runtime);
+        t.start();
+        await(10_000, () -> processed.get() == count);
+        await(5_000, () -> new OffsetAndMetadata(count / 2).equals(consumer.committed(new HashSet<>(Arrays.asList(TP0, TP1))).get(TP0))
+                        && new OffsetAndMetadata(count / 2).equals(consumer.committed(new HashSet<>(Arrays.asList(TP0, TP1))).get(TP1)));
+        runtime.close();
+        t.join(10_000);
+
+        assertTrue(consumer.closed());
+        seen.values().forEach(offsets -> {
+            List<Long> sorted = new ArrayList<>(offsets);
+            Collections.sort(sorted);
+            assertEquals(sorted, offsets);
+        });
+    }
+
+    @Test
+    public void partitionsArePausedWhenWindowIsFull() throws Exception {
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = new ArrayList<>();
+        for(int i = 0; i < 20; i++) records.add(record(TP0, i, "key/" + i));
+
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger processed = new AtomicInteger();
+        MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer = mockConsumer(records);
+
+        ParallelStreamConsumer runtime = new ParallelStreamConsumer.Builder(consumer)
+                .subscribe(Collections.singletonList(TOPIC))
+                .setWorkers(4)
+                .setMaxInFlight(5)
+                .setPollTimeout(Duration.ofMillis(1))
+                .setCommitInterval(Duration.ofMillis(1))
+                .setHandler(r -> { release.await(10, TimeUnit.SECONDS); processed.incrementAndGet(); })
+                .build();
+
+        Thread t = new Thread(runtime);
+        t.start();
+        await(5_000, () -> ! consumer.paused().isEmpty());
+        assertTrue(runtime.inFlight() >= 5);
+
+        release.countDown();
+        await(5_000, () -> processed.get() == 20 && consumer.paused().isEmpty());
+        await(5_000, () -> new OffsetAndMetadata(20).equals(consumer.committed(Collections.singleton(TP0)).get(TP0)));
+        runtime.close();
+        t.join(10_000);
+    }
+
+    @Test
+    public void handlerErrorsDoNotBlockCommits() throws Exception {
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = new ArrayList<>();
+        for(int i = 0; i < 10; i++) records.add(record(TP1, i, "key"));
+
+        AtomicInteger errors = new AtomicInteger();
+        MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer = mockConsumer(records);
+
+        ParallelStreamConsumer runtime = new ParallelStreamConsumer.Builder(consumer)
+                .subscribe(Collections.singletonList(TOPIC))
+                .setPollTimeout(Duration.ofMillis(1))
+                .setCommitInterval(Duration.ofMillis(1))
+                .setHandler(r -> { if(r.offset() % 2 == 0) throw new IllegalStateException("boom"); })
+                .setErrorHandler((r, e) -> errors.incrementAndGet())
+                .build();
+
+        Thread t = new Thread(runtime);
+        t.start();
+        await(5_000, () -> errors.get() == 5 && runtime.inFlight() == 0);
+        await(5_000, () -> new OffsetAndMetadata(10).equals(consumer.committed(Collections.singleton(TP1)).get(TP1)));
+        runtime.close();
+        t.join(10_000);
+    }
+
+    @Test
+    public void streamSubscriptionWaitsForTheFirstTopic() throws Exception {
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = new ArrayList<>();
+        for(int i = 0; i < 10; i++) records.add(record(TP0, i, "key/" + i));
+
+        // like the kafka consumer: polling without subscription or assignment is an error
+        AtomicInteger polls = new AtomicInteger();
+        MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer = mockConsumer(new MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> poll(Duration timeout) {
+                if(subscription().isEmpty() && assignment().isEmpty()) throw new IllegalStateException("Consumer is not subscribed to any topics or assigned any partitions");
+                polls.incrementAndGet();
+                return super.poll(timeout);
+            }
+        }, records);
+
+        Properties contracts = new Properties();
+        contracts.put("datastream.stream.test.partitions", "2");
+        contracts.put("datastream.stream.test.read", "stream\\.test\\.[^.]*");
+        StreamSubscription subscription = new StreamSubscription(() -> StreamsConfigParser.of(contracts), Collections.singleton(DataStream.of("stream.test")), Duration.ZERO, Duration.ofHours(1));
+
+        AtomicInteger processed = new AtomicInteger();
+        ParallelStreamConsumer runtime = new ParallelStreamConsumer.Builder(consumer)
+                .subscribe(subscription)
+                .setPollTimeout(Duration.ofMillis(1))
+                .setCommitInterval(Duration.ofMillis(1))
+                .setHandler(r -> processed.incrementAndGet())
+                .build();
+
+        Thread t = new Thread(runtime);
+        t.start();
+        Thread.sleep(100);
+        assertTrue(t.isAlive());
+        assertEquals(0, polls.get());
+
+        consumer.updatePartitions(TOPIC, Arrays.asList(
+                new PartitionInfo(TOPIC, 0, Node.noNode(), new Node[0], new Node[0]),
+                new PartitionInfo(TOPIC, 1, Node.noNode(), new Node[0], new Node[0])));
+        await(5_000, () -> processed.get() == 10);
+        await(5_000, () -> new OffsetAndMetadata(10).equals(consumer.committed(Collections.singleton(TP0)).get(TP0)));
+        runtime.close();
+        t.join(10_000);
+        assertTrue(consumer.closed());
+    }
+
+    @Test
+    public void builderRejectsIncompleteConfig() {
+        MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        assertThrows(IllegalArgumentException.class, () -> new ParallelStreamConsumer.Builder(consumer).subscribe(Collections.singletonList(TOPIC)).build());
+        assertThrows(IllegalArgumentException.class, () -> new ParallelStreamConsumer.Builder(consumer).setHandler(r -> {}).build());
+    }
+}
@@ -0,0 +1,173 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.CompressionDictionary;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.messages.PayloadCodec;
+import dsh.messages.Serdes;
+import dsh.sdk.emulator.EmulatedClientFactory;
+import dsh.sdk.emulator.PlatformEmulator;
+import dsh.sdk.kafka.consumers.ParallelDecodingConsumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.RecordDeserializationException;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelDecodingTests {
+    private static final String TOPIC = "stream.test.tenant";
+
+    private static ConsumerRecord<byte[], byte[]> raw(int partition, long offset) {
+        return new ConsumerRecord<>(TOPIC, partition, offset,
+                Serdes.serializeKey.apply(Envelope.KeyEnvelope.newBuilder().setKey("house/" + partition + "/meter/" + offset).build()),
+                Serdes.serializeValue.apply(Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8("value-" + offset)).putTracing("span", "x").build()));
+    }
+
+    private static ConsumerRecords<byte[], byte[]> batch(int partitions, int perPartition) {
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> records = new LinkedHashMap<>();
+        for(int p = 0; p < partitions; p++) {
+            List<ConsumerRecord<byte[], byte[]>> list = new ArrayList<>();
+            for(int o = 0; o < perPartition; o++) list.add(raw(p, o));
+            records.put(new TopicPartition(TOPIC, p), list);
+        }
+        return new ConsumerRecords<>(records);
+    }
+
+    @Test
+    public void decodedRecordsKeepPartitionOrder() {
+        ParallelDecodingConsumer consumer = new ParallelDecodingConsumer(new MockConsumer<>(OffsetResetStrategy.EARLIEST));
+        Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> it = consumer.decode(batch(4, 1000));
+
+        Map<Integer, Long> lastOffset = new HashMap<>();
+        int count = 0;
+        while(it.hasNext()) {
+            ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> r = it.next();
+            assertEquals("house/" + r.partition() + "/meter/" + r.offset(), r.key().getKey());
+            assertEquals("value-" + r.offset(), r.value().getPayload().toStringUtf8());
+            assertEquals(r.offset(), lastOffset.getOrDefault(r.partition(), -1L) + 1);
+            lastOffset.put(r.partition(), r.offset());
+            count++;
+        }
+        assertEquals(4000, count);
+        assertThrows(NoSuchElementException.class, it::next);
+    }
+
+    @Test
+    public void undecodableRecordThrowsAtItsPosition() {
+        List<ConsumerRecord<byte[], byte[]>> list = new ArrayList<>(Arrays.asList(raw(0, 0), raw(0, 1)));
+        list.add(new ConsumerRecord<>(TOPIC, 0, 2, new byte[]{0, 1, 2, 3, 4, 5}, new byte[0]));
+        list.add(raw(0, 3));
+
+        ParallelDecodingConsumer consumer = new ParallelDecodingConsumer(new MockConsumer<>(OffsetResetStrategy.EARLIEST));
+        Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> it = consumer.decode(new ConsumerRecords<>(Collections.singletonMap(new TopicPartition(TOPIC, 0), list)));
+
+        assertEquals(0, it.next().offset());
+        assertEquals(1, it.next().offset());
+        RecordDeserializationException e = assertThrows(RecordDeserializationException.class, it::next);
+        assertEquals(2, e.offset());
+        assertEquals(3, it.next().offset());
+    }
+
+    @Test
+    public void pollDecodesFromUnderlyingConsumer() {
+        TopicPartition tp = new TopicPartition(TOPIC, 0);
+        MockConsumer<byte[], byte[]> mock = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        mock.assign(Collections.singletonList(tp));
+        mock.updateBeginningOffsets(Collections.singletonMap(tp, 0L));
+        for(int o = 0; o < 10; o++) mock.addRecord(raw(0, o));
+
+        try(ParallelDecodingConsumer consumer = new ParallelDecodingConsumer(mock)) {
+            Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> it = consumer.poll(Duration.ofMillis(10));
+            int count = 0;
+            while(it.hasNext()) { it.next(); count++; }
+            assertEquals(10, count);
+        }
+        assertTrue(mock.closed());
+    }
+
+    @Test
+    public void decompressesRecordsOfCompressingProducer() throws Exception {
+        List<byte[]> samples = new ArrayList<>();
+        for(int i = 0; i < 200; i++) samples.add(String.format("{\"meter\":\"house-%03d\",\"reading\":%d,\"unit\":\"kWh\",\"status\":\"OK\"}", i, i * 37).getBytes(StandardCharsets.UTF_8));
+        CompressionDictionary dictionary = CompressionDictionary.train(1, samples, 1024);
+        PayloadCodec codec = new PayloadCodec.Builder().addDictionary(dictionary).compressTopic(TOPIC, dictionary.id()).setMinPayloadSize(0).build();
+
+        try(PlatformEmulator emulator = new PlatformEmulator.Builder().setAppId("/tenant/meters").addStream(DataStream.of("stream.test"), 3).build()) {
+            EmulatedClientFactory clients = emulator.clientFactory(emulator.sdkBuilder().build());
+            Properties overrides = new Properties();
+            overrides.put(PayloadCodec.CONFIG_KEY, codec);
+            overrides.put("auto.offset.reset", "earliest");
+
+            Producer<Envelope.KeyEnvelope, Envelope.DataEnvelope> producer = clients.createStreamProducer(overrides);
+            for(int i = 0; i < samples.size(); i++) {
+                producer.send(new ProducerRecord<>(TOPIC, Envelope.KeyEnvelope.newBuilder().setKey("house/" + i).build(),
+                        Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFrom(samples.get(i))).build())).get();
+            }
+            producer.close();
+
+            ParallelDecodingConsumer consumer = clients.createParallelDecodingConsumer(overrides);
+            consumer.consumer().subscribe(Collections.singleton(TOPIC));
+            Map<String, ByteString> payloads = new HashMap<>();
+            long deadline = System.currentTimeMillis() + 5000;
+            while(payloads.size() < samples.size() && System.currentTimeMillis() < deadline) {
+                Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> it = consumer.poll(Duration.ofMillis(100));
+                while(it.hasNext()) {
+                    ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> r = it.next();
+                    assertFalse(PayloadCodec.isCompressed(r.value()));
+                    payloads.put(r.key().getKey(), r.value().getPayload());
+                }
+            }
+            consumer.close();
+            for(int i = 0; i < samples.size(); i++) assertEquals(ByteString.copyFrom(samples.get(i)), payloads.get("house/" + i));
+
+            // the records are stored compressed: without the dictionaries they can not be decoded
+            Properties other = new Properties();
+            other.put("group.id", "without-codec");
+            other.put("auto.offset.reset", "earliest");
+            ParallelDecodingConsumer plain = clients.createParallelDecodingConsumer(other);
+            plain.consumer().subscribe(Collections.singleton(TOPIC));
+            assertThrows(RecordDeserializationException.class, () -> {
+                long end = System.currentTimeMillis() + 5000;
+                while(System.currentTimeMillis() < end) {
+                    Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> it = plain.poll(Duration.ofMillis(100));
+                    while(it.hasNext()) it.next();
+                }
+            });
+            plain.close();
+        }
+    }
+
+    @Test
+    @Tag("performance")
+    public void parallelDecodingPerformance(TestReporter testReporter) {
+        ConsumerRecords<byte[], byte[]> records = batch(12, 5000);
+        ParallelDecodingConsumer consumer = new ParallelDecodingConsumer(new MockConsumer<>(OffsetResetStrategy.EARLIEST));
+
+        long sequential = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> decoded = new ArrayList<>(records.count());
+            for(ConsumerRecord<byte[], byte[]> r: records)
+                decoded.add(new ConsumerRecord<>(r.topic(), r.partition(), r.offset(), Serdes.deserializeKey.apply(r.key()), Serdes.deserializeValue.apply(r.value())));
+        }).ops();
+        long parallel = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            Iterator<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> it = consumer.decode(records);
+            while(it.hasNext()) it.next();
+        }).ops();
+
+        testReporter.publishEntry("sequential decoding (poll thread) records/s", Long.toString(sequential * records.count()));
+        testReporter.publishEntry("parallel decoding (" + ForkJoinPool.commonPool().getParallelism() + " workers) records/s", Long.toString(parallel * records.count()));
+    }
+}
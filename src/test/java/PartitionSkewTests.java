@@ -0,0 +1,73 @@
+import dsh.messages.DataStream;
+import dsh.sdk.streams.StreamsConfigParser;
+import dsh.sdk.tools.PartitionSkewAnalyzer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartitionSkewTests {
+
+    // two countries, one of them with most of the traffic; many cities and stations below them
+    private static PartitionSkewAnalyzer sample() {
+        PartitionSkewAnalyzer analyzer = new PartitionSkewAnalyzer();
+        for(int city = 0; city < 200; city++) {
+            for(int station = 0; station < 5; station++) {
+                analyzer.add("nl/city-" + city + "/station-" + station, 9);
+                analyzer.add("be/city-" + city + "/station-" + station);
+            }
+        }
+        return analyzer;
+    }
+
+    @Test
+    public void reportsTheLoadPerDepth() {
+        PartitionSkewAnalyzer analyzer = sample();
+        assertEquals(10_000, analyzer.total());
+        assertEquals(2000, analyzer.distinctKeys());
+        assertEquals(3, analyzer.maxDepth());
+
+        List<PartitionSkewAnalyzer.Report> reports = analyzer.analyze(24, 2);
+        assertEquals(4, reports.size());
+
+        // at depth 1 there are two partitioning keys: 22 partitions stay empty, one carries 90%
+        PartitionSkewAnalyzer.Report countries = reports.get(0);
+        assertEquals(1, countries.depth());
+        assertEquals(2, countries.distinctKeys());
+        assertEquals(22, countries.emptyPartitions());
+        assertEquals(9000, countries.max());
+        assertEquals(24 * 0.9, countries.skew(), 1e-9);
+        assertEquals("nl", countries.hotKeys().get(0).getKey());
+        assertEquals(9000L, countries.hotKeys().get(0).getValue());
+
+        PartitionSkewAnalyzer.Report cities = reports.get(1);
+        assertEquals(400, cities.distinctKeys());
+        assertTrue(cities.skew() < 2, "skew " + cities.skew());
+        assertEquals(PartitionSkewAnalyzer.WHOLE_KEY, reports.get(3).depth());
+        long sum = 0;
+        for(int partition = 0; partition < 24; partition++) sum += cities.load(partition);
+        assertEquals(10_000, sum);
+
+        // the shallowest depth within budget; when none is, the least skewed
+        assertEquals(2, PartitionSkewAnalyzer.recommend(reports, 2).depth());
+        PartitionSkewAnalyzer.Report least = PartitionSkewAnalyzer.recommend(reports, 1.0);
+        for(PartitionSkewAnalyzer.Report report: reports) assertTrue(least.skew() <= report.skew());
+    }
+
+    @Test
+    public void replaysTheStreamPartitioner() {
+        Properties props = new Properties();
+        props.put("datastream.stream.weather.partitioner", "topic-level-partitioner");
+        props.put("datastream.stream.weather.partitioningDepth", "2");
+        BiFunction<String, Integer, Integer> partitioner = StreamsConfigParser.of(props).findStream(DataStream.of("stream.weather")).get().partitioner();
+
+        PartitionSkewAnalyzer analyzer = new PartitionSkewAnalyzer().add("nl/amsterdam/1", 3).add("nl/amsterdam/2", 4).add("nl/utrecht/1", 5);
+        PartitionSkewAnalyzer.Report report = analyzer.analyze(12, 2, 5);
+        assertEquals(7, report.load(partitioner.apply("nl/amsterdam/1", 12)) - (partitioner.apply("nl/utrecht/1", 12).equals(partitioner.apply("nl/amsterdam/1", 12)) ? 5 : 0));
+        assertEquals("nl/amsterdam", report.hotKeys().get(0).getKey());
+        assertThrows(IllegalArgumentException.class, () -> analyzer.analyze(0, 1, 1));
+    }
+}
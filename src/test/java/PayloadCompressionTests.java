@@ -0,0 +1,140 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.CompressionDictionary;
+import dsh.messages.Envelope;
+import dsh.messages.PayloadCodec;
+import dsh.sdk.kafka.serdes.DataEnvelopeDeserializer;
+import dsh.sdk.kafka.serdes.DataEnvelopeSerializer;
+import dsh.sdk.tools.DictionaryTrainer;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.io.TempDir;
+import utils.Loop;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PayloadCompressionTests {
+    private static final String TOPIC = "stream.weather.tenant";
+
+    private static String json(Random random) {
+        return String.format("{\"station\":\"weather-station-%03d\",\"temperature\":%.1f,\"humidity\":%d,\"pressure\":%d,\"wind\":{\"speed\":%.1f,\"direction\":\"%s\"},\"status\":\"OK\"}",
+                random.nextInt(500), random.nextDouble() * 40 - 10, random.nextInt(100), 950 + random.nextInt(100),
+                random.nextDouble() * 30, new String[] { "N", "NE", "E", "SE", "S", "SW", "W", "NW" }[random.nextInt(8)]);
+    }
+
+    private static List<byte[]> samples(int count, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> samples = new ArrayList<>();
+        for(int i = 0; i < count; i++) samples.add(json(random).getBytes(StandardCharsets.UTF_8));
+        return samples;
+    }
+
+    private static Envelope.DataEnvelope value(byte[] payload) {
+        return Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFrom(payload)).putTracing("span", "abc").build();
+    }
+
+    private static Map<String, Object> config(PayloadCodec codec) { return Collections.singletonMap(PayloadCodec.CONFIG_KEY, codec); }
+
+    @Test
+    public void trainedDictionaryBeatsPlainDeflate() {
+        CompressionDictionary dictionary = CompressionDictionary.train(7, samples(1000, 1), 4096);
+        assertEquals(7, dictionary.id());
+        assertTrue(dictionary.size() <= 4096);
+
+        long[] totals = DictionaryTrainer.evaluate(samples(200, 2), dictionary);
+        assertTrue(totals[2] < totals[0] / 2, "dictionary should at least halve the payload: " + Arrays.toString(totals));
+        assertTrue(totals[2] < totals[1], "dictionary should beat plain deflate: " + Arrays.toString(totals));
+    }
+
+    @Test
+    public void serdesCompressAndDecompressTransparently() {
+        CompressionDictionary dictionary = CompressionDictionary.train(1, samples(500, 1), 4096);
+        PayloadCodec codec = new PayloadCodec.Builder().addDictionary(dictionary).compressTopic(TOPIC, 1).build();
+        DataEnvelopeSerializer serializer = new DataEnvelopeSerializer();
+        serializer.configure(config(codec), false);
+        DataEnvelopeDeserializer deserializer = new DataEnvelopeDeserializer();
+        deserializer.configure(config(codec), false);
+
+        for(byte[] sample: samples(50, 3)) {
+            Envelope.DataEnvelope value = value(sample);
+            byte[] bytes = serializer.serialize(TOPIC, value);
+            assertTrue(bytes.length < value.getSerializedSize());
+            assertEquals(value, deserializer.deserialize(TOPIC, bytes));
+        }
+
+        // other topics, small payloads and tombstones are left alone
+        Envelope.DataEnvelope value = value(samples(1, 4).get(0));
+        assertArrayEquals(value.toByteArray(), serializer.serialize("stream.other.tenant", value));
+        Envelope.DataEnvelope small = value("{}".getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals(small.toByteArray(), serializer.serialize(TOPIC, small));
+        assertNull(serializer.serialize(TOPIC, null));
+        assertNull(deserializer.deserialize(TOPIC, null));
+    }
+
+    @Test
+    public void deserializerNeedsTheDictionary() {
+        CompressionDictionary dictionary = CompressionDictionary.train(1, samples(500, 1), 4096);
+        Envelope.DataEnvelope value = value(samples(1, 2).get(0));
+        byte[] withDictionary = new PayloadCodec.Builder().addDictionary(dictionary).compressTopic(TOPIC, 1).build().compress(TOPIC, value).toByteArray();
+        byte[] withoutDictionary = new PayloadCodec.Builder().compressTopic(TOPIC, 0).build().compress(TOPIC, value).toByteArray();
+
+        DataEnvelopeDeserializer unconfigured = new DataEnvelopeDeserializer();
+        unconfigured.configure(Collections.emptyMap(), false);
+        assertEquals(value, unconfigured.deserialize(TOPIC, withoutDictionary));
+        assertThrows(SerializationException.class, () -> unconfigured.deserialize(TOPIC, withDictionary));
+
+        // a different dictionary under the same id corrupts the payload
+        CompressionDictionary other = new CompressionDictionary(1, "something else entirely".getBytes(StandardCharsets.UTF_8));
+        DataEnvelopeDeserializer wrong = new DataEnvelopeDeserializer();
+        wrong.configure(config(new PayloadCodec.Builder().addDictionary(other).build()), false);
+        assertThrows(SerializationException.class, () -> {
+            if(! value.equals(wrong.deserialize(TOPIC, withDictionary))) throw new SerializationException("payload differs");
+        });
+    }
+
+    @Test
+    public void builderValidatesDictionaries() {
+        assertThrows(IllegalArgumentException.class, () -> new PayloadCodec.Builder().compressTopic(TOPIC, 3).build());
+        assertThrows(IllegalArgumentException.class, () -> new CompressionDictionary(0, new byte[] { 1 }));
+        assertThrows(IllegalArgumentException.class, () -> new CompressionDictionary(1, new byte[CompressionDictionary.MAX_SIZE + 1]));
+        assertThrows(IllegalArgumentException.class, () -> CompressionDictionary.train(1, Collections.singletonList(new byte[] { 1, 2, 3 }), 1024));
+    }
+
+    @Test
+    public void trainerToolWritesDictionary(@TempDir Path dir) throws Exception {
+        Path samples = dir.resolve("samples.jsonl");
+        Files.write(samples, samples(300, 1).stream().map(b -> new String(b, StandardCharsets.UTF_8)).collect(Collectors.toList()));
+        Path out = dir.resolve("weather.dict");
+
+        DictionaryTrainer.main(new String[] { "--id", "5", "--size", "2048", "--lines", "--out", out.toString(), samples.toString() });
+        CompressionDictionary dictionary = CompressionDictionary.load(5, out);
+        assertTrue(dictionary.size() > 0 && dictionary.size() <= 2048);
+    }
+
+    @Test
+    @Tag("performance")
+    public void compressionPerformance(TestReporter testReporter) {
+        CompressionDictionary dictionary = CompressionDictionary.train(1, samples(2000, 1), 8192);
+        List<byte[]> payloads = samples(1000, 2);
+        long[] totals = DictionaryTrainer.evaluate(payloads, dictionary);
+
+        PayloadCodec codec = new PayloadCodec.Builder().addDictionary(dictionary).compressTopic(TOPIC, 1).build();
+        List<Envelope.DataEnvelope> values = payloads.stream().map(PayloadCompressionTests::value).collect(Collectors.toList());
+        List<Envelope.DataEnvelope> compressed = values.stream().map(v -> codec.compress(TOPIC, v)).collect(Collectors.toList());
+        int[] i = { 0 };
+        long compressOps = new Loop(5, TimeUnit.SECONDS).run(() -> codec.compress(TOPIC, values.get(i[0]++ % values.size()))).ops();
+        long decompressOps = new Loop(5, TimeUnit.SECONDS).run(() -> codec.decompress(compressed.get(i[0]++ % compressed.size()))).ops();
+
+        testReporter.publishEntry("payload bytes - original / deflate / deflate with dictionary", totals[0] + " / " + totals[1] + " / " + totals[2]);
+        testReporter.publishEntry("compress with dictionary - ops/s", Long.toString(compressOps));
+        testReporter.publishEntry("decompress with dictionary - ops/s", Long.toString(decompressOps));
+    }
+}
@@ -0,0 +1,186 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.sdk.Sdk;
+import dsh.sdk.emulator.EmulatedClientFactory;
+import dsh.sdk.emulator.EmulatedConsumer;
+import dsh.sdk.emulator.EmulatedProducer;
+import dsh.sdk.emulator.PlatformEmulator;
+import dsh.sdk.emulator.TopicLog;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileInputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlatformEmulatorTests {
+    private static final DataStream WEATHER = DataStream.of("stream.weather");
+    private static final String TOPIC = "stream.weather.tenant";
+
+    private static Envelope.KeyEnvelope key(String key) {
+        return Envelope.KeyEnvelope.newBuilder().setKey(key).setHeader(Envelope.KeyHeader.newBuilder().setQos(Envelope.QoS.RELIABLE)).build();
+    }
+
+    private static Envelope.DataEnvelope value(int i) {
+        return Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8("value-" + i)).build();
+    }
+
+    private static <K, V> List<ConsumerRecord<K, V>> pollAll(Consumer<K, V> consumer, int expected) {
+        List<ConsumerRecord<K, V>> records = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(records.size() < expected && System.currentTimeMillis() < deadline) {
+            for(ConsumerRecord<K, V> record: consumer.poll(Duration.ofMillis(100))) records.add(record);
+        }
+        return records;
+    }
+
+    private static Properties props(String key, String value) {
+        Properties props = new Properties();
+        props.setProperty(key, value);
+        return props;
+    }
+
+    @Test
+    public void sdkRunsEndToEndAgainstTheEmulator() throws Exception {
+        try(PlatformEmulator emulator = new PlatformEmulator.Builder()
+                .setAppId("/tenant/benchmark")
+                .addStream(WEATHER, 12, 1)
+                .build()) {
+            assertEquals(Collections.singleton(TOPIC), emulator.log().topics());
+
+            // the full platform handshake: DN, certificate signing and kafka configuration
+            Sdk sdk = new Sdk.Builder().fromEnv(emulator.environment()).build();
+            assertEquals("tenant", sdk.getApp().root());
+            EmulatedClientFactory clients = emulator.clientFactory(sdk);
+            assertEquals(1, emulator.signedCertificates());
+
+            KeyStore keystore = KeyStore.getInstance("JKS");
+            try(FileInputStream in = new FileInputStream(sdk.getPki().getKeystoreFile())) { keystore.load(in, sdk.getPki().getPassword().toCharArray()); }
+            X509Certificate certificate = (X509Certificate) keystore.getCertificateChain("key-alias")[0];
+            certificate.verify(emulator.caCertificate().getPublicKey());
+            assertEquals(certificate.getPublicKey(), keystore.getCertificate("server").getPublicKey());
+
+            // produce through the stream partitioner, and consume from the stream in a shared consumer group
+            StreamsConfigParser parser = StreamsConfigParser.of(sdk);
+            Producer<Envelope.KeyEnvelope, Envelope.DataEnvelope> producer = clients.createStreamProducer(null);
+            for(int i = 0; i < 100; i++) producer.send(new ProducerRecord<>(TOPIC, key("city-" + (i % 7) + "/station-" + i), value(i))).get();
+            producer.close();
+            assertEquals(100, emulator.log().size(TOPIC));
+
+            Consumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer = clients.createSharedStreamConsumer(props("auto.offset.reset", "earliest"));
+            consumer.subscribe(parser.subscriptionPatternFor(WEATHER));
+            List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = pollAll(consumer, 100);
+            assertEquals(100, records.size());
+            for(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record: records) {
+                assertEquals(parser.findStream(WEATHER).get().partitioner().apply(record.key().getKey(), 12), record.partition());
+                assertTrue(record.value().getPayload().toStringUtf8().startsWith("value-"));
+            }
+            consumer.commitSync();
+            consumer.close();
+
+            // the next member of the group resumes at the committed offsets
+            Consumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> next = clients.createSharedStreamConsumer(props("auto.offset.reset", "earliest"));
+            next.subscribe(Collections.singleton(TOPIC));
+            assertTrue(next.poll(Duration.ofMillis(200)).isEmpty());
+            assertEquals(12, next.assignment().size());
+            next.close();
+
+            // the kafka configuration is only served with the secret token
+            Map<String, String> env = new HashMap<>(emulator.environment());
+            env.put("DSH_SECRET_TOKEN", "wrong");
+            assertThrows(RuntimeException.class, () -> new Sdk.Builder().fromEnv(env).build().getProps());
+        }
+    }
+
+    @Test
+    public void consumerGroupsRebalanceAndTransactionsCommit() {
+        TopicLog log = new TopicLog(1);
+        log.createTopic("in", 4);
+        Properties producerProps = new Properties();
+        producerProps.setProperty("bootstrap.servers", PlatformEmulator.BOOTSTRAP_SERVERS);
+        producerProps.setProperty("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        producerProps.setProperty("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        Properties consumerProps = new Properties();
+        consumerProps.setProperty("bootstrap.servers", PlatformEmulator.BOOTSTRAP_SERVERS);
+        consumerProps.setProperty("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        consumerProps.setProperty("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        consumerProps.setProperty("group.id", "group");
+        consumerProps.setProperty("auto.offset.reset", "earliest");
+        consumerProps.setProperty("enable.auto.commit", "false");
+
+        // two members share the partitions; when one leaves, the other takes over
+        List<Collection<TopicPartition>> assigned = new ArrayList<>();
+        Consumer<String, String> first = new EmulatedConsumer<>(log, consumerProps);
+        Consumer<String, String> second = new EmulatedConsumer<>(log, consumerProps);
+        first.subscribe(Collections.singleton("in"), new ConsumerRebalanceListener() {
+            @Override public void onPartitionsRevoked(Collection<TopicPartition> partitions) { }
+            @Override public void onPartitionsAssigned(Collection<TopicPartition> partitions) { assigned.add(partitions); }
+        });
+        second.subscribe(Collections.singleton("in"));
+        first.poll(Duration.ZERO);
+        second.poll(Duration.ZERO);
+        assertEquals(2, first.assignment().size());
+        assertEquals(2, second.assignment().size());
+        second.close();
+        first.poll(Duration.ZERO);
+        assertEquals(4, first.assignment().size());
+        assertEquals(4, assigned.get(assigned.size() - 1).size());
+
+        // a transaction only becomes visible to read_committed consumers when it commits; aborted records are skipped
+        Properties transactional = new Properties();
+        transactional.putAll(producerProps);
+        transactional.setProperty("transactional.id", "tx");
+        Producer<String, String> producer = new EmulatedProducer<>(log, transactional);
+        producer.initTransactions();
+        producer.beginTransaction();
+        producer.send(new ProducerRecord<>("out", 0, "a", "aborted"));
+        producer.abortTransaction();
+        producer.beginTransaction();
+        producer.send(new ProducerRecord<>("out", 0, "b", "committed"));
+        producer.sendOffsetsToTransaction(Collections.singletonMap(new TopicPartition("in", 0), new OffsetAndMetadata(42)), first.groupMetadata());
+
+        Properties readCommitted = new Properties();
+        readCommitted.putAll(consumerProps);
+        readCommitted.setProperty("isolation.level", "read_committed");
+        Consumer<String, String> reader = new EmulatedConsumer<>(log, readCommitted);
+        reader.assign(Collections.singleton(new TopicPartition("out", 0)));
+        assertTrue(reader.poll(Duration.ofMillis(50)).isEmpty());
+        assertEquals(1, reader.endOffsets(reader.assignment()).get(new TopicPartition("out", 0)));
+        assertNull(log.committed("group", new TopicPartition("in", 0)));
+
+        producer.commitTransaction();
+        ConsumerRecords<String, String> records = reader.poll(Duration.ofMillis(500));
+        assertEquals(1, records.count());
+        assertEquals("committed", records.iterator().next().value());
+        assertEquals(1, records.iterator().next().offset());
+        assertEquals(42, log.committed("group", new TopicPartition("in", 0)).offset());
+
+        // read_uncommitted sees everything that was appended
+        Consumer<String, String> all = new EmulatedConsumer<>(log, consumerProps);
+        all.assign(Collections.singleton(new TopicPartition("out", 0)));
+        assertEquals(2, pollAll(all, 2).size());
+
+        // a new producer with the same transactional id fences the old one
+        Producer<String, String> successor = new EmulatedProducer<>(log, transactional);
+        successor.initTransactions();
+        assertThrows(ProducerFencedException.class, producer::beginTransaction);
+
+        // producing to an unknown topic creates it with the default number of partitions
+        assertEquals(1, successor.partitionsFor("new-topic").size());
+        assertTrue(log.topics().contains("new-topic"));
+    }
+}
@@ -0,0 +1,267 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.CompressionDictionary;
+import dsh.messages.Envelope;
+import dsh.messages.KeyExtractor;
+import dsh.messages.PayloadCodec;
+import dsh.messages.Serdes;
+import dsh.messages.ValueExtractor;
+import dsh.sdk.retained.RetainedValueStore;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.io.TempDir;
+import utils.Loop;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetainedValueStoreTests {
+    private static final String TOPIC = "stream.test.tenant";
+
+    private static Envelope.KeyEnvelope key(String key, boolean retained) {
+        return Envelope.KeyEnvelope.newBuilder()
+                .setHeader(Envelope.KeyHeader.newBuilder().setRetained(retained).setQos(Envelope.QoS.RELIABLE))
+                .setKey(key)
+                .build();
+    }
+
+    private static Envelope.DataEnvelope value(String payload) {
+        return Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8(payload)).putTracing("span", "x").build();
+    }
+
+    private static final Envelope.DataEnvelope DELETE = Envelope.DataEnvelope.newBuilder().putTracing("span", "x").build();
+
+    private static ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record(long offset, String key, boolean retained, Envelope.DataEnvelope value) {
+        return new ConsumerRecord<>(TOPIC, 0, offset, key(key, retained), value);
+    }
+
+    private static ConsumerRecord<byte[], byte[]> raw(ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record) {
+        return new ConsumerRecord<>(record.topic(), record.partition(), record.offset(),
+                Serdes.serializeKey.apply(record.key()), record.value() == null ? null : Serdes.serializeValue.apply(record.value()));
+    }
+
+    @Test
+    public void extractorsReadRetainedFlagAndPayload() {
+        assertTrue(KeyExtractor.retained(Serdes.serializeKey.apply(key("a", true))));
+        assertFalse(KeyExtractor.retained(Serdes.serializeKey.apply(key("a", false))));
+        assertFalse(KeyExtractor.retained(null));
+
+        assertFalse(ValueExtractor.isTombstone(Serdes.serializeValue.apply(value("x"))));
+        assertFalse(ValueExtractor.isTombstone(Serdes.serializeValue.apply(Envelope.DataEnvelope.newBuilder().setPayload(ByteString.EMPTY).build())));
+        assertTrue(ValueExtractor.isTombstone(Serdes.serializeValue.apply(DELETE)));
+        assertTrue(ValueExtractor.isTombstone(null));
+
+        byte[] serialized = Serdes.serializeValue.apply(value("x"));
+        byte[] truncated = Arrays.copyOf(serialized, serialized.length - 1);
+        assertFalse(ValueExtractor.isTombstone(truncated));
+        assertTrue(ValueExtractor.isMalformed(truncated));
+        assertFalse(ValueExtractor.isMalformed(serialized));
+        assertFalse(ValueExtractor.isMalformed(Serdes.serializeValue.apply(DELETE)));
+    }
+
+    @Test
+    public void compressedRawValuesAreDecompressedOnLookup() {
+        List<byte[]> samples = new ArrayList<>();
+        for(int i = 0; i < 100; i++) samples.add(("{\"meter\":" + i + ",\"unit\":\"kWh\",\"status\":\"OK\",\"house\":\"house-" + i + "\"}").getBytes(StandardCharsets.UTF_8));
+        CompressionDictionary dictionary = CompressionDictionary.train(2, samples, 1024);
+        PayloadCodec codec = new PayloadCodec.Builder().addDictionary(dictionary).compressTopic(TOPIC, dictionary.id()).setMinPayloadSize(0).build();
+
+        Envelope.DataEnvelope value = value(new String(samples.get(7), StandardCharsets.UTF_8));
+        Envelope.DataEnvelope compressed = codec.compress(TOPIC, value);
+        assertTrue(PayloadCodec.isCompressed(compressed));
+
+        RetainedValueStore store = new RetainedValueStore.Builder().setPayloadCodec(codec).build();
+        assertTrue(store.applyRaw(raw(record(0, "house/7/meter", true, compressed))));
+        assertEquals(value, store.get("house/7/meter").get());
+        assertEquals(Collections.singletonMap("house/7/meter", value), store.match("house/+/meter"));
+    }
+
+    @Test
+    public void malformedRawValuesDoNotDeleteKeys() {
+        RetainedValueStore store = new RetainedValueStore.Builder().build();
+        assertTrue(store.applyRaw(raw(record(0, "house/1/meter", true, value("1")))));
+
+        byte[] serialized = Serdes.serializeValue.apply(value("2"));
+        ConsumerRecord<byte[], byte[]> corrupt = new ConsumerRecord<>(TOPIC, 0, 1L, Serdes.serializeKey.apply(key("house/1/meter", true)), Arrays.copyOf(serialized, serialized.length - 3));
+        assertFalse(store.applyRaw(corrupt));
+        assertEquals(1, store.size());
+        assertEquals(value("1"), store.get("house/1/meter").get());
+
+        assertTrue(store.applyRaw(raw(record(2, "house/1/meter", true, DELETE))));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void storeKeepsLastRetainedValueAndAppliesTombstones() {
+        RetainedValueStore store = new RetainedValueStore.Builder().build();
+        assertTrue(store.apply(record(0, "house/1/meter", true, value("1"))));
+        assertTrue(store.apply(record(1, "house/1/meter", true, value("2"))));
+        assertFalse(store.apply(record(2, "house/1/meter", false, value("3"))));
+        assertTrue(store.apply(record(3, "house/2/meter", true, value("4"))));
+
+        assertEquals(2, store.size());
+        assertEquals(value("2"), store.get("house/1/meter").orElse(null));
+        assertEquals(value("4"), store.get("house/2/meter").orElse(null));
+
+        assertTrue(store.apply(record(4, "house/1/meter", true, DELETE)));
+        assertTrue(store.apply(record(5, "house/2/meter", true, null)));
+        assertFalse(store.apply(record(6, "house/3/meter", true, DELETE)));
+        assertEquals(0, store.size());
+        assertFalse(store.get("house/1/meter").isPresent());
+    }
+
+    @Test
+    public void rawRecordsGiveSameResultAsDeserializedRecords() {
+        RetainedValueStore typed = new RetainedValueStore.Builder().build();
+        RetainedValueStore raw = new RetainedValueStore.Builder().build();
+        Random rnd = new Random(3);
+
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> records = new ArrayList<>();
+        for(int o = 0; o < 5000; o++) {
+            String key = "house/" + rnd.nextInt(50) + "/meter/" + rnd.nextInt(10);
+            records.add(record(o, key, rnd.nextInt(5) > 0, rnd.nextInt(4) == 0 ? DELETE : value(Integer.toString(o))));
+        }
+        List<ConsumerRecord<byte[], byte[]>> rawRecords = new ArrayList<>();
+        records.forEach(r -> rawRecords.add(raw(r)));
+        TopicPartition tp = new TopicPartition(TOPIC, 0);
+
+        assertEquals(typed.apply(new ConsumerRecords<>(Collections.singletonMap(tp, records))),
+                     raw.applyRaw(new ConsumerRecords<>(Collections.singletonMap(tp, rawRecords))));
+        assertEquals(typed.size(), raw.size());
+        assertEquals(typed.match("#"), raw.match("#"));
+    }
+
+    @Test
+    public void storeMatchesModelUnderRandomUpdatesAndCompaction() {
+        RetainedValueStore store = new RetainedValueStore.Builder().setSlabSize(4096).setRetainedOnly(false).build();
+        Map<String, Envelope.DataEnvelope> model = new HashMap<>();
+        Random rnd = new Random(11);
+
+        for(int i = 0; i < 50_000; i++) {
+            String key = "k/" + rnd.nextInt(2000);
+            if(rnd.nextInt(3) == 0) assertEquals(model.remove(key) != null, store.remove(key));
+            else {
+                Envelope.DataEnvelope v = value(new String(new char[rnd.nextInt(100)]).replace('\0', 'v') + i);
+                model.put(key, v);
+                store.put(key, v);
+            }
+        }
+
+        assertEquals(model.size(), store.size());
+        for(int k = 0; k < 2000; k++) assertEquals(Optional.ofNullable(model.get("k/" + k)), store.get("k/" + k));
+        assertEquals(model, store.match("k/+"));
+        assertTrue(store.offHeapBytes() < 1_000_000, "garbage is reclaimed: " + store.offHeapBytes());
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.offHeapBytes());
+    }
+
+    @Test
+    public void wildcardLookups() {
+        RetainedValueStore store = new RetainedValueStore.Builder().build();
+        for(String key: Arrays.asList("house/1/meter", "house/1/meter/power", "house/2/meter", "house/2/light", "garden/light"))
+            store.apply(record(0, key, true, value(key)));
+
+        assertEquals(new HashSet<>(Arrays.asList("house/1/meter", "house/2/meter")), store.match("house/+/meter").keySet());
+        assertEquals(new HashSet<>(Arrays.asList("house/1/meter", "house/1/meter/power")), store.match("house/1/meter/#").keySet());
+        assertEquals(Collections.singleton("house/2/light"), store.match("+/+/light").keySet());
+        assertEquals(Collections.singleton("garden/light"), store.match("+/light").keySet());
+        assertEquals(Collections.singletonMap("garden/light", value("garden/light")), store.match("garden/light"));
+        assertEquals(5, store.match("#").size());
+        assertThrows(IllegalArgumentException.class, () -> store.match("house/#/meter"));
+    }
+
+    @Test
+    public void snapshotRestoresContentsAndOffsets(@TempDir Path dir) throws Exception {
+        RetainedValueStore store = new RetainedValueStore.Builder().setSlabSize(4096).build();
+        for(int o = 0; o < 3000; o++) store.apply(new ConsumerRecord<>(TOPIC, o % 3, o / 3, key("house/" + (o % 500), true), value("v" + o)));
+        store.apply(new ConsumerRecord<>(TOPIC, 0, 1000, key("house/0", true), DELETE));
+
+        Path file = dir.resolve("retained.snapshot");
+        store.snapshot(file);
+        store.snapshot(file);   // replaces the existing snapshot
+
+        RetainedValueStore restored = new RetainedValueStore.Builder().setSlabSize(4096).restore(file);
+        assertEquals(store.size(), restored.size());
+        assertEquals(store.match("#"), restored.match("#"));
+        assertEquals(store.offsets(), restored.offsets());
+        assertEquals(1001L, restored.offsets().get(new TopicPartition(TOPIC, 0)));
+
+        // the restored store keeps working on top of the mapped entries
+        for(int i = 0; i < 5000; i++) restored.put("house/" + (i % 500), value("new" + i));
+        assertTrue(restored.remove("house/1"));
+        assertEquals(value("new4999"), restored.get("house/499").orElse(null));
+        assertFalse(restored.get("house/1").isPresent());
+
+        RetainedValueStore empty = new RetainedValueStore.Builder().build();
+        empty.snapshot(file);
+        assertEquals(0, new RetainedValueStore.Builder().restore(file).size());
+
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        assertThrows(IOException.class, () -> new RetainedValueStore.Builder().restore(file));
+    }
+
+    @Test
+    public void catchUpOnlyReplaysFromSavedOffsets(@TempDir Path dir) throws Exception {
+        TopicPartition tp0 = new TopicPartition(TOPIC, 0);
+        TopicPartition tp1 = new TopicPartition(TOPIC, 1);
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> history = new ArrayList<>();
+        for(int o = 0; o < 100; o++) {
+            history.add(new ConsumerRecord<>(TOPIC, 0, o, key("p0/" + (o % 10), true), value("v" + o)));
+            history.add(new ConsumerRecord<>(TOPIC, 1, o, key("p1/" + (o % 10), true), value("v" + o)));
+        }
+
+        // snapshot after the first half of partition 0, partition 1 was never seen
+        RetainedValueStore store = new RetainedValueStore.Builder().build();
+        history.stream().filter(r -> r.partition() == 0 && r.offset() < 50).forEach(store::apply);
+        Path file = dir.resolve("retained.snapshot");
+        store.snapshot(file);
+
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.updateBeginningOffsets(new HashMap<TopicPartition, Long>() {{ put(tp0, 0L); put(tp1, 0L); }});
+        consumer.updateEndOffsets(new HashMap<TopicPartition, Long>() {{ put(tp0, 100L); put(tp1, 100L); }});
+        consumer.schedulePollTask(() -> history.forEach(r -> consumer.addRecord(raw(r))));
+
+        RetainedValueStore restored = new RetainedValueStore.Builder().restore(file);
+        assertTrue(restored.catchUp(consumer, Arrays.asList(tp0, tp1), Duration.ofSeconds(10)));
+
+        assertEquals(20, restored.size());
+        assertEquals(value("v99"), restored.get("p0/9").orElse(null));
+        assertEquals(value("v90"), restored.get("p1/0").orElse(null));
+        assertEquals(100L, restored.offsets().get(tp0));
+        assertEquals(100L, restored.offsets().get(tp1));
+    }
+
+    @Test
+    @Tag("performance")
+    public void storePerformance(TestReporter testReporter) {
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        for(int o = 0; o < 100_000; o++) records.add(raw(record(o, "house/" + (o % 20_000) + "/meter", true, value("value-" + o))));
+        ConsumerRecords<byte[], byte[]> batch = new ConsumerRecords<>(Collections.singletonMap(new TopicPartition(TOPIC, 0), records));
+
+        RetainedValueStore store = new RetainedValueStore.Builder().build();
+        Map<String, Envelope.DataEnvelope> heapStore = new HashMap<>();
+
+        long offHeap = new Loop(5, TimeUnit.SECONDS).run(() -> store.applyRaw(batch)).ops();
+        long onHeap = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            for(ConsumerRecord<byte[], byte[]> r: batch) heapStore.put(Serdes.deserializeKey.apply(r.key()).getKey(), Serdes.deserializeValue.apply(r.value()));
+        }).ops();
+
+        testReporter.publishEntry("RetainedValueStore.applyRaw records/s", Long.toString(offHeap * batch.count()));
+        testReporter.publishEntry("HashMap<String, DataEnvelope> (deserialized) records/s", Long.toString(onHeap * batch.count()));
+        testReporter.publishEntry("RetainedValueStore off-heap bytes for 20k keys", Long.toString(store.offHeapBytes()));
+    }
+}
@@ -22,6 +22,7 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SdkTest {
@@ -99,6 +100,24 @@ public class SdkTest {
         assertTrue(Arrays.asList("mytenant", "subgroup").containsAll(sdk.getApp().groups()));
     }
 
+    @Test
+    public void createWithPkiServingSslEndpointShouldWork() {
+        pki.setTenant("mytenant");
+        // with an SSL endpoint the IP address is looked up next to the DN request
+        Sdk sdk = new Sdk(new PkiProviderPikachu(
+                pki.connectionString(),
+                TEST_CA,
+                "****************",
+                AppId.from("/mytenant/subgroup/myapp"),
+                "mytenant_subgroup_myapp.00000000-0000-0000-0000-000000000000",
+                "myapp.subgroup.mytenant.localhost.net",
+                true
+        ));
+
+        assertEquals("myapp", sdk.getApp().name());
+        assertEquals("SSL", sdk.getProps().getProperty("security.protocol"));
+    }
+
     private static Properties platformProps() {
         Properties props = new Properties();
         props.put("bootstrap.servers", "broker-0.kafka.marathon.mesos:9091,broker-1.kafka.marathon.mesos:9091,broker-2.kafka.marathon.mesos:9091");
@@ -129,4 +148,10 @@ public class SdkTest {
         assertEquals("SSL", parser.kafkaProducerProperties(null).get(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG));
         assertEquals("SSL", parser.kafkaConsumerProperties(null).get(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG));
     }
+
+    @Test
+    public void readyWithoutWarmup() {
+        assertTrue(new Sdk(new PkiProviderStatic(platformProps())).readiness().get());
+        assertThrows(IllegalArgumentException.class, () -> new Sdk.Builder().setWarmup(-1));
+    }
 }
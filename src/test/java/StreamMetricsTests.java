@@ -0,0 +1,150 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.sdk.kafka.partitioners.DynamicStreamPartitioner;
+import dsh.sdk.kafka.serdes.DataEnvelopeDeserializer;
+import dsh.sdk.metrics.ConsumerCountingInterceptor;
+import dsh.sdk.metrics.ProducerCountingInterceptor;
+import dsh.sdk.metrics.StreamCounters;
+import dsh.sdk.metrics.StreamMetrics;
+import dsh.sdk.streams.StreamsConfigParser;
+import mocks.MockKafka;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamMetricsTests {
+    private static final String TOPIC = "stream.weather.tenant";
+
+    private static Envelope.KeyEnvelope key(String key, Envelope.QoS qos) {
+        return Envelope.KeyEnvelope.newBuilder().setKey(key).setHeader(Envelope.KeyHeader.newBuilder().setQos(qos)).build();
+    }
+
+    private static Envelope.DataEnvelope value(String payload) {
+        return Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8(payload)).build();
+    }
+
+    @Test
+    public void interceptorsCountPerStreamAndQos() {
+        StreamMetrics metrics = new StreamMetrics();
+        Map<String, Object> configs = Collections.singletonMap(StreamMetrics.CONFIG_KEY, metrics);
+        ProducerCountingInterceptor<Envelope.KeyEnvelope, Envelope.DataEnvelope> producer = new ProducerCountingInterceptor<>();
+        producer.configure(configs);
+
+        List<ConsumerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope>> consumed = new ArrayList<>();
+        long reliableBytes = 0;
+        for(int i = 0; i < 100; i++) {
+            Envelope.KeyEnvelope key = key("a/b/" + i, i % 4 == 0 ? Envelope.QoS.RELIABLE : Envelope.QoS.BEST_EFFORT);
+            Envelope.DataEnvelope value = value("payload " + i);
+            ProducerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record = new ProducerRecord<>(i % 2 == 0 ? TOPIC : "scratch.topic", key, value);
+            assertSame(record, producer.onSend(record));
+            if(i % 2 == 0) {
+                if(i % 4 == 0) reliableBytes += key.getSerializedSize() + value.getSerializedSize();
+                consumed.add(new ConsumerRecord<>(TOPIC, 0, i, 0L, TimestampType.CREATE_TIME, key.getSerializedSize(), value.getSerializedSize(),
+                        key, value, new RecordHeaders(), Optional.empty()));
+            }
+        }
+        ConsumerCountingInterceptor<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer = new ConsumerCountingInterceptor<>();
+        consumer.configure(configs);
+        ConsumerRecords<Envelope.KeyEnvelope, Envelope.DataEnvelope> records = new ConsumerRecords<>(Collections.singletonMap(new TopicPartition(TOPIC, 0), consumed));
+        assertSame(records, consumer.onConsume(records));
+
+        // half of the records went to the stream, half of those were reliable; the scratch topic is not a stream
+        assertEquals(Collections.singleton(DataStream.of("stream.weather")), metrics.streams().keySet());
+        StreamCounters counters = metrics.counters(DataStream.of("stream.weather"));
+        assertEquals(25, counters.producedRecords(Envelope.QoS.RELIABLE));
+        assertEquals(25, counters.producedRecords(Envelope.QoS.BEST_EFFORT));
+        assertEquals(reliableBytes, counters.producedBytes(Envelope.QoS.RELIABLE));
+        assertEquals(25, counters.consumedRecords(Envelope.QoS.RELIABLE));
+        assertEquals(reliableBytes, counters.consumedBytes(Envelope.QoS.RELIABLE));
+        assertEquals(0, counters.producedRecords(null));
+
+        // raw records are counted without QoS
+        ProducerCountingInterceptor<byte[], byte[]> raw = new ProducerCountingInterceptor<>();
+        raw.configure(configs);
+        raw.onSend(new ProducerRecord<>(TOPIC, new byte[3], new byte[7]));
+        assertEquals(1, counters.producedRecords(null));
+        assertEquals(10, counters.producedBytes(null));
+
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("# TYPE dsh_stream_records_total counter\n"));
+        assertTrue(scrape.contains("dsh_stream_records_total{stream=\"stream.weather\",direction=\"produced\",qos=\"reliable\"} 25\n"));
+        assertTrue(scrape.contains("dsh_stream_records_total{stream=\"stream.weather\",direction=\"produced\",qos=\"unknown\"} 1\n"));
+        assertTrue(scrape.contains("dsh_stream_bytes_total{stream=\"stream.weather\",direction=\"consumed\",qos=\"reliable\"} " + reliableBytes + "\n"));
+        assertTrue(scrape.contains("dsh_stream_partitioner_fallbacks_total{stream=\"stream.weather\"} 0\n"));
+    }
+
+    @Test
+    public void errorsAndFallbacksAreCounted() {
+        StreamMetrics metrics = new StreamMetrics();
+        Map<String, Object> configs = Collections.singletonMap(StreamMetrics.CONFIG_KEY, metrics);
+
+        DataEnvelopeDeserializer deserializer = new DataEnvelopeDeserializer();
+        deserializer.configure(configs, false);
+        assertThrows(SerializationException.class, () -> deserializer.deserialize(TOPIC, new byte[] { 0x0a, 0x05, 0x01 }));
+        assertEquals(1, metrics.counters(TOPIC).deserializationErrors());
+
+        Properties streams = new Properties();
+        streams.put("datastream.stream.mine.partitions", "24");
+        streams.put("datastream.stream.mine.partitioner", "topic-level-partitioner");
+        streams.put("datastream.stream.mine.partitioningDepth", "1");
+        DynamicStreamPartitioner partitioner = new DynamicStreamPartitioner(StreamsConfigParser.of(streams));
+        partitioner.configure(configs);
+
+        // with a contract: no fallback
+        partitioner.partition("stream.mine.tenant", key("a/b", Envelope.QoS.BEST_EFFORT), null, null, null, MockKafka.clusterFor("stream.mine.tenant", 24));
+        assertEquals(0, metrics.counters("stream.mine.tenant").partitionerFallbacks());
+
+        // without: every record falls back, on the partition of its own key
+        for(String key: new String[] { "one", "two", "three" }) {
+            byte[] keyBytes = key.getBytes();
+            int partition = partitioner.partition("stream.other.tenant", key, keyBytes, null, null, MockKafka.clusterFor("stream.other.tenant", 24));
+            assertEquals(Utils.toPositive(Utils.murmur2(keyBytes)) % 24, partition);
+        }
+        assertEquals(3, metrics.counters(DataStream.of("stream.other")).partitionerFallbacks());
+        partitioner.close();
+    }
+
+    @Test
+    @Tag("performance")
+    public void countingUnderContention(TestReporter testReporter) throws InterruptedException {
+        ProducerCountingInterceptor<Envelope.KeyEnvelope, Envelope.DataEnvelope> producer = new ProducerCountingInterceptor<>();
+        producer.configure(Collections.singletonMap(StreamMetrics.CONFIG_KEY, new StreamMetrics()));
+        ProducerRecord<Envelope.KeyEnvelope, Envelope.DataEnvelope> record = new ProducerRecord<>(TOPIC, key("a/b", Envelope.QoS.RELIABLE), value("payload"));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicLong sent = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for(int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                long n = 0;
+                while(System.nanoTime() < deadline) {
+                    for(int j = 0; j < 1000; j++) producer.onSend(record);
+                    n += 1000;
+                }
+                sent.addAndGet(n);
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        testReporter.publishEntry("counting interceptor on " + threads + " threads - records/s", Long.toString(sent.get() / 5));
+    }
+}
@@ -0,0 +1,248 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.DataStream;
+import dsh.messages.Envelope;
+import dsh.sdk.kafka.consumers.StreamRelay;
+import dsh.sdk.kafka.partitioners.DynamicStreamPartitioner;
+import dsh.sdk.streams.StreamsConfigParser;
+import mocks.MockKafka;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamRelayTests {
+    private static final String SOURCE = "stream.source.tenant";
+    private static final TopicPartition TP0 = new TopicPartition(SOURCE, 0);
+    private static final TopicPartition TP1 = new TopicPartition(SOURCE, 1);
+    private static final DataStream DESTINATION = DataStream.of("stream.destination");
+
+    private final StreamsConfigParser parser = StreamsConfigParser.of(new HashMap<String, String>() {{
+        put("datastream.stream.destination.partitions", "12");
+        put("datastream.stream.destination.partitioner", "topic-level-partitioner");
+        put("datastream.stream.destination.partitioningDepth", "2");
+        put("datastream.stream.destination.write", "stream.destination.tenant");
+    }});
+
+    private final Cluster cluster = MockKafka.clusterFor("stream.destination.tenant", 12);
+
+    private static ConsumerRecord<byte[], byte[]> record(TopicPartition tp, long offset, String key) {
+        byte[] keyBytes = Envelope.KeyEnvelope.newBuilder()
+                .setKey(key)
+                .setHeader(Envelope.KeyHeader.newBuilder().setIdentifier(Envelope.Identity.newBuilder().setTenant("tenant").setApplication("app")))
+                .build().toByteArray();
+        byte[] valueBytes = Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8("value-" + offset)).build().toByteArray();
+        RecordHeaders headers = new RecordHeaders();
+        headers.add("origin", SOURCE.getBytes(StandardCharsets.UTF_8));
+        return new ConsumerRecord<>(tp.topic(), tp.partition(), offset, 1000L + offset, TimestampType.CREATE_TIME,
+                keyBytes.length, valueBytes.length, keyBytes, valueBytes, headers, Optional.empty());
+    }
+
+    private static List<ConsumerRecord<byte[], byte[]>> records(int count) {
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        for(int i = 0; i < count; i++) records.add(record(i % 2 == 0 ? TP0 : TP1, i / 2, "house/" + (i % 17) + "/meter/" + i));
+        return records;
+    }
+
+    // keeps the committed offsets when the relay closes the consumer
+    private static class RecordingConsumer extends MockConsumer<byte[], byte[]> {
+        Map<TopicPartition, OffsetAndMetadata> committedAtClose;
+
+        RecordingConsumer() { super(OffsetResetStrategy.EARLIEST); }
+
+        @Override
+        public synchronized void close() {
+            committedAtClose = committed(assignment());
+            super.close();
+        }
+    }
+
+    // hands out the records on the first poll, and stops the relay on the second
+    private static RecordingConsumer mockConsumer(List<ConsumerRecord<byte[], byte[]>> records, StreamRelay[] relay) {
+        RecordingConsumer consumer = new RecordingConsumer();
+        consumer.schedulePollTask(() -> {
+            consumer.rebalance(Arrays.asList(TP0, TP1));
+            Map<TopicPartition, Long> beginning = new HashMap<>();
+            beginning.put(TP0, 0L);
+            beginning.put(TP1, 0L);
+            consumer.updateBeginningOffsets(beginning);
+            consumer.seek(TP0, 0L);
+            consumer.seek(TP1, 0L);
+            records.forEach(consumer::addRecord);
+        });
+        consumer.schedulePollTask(() -> relay[0].close());
+        return consumer;
+    }
+
+    @Test
+    public void relaysOriginalBytesToDestinationPartitions() {
+        List<ConsumerRecord<byte[], byte[]>> records = records(100);
+        StreamRelay[] relay = new StreamRelay[1];
+        RecordingConsumer consumer = mockConsumer(records, relay);
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+
+        relay[0] = new StreamRelay.Builder(consumer, producer, parser)
+                .setDestination(DESTINATION)
+                .subscribe(Collections.singleton(SOURCE))
+                .setPollTimeout(Duration.ofMillis(1))
+                .build();
+        relay[0].run();
+
+        assertEquals(100, relay[0].relayed());
+        assertEquals(100, producer.history().size());
+        DynamicStreamPartitioner partitioner = new DynamicStreamPartitioner(parser);
+        Map<byte[], ProducerRecord<byte[], byte[]>> sent = new IdentityHashMap<>();
+        producer.history().forEach(r -> sent.put(r.key(), r));
+        for(ConsumerRecord<byte[], byte[]> in: records) {
+            ProducerRecord<byte[], byte[]> out = sent.get(in.key());
+            assertEquals("stream.destination.tenant", out.topic());
+            assertSame(in.value(), out.value());
+            assertEquals(in.timestamp(), out.timestamp().longValue());
+            assertEquals(in.headers(), out.headers());
+            assertEquals(partitioner.partition(out.topic(), parseKey(in.key()), null, null, null, cluster), out.partition().intValue());
+        }
+        // offsets committed after the producer was flushed
+        assertEquals(new OffsetAndMetadata(50), consumer.committedAtClose.get(TP0));
+        assertEquals(new OffsetAndMetadata(50), consumer.committedAtClose.get(TP1));
+        assertTrue(consumer.closed());
+        assertTrue(producer.closed());
+    }
+
+    private static Envelope.KeyEnvelope parseKey(byte[] bytes) {
+        try {
+            return Envelope.KeyEnvelope.parseFrom(bytes);
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void transactionalRelayCommitsOffsetsInTransaction() {
+        StreamRelay[] relay = new StreamRelay[1];
+        RecordingConsumer consumer = mockConsumer(records(20), relay);
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+
+        relay[0] = new StreamRelay.Builder(consumer, producer, parser)
+                .setDestination(DESTINATION)
+                .subscribe(Collections.singleton(SOURCE))
+                .setTransactional(true)
+                .setPollTimeout(Duration.ofMillis(1))
+                .build();
+        relay[0].run();
+
+        assertTrue(producer.transactionInitialized());
+        assertTrue(producer.transactionCommitted());
+        assertEquals(20, relay[0].relayed());
+        assertEquals(20, producer.history().size());
+        Map<TopicPartition, OffsetAndMetadata> offsets = producer.consumerGroupOffsetsHistory().get(0).values().iterator().next();
+        assertEquals(new OffsetAndMetadata(10), offsets.get(TP0));
+        assertEquals(new OffsetAndMetadata(10), offsets.get(TP1));
+    }
+
+    @Test
+    public void transactionalRelayContinuesAfterAbortedTransaction() {
+        List<ConsumerRecord<byte[], byte[]>> records = records(20);
+        StreamRelay[] relay = new StreamRelay[1];
+        RecordingConsumer consumer = new RecordingConsumer();
+        consumer.schedulePollTask(() -> {
+            consumer.rebalance(Arrays.asList(TP0, TP1));
+            Map<TopicPartition, Long> beginning = new HashMap<>();
+            beginning.put(TP0, 0L);
+            beginning.put(TP1, 0L);
+            consumer.updateBeginningOffsets(beginning);
+            consumer.seek(TP0, 0L);
+            consumer.seek(TP1, 0L);
+            records.forEach(consumer::addRecord);
+        });
+        // the aborted transaction rewinds to the beginning: the same records are polled again
+        consumer.schedulePollTask(() -> records.forEach(consumer::addRecord));
+        consumer.schedulePollTask(() -> relay[0].close());
+
+        // the sends of the first transaction fail, all later sends succeed
+        int[] aborted = new int[1];
+        MockProducer<byte[], byte[]> producer = new MockProducer<byte[], byte[]>(cluster, false, null, new ByteArraySerializer(), new ByteArraySerializer()) {
+            private boolean failed;
+
+            @Override
+            public void abortTransaction() {
+                aborted[0]++;
+                super.abortTransaction();
+            }
+
+            @Override
+            public synchronized void flush() {
+                if(! failed) {
+                    failed = true;
+                    while(errorNext(new KafkaException("leader not available"))) {}
+                }
+                while(completeNext()) {}
+            }
+        };
+
+        relay[0] = new StreamRelay.Builder(consumer, producer, parser)
+                .setDestination(DESTINATION)
+                .subscribe(Collections.singleton(SOURCE))
+                .setTransactional(true)
+                .setPollTimeout(Duration.ofMillis(1))
+                .build();
+        relay[0].run();
+
+        assertEquals(1, aborted[0]);
+        assertTrue(producer.transactionCommitted());
+        assertEquals(20, relay[0].relayed());
+        assertEquals(20, producer.history().size());
+        Map<TopicPartition, OffsetAndMetadata> offsets = producer.consumerGroupOffsetsHistory().get(0).values().iterator().next();
+        assertEquals(new OffsetAndMetadata(10), offsets.get(TP0));
+        assertEquals(new OffsetAndMetadata(10), offsets.get(TP1));
+        assertTrue(consumer.closed());
+        assertTrue(producer.closed());
+    }
+
+    @Test
+    public void failedSendsStopTheRelayWithoutCommitting() {
+        StreamRelay[] relay = new StreamRelay[1];
+        RecordingConsumer consumer = mockConsumer(records(10), relay);
+        MockProducer<byte[], byte[]> producer = new MockProducer<byte[], byte[]>(cluster, false, null, new ByteArraySerializer(), new ByteArraySerializer()) {
+            @Override
+            public synchronized void flush() {
+                while(errorNext(new KafkaException("broker gone"))) {}
+            }
+        };
+
+        relay[0] = new StreamRelay.Builder(consumer, producer, parser)
+                .setDestination(DESTINATION)
+                .subscribe(Collections.singleton(SOURCE))
+                .setPollTimeout(Duration.ofMillis(1))
+                .setCommitInterval(Duration.ZERO)
+                .build();
+
+        assertThrows(KafkaException.class, relay[0]::run);
+        assertNull(consumer.committedAtClose.get(TP0));
+        assertNull(consumer.committedAtClose.get(TP1));
+        assertTrue(consumer.closed());
+    }
+
+    @Test
+    public void builderValidatesDestination() {
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(cluster, true, null, new ByteArraySerializer(), new ByteArraySerializer());
+        assertThrows(IllegalArgumentException.class, () -> new StreamRelay.Builder(consumer, producer, parser).subscribe(Collections.singleton(SOURCE)).build());
+        assertThrows(IllegalArgumentException.class, () -> new StreamRelay.Builder(consumer, producer, parser).setDestination(DataStream.of("stream.unknown")).subscribe(Collections.singleton(SOURCE)).build());
+        assertThrows(IllegalArgumentException.class, () -> new StreamRelay.Builder(consumer, producer, parser).setDestination(DESTINATION).build());
+    }
+}
@@ -0,0 +1,148 @@
+import dsh.messages.DataStream;
+import dsh.sdk.kafka.consumers.StreamSubscription;
+import dsh.sdk.streams.StreamsConfigParser;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamSubscriptionTests {
+    private static final DataStream STREAM = DataStream.of("stream.weather");
+
+    private static StreamsConfigParser contracts() {
+        Properties props = new Properties();
+        props.put("datastream.stream.weather.cluster", "/tt");
+        props.put("datastream.stream.weather.partitioner", "default-partitioner");
+        props.put("datastream.stream.weather.replication", "3");
+        props.put("datastream.stream.weather.partitions", "1");
+        props.put("datastream.stream.weather.read", "stream\\.weather\\.[^.]*");
+        props.put("datastream.stream.weather.write", "stream.weather.tenant");
+        return StreamsConfigParser.of(props);
+    }
+
+    private static void addTopic(MockConsumer<?, ?> consumer, String topic) {
+        consumer.updatePartitions(topic, Collections.singletonList(new PartitionInfo(topic, 0, Node.noNode(), new Node[0], new Node[0])));
+    }
+
+    @Test
+    public void subscribesToResolvedTopics() {
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        addTopic(consumer, "stream.weather.tenant");
+        addTopic(consumer, "stream.weather.other");
+        addTopic(consumer, "stream.traffic.tenant");
+        addTopic(consumer, "stream.weather.tenant.archive");
+
+        StreamSubscription subscription = new StreamSubscription(StreamSubscriptionTests::contracts, Collections.singleton(STREAM));
+        subscription.subscribe(consumer);
+
+        assertEquals(Arrays.asList("stream.weather.other", "stream.weather.tenant"), subscription.topics());
+        assertEquals(new HashSet<>(subscription.topics()), consumer.subscription());
+    }
+
+    @Test
+    public void refreshOnlyResubscribesOnChanges() {
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        addTopic(consumer, "stream.weather.tenant");
+
+        StreamSubscription subscription = new StreamSubscription(StreamSubscriptionTests::contracts, Collections.singleton(STREAM), Duration.ofHours(1));
+        subscription.subscribe(consumer);
+        assertEquals(Collections.singleton("stream.weather.tenant"), consumer.subscription());
+
+        // within the refresh interval nothing is looked up
+        addTopic(consumer, "stream.weather.new");
+        assertFalse(subscription.refresh(consumer));
+        assertEquals(Collections.singletonList("stream.weather.tenant"), subscription.topics());
+    }
+
+    @Test
+    public void noTopicsAtSubscribe() {
+        int[] listed = {0};
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<byte[], byte[]>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized Map<String, List<PartitionInfo>> listTopics(Duration timeout) {
+                listed[0]++;
+                return super.listTopics(timeout);
+            }
+        };
+
+        StreamSubscription subscription = new StreamSubscription(StreamSubscriptionTests::contracts, Collections.singleton(STREAM), Duration.ofHours(1), Duration.ofHours(2));
+        subscription.subscribe(consumer);
+        assertFalse(subscription.isSubscribed());
+        assertTrue(consumer.subscription().isEmpty());
+
+        // still nothing: the topics are looked up once per refresh interval, not on every call
+        assertFalse(subscription.refresh(consumer));
+        assertEquals(1, listed[0]);
+
+        StreamSubscription eager = new StreamSubscription(StreamSubscriptionTests::contracts, Collections.singleton(STREAM), Duration.ZERO, Duration.ofHours(2));
+        eager.subscribe(consumer);
+        assertFalse(eager.refresh(consumer));
+        assertFalse(eager.isSubscribed());
+
+        addTopic(consumer, "stream.weather.tenant");
+        assertTrue(eager.refresh(consumer));
+        assertTrue(eager.isSubscribed());
+        assertEquals(Collections.singleton("stream.weather.tenant"), consumer.subscription());
+    }
+
+    @Test
+    public void refreshAfterInterval() {
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        addTopic(consumer, "stream.weather.tenant");
+
+        StreamSubscription subscription = new StreamSubscription(StreamSubscriptionTests::contracts, Collections.singleton(STREAM), Duration.ZERO, Duration.ZERO);
+        subscription.subscribe(consumer);
+        assertFalse(subscription.refresh(consumer));
+
+        addTopic(consumer, "stream.weather.new");
+        assertTrue(subscription.refresh(consumer));
+        assertEquals(Arrays.asList("stream.weather.new", "stream.weather.tenant"), subscription.topics());
+    }
+
+    @Test
+    public void refreshOnlyChecksSubscribedTopics() {
+        int[] listed = {0};
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<byte[], byte[]>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized Map<String, List<PartitionInfo>> listTopics(Duration timeout) {
+                listed[0]++;
+                // like the broker: removed topics are not listed
+                Map<String, List<PartitionInfo>> topics = new HashMap<>(super.listTopics(timeout));
+                topics.values().removeIf(List::isEmpty);
+                return topics;
+            }
+        };
+        addTopic(consumer, "stream.weather.tenant");
+        addTopic(consumer, "stream.weather.other");
+
+        StreamSubscription subscription = new StreamSubscription(StreamSubscriptionTests::contracts, Collections.singleton(STREAM), Duration.ZERO, Duration.ofHours(1));
+        subscription.subscribe(consumer);
+        assertEquals(1, listed[0]);
+
+        // a removed topic is dropped without listing all topics; new topics wait for the discovery
+        consumer.updatePartitions("stream.weather.other", Collections.emptyList());
+        addTopic(consumer, "stream.weather.new");
+        assertTrue(subscription.refresh(consumer));
+        assertEquals(Collections.singleton("stream.weather.tenant"), consumer.subscription());
+        assertFalse(subscription.refresh(consumer));
+        assertEquals(1, listed[0]);
+
+
+        // all topics gone: the consumer keeps its last subscription, so it can still be polled
+        consumer.updatePartitions("stream.weather.tenant", Collections.emptyList());
+        assertFalse(subscription.refresh(consumer));
+        assertEquals(Collections.singleton("stream.weather.tenant"), consumer.subscription());
+        assertTrue(subscription.isSubscribed());
+    }
+
+    @Test
+    public void noStreamsIsInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new StreamSubscription(StreamSubscriptionTests::contracts, Collections.emptyList()));
+    }
+}
@@ -0,0 +1,147 @@
+import dsh.sdk.mqtt.SubscriptionMatcher;
+import dsh.sdk.mqtt.TopicFilter;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class SubscriptionMatcherTests {
+    private static final String[] LEVELS = { "house", "garden", "1", "2", "meter", "light", "", "ü" };
+
+    private static String randomKey(Random rnd) {
+        return IntStream.range(0, 1 + rnd.nextInt(4)).mapToObj(i -> LEVELS[rnd.nextInt(LEVELS.length)]).collect(Collectors.joining("/"));
+    }
+
+    private static String randomFilter(Random rnd) {
+        int depth = 1 + rnd.nextInt(4);
+        List<String> levels = new ArrayList<>();
+        for(int i = 0; i < depth; i++) {
+            int r = rnd.nextInt(10);
+            levels.add(r < 2 ? "+" : (r == 2 && i == depth - 1) ? "#" : LEVELS[rnd.nextInt(LEVELS.length)]);
+        }
+        String filter = String.join("/", levels);
+        return filter.isEmpty() ? randomFilter(rnd) : filter;
+    }
+
+    private static Set<Integer> set(SubscriptionMatcher.Matches matches) {
+        return Arrays.stream(matches.toArray()).boxed().collect(Collectors.toSet());
+    }
+
+    @Test
+    public void matchesSameAsTopicFilter() {
+        Random rnd = new Random(42);
+        SubscriptionMatcher matcher = new SubscriptionMatcher();
+        Map<Integer, TopicFilter> filters = new HashMap<>();
+        for(int i = 0; i < 500; i++) {
+            String filter = randomFilter(rnd);
+            filters.put(matcher.add(filter), TopicFilter.of(filter));
+        }
+
+        SubscriptionMatcher.Matches matches = new SubscriptionMatcher.Matches(1);
+        for(int i = 0; i < 2000; i++) {
+            String key = randomKey(rnd);
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            Set<Integer> expected = filters.entrySet().stream().filter(e -> e.getValue().matches(key)).map(Map.Entry::getKey).collect(Collectors.toSet());
+
+            assertEquals(expected.size(), matcher.match(key, matches), key);
+            assertEquals(expected, set(matches), key);
+            assertEquals(expected.size(), matcher.match(bytes, 0, bytes.length, matches), key);
+            assertEquals(expected, set(matches), key);
+            assertEquals(! expected.isEmpty(), matcher.matchesAny(bytes, 0, bytes.length), key);
+        }
+    }
+
+    @Test
+    public void removedSubscriptionsNoLongerMatch() {
+        SubscriptionMatcher matcher = new SubscriptionMatcher();
+        int a = matcher.add("house/+/meter");
+        int b = matcher.add("house/+/meter");
+        int c = matcher.add("house/#");
+        int d = matcher.add("house/1/meter/power");
+        assertEquals(4, matcher.size());
+
+        SubscriptionMatcher.Matches matches = new SubscriptionMatcher.Matches();
+        assertEquals(3, matcher.match("house/1/meter", matches));
+        assertEquals(new HashSet<>(Arrays.asList(a, b, c)), set(matches));
+
+        assertTrue(matcher.remove(a));
+        assertFalse(matcher.remove(a));
+        assertTrue(matcher.remove(c));
+        assertEquals(1, matcher.match("house/1/meter", matches));
+        assertEquals(b, matches.get(0));
+
+        assertTrue(matcher.remove(d));
+        assertEquals(0, matcher.match("house/1/meter/power", matches));
+
+        int e = matcher.add("garden/#");
+        assertTrue(e == a || e == c || e == d, "handles are reused");
+        assertEquals("garden/#", matcher.filter(e));
+        assertEquals(1, matcher.match("garden", matches));
+        assertEquals(2, matcher.size());
+    }
+
+    @Test
+    public void invalidFiltersAreRejected() {
+        SubscriptionMatcher matcher = new SubscriptionMatcher();
+        assertThrows(IllegalArgumentException.class, () -> matcher.add("a/#/b"));
+        assertThrows(IllegalArgumentException.class, () -> matcher.add(""));
+        assertEquals(0, matcher.size());
+    }
+
+    @Test
+    public void matchingDoesNotAllocate() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+
+        Random rnd = new Random(7);
+        SubscriptionMatcher matcher = new SubscriptionMatcher();
+        for(int i = 0; i < 1000; i++) matcher.add(randomFilter(rnd));
+        byte[][] keys = IntStream.range(0, 100).mapToObj(i -> randomKey(rnd).getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        SubscriptionMatcher.Matches matches = new SubscriptionMatcher.Matches(1000);
+
+        for(byte[] key: keys) matcher.match(key, 0, key.length, matches);      // warm up
+        long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long total = 0;
+        for(int i = 0; i < 100; i++) for(byte[] key: keys) total += matcher.match(key, 0, key.length, matches);
+        long allocated = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertTrue(total > 0);
+        assertTrue(allocated < 1024, "allocated " + allocated + " bytes while matching");
+    }
+
+    @Test
+    @Tag("performance")
+    public void matcherPerformance(TestReporter testReporter) {
+        Random rnd = new Random(1);
+        SubscriptionMatcher matcher = new SubscriptionMatcher();
+        List<TopicFilter> linear = new ArrayList<>();
+        for(int i = 0; i < 100_000; i++) {
+            String filter = "tenant/" + rnd.nextInt(1000) + "/" + (rnd.nextInt(4) == 0 ? "+" : Integer.toString(rnd.nextInt(100))) + (rnd.nextBoolean() ? "/#" : "/meter");
+            matcher.add(filter);
+            if(i < 1000) linear.add(TopicFilter.of(filter));
+        }
+        byte[][] keys = IntStream.range(0, 1000).mapToObj(i -> ("tenant/" + rnd.nextInt(1000) + "/" + rnd.nextInt(100) + "/meter").getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        SubscriptionMatcher.Matches matches = new SubscriptionMatcher.Matches();
+
+        long trie = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            for(byte[] key: keys) matcher.match(key, 0, key.length, matches);
+        }).ops();
+        long scan = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            for(byte[] key: keys) for(TopicFilter f: linear) f.matches(key, 0, key.length);
+        }).ops();
+
+        testReporter.publishEntry("trie matcher, 100k subscriptions: keys/s", Long.toString(trie * keys.length));
+        testReporter.publishEntry("linear scan, 1k subscriptions: keys/s", Long.toString(scan * keys.length));
+    }
+}
@@ -0,0 +1,119 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.Envelope;
+import dsh.sdk.internal.Threads;
+import dsh.sdk.kafka.consumers.ParallelStreamConsumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class ThreadsTest {
+
+    // virtual threads are looked up reflectively, the tests are compiled against the Java 8 baseline
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // processes until all records are handled or the time is up, whichever comes first
+    private static long ioBoundRecordsPerSecond(ThreadFactory threadFactory, int workers, int records, Duration maxDuration) throws Exception {
+        TopicPartition tp = new TopicPartition("stream.bench.tenant", 0);
+        MockConsumer<Envelope.KeyEnvelope, Envelope.DataEnvelope> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.schedulePollTask(() -> {
+            consumer.rebalance(Collections.singletonList(tp));
+            consumer.updateBeginningOffsets(Collections.singletonMap(tp, 0L));
+            consumer.seek(tp, 0L);
+            for(int i = 0; i < records; i++)
+                consumer.addRecord(new ConsumerRecord<>(tp.topic(), tp.partition(), i,
+                        Envelope.KeyEnvelope.newBuilder().setKey("device/" + i).build(),
+                        Envelope.DataEnvelope.newBuilder().setPayload(ByteString.EMPTY).build()));
+        });
+
+        AtomicInteger processed = new AtomicInteger();
+        AtomicBoolean measuring = new AtomicBoolean(true);
+        ParallelStreamConsumer runtime = new ParallelStreamConsumer.Builder(consumer)
+                .subscribe(Collections.singletonList(tp.topic()))
+                .setWorkers(workers)
+                .setMaxInFlight(records)
+                .setPollTimeout(Duration.ofMillis(1))
+                .setThreadFactory(threadFactory)
+                .setHandler(r -> {
+                    // simulated blocking I/O -- skipped once measured, so closing does not wait for the remaining records
+                    if(measuring.get()) {
+                        Thread.sleep(2);
+                        processed.incrementAndGet();
+                    }
+                })
+                .build();
+
+        long start = System.nanoTime();
+        Thread t = new Thread(runtime);
+        t.start();
+        long deadline = start + maxDuration.toNanos();
+        while(processed.get() < records && System.nanoTime() < deadline) Thread.sleep(1);
+        measuring.set(false);
+        long done = processed.get();
+        long elapsed = System.nanoTime() - start;
+        runtime.close();
+        t.join();
+
+        return done * 1_000_000_000L / elapsed;
+    }
+
+    @Test
+    public void platformThreadsAreUsedByDefault() {
+        assertFalse(Threads.useVirtualThreads());
+        Thread t = Threads.ioThreadFactory("test-io", true).newThread(() -> {});
+        assertTrue(t.isDaemon());
+        assertEquals("test-io-0", t.getName());
+    }
+
+    @Test
+    public void ioExecutorFallsBackToPlatformExecutor() throws Exception {
+        ExecutorService platform = Executors.newSingleThreadExecutor();
+        ExecutorService executor = Threads.ioExecutor("test-io", () -> platform);
+        if(! Threads.useVirtualThreads()) assertSame(platform, executor);
+        assertEquals(42, (int) executor.submit(() -> 42).get());
+        executor.shutdown();
+        platform.shutdown();
+    }
+
+    @Test
+    @Tag("performance")
+    public void platformVersusVirtualThreadsForIoBoundHandlers(TestReporter testReporter) throws Exception {
+        // at most about 5s in total: the slow configurations are bounded by time, not by the number of records
+        final int records = 20_000;
+        final Duration maxDuration = Duration.ofMillis(1200);
+
+        testReporter.publishEntry("platform threads (cpu count workers) records/s",
+                Long.toString(ioBoundRecordsPerSecond(Threads.platformThreadFactory("bench", true), Runtime.getRuntime().availableProcessors(), records, maxDuration)));
+        testReporter.publishEntry("platform threads (1000 workers) records/s",
+                Long.toString(ioBoundRecordsPerSecond(Threads.platformThreadFactory("bench", true), 1000, records, maxDuration)));
+
+        ThreadFactory virtual = virtualThreadFactory();
+        assumeTrue(virtual != null, "virtual threads require Java 21");
+        testReporter.publishEntry("virtual threads (1000 workers) records/s",
+                Long.toString(ioBoundRecordsPerSecond(virtual, 1000, records, maxDuration)));
+        testReporter.publishEntry("virtual threads (10000 workers) records/s",
+                Long.toString(ioBoundRecordsPerSecond(virtual, 10000, records, maxDuration)));
+    }
+}
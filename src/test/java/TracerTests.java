@@ -0,0 +1,156 @@
+import com.google.protobuf.ByteString;
+import dsh.messages.DataFlyweight;
+import dsh.messages.Envelope;
+import dsh.messages.Tracing;
+import dsh.sdk.tracing.Span;
+import dsh.sdk.tracing.SpanContext;
+import dsh.sdk.tracing.Tracer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TracerTests {
+    private static final String TRACEPARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+    private static Envelope.DataEnvelope.Builder value() { return Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8("payload")); }
+
+    @Test
+    public void traceparentParsesAndEncodes() {
+        SpanContext context = SpanContext.parse(TRACEPARENT);
+        assertNotNull(context);
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", context.traceId());
+        assertEquals("00f067aa0ba902b7", context.spanIdHex());
+        assertTrue(context.isSampled());
+        assertEquals(TRACEPARENT, context.traceparent());
+        assertEquals(TRACEPARENT, new SpanContext(context.traceIdHigh(), context.traceIdLow(), context.spanId(), true).traceparent());
+        assertFalse(SpanContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00").isSampled());
+
+        // later versions may append fields
+        assertEquals(context, SpanContext.parse("01-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01-extra"));
+
+        for(String invalid: new String[] {
+                null, "", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7",
+                "00-4BF92F3577B34DA6A3CE929D0E0E4736-00f067aa0ba902b7-01",       // uppercase
+                "00-00000000000000000000000000000000-00f067aa0ba902b7-01",       // zero trace id
+                "00-4bf92f3577b34da6a3ce929d0e0e4736-0000000000000000-01",       // zero span id
+                "ff-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01",       // invalid version
+                "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01-extra", // version 00 has no extra fields
+                "00_4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01" }) {
+            assertNull(SpanContext.parse(invalid), invalid);
+        }
+    }
+
+    @Test
+    public void sampledSpansPropagateAndExport() {
+        List<Span> exported = new ArrayList<>();
+        Tracer tracer = new Tracer.Builder().setSampleRate(1).setExporter(exported::add).build();
+
+        Span root = tracer.startSpan("produce");
+        assertTrue(root.isSampled());
+        Envelope.DataEnvelope first = root.inject(value()).build();
+        Envelope.DataEnvelope second = root.inject(value().putTracing("other", "entry")).build();
+        assertEquals(root.context().traceparent(), Tracing.get(first, Tracer.TRACEPARENT));
+        assertEquals(root.context().traceparent(), Tracing.get(second, Tracer.TRACEPARENT));
+        assertEquals("entry", second.getTracingMap().get("other"));
+        root.end();
+        root.end();
+
+        // downstream: the same trace, with the root as parent, also from deferred tracing
+        Span child = tracer.startSpan("consume", Tracing.parseDeferred(first.toByteArray()));
+        assertEquals(root.context().traceId(), child.context().traceId());
+        assertEquals(root.context().spanId(), child.parentSpanId());
+        assertNotEquals(root.context().spanId(), child.context().spanId());
+        assertEquals(root.context(), tracer.extract(first));
+        DataFlyweight flyweight = new DataFlyweight().wrap(first.toByteArray());
+        assertEquals(root.context(), tracer.extract(flyweight));
+        assertEquals(root.context().spanId(), tracer.startSpan("consume", flyweight).parentSpanId());
+
+        // injecting into an envelope with deferred tracing replaces its traceparent
+        Envelope.DataEnvelope forwarded = child.inject(Tracing.parseDeferred(second.toByteArray()).toBuilder()).build();
+        Envelope.DataEnvelope parsed = Envelope.DataEnvelope.newBuilder().mergeFrom(forwarded).build();
+        assertEquals(child.context().traceparent(), Tracing.get(parsed, Tracer.TRACEPARENT));
+        assertEquals("entry", Tracing.get(parsed, "other"));
+        child.end();
+
+        assertEquals(2, exported.size());
+        assertTrue(exported.get(0).endMicros() >= exported.get(0).startMicros());
+        assertEquals("consume", exported.get(1).name());
+    }
+
+    @Test
+    public void unsampledTracesCarryNothing() {
+        List<Span> exported = new ArrayList<>();
+        Tracer never = new Tracer.Builder().setSampleRate(0).setExporter(exported::add).build();
+        Span span = never.startSpan("produce");
+        assertSame(Span.NOOP, span);
+        Envelope.DataEnvelope value = value().build();
+        assertEquals(value, span.inject(value.toBuilder()).build());
+        span.end();
+
+        // upstream decided not to sample: also not sampled here, whatever the rate
+        Tracer always = new Tracer.Builder().setSampleRate(1).setExporter(exported::add).build();
+        Envelope.DataEnvelope unsampled = value().putTracing(Tracer.TRACEPARENT, TRACEPARENT.replace("-01", "-00")).build();
+        assertSame(Span.NOOP, always.startSpan("consume", unsampled));
+        assertTrue(exported.isEmpty());
+
+        assertThrows(IllegalArgumentException.class, () -> new Tracer.Builder().setSampleRate(1.5).build());
+    }
+
+    @Test
+    public void unsampledPathDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Tracer tracer = new Tracer.Builder().setSampleRate(0).build();
+        DataFlyweight plain = new DataFlyweight().wrap(value().build().toByteArray());
+        DataFlyweight unsampled = new DataFlyweight().wrap(value().putTracing(Tracer.TRACEPARENT, TRACEPARENT.replace("-01", "-00")).build().toByteArray());
+        Envelope.DataEnvelope.Builder builder = value();
+        DataFlyweight[] values = { plain, unsampled };
+        Runnable work = () -> {
+            for(DataFlyweight value: values) {
+                Span span = tracer.startSpan("work", value);
+                span.inject(builder);
+                span.end();
+            }
+        };
+        for(int i = 0; i < 200000; i++) work.run();     // warm up
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for(int i = 0; i < 100000; i++) work.run();
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue(allocated < 100000, "unsampled path allocated " + allocated + " bytes");
+    }
+
+    @Test
+    @Tag("performance")
+    public void tracingOverhead(TestReporter testReporter) {
+        Envelope.DataEnvelope incoming = value().build();
+        Tracer unsampled = new Tracer.Builder().setSampleRate(0).build();
+        Tracer sampled = new Tracer.Builder().setSampleRate(1).build();
+        long[] sink = { 0 };
+
+        long unsampledOps = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            Span span = unsampled.startSpan("work", incoming);
+            sink[0] += span.inject(value()).build().getSerializedSize();
+            span.end();
+        }).ops();
+        long sampledOps = new Loop(5, TimeUnit.SECONDS).run(() -> {
+            Span span = sampled.startSpan("work", incoming);
+            sink[0] += span.inject(value()).build().getSerializedSize();
+            span.end();
+        }).ops();
+        Span shared = sampled.startSpan("batch");
+        long sharedOps = new Loop(5, TimeUnit.SECONDS).run(() -> sink[0] += shared.inject(value()).build().toByteArray().length).ops();
+
+        testReporter.publishEntry("unsampled span + inject - ops/s", Long.toString(unsampledOps));
+        testReporter.publishEntry("sampled span + inject - ops/s", Long.toString(sampledOps));
+        testReporter.publishEntry("inject shared span and serialize - ops/s", Long.toString(sharedOps));
+        assertTrue(sink[0] > 0);
+    }
+}
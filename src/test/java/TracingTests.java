@@ -0,0 +1,120 @@
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+import dsh.messages.Envelope;
+import dsh.messages.Serdes;
+import dsh.messages.Tracing;
+import dsh.messages.TracingBlock;
+import dsh.sdk.kafka.serdes.DataEnvelopeDeserializer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import utils.Loop;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TracingTests {
+    private static final UnknownFieldSet TENANT_FIELDS = UnknownFieldSet.newBuilder()
+            .addField(503, UnknownFieldSet.Field.newBuilder().addLengthDelimited(ByteString.copyFromUtf8("header")).build())
+            .build();
+
+    private static Map<String, String> tracing(Random random) {
+        Map<String, String> tracing = new LinkedHashMap<>();
+        for(int i = random.nextInt(5); i > 0; i--) tracing.put("key-" + random.nextInt(10), random.nextInt(3) == 0 ? "" : "välue-" + random.nextLong());
+        return tracing;
+    }
+
+    private static Envelope.DataEnvelope value(Random random) {
+        Envelope.DataEnvelope.Builder value = Envelope.DataEnvelope.newBuilder().putAllTracing(tracing(random));
+        if(random.nextBoolean()) value.setPayload(ByteString.copyFromUtf8("payload " + random.nextInt()));
+        if(random.nextBoolean()) value.setUnknownFields(TENANT_FIELDS);
+        return value.build();
+    }
+
+    @Test
+    public void deferredTracingReadsLikeTheMap() {
+        Random random = new Random(1);
+        for(int i = 0; i < 2000; i++) {
+            Envelope.DataEnvelope value = value(random);
+            byte[] bytes = value.toByteArray();
+            Envelope.DataEnvelope deferred = Tracing.parseDeferred(bytes);
+
+            assertEquals(value.getTracingCount() > 0, Tracing.hasDeferred(deferred));
+            assertEquals(0, deferred.getTracingCount());
+            assertEquals(value.getPayload(), deferred.getPayload());
+            assertArrayEquals(bytes, deferred.toByteArray());
+            assertEquals(value.getTracingMap(), Tracing.map(deferred));
+            for(String key: value.getTracingMap().keySet()) assertEquals(value.getTracingMap().get(key), Tracing.get(deferred, key));
+            assertNull(Tracing.get(deferred, "not-there"));
+            assertEquals(value, Tracing.decoded(deferred));
+
+            // the same functions work on eagerly parsed envelopes
+            assertEquals(value.getTracingMap(), Tracing.map(value));
+            assertSame(value, Tracing.decoded(value));
+        }
+        assertNull(Tracing.parseDeferred(null));
+        assertThrows(Serdes.SerializationException.class, () -> Tracing.parseDeferred(new byte[] { 0x12, 0x05, 0x01 }));
+    }
+
+    @Test
+    public void deserializerDefersTracingWhenConfigured() {
+        Envelope.DataEnvelope value = Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFromUtf8("data")).putTracing("span", "1234").build();
+
+        DataEnvelopeDeserializer eager = new DataEnvelopeDeserializer();
+        eager.configure(Collections.emptyMap(), false);
+        assertEquals(value, eager.deserialize("topic", value.toByteArray()));
+
+        DataEnvelopeDeserializer lazy = new DataEnvelopeDeserializer();
+        lazy.configure(Collections.singletonMap(Tracing.LAZY_CONFIG, "true"), false);
+        Envelope.DataEnvelope deferred = lazy.deserialize("topic", value.toByteArray());
+        assertTrue(Tracing.hasDeferred(deferred));
+        assertEquals("1234", Tracing.get(deferred, "span"));
+        assertEquals(value, Tracing.decoded(deferred));
+        assertNull(lazy.deserialize("topic", null));
+    }
+
+    @Test
+    public void tracingBlockWritesTheSameBytesAsTheMap() {
+        Random random = new Random(2);
+        for(int i = 0; i < 2000; i++) {
+            Map<String, String> tracing = tracing(random);
+            TracingBlock block = TracingBlock.of(tracing);
+            Envelope.DataEnvelope value = value(random);
+
+            Envelope.DataEnvelope expected = value.toBuilder().clearTracing().putAllTracing(tracing).build();
+            Envelope.DataEnvelope actual = block.applyTo(value);
+            assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+            assertEquals(tracing, Tracing.map(actual));
+            assertEquals(expected, Serdes.deserializeValue.apply(actual.toByteArray()));
+            assertEquals(expected.getSerializedSize() - value.toBuilder().clearTracing().build().getSerializedSize(), block.encodedSize());
+
+            // replaces deferred entries as well
+            assertArrayEquals(expected.toByteArray(), block.applyTo(Tracing.parseDeferred(value.toByteArray())).toByteArray());
+        }
+    }
+
+    @Test
+    @Tag("performance")
+    public void tracingPerformance(TestReporter testReporter) {
+        Map<String, String> tracing = new LinkedHashMap<>();
+        tracing.put("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+        tracing.put("tracestate", "congo=t61rcWkgMzE");
+        tracing.put("baggage", "userId=alice,serverNode=DF%2028");
+        byte[] bytes = Envelope.DataEnvelope.newBuilder().setPayload(ByteString.copyFrom(new byte[100])).putAllTracing(tracing).build().toByteArray();
+
+        long[] sink = { 0 };
+        long eagerOps = new Loop(5, TimeUnit.SECONDS).run(() -> sink[0] += Serdes.deserializeValue.apply(bytes).getPayload().size()).ops();
+        long deferredOps = new Loop(5, TimeUnit.SECONDS).run(() -> sink[0] += Tracing.parseDeferred(bytes).getPayload().size()).ops();
+
+        ByteString payload = ByteString.copyFrom(new byte[100]);
+        TracingBlock block = TracingBlock.of(tracing);
+        long mapOps = new Loop(5, TimeUnit.SECONDS).run(() -> sink[0] += Envelope.DataEnvelope.newBuilder().setPayload(payload).putAllTracing(tracing).build().toByteArray().length).ops();
+        long blockOps = new Loop(5, TimeUnit.SECONDS).run(() -> sink[0] += block.applyTo(Envelope.DataEnvelope.newBuilder().setPayload(payload)).build().toByteArray().length).ops();
+
+        testReporter.publishEntry("parse - eager / deferred tracing ops/s", eagerOps + " / " + deferredOps);
+        testReporter.publishEntry("build and serialize - tracing map / tracing block ops/s", mapOps + " / " + blockOps);
+        assertTrue(sink[0] > 0);
+    }
+}
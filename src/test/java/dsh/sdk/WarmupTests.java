@@ -0,0 +1,77 @@
+package dsh.sdk;
+
+import dsh.rest.Service;
+import dsh.rest.SimpleRestServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WarmupTests {
+    private static Properties platformProps() {
+        Properties props = new Properties();
+        props.put("bootstrap.servers", "broker-0.kafka.marathon.mesos:9091");
+        props.put("consumerGroups.shared", "mytenant_subgroup_myapp_1");
+        props.put("consumerGroups.private", "mytenant_subgroup_myapp.00000000-0000-0000-0000-000000000000_1");
+        props.put("security.protocol", "SSL");
+        props.put("ssl.truststore.location", "truststore.jks");
+        props.put("ssl.truststore.password", "truststore.password");
+        props.put("ssl.keystore.location", "keystore.jks");
+        props.put("ssl.keystore.password", "truststore.password");
+        props.put("ssl.key.password", "key.password");
+
+        props.put("datastream.stream.ping.partitions", "12");
+        props.put("datastream.stream.ping.partitioner", "topic-level-partitioner");
+        props.put("datastream.stream.ping.replication", "3");
+        props.put("datastream.stream.ping.read", "stream\\.ping\\.[^.]*");
+        props.put("datastream.stream.ping.canretain", "true");
+        props.put("datastream.stream.ping.cluster", "/tt");
+        props.put("datastream.stream.ping.partitioningDepth", "1");
+        return props;
+    }
+
+    @Test
+    public void warmupGatesReadiness() throws Exception {
+        // hold the warmup until the test runs it
+        List<Runnable> held = new ArrayList<>();
+        Sdk sdk = new Sdk.Builder().fromProperties(platformProps()).setWarmup(2000).setWarmupExecutor(held::add).build();
+        assertEquals(1, held.size());
+
+        try(Service rest = new SimpleRestServer.Builder().setListener("/health", sdk.readiness()).build()) {
+            rest.start();
+            URL health = new URL("http://localhost:" + rest.address().getPort() + "/health");
+
+            assertFalse(sdk.awaitWarmup(50, TimeUnit.MILLISECONDS));
+            assertFalse(sdk.readiness().get());
+            assertEquals(500, statusOf(health));
+
+            held.get(0).run();
+            assertTrue(sdk.awaitWarmup(0, TimeUnit.MILLISECONDS));
+            assertTrue(sdk.readiness().get());
+            assertEquals(200, statusOf(health));
+        }
+    }
+
+    @Test
+    public void failingWarmupCountsAsFinished() {
+        // without configuration the warmup fails after the codecs
+        assertTrue(Warmup.start("mytenant", null, 100, Runnable::run).isDone());
+    }
+
+    private static int statusOf(URL url) throws IOException {
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        try {
+            return http.getResponseCode();
+        }
+        finally {
+            http.disconnect();
+        }
+    }
+}
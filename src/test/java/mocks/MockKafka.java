@@ -6,6 +6,7 @@ import org.apache.kafka.common.PartitionInfo;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -27,4 +28,19 @@ public class MockKafka {
         );
     }
 
+    public static Cluster clusterFor(Map<String, Integer> topics) {
+        Node broker = new Node(1001, "localhost", 9091);
+
+        List<PartitionInfo> partitionInfo = topics.entrySet().stream()
+                .flatMap(t -> IntStream.range(0, t.getValue()).mapToObj(n -> new PartitionInfo(t.getKey(), n, broker, new Node[0], new Node[0])))
+                .collect(Collectors.toList());
+
+        return new Cluster(
+                "mock-kafka-cluster",
+                Collections.singletonList(broker),
+                partitionInfo,
+                Collections.emptySet(),
+                Collections.emptySet()
+        );
+    }
 }